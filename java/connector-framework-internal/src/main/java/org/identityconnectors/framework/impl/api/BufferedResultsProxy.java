@@ -28,10 +28,17 @@ package org.identityconnectors.framework.impl.api;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.identityconnectors.common.Assertions;
+import org.identityconnectors.common.l10n.CurrentLocale;
 import org.identityconnectors.common.logging.Log;
 import org.identityconnectors.framework.api.operations.APIOperation;
 import org.identityconnectors.framework.common.exceptions.ConnectorException;
@@ -41,6 +48,39 @@ public class BufferedResultsProxy implements InvocationHandler {
 
     private final static Log LOG = Log.getLog(BufferedResultsProxy.class);
 
+    /**
+     * How often a producer blocked on a full buffer checks whether the
+     * consumer has gone away.
+     */
+    private static final long STOP_CHECK_MILLIS = 100;
+
+    private static final ThreadFactory WORKER_FACTORY = new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            Thread thread = new Thread(r, "BufferedResults-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    /**
+     * Runs the producer side of the buffered operations on at most 64
+     * threads. Once all of them are busy the producers wait in the queue,
+     * each for a caller blocked on its results. The caller's timeout covers
+     * that wait, a producer still queued when it expires is dropped and never
+     * runs.
+     */
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(64, 64, 60,
+            TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), WORKER_FACTORY);
+
+    static {
+        EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private static volatile boolean directHandoffEnabled = true;
+
     private final Object target;
 
     private final int bufferSize;
@@ -65,7 +105,51 @@ public class BufferedResultsProxy implements InvocationHandler {
         this.bufferSize = (bufferSize < 1) ? 100 : bufferSize;
     }
 
-    private static class BufferedResultsHandler extends Thread implements ObjectStreamHandler {
+    public static int getMaxWorkers() {
+        return EXECUTOR.getMaximumPoolSize();
+    }
+
+    /**
+     * Sets the largest number of threads running the producer side of the
+     * buffered operations. Operations started while all of them are busy wait
+     * for one, and time out if none becomes free within their timeout.
+     * Operations without a timeout may wait indefinitely, unless they are run
+     * on the calling thread, see {@link #setDirectHandoffEnabled(boolean)}.
+     *
+     * @since 1.4.4
+     */
+    public static void setMaxWorkers(final int max) {
+        if (max < 1) {
+            throw new IllegalArgumentException("The max must be greater than 0");
+        }
+        synchronized (EXECUTOR) {
+            // the core size must never exceed the max size
+            if (max > EXECUTOR.getMaximumPoolSize()) {
+                EXECUTOR.setMaximumPoolSize(max);
+                EXECUTOR.setCorePoolSize(max);
+            } else {
+                EXECUTOR.setCorePoolSize(max);
+                EXECUTOR.setMaximumPoolSize(max);
+            }
+        }
+    }
+
+    public static boolean isDirectHandoffEnabled() {
+        return directHandoffEnabled;
+    }
+
+    /**
+     * Enables or disables running the operations without a timeout on the
+     * calling thread, passing the results straight to the caller's handler
+     * instead of through the buffer. It is enabled by default.
+     *
+     * @since 1.4.4
+     */
+    public static void setDirectHandoffEnabled(final boolean enabled) {
+        directHandoffEnabled = enabled;
+    }
+
+    private static class BufferedResultsHandler implements Runnable, ObjectStreamHandler {
 
         private static final Object DONE = new Object();
 
@@ -79,17 +163,42 @@ public class BufferedResultsProxy implements InvocationHandler {
 
         private final long timeoutMillis;
 
-        private final ArrayBlockingQueue<Object> buffer;
+        private final ResultsRingBuffer buffer;
 
-        private Object result = null;
+        /**
+         * The objects taken from the buffer by the consumer but not yet
+         * returned, only used by the consumer.
+         */
+        private final Object[] batch;
+
+        private int batchIndex = 0;
+
+        private int batchSize = 0;
+
+        private final CountDownLatch finished = new CountDownLatch(1);
+
+        /**
+         * The locale and class loader of the caller, the producer runs with
+         * these on the worker thread.
+         */
+        private final Locale locale;
+
+        private final ClassLoader contextClassLoader;
+
+        private volatile Thread worker = null;
+
+        private volatile Object result = null;
 
         public BufferedResultsHandler(Method method, Object target, Object[] arguments,
                 int bufferSize, long timeoutMillis) {
             this.method = method;
             this.target = target;
             this.arguments = arguments;
-            buffer = new ArrayBlockingQueue<Object>(bufferSize);
+            buffer = new ResultsRingBuffer(bufferSize);
+            batch = new Object[bufferSize];
             this.timeoutMillis = timeoutMillis;
+            locale = CurrentLocale.isSet() ? CurrentLocale.get() : null;
+            contextClassLoader = Thread.currentThread().getContextClassLoader();
         }
 
         @Override
@@ -99,7 +208,7 @@ public class BufferedResultsProxy implements InvocationHandler {
             }
             Assertions.nullCheck(obj, "obj");
             try {
-                buffer.put(obj);
+                put(obj);
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
                 throw ConnectorException.wrap(e);
@@ -107,6 +216,19 @@ public class BufferedResultsProxy implements InvocationHandler {
             return !isStopped();
         }
 
+        /**
+         * Puts the object in the buffer unless the consumer stops meanwhile. A
+         * stopped consumer never drains the buffer again, so waiting for room
+         * would block the worker forever.
+         */
+        private void put(final Object obj) throws InterruptedException {
+            while (!buffer.offer(obj, STOP_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (isStopped()) {
+                    return;
+                }
+            }
+        }
+
         /**
          * Stops the thread and optionally waits for it to finish.
          *
@@ -114,28 +236,32 @@ public class BufferedResultsProxy implements InvocationHandler {
          * @throws OperationTimeoutException If we said to wait and we timed out.
          */
         public void stop(boolean wait) {
-            if (wait && Thread.currentThread() == this) {
+            if (wait && Thread.currentThread() == worker) {
                 throw new IllegalStateException("A thread cannot wait on itself");
             }
 
             if (stopped.compareAndSet(false, true)) {
 
+                // a producer still waiting for a worker never runs
+                if (EXECUTOR.remove(this)) {
+                    finished.countDown();
+                }
                 // clear out the queue - this will cause the thread to
                 // wakeup so that it can exit
                 buffer.clear();
+                Arrays.fill(batch, 0, batchSize, null);
+                batchIndex = batchSize = 0;
                 if (wait) {
                     try {
-                        // join with a time-limit. this may timeout
+                        // wait with a time-limit. this may timeout
                         // if we are blocked in the producer
-                        join(timeoutMillis);
+                        if (!finished.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                            throw new OperationTimeoutException();
+                        }
                     } catch (InterruptedException e) {
                         Thread.currentThread().interrupt();
                         throw ConnectorException.wrap(e);
                     }
-                    // if we're still alive, we've timed out
-                    if (isAlive()) {
-                        throw new OperationTimeoutException();
-                    }
                 }
             }
         }
@@ -160,21 +286,42 @@ public class BufferedResultsProxy implements InvocationHandler {
 
         @Override
         public void run() {
+            if (isStopped()) {
+                // the consumer has given up while the producer was queued
+                finished.countDown();
+                return;
+            }
+            final Thread thread = Thread.currentThread();
+            final ClassLoader savedClassLoader = thread.getContextClassLoader();
+            worker = thread;
+            // pooled threads inherit the locale of whoever created them, so
+            // it is always set explicitly
+            if (locale != null) {
+                CurrentLocale.set(locale);
+            } else {
+                CurrentLocale.clear();
+            }
+            thread.setContextClassLoader(contextClassLoader);
             try {
                 try {
                     result = method.invoke(target, createActualArguments());
-                    buffer.put(DONE);
+                    put(DONE);
                 } catch (RuntimeException e) {
-                    buffer.put(e);
+                    put(e);
                 } catch (InvocationTargetException e) {
-                    buffer.put(e.getTargetException());
+                    put(e.getTargetException());
                 } catch (InterruptedException e) {
                     throw e;
                 } catch (Exception e) {
-                    buffer.put(ConnectorException.wrap(e));
+                    put(ConnectorException.wrap(e));
                 }
             } catch (InterruptedException e) {
                 LOG.error(e, null);
+            } finally {
+                CurrentLocale.clear();
+                thread.setContextClassLoader(savedClassLoader);
+                worker = null;
+                finished.countDown();
             }
         }
 
@@ -189,12 +336,19 @@ public class BufferedResultsProxy implements InvocationHandler {
             if (isStopped()) {
                 return null;
             }
-            Object obj;
-            try {
-                obj = buffer.poll(timeoutMillis, TimeUnit.MILLISECONDS);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                throw ConnectorException.wrap(e);
+            Object obj = null;
+            if (batchIndex == batchSize) {
+                try {
+                    batchSize = buffer.drainTo(batch, timeoutMillis, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw ConnectorException.wrap(e);
+                }
+                batchIndex = 0;
+            }
+            if (batchIndex < batchSize) {
+                obj = batch[batchIndex];
+                batch[batchIndex++] = null;
             }
             if (obj == null) {
                 stop(false); // stop, but don't wait since we've already timed
@@ -226,9 +380,6 @@ public class BufferedResultsProxy implements InvocationHandler {
             return method.invoke(target, arguments);
         }
 
-        BufferedResultsHandler bufHandler =
-                new BufferedResultsHandler(method, target, arguments, bufferSize, timeoutMillis);
-
         ObjectStreamHandler handler = null;
 
         Class<?>[] paramTypes = method.getParameterTypes();
@@ -249,12 +400,16 @@ public class BufferedResultsProxy implements InvocationHandler {
                     "We only support operations that have a single stream handler " + method);
         }
 
-        // this guy will automatically inherit
-        // CurrentLocale since we are using a new thread
-        // NOTE: if we ever introduce thread pooling
-        // here, it needs to explicitly propagate
-        bufHandler.setDaemon(true);
-        bufHandler.start();
+        if (timeoutMillis == Long.MAX_VALUE && directHandoffEnabled) {
+            // nothing to time out, so there is no point in another thread
+            return invokeDirect(method, arguments, handler);
+        }
+
+        // the handler captures CurrentLocale and the context class loader,
+        // the pooled worker runs the producer with them
+        BufferedResultsHandler bufHandler =
+                new BufferedResultsHandler(method, target, arguments, bufferSize, timeoutMillis);
+        EXECUTOR.execute(bufHandler);
         while (!bufHandler.isStopped()) {
             Object obj = bufHandler.getNextObject();
             if (obj != null) {
@@ -281,4 +436,54 @@ public class BufferedResultsProxy implements InvocationHandler {
         }
         return bufHandler.getResult();
     }
+
+    /**
+     * Runs the operation on the calling thread. An exception thrown by the
+     * caller's handler stops the operation and is rethrown once it returns,
+     * as the connector must not get the chance to swallow it.
+     */
+    private Object invokeDirect(final Method method, final Object[] arguments,
+            final ObjectStreamHandler handler) throws Throwable {
+        final RuntimeException[] handlerException = new RuntimeException[1];
+        final ObjectStreamHandler direct = new ObjectStreamHandler() {
+
+            @Override
+            public boolean handle(final Object obj) {
+                if (handlerException[0] != null) {
+                    return false;
+                }
+                Assertions.nullCheck(obj, "obj");
+                try {
+                    return handler.handle(obj);
+                } catch (RuntimeException e) {
+                    handlerException[0] = e;
+                    return false;
+                }
+            }
+        };
+        Object[] actualArguments = new Object[arguments.length];
+        Class<?>[] paramTypes = method.getParameterTypes();
+        for (int i = 0; i < paramTypes.length; i++) {
+            Class<?> paramType = paramTypes[i];
+            if (StreamHandlerUtil.isAdaptableToObjectStreamHandler(paramType)) {
+                actualArguments[i] = StreamHandlerUtil.adaptFromObjectStreamHandler(paramType, direct);
+            } else {
+                actualArguments[i] = arguments[i];
+            }
+        }
+        Object result;
+        try {
+            result = method.invoke(target, actualArguments);
+        } catch (InvocationTargetException e) {
+            if (handlerException[0] != null) {
+                LOG.error(e.getTargetException(), null);
+                throw handlerException[0];
+            }
+            throw e.getTargetException();
+        }
+        if (handlerException[0] != null) {
+            throw handlerException[0];
+        }
+        return result;
+    }
 }
@@ -23,8 +23,13 @@
 
 package org.identityconnectors.framework.impl.api;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.identityconnectors.common.logging.Log;
 import org.identityconnectors.framework.api.APIConfiguration;
@@ -32,43 +37,112 @@ import org.identityconnectors.framework.api.ConnectorFacade;
 import org.identityconnectors.framework.api.ConnectorInfo;
 import org.identityconnectors.framework.impl.api.local.LocalConnectorFacadeImpl;
 
+/**
+ * Caches the facades by their configuration.
+ * <p>
+ * The cache holds at most {@link #getMaxFacades()} facades, the least recently
+ * used ones are evicted to make room for new ones. Facades which have not been
+ * used for {@link #getMaxIdleTime()} are evicted as well. Evicted facades are
+ * disposed, which closes their connector pool once the operations in flight
+ * on them have finished. A facade which is still referenced elsewhere keeps
+ * working, it opens a new pool when it is used again.
+ */
 public class ManagedConnectorFacadeFactoryImpl extends ConnectorFacadeFactoryImpl {
 
     private static final Log LOG = Log.getLog(ManagedConnectorFacadeFactoryImpl.class);
 
+    /**
+     * A cached facade and the last time it has been handed out.
+     */
+    private static final class CacheEntry {
+
+        private final String key;
+
+        private final ConnectorFacade facade;
+
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        private CacheEntry(final String key, final ConnectorFacade facade) {
+            this.key = key;
+            this.facade = facade;
+        }
+    }
+
+    /**
+     * A cache entry and its last use when the eviction has started, which
+     * does not change while the entries are sorted.
+     */
+    private static final class EvictionCandidate {
+
+        private final CacheEntry entry;
+
+        private final long lastUsed;
+
+        private EvictionCandidate(final CacheEntry entry) {
+            this.entry = entry;
+            this.lastUsed = entry.lastUsed;
+        }
+    }
+
+    private static final Comparator<EvictionCandidate> LEAST_RECENTLY_USED =
+            new Comparator<EvictionCandidate>() {
+                @Override
+                public int compare(final EvictionCandidate o1, final EvictionCandidate o2) {
+                    return o1.lastUsed < o2.lastUsed ? -1 : (o1.lastUsed == o2.lastUsed ? 0 : 1);
+                }
+            };
+
     /**
      * Cache of the various ConnectorFacades.
      */
-    private static final ConcurrentMap<String, ConnectorFacade> CACHE =
-            new ConcurrentHashMap<String, ConnectorFacade>();
+    private static final ConcurrentMap<String, CacheEntry> CACHE =
+            new ConcurrentHashMap<String, CacheEntry>();
+
+    /**
+     * Lets one thread at a time evict the facades over the max size.
+     */
+    private static final Object EVICTION_LOCK = new Object();
+
+    private static final AtomicLong HITS = new AtomicLong();
+
+    private static final AtomicLong MISSES = new AtomicLong();
+
+    private static final AtomicLong EVICTIONS = new AtomicLong();
+
+    /**
+     * The longest time between two sweeps of the idle facades.
+     */
+    private static final long MAX_SWEEP_INTERVAL = 60 * 1000;
+
+    private static final AtomicLong NEXT_SWEEP = new AtomicLong();
+
+    private static volatile int maxFacades = 1000;
+
+    private static volatile long maxIdleTime = 30 * 60 * 1000;
 
     /**
      * {@inheritDoc}
      */
     @Override
     public ConnectorFacade newInstance(final APIConfiguration config) {
-        ConnectorFacade facade = super.newInstance(config);
-        ConnectorFacade ret = CACHE.putIfAbsent(facade.getConnectorFacadeKey(), facade);
-        if (null != ret) {
-            LOG.ok("ConnectorFacade found in cache");
-            facade = ret;
-        }
-
+        ConnectorFacade facade = cache(super.newInstance(config));
+        evictIdleIfDue();
         return facade;
     }
 
     @Override
     public ConnectorFacade newInstance(final ConnectorInfo connectorInfo, String config) {
-        ConnectorFacade facade = CACHE.get(config);
-        if (null == facade) {
+        CacheEntry entry = CACHE.get(config);
+        ConnectorFacade facade;
+        if (null == entry) {
             // new ConnectorFacade creation must remain cheap operation
-            facade = super.newInstance(connectorInfo, config);
-            ConnectorFacade ret = CACHE.putIfAbsent(facade.getConnectorFacadeKey(), facade);
-            if (null != ret) {
-                LOG.ok("ConnectorFacade found in cache");
-                facade = ret;
-            }
+            facade = cache(super.newInstance(connectorInfo, config));
+        } else {
+            HITS.incrementAndGet();
+            entry.lastUsed = System.currentTimeMillis();
+            facade = entry.facade;
         }
+        evictIdleIfDue();
         return facade;
     }
 
@@ -79,16 +153,201 @@ public class ManagedConnectorFacadeFactoryImpl extends ConnectorFacadeFactoryImp
     @Override
     public void dispose() {
         super.dispose();
-        for (ConnectorFacade facade : CACHE.values()) {
-            if (facade instanceof LocalConnectorFacadeImpl) {
-                try {
-                    ((LocalConnectorFacadeImpl) facade).dispose();
-                } catch (Exception e) {
-                    LOG.warn(e, "Failed to dispose facade: {0}", facade);
+        for (CacheEntry entry : CACHE.values()) {
+            if (CACHE.remove(entry.key, entry)) {
+                disposeFacade(entry.facade);
+            }
+        }
+    }
+
+    /**
+     * Returns the largest number of facades kept in the cache.
+     */
+    public static int getMaxFacades() {
+        return maxFacades;
+    }
+
+    /**
+     * Sets the largest number of facades kept in the cache. Once it is
+     * reached, the least recently used facades are evicted to make room for
+     * the new ones.
+     */
+    public static void setMaxFacades(final int max) {
+        if (max < 1) {
+            throw new IllegalArgumentException("The max must be positive");
+        }
+        maxFacades = max;
+    }
+
+    /**
+     * Returns the time in milliseconds after which an unused facade is
+     * evicted, 0 if unused facades are kept.
+     */
+    public static long getMaxIdleTime() {
+        return maxIdleTime;
+    }
+
+    /**
+     * Sets the time in milliseconds after which an unused facade is evicted,
+     * 0 to keep unused facades. It is 30 minutes by default. The cache looks
+     * for idle facades when it is used, at most once a minute.
+     */
+    public static void setMaxIdleTime(final long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("The idle time must not be negative");
+        }
+        maxIdleTime = millis;
+        NEXT_SWEEP.set(0);
+    }
+
+    /**
+     * Returns the number of requests for a facade which have been served from
+     * the cache.
+     */
+    public static long getHitCount() {
+        return HITS.get();
+    }
+
+    /**
+     * Returns the number of requests for a facade which have created a new
+     * one.
+     */
+    public static long getMissCount() {
+        return MISSES.get();
+    }
+
+    /**
+     * Returns the number of facades evicted because the cache was full or
+     * because they were idle.
+     */
+    public static long getEvictionCount() {
+        return EVICTIONS.get();
+    }
+
+    /**
+     * Returns the facades currently in the cache.
+     */
+    public static List<ConnectorFacade> getFacades() {
+        List<ConnectorFacade> facades = new ArrayList<ConnectorFacade>(CACHE.size());
+        for (CacheEntry entry : CACHE.values()) {
+            facades.add(entry.facade);
+        }
+        return facades;
+    }
+
+    /**
+     * Evicts the facades which have not been used for the max idle time.
+     *
+     * @return the number of evicted facades.
+     */
+    public static int evictIdleFacades() {
+        long idleTime = maxIdleTime;
+        if (idleTime <= 0) {
+            return 0;
+        }
+        long oldest = System.currentTimeMillis() - idleTime;
+        int evicted = 0;
+        for (CacheEntry entry : CACHE.values()) {
+            if (entry.lastUsed < oldest && evict(entry)) {
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Adds the given facade unless the cache has one for its configuration
+     * already.
+     *
+     * @return the cached facade.
+     */
+    private static ConnectorFacade cache(final ConnectorFacade facade) {
+        String key = facade.getConnectorFacadeKey();
+        CacheEntry entry = new CacheEntry(key, facade);
+        CacheEntry ret = CACHE.putIfAbsent(key, entry);
+        if (null != ret) {
+            LOG.ok("ConnectorFacade found in cache");
+            HITS.incrementAndGet();
+            ret.lastUsed = System.currentTimeMillis();
+            return ret.facade;
+        }
+        MISSES.incrementAndGet();
+        if (CACHE.size() > maxFacades) {
+            evictExcess(entry);
+        }
+        return facade;
+    }
+
+    private static void evictIdleIfDue() {
+        long idleTime = maxIdleTime;
+        if (idleTime <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long next = NEXT_SWEEP.get();
+        // only one of the threads which find the sweep due runs it
+        if (now >= next
+                && NEXT_SWEEP.compareAndSet(next, now + Math.min(idleTime, MAX_SWEEP_INTERVAL))) {
+            evictIdleFacades();
+        }
+    }
+
+    /**
+     * Evicts the least recently used facades until the cache is back to its
+     * max size, never the given one which has just been added. Only a new
+     * facade makes the cache grow, so the entries are only sorted then, the
+     * lookups never wait for it.
+     */
+    private static void evictExcess(final CacheEntry added) {
+        List<CacheEntry> evicted = new ArrayList<CacheEntry>();
+        synchronized (EVICTION_LOCK) {
+            int excess = CACHE.size() - maxFacades;
+            if (excess <= 0) {
+                // another thread has made room meanwhile
+                return;
+            }
+            List<EvictionCandidate> candidates = new ArrayList<EvictionCandidate>(CACHE.size());
+            for (CacheEntry entry : CACHE.values()) {
+                if (entry != added) {
+                    candidates.add(new EvictionCandidate(entry));
+                }
+            }
+            Collections.sort(candidates, LEAST_RECENTLY_USED);
+            for (int i = 0; i < candidates.size() && evicted.size() < excess; i++) {
+                CacheEntry entry = candidates.get(i).entry;
+                // another thread may have evicted it meanwhile
+                if (CACHE.remove(entry.key, entry)) {
+                    evicted.add(entry);
                 }
             }
         }
-        CACHE.clear();
+        for (CacheEntry entry : evicted) {
+            disposeEvicted(entry);
+        }
     }
 
+    private static boolean evict(final CacheEntry entry) {
+        // another thread may have evicted it meanwhile
+        if (CACHE.remove(entry.key, entry)) {
+            disposeEvicted(entry);
+            return true;
+        }
+        return false;
+    }
+
+    private static void disposeEvicted(final CacheEntry entry) {
+        LOG.ok("ConnectorFacade evicted from cache");
+        EVICTIONS.incrementAndGet();
+        disposeFacade(entry.facade);
+    }
+
+    private static void disposeFacade(final ConnectorFacade facade) {
+        if (facade instanceof LocalConnectorFacadeImpl) {
+            try {
+                ((LocalConnectorFacadeImpl) facade).dispose();
+            } catch (Exception e) {
+                LOG.warn(e, "Failed to dispose facade: {0}", facade);
+            }
+        }
+    }
 }
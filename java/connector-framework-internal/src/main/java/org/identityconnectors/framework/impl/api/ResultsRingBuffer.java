@@ -0,0 +1,199 @@
+/*
+ * ====================
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2017 ConnId. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of the Common Development
+ * and Distribution License("CDDL") (the "License").  You may not use this file
+ * except in compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.php
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ *
+ * When distributing the Covered Code, include this CDDL Header Notice in each file
+ * and include the License file at http://opensource.org/licenses/cddl1.php.
+ * If applicable, add the following below this CDDL Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ * ====================
+ */
+package org.identityconnectors.framework.impl.api;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded buffer between exactly one producer and one consumer thread.
+ * <p/>
+ * Unlike an {@link java.util.concurrent.ArrayBlockingQueue} it takes no lock:
+ * each side owns its own index and only parks when the buffer is full or
+ * empty. The consumer takes every available object at once, so a fast
+ * producer is drained with a single wake-up.
+ */
+final class ResultsRingBuffer {
+
+    private final Object[] slots;
+
+    private final int mask;
+
+    private final int capacity;
+
+    /**
+     * Index of the next object to take, only written by the consumer.
+     */
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * Index of the next object to put, only written by the producer.
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * The last head seen by the producer, it only reads head again when this
+     * one makes the buffer look full.
+     */
+    private long producerHead = 0;
+
+    /**
+     * The last tail seen by the consumer, it only reads tail again when this
+     * one makes the buffer look empty.
+     */
+    private long consumerTail = 0;
+
+    /**
+     * Set by a side before it parks, and cleared by the other side when it
+     * wakes it up, so a parked thread is woken up only once.
+     */
+    private volatile Thread waitingProducer = null;
+
+    private volatile Thread waitingConsumer = null;
+
+    ResultsRingBuffer(final int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("The capacity must be greater than 0");
+        }
+        this.capacity = capacity;
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        slots = new Object[size];
+        mask = size - 1;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Puts an object in the buffer, waiting if necessary for room to become
+     * available. Must only be called by the producer.
+     *
+     * @return false if the timeout elapsed before room became available
+     */
+    boolean offer(final Object obj, final long timeout, final TimeUnit unit)
+            throws InterruptedException {
+        final long t = tail.get();
+        if (t - producerHead >= capacity && t - (producerHead = head.get()) >= capacity) {
+            long nanos = unit.toNanos(timeout);
+            try {
+                while (true) {
+                    // the consumer reads waitingProducer after moving head
+                    waitingProducer = Thread.currentThread();
+                    if (t - (producerHead = head.get()) < capacity) {
+                        break;
+                    }
+                    if (nanos <= 0) {
+                        return false;
+                    }
+                    final long start = System.nanoTime();
+                    LockSupport.parkNanos(this, nanos);
+                    nanos -= System.nanoTime() - start;
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                }
+            } finally {
+                waitingProducer = null;
+            }
+        }
+        slots[(int) t & mask] = obj;
+        tail.set(t + 1);
+        final Thread consumer = waitingConsumer;
+        if (consumer != null) {
+            waitingConsumer = null;
+            LockSupport.unpark(consumer);
+        }
+        return true;
+    }
+
+    /**
+     * Takes all objects available in the buffer, waiting if necessary for at
+     * least one to arrive. Must only be called by the consumer.
+     *
+     * @param batch
+     *            receives the objects, at most its length are taken
+     * @return the number of objects taken, 0 if the timeout elapsed first
+     */
+    int drainTo(final Object[] batch, final long timeout, final TimeUnit unit)
+            throws InterruptedException {
+        final long h = head.get();
+        if (consumerTail == h && (consumerTail = tail.get()) == h) {
+            long nanos = unit.toNanos(timeout);
+            try {
+                while (true) {
+                    // the producer reads waitingConsumer after moving tail
+                    waitingConsumer = Thread.currentThread();
+                    if ((consumerTail = tail.get()) != h) {
+                        break;
+                    }
+                    if (nanos <= 0) {
+                        return 0;
+                    }
+                    final long start = System.nanoTime();
+                    LockSupport.parkNanos(this, nanos);
+                    nanos -= System.nanoTime() - start;
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                }
+            } finally {
+                waitingConsumer = null;
+            }
+        }
+        final int count = (int) Math.min(consumerTail - h, batch.length);
+        for (int i = 0; i < count; i++) {
+            final int index = (int) (h + i) & mask;
+            batch[i] = slots[index];
+            slots[index] = null;
+        }
+        release(h + count);
+        return count;
+    }
+
+    /**
+     * Discards the objects in the buffer and wakes up a waiting producer.
+     * Must only be called by the consumer.
+     */
+    void clear() {
+        final long h = head.get();
+        final long t = consumerTail = tail.get();
+        for (long i = h; i < t; i++) {
+            slots[(int) i & mask] = null;
+        }
+        release(t);
+    }
+
+    private void release(final long newHead) {
+        head.set(newHead);
+        final Thread producer = waitingProducer;
+        if (producer != null) {
+            waitingProducer = null;
+            LockSupport.unpark(producer);
+        }
+    }
+}
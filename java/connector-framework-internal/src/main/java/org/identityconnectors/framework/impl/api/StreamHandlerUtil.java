@@ -100,7 +100,9 @@ public class StreamHandlerUtil {
                 if (obj instanceof ConnectorObject) {
                     return ((ResultsHandler) target).handle((ConnectorObject) obj);
                 } else if (obj instanceof SearchResult) {
-                    ((SearchResultsHandler) target).handleResult((SearchResult) obj);
+                    if (target instanceof SearchResultsHandler) {
+                        ((SearchResultsHandler) target).handleResult((SearchResult) obj);
+                    }
                     return true;
                 }
             } else if (targetInterface == SyncResultsHandler.class) {
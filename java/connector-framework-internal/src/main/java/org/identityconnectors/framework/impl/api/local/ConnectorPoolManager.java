@@ -24,9 +24,13 @@
 
 package org.identityconnectors.framework.impl.api.local;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
+import org.identityconnectors.common.CollectionUtil;
 import org.identityconnectors.common.Pair;
 import org.identityconnectors.common.logging.Log;
 import org.identityconnectors.common.pooling.ObjectPoolConfiguration;
@@ -35,6 +39,7 @@ import org.identityconnectors.framework.common.exceptions.ConnectorException;
 import org.identityconnectors.framework.common.serializer.SerializerUtil;
 import org.identityconnectors.framework.impl.api.APIConfigurationImpl;
 import org.identityconnectors.framework.impl.api.ConfigurationPropertiesImpl;
+import org.identityconnectors.framework.impl.api.ConfigurationPropertyImpl;
 import org.identityconnectors.framework.impl.api.local.operations.OperationalContext;
 import org.identityconnectors.framework.spi.Configuration;
 import org.identityconnectors.framework.spi.Connector;
@@ -46,7 +51,15 @@ public class ConnectorPoolManager {
         private final ConnectorKey connectorKey;
         private final ConfigurationPropertiesImpl configProperties;
         private final ObjectPoolConfiguration poolingConfig;
+        private final int hashCode;
 
+        /**
+         * Creates a new key.
+         * <p/>
+         * The hash code is computed once from the connector key, the values of
+         * the configuration properties and the pool configuration, so the
+         * arguments must not be modified while the key is in use.
+         */
         public ConnectorPoolKey(final ConnectorKey connectorKey,
                 final ConfigurationPropertiesImpl configProperties,
                 final ObjectPoolConfiguration poolingConfig) {
@@ -54,17 +67,55 @@ public class ConnectorPoolManager {
             this.connectorKey = connectorKey;
             this.configProperties = configProperties;
             this.poolingConfig = poolingConfig;
+            this.hashCode = computeHashCode();
+        }
+
+        /**
+         * Returns the key of the pooled connector.
+         *
+         * @since 1.4.4
+         */
+        public ConnectorKey getConnectorKey() {
+            return connectorKey;
+        }
+
+        /**
+         * Returns the configuration of the pool.
+         *
+         * @since 1.4.4
+         */
+        public ObjectPoolConfiguration getPoolingConfig() {
+            return poolingConfig;
+        }
+
+        private int computeHashCode() {
+            int result = connectorKey.hashCode();
+            // order independent, like the set comparison in equals
+            int properties = 0;
+            for (ConfigurationPropertyImpl property : configProperties.getProperties()) {
+                properties +=
+                        property.getName().hashCode() ^ CollectionUtil.hashCode(property.getValue());
+            }
+            result = 31 * result + properties;
+            result = 31 * result + poolingConfig.hashCode();
+            return result;
         }
 
         @Override
         public int hashCode() {
-            return connectorKey.hashCode();
+            return hashCode;
         }
 
         @Override
         public boolean equals(final Object object) {
+            if (this == object) {
+                return true;
+            }
             if (object instanceof ConnectorPoolKey) {
                 final ConnectorPoolKey other = (ConnectorPoolKey) object;
+                if (hashCode != other.hashCode) {
+                    return false;
+                }
                 if (!connectorKey.equals(other.connectorKey)) {
                     return false;
                 }
@@ -171,11 +222,29 @@ public class ConnectorPoolManager {
         }
     }
 
+    /**
+     * A registered pool and the last time it was looked up.
+     */
+    private static final class PoolEntry {
+        private final ObjectPool<PoolableConnector> pool;
+        private volatile long lastAccess;
+
+        PoolEntry(final ObjectPool<PoolableConnector> pool) {
+            this.pool = pool;
+            touch();
+        }
+
+        ObjectPool<PoolableConnector> touch() {
+            lastAccess = System.currentTimeMillis();
+            return pool;
+        }
+    }
+
     /**
      * Cache of the various POOLS..
      */
-    private static final ConcurrentMap<ConnectorPoolKey, ObjectPool<PoolableConnector>> POOLS =
-            new ConcurrentHashMap<ConnectorPoolKey, ObjectPool<PoolableConnector>>();
+    private static final ConcurrentMap<ConnectorPoolKey, PoolEntry> POOLS =
+            new ConcurrentHashMap<ConnectorPoolKey, PoolEntry>();
 
     private static final Log LOG = Log.getLog(ConnectorPoolManager.class);
 
@@ -195,7 +264,76 @@ public class ConnectorPoolManager {
      * Get a object pool for this connector if it was created before.
      */
     public static ObjectPool<PoolableConnector> getPool(final ConnectorPoolKey connectorPoolKey) {
-        return POOLS.get(connectorPoolKey);
+        PoolEntry entry = POOLS.get(connectorPoolKey);
+        return null != entry ? entry.touch() : null;
+    }
+
+    /**
+     * Returns a snapshot of the registered pools.
+     *
+     * @return the pools by key, never null.
+     * @since 1.4.4
+     */
+    public static Map<ConnectorPoolKey, ObjectPool<PoolableConnector>> getPools() {
+        Map<ConnectorPoolKey, ObjectPool<PoolableConnector>> pools =
+                new HashMap<ConnectorPoolKey, ObjectPool<PoolableConnector>>(POOLS.size());
+        for (Map.Entry<ConnectorPoolKey, PoolEntry> entry : POOLS.entrySet()) {
+            pools.put(entry.getKey(), entry.getValue().pool);
+        }
+        return Collections.unmodifiableMap(pools);
+    }
+
+    /**
+     * Returns the statistics of the registered pools.
+     *
+     * @return the statistics by pool key, never null.
+     * @since 1.4.4
+     */
+    public static Map<ConnectorPoolKey, ObjectPool.Statistics> getStatistics() {
+        Map<ConnectorPoolKey, ObjectPool.Statistics> statistics =
+                new HashMap<ConnectorPoolKey, ObjectPool.Statistics>(POOLS.size());
+        for (Map.Entry<ConnectorPoolKey, PoolEntry> entry : POOLS.entrySet()) {
+            statistics.put(entry.getKey(), entry.getValue().pool.getStatistics());
+        }
+        return statistics;
+    }
+
+    /**
+     * Shuts down and removes the pools which have no borrowed connector and
+     * were not looked up for more than the given time.
+     * <p/>
+     * A facade using an evicted pool creates a new one on its next operation.
+     *
+     * @param maxIdleTime
+     *            the minimum time in milliseconds since the last lookup.
+     * @return the number of evicted pools.
+     * @since 1.4.4
+     */
+    public static int evictUnusedPools(final long maxIdleTime) {
+        if (maxIdleTime < 0) {
+            throw new IllegalArgumentException("maxIdleTime must not be negative");
+        }
+        long threshold = System.currentTimeMillis() - maxIdleTime;
+        int evicted = 0;
+        for (Map.Entry<ConnectorPoolKey, PoolEntry> entry : POOLS.entrySet()) {
+            PoolEntry value = entry.getValue();
+            if (value.lastAccess < threshold
+                    && value.pool.getStatistics().getNumActive() == 0
+                    && POOLS.remove(entry.getKey(), value)) {
+                LOG.info("Evicting unused pool: {0}", entry.getKey().getConnectorKey());
+                shutdown(value.pool);
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    private static void shutdown(final ObjectPool<PoolableConnector> pool) {
+        try {
+            pool.shutdown();
+        } catch (Exception e) {
+            LOG.warn(e, "Failed to close pool: {0}", pool);
+        }
     }
 
     private static Pair<ConnectorPoolKey, ObjectPool<PoolableConnector>> getPool2(
@@ -208,7 +346,7 @@ public class ConnectorPoolManager {
                             .getConfigurationProperties(), impl.getConnectorPoolConfiguration());
 
             // get the pool associated..
-            ObjectPool<PoolableConnector> pool = POOLS.get(key);
+            ObjectPool<PoolableConnector> pool = getPool(key);
             // create a new pool if it doesn't exist..
             if (pool == null) {
                 LOG.info("Creating new pool: {0}", impl.getConnectorInfo().getConnectorKey());
@@ -219,10 +357,11 @@ public class ConnectorPoolManager {
                                         .getConnectorPoolConfiguration());
                 // add back to the map of POOLS..
 
-                ObjectPool<PoolableConnector> previousPool = POOLS.putIfAbsent(key, pool);
+                PoolEntry previous = POOLS.putIfAbsent(key, new PoolEntry(pool));
                 // Use the pool made by other thread
-                if (previousPool != null) {
-                    pool = previousPool;
+                if (previous != null) {
+                    pool.shutdown();
+                    pool = previous.touch();
                 }
             }
             return Pair.of(key, pool);
@@ -234,27 +373,18 @@ public class ConnectorPoolManager {
     }
 
     public static void dispose(final ConnectorPoolKey connectorPoolKey) {
-        synchronized (POOLS) {
-            ObjectPool<PoolableConnector> pool = POOLS.remove(connectorPoolKey);
-            if (null != pool) {
-                try {
-                    pool.shutdown();
-                } catch (Exception e) {
-                    LOG.warn(e, "Failed to close pool: {0}", pool);
-                }
-            }
+        // shut down without a lock, it may dispose connectors over the network
+        PoolEntry entry = POOLS.remove(connectorPoolKey);
+        if (null != entry) {
+            shutdown(entry.pool);
         }
     }
 
     public static void dispose() {
         synchronized (POOLS) {
             // close each pool..
-            for (ObjectPool<PoolableConnector> pool : POOLS.values()) {
-                try {
-                    pool.shutdown();
-                } catch (Exception e) {
-                    LOG.warn(e, "Failed to close pool: {0}", pool);
-                }
+            for (PoolEntry entry : POOLS.values()) {
+                shutdown(entry.pool);
             }
             // clear the map of all POOLS..
             POOLS.clear();
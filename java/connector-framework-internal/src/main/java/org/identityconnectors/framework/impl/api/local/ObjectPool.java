@@ -26,15 +26,31 @@
 package org.identityconnectors.framework.impl.api.local;
 
 import java.io.IOException;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 
 import org.identityconnectors.common.Assertions;
+import org.identityconnectors.common.CollectionUtil;
 import org.identityconnectors.common.logging.Log;
 import org.identityconnectors.common.pooling.ObjectPoolConfiguration;
 import org.identityconnectors.framework.common.exceptions.ConnectorException;
@@ -43,16 +59,87 @@ public class ObjectPool<T> {
 
     private static final Log LOG = Log.getLog(ObjectPool.class);
 
+    /**
+     * Runs the evictors of all pools which have
+     * {@link ObjectPoolConfiguration#getTimeBetweenEvictionRunsMillis()} set.
+     * It never creates objects, a slow {@code makeObject} would hold up the
+     * evictors of the other pools.
+     */
+    private static final ScheduledThreadPoolExecutor EVICTOR = new ScheduledThreadPoolExecutor(1,
+            new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(final Runnable r) {
+                    Thread thread = new Thread(r, "ObjectPoolEvictor-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    // don't pin the class loader of the first pool's creator
+                    thread.setContextClassLoader(ObjectPool.class.getClassLoader());
+                    return thread;
+                }
+            });
+
+    /**
+     * Creates the {@code minIdle} objects of the pools, each pool on its own
+     * thread.
+     */
+    private static final ExecutorService WARMER = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+            60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(final Runnable r) {
+                    Thread thread = new Thread(r, "ObjectPoolWarmer-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    thread.setContextClassLoader(ObjectPool.class.getClassLoader());
+                    return thread;
+                }
+            });
+
+    /**
+     * Number of buckets of the borrow time histogram.
+     */
+    private static final int HISTOGRAM_BUCKETS = 20;
+
     /**
      * Statistics bean
      */
     public static final class Statistics {
         private final int numIdle;
         private final int numActive;
-
-        private Statistics(final int numIdle, final int numActive) {
-            this.numIdle = numIdle;
-            this.numActive = numActive;
+        private final int numWaiting;
+        private final long borrowCount;
+        private final long exhaustedCount;
+        private final long timeoutCount;
+        private final long[] borrowTimeHistogram;
+        private final long createCount;
+        private final long createFailureCount;
+        private final long createTimeNanos;
+        private final long disposeCount;
+        private final long disposeTimeNanos;
+        private final long validateCount;
+        private final long validateFailureCount;
+        private final long validateTimeNanos;
+
+        private Statistics(final ObjectPool<?> pool) {
+            numIdle = pool.idleObjects.size();
+            numActive = pool.activeObjects.size();
+            numWaiting = pool.waiters.size();
+            borrowCount = pool.borrowCount.get();
+            exhaustedCount = pool.exhaustedCount.get();
+            timeoutCount = pool.timeoutCount.get();
+            borrowTimeHistogram = new long[HISTOGRAM_BUCKETS];
+            for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+                borrowTimeHistogram[i] = pool.borrowTimeHistogram.get(i);
+            }
+            createCount = pool.createCount.get();
+            createFailureCount = pool.createFailureCount.get();
+            createTimeNanos = pool.createTimeNanos.get();
+            disposeCount = pool.disposeCount.get();
+            disposeTimeNanos = pool.disposeTimeNanos.get();
+            validateCount = pool.validateCount.get();
+            validateFailureCount = pool.validateFailureCount.get();
+            validateTimeNanos = pool.validateTimeNanos.get();
         }
 
         /**
@@ -68,6 +155,166 @@ public class ObjectPool<T> {
         public int getNumActive() {
             return numActive - numIdle;
         }
+
+        /**
+         * Returns the number of threads waiting for an object.
+         *
+         * @since 1.4.4
+         */
+        public int getNumWaiting() {
+            return numWaiting;
+        }
+
+        /**
+         * Returns the number of objects borrowed from the pool.
+         *
+         * @since 1.4.4
+         */
+        public long getBorrowCount() {
+            return borrowCount;
+        }
+
+        /**
+         * Returns the number of times a thread found no idle object and no room
+         * to create one, and had to wait.
+         *
+         * @since 1.4.4
+         */
+        public long getExhaustedCount() {
+            return exhaustedCount;
+        }
+
+        /**
+         * Returns the number of threads which waited for an object in vain, and
+         * failed with a "TimeOut".
+         *
+         * @since 1.4.4
+         */
+        public long getTimeoutCount() {
+            return timeoutCount;
+        }
+
+        /**
+         * Returns the histogram of the time taken to borrow an object,
+         * including the wait, the creation and the test of the object.
+         * <p/>
+         * The first element counts the borrows which took less than 1 ms, the
+         * element {@code i} those which took from 2<sup>i-1</sup> ms to
+         * 2<sup>i</sup> ms. The last element also counts the longer ones.
+         *
+         * @since 1.4.4
+         */
+        public long[] getBorrowTimeHistogram() {
+            return borrowTimeHistogram.clone();
+        }
+
+        /**
+         * Returns the number of objects created.
+         *
+         * @since 1.4.4
+         */
+        public long getCreateCount() {
+            return createCount;
+        }
+
+        /**
+         * Returns the number of objects which could not be created.
+         *
+         * @since 1.4.4
+         */
+        public long getCreateFailureCount() {
+            return createFailureCount;
+        }
+
+        /**
+         * Returns the time spent creating objects, successfully or not.
+         *
+         * @since 1.4.4
+         */
+        public long getCreateTimeNanos() {
+            return createTimeNanos;
+        }
+
+        /**
+         * Returns the number of objects disposed.
+         *
+         * @since 1.4.4
+         */
+        public long getDisposeCount() {
+            return disposeCount;
+        }
+
+        /**
+         * Returns the time spent disposing objects.
+         *
+         * @since 1.4.4
+         */
+        public long getDisposeTimeNanos() {
+            return disposeTimeNanos;
+        }
+
+        /**
+         * Returns the number of object tests.
+         *
+         * @since 1.4.4
+         */
+        public long getValidateCount() {
+            return validateCount;
+        }
+
+        /**
+         * Returns the number of object tests which failed.
+         *
+         * @since 1.4.4
+         */
+        public long getValidateFailureCount() {
+            return validateFailureCount;
+        }
+
+        /**
+         * Returns the time spent testing objects.
+         *
+         * @since 1.4.4
+         */
+        public long getValidateTimeNanos() {
+            return validateTimeNanos;
+        }
+
+        /**
+         * Returns the statistics by the names of their getters without the
+         * {@code get} prefix, like {@code numIdle} or {@code borrowCount}. The
+         * histogram is a list of longs.
+         *
+         * @since 1.4.4
+         */
+        public Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<String, Object>();
+            map.put("numIdle", getNumIdle());
+            map.put("numActive", getNumActive());
+            map.put("numWaiting", numWaiting);
+            map.put("borrowCount", borrowCount);
+            map.put("exhaustedCount", exhaustedCount);
+            map.put("timeoutCount", timeoutCount);
+            List<Long> histogram = CollectionUtil.newList();
+            for (long count : borrowTimeHistogram) {
+                histogram.add(count);
+            }
+            map.put("borrowTimeHistogram", histogram);
+            map.put("createCount", createCount);
+            map.put("createFailureCount", createFailureCount);
+            map.put("createTimeNanos", createTimeNanos);
+            map.put("disposeCount", disposeCount);
+            map.put("disposeTimeNanos", disposeTimeNanos);
+            map.put("validateCount", validateCount);
+            map.put("validateFailureCount", validateFailureCount);
+            map.put("validateTimeNanos", validateTimeNanos);
+            return map;
+        }
+
+        @Override
+        public String toString() {
+            return toMap().toString();
+        }
     }
 
     /**
@@ -94,10 +341,21 @@ public class ObjectPool<T> {
          */
         private boolean isNew;
 
+        /**
+         * Last successful test, or the creation of the object
+         */
+        private long lastValidatedTimestamp;
+
+        /**
+         * Has the object possibly been broken since the last test?
+         */
+        private volatile boolean invalidated = false;
+
         public PooledObject(final T object) {
             this.object = object;
             isNew = true;
             touch();
+            lastValidatedTimestamp = lastStateChangeTimestamp;
         }
 
         @Override
@@ -107,11 +365,16 @@ public class ObjectPool<T> {
 
         @Override
         public void close() throws IOException {
-            try {
-                returnObject(this);
-            } catch (InterruptedException e) {
-                LOG.error(e, "Failed to close/dispose PooledObject object");
-            }
+            returnObject(this);
+        }
+
+        @Override
+        public void invalidate() {
+            invalidated = true;
+        }
+
+        public boolean isInvalidated() {
+            return invalidated;
         }
 
         public boolean isNew() {
@@ -136,13 +399,29 @@ public class ObjectPool<T> {
         public boolean isOlderThan(long maxAge) {
             return maxAge < (System.currentTimeMillis() - lastStateChangeTimestamp);
         }
+
+        public void setValidated() {
+            lastValidatedTimestamp = System.currentTimeMillis();
+            invalidated = false;
+        }
+
+        /**
+         * Returns true if the object passed a test less than the given time
+         * ago and has not been invalidated since, always false for a zero
+         * interval.
+         */
+        public boolean isValidatedWithin(long interval) {
+            return interval > 0 && !invalidated
+                    && (System.currentTimeMillis() - lastValidatedTimestamp) <= interval;
+        }
     }
 
     /**
      * Set contains all the PooledObject was made by this pool. It contains all
      * idle and borrowed(active) objects.
      */
-    private Set<PooledObject> activeObjects;
+    private final Set<PooledObject> activeObjects =
+            Collections.newSetFromMap(new ConcurrentHashMap<PooledObject, Boolean>());
 
     /**
      * Queue of idle objects. The one that has been idle for the longest comes
@@ -157,13 +436,10 @@ public class ObjectPool<T> {
     private Semaphore totalPermit;
 
     /**
-     * Lock to maintain the state changes of the pool.
+     * Threads waiting for an object, the one waiting for the longest comes
+     * first and is woken up first.
      */
-    /** Lock held by take, poll, etc */
-    private final ReentrantLock takeLock = new ReentrantLock();
-
-    /** Wait queue for waiting takes */
-    private final Condition notEmpty = takeLock.newCondition();
+    private final ConcurrentLinkedQueue<Thread> waiters = new ConcurrentLinkedQueue<Thread>();
 
     /**
      * ObjectPoolHandler we use for managing object lifecycle
@@ -180,6 +456,36 @@ public class ObjectPool<T> {
      */
     private volatile boolean isShutdown = false;
 
+    /**
+     * The scheduled evictor, null if the pool has none.
+     */
+    private final ScheduledFuture<?> evictor;
+
+    /**
+     * True while a warm-up creates objects.
+     */
+    private final AtomicBoolean warming = new AtomicBoolean(false);
+
+    /**
+     * True until the warm-up started with the pool is over. Meanwhile the
+     * borrowers wait for its objects instead of creating their own.
+     */
+    private volatile boolean prewarming = false;
+
+    // Counters of the statistics
+    private final AtomicLong borrowCount = new AtomicLong();
+    private final AtomicLong exhaustedCount = new AtomicLong();
+    private final AtomicLong timeoutCount = new AtomicLong();
+    private final AtomicLongArray borrowTimeHistogram = new AtomicLongArray(HISTOGRAM_BUCKETS);
+    private final AtomicLong createCount = new AtomicLong();
+    private final AtomicLong createFailureCount = new AtomicLong();
+    private final AtomicLong createTimeNanos = new AtomicLong();
+    private final AtomicLong disposeCount = new AtomicLong();
+    private final AtomicLong disposeTimeNanos = new AtomicLong();
+    private final AtomicLong validateCount = new AtomicLong();
+    private final AtomicLong validateFailureCount = new AtomicLong();
+    private final AtomicLong validateTimeNanos = new AtomicLong();
+
     /**
      * Create a new ObjectPool
      *
@@ -196,8 +502,70 @@ public class ObjectPool<T> {
         this.handler = handler;
         // clone it
         poolConfiguration = this.handler.validate(config);
-        activeObjects = new HashSet<PooledObject>(poolConfiguration.getMaxObjects());
         totalPermit = new Semaphore(poolConfiguration.getMaxObjects());
+        long interval = poolConfiguration.getTimeBetweenEvictionRunsMillis();
+        if (interval > 0) {
+            evictor = EVICTOR.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    evict();
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        } else {
+            evictor = null;
+        }
+        if (poolConfiguration.getMinIdle() > 0) {
+            prewarming = true;
+            warmUp(true);
+        }
+    }
+
+    /**
+     * Starts creating objects in the background, unless a warm-up is already
+     * running.
+     *
+     * @param initial
+     *            true to create objects until the pool holds {@code minIdle}
+     *            of them, false until {@code minIdle} of them are idle
+     */
+    private void warmUp(final boolean initial) {
+        if (!warming.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            WARMER.execute(new Runnable() {
+                public void run() {
+                    try {
+                        createIdleObjects(initial);
+                    } finally {
+                        warming.set(false);
+                        prewarming = false;
+                        signalWaiters();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            warming.set(false);
+            prewarming = false;
+            LOG.warn(e, "Failed to start creating idle objects");
+        }
+    }
+
+    private void createIdleObjects(final boolean initial) {
+        try {
+            while (!isShutdown()
+                    && (initial ? activeObjects.size() : idleObjects.size()) < poolConfiguration
+                            .getMinIdle() && totalPermit.tryAcquire()) {
+                PooledObject pooled = makeObject();
+                pooled.setNew(false);
+                release(pooled);
+                if (isShutdown() && idleObjects.remove(pooled)) {
+                    // shutdown did not see it
+                    dispose(pooled);
+                }
+            }
+        } catch (Exception e) {
+            LOG.warn(e, "Failed to create idle objects");
+        }
     }
 
     /**
@@ -214,9 +582,14 @@ public class ObjectPool<T> {
      *
      * @param pooled
      */
-    private void returnObject(PooledObject pooled) throws InterruptedException {
-        if (isShutdown() || poolConfiguration.getMaxIdle() < 1) {
+    private void returnObject(PooledObject pooled) {
+        if (isShutdown() || poolConfiguration.getMaxIdle() < 1 || !testOnReturn(pooled)) {
             dispose(pooled);
+        } else if (null != evictor) {
+            // the evictor trims the idle objects
+            pooled.setActive(false);
+            pooled.setNew(false);
+            release(pooled);
         } else {
             try {
                 for (PooledObject entry : idleObjects) {
@@ -230,24 +603,74 @@ public class ObjectPool<T> {
             } finally {
                 pooled.setActive(false);
                 pooled.setNew(false);
-                idleObjects.add(pooled);
-                signalNotEmpty();
+                release(pooled);
             }
         }
     }
 
+    /**
+     * Tests a returned object if the configuration asks for it or if the
+     * object was invalidated.
+     *
+     * @return false if the object failed the test
+     */
+    private boolean testOnReturn(PooledObject pooled) {
+        if (poolConfiguration.isTestOnReturn() || pooled.isInvalidated()) {
+            try {
+                testObject(pooled);
+            } catch (Exception e) {
+                LOG.ok(e, "Disposing returned object which failed the test");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Puts an idle object back in the idle queue and wakes up the longest
+     * waiting thread, if any.
+     * <p/>
+     * The object is not reserved for that thread: whoever polls the queue
+     * first gets it, so a busy pool does not pay a park and unpark for every
+     * object returned while threads are waiting.
+     */
+    private void release(PooledObject pooled) {
+        idleObjects.add(pooled);
+        signalWaiters();
+    }
+
+    /**
+     * Wakes up the longest waiting thread after an object or a permit was
+     * made available.
+     * <p/>
+     * A thread checks the idle queue and the permits again after it is queued,
+     * so either it sees what was made available or this sees the thread.
+     */
+    private void signalWaiters() {
+        Thread waiter = waiters.peek();
+        if (null != waiter) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
     /**
      * Borrow an object from the pool.
      *
      * @return An object
      */
     public ObjectPoolEntry<T> borrowObject() {
+        final long start = System.nanoTime();
         PooledObject rv = null;
         try {
             do {
                 rv = borrowObjectNoTest();
+                if (!poolConfiguration.isTestOnBorrow()
+                        || rv.isValidatedWithin(poolConfiguration.getValidationIntervalMillis())) {
+                    // tested recently enough, or by the evictor only
+                    break;
+                }
                 try {
-                    handler.testObject(rv.getPooledObject());
+                    testObject(rv);
                 } catch (Exception e) {
                     if (null != rv) {
                         dispose(rv);
@@ -265,9 +688,32 @@ public class ObjectPool<T> {
             LOG.error(e, "Failed to borrow object from pool.");
             throw ConnectorException.wrap(e);
         }
+        borrowCount.incrementAndGet();
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        int bucket = 64 - Long.numberOfLeadingZeros(millis);
+        borrowTimeHistogram.incrementAndGet(Math.min(bucket, HISTOGRAM_BUCKETS - 1));
         return rv;
     }
 
+    /**
+     * Tests the object and records it as validated.
+     */
+    private void testObject(PooledObject pooled) {
+        final long start = System.nanoTime();
+        boolean valid = false;
+        try {
+            handler.testObject(pooled.getPooledObject());
+            pooled.setValidated();
+            valid = true;
+        } finally {
+            validateCount.incrementAndGet();
+            validateTimeNanos.addAndGet(System.nanoTime() - start);
+            if (!valid) {
+                validateFailureCount.incrementAndGet();
+            }
+        }
+    }
+
     /**
      * Borrow an object from the pool, but don't test it (it gets tested by the
      * caller *outside* of synchronization)
@@ -281,49 +727,56 @@ public class ObjectPool<T> {
 
         // First borrow from the idle pool
         PooledObject pooledConn = borrowIdleObject();
-        if (null == pooledConn) {
-            long nanos = TimeUnit.SECONDS.toNanos(poolConfiguration.getMaxWait());
-            final ReentrantLock lock = this.takeLock;
-            lock.lockInterruptibly();
-            try {
-                do {
-                    if (totalPermit.tryAcquire()) {
-                    	try {
-	                        // If the pool is empty and there are available permits
-	                        // then create a new instance.
-	                        return makeObject();
-                    	} catch (RuntimeException e) {
-                    		totalPermit.release();
-                    		throw e;
-                    	} catch (Error e) {
-                    		totalPermit.release();
-                    		throw e;
-                    	}
-                    } else {
-                        // Wait for permit or object to became available
-                        try {
-                            nanos = notEmpty.awaitNanos(nanos);
-                        } catch (InterruptedException ie) {
-                            notEmpty.signal(); // propagate to non-interrupted
-                                               // thread
-                            throw ConnectorException.wrap(ie);
-                        }
-
-                        if (nanos <= 0) {
-                            throw new ConnectorException("TimeOut");
-                        }
-                        // Try to borrow from the idle pool
-                        pooledConn = borrowIdleObject();
-                        if (null != pooledConn) {
-                            return pooledConn;
-                        }
-                    }
-                } while (nanos > 0);
-            } finally {
-                lock.unlock();
+        if (null != pooledConn) {
+            return pooledConn;
+        }
+        if (!prewarming && totalPermit.tryAcquire()) {
+            // If the pool is empty and there are available permits
+            // then create a new instance.
+            return makeObject();
+        }
+        // Wait in line for a returned object or a free permit
+        long nanos = TimeUnit.SECONDS.toNanos(poolConfiguration.getMaxWait());
+        final long deadline = System.nanoTime() + nanos;
+        final Thread waiter = Thread.currentThread();
+        waiters.add(waiter);
+        if (!prewarming) {
+            exhaustedCount.incrementAndGet();
+        }
+        try {
+            while (true) {
+                // check again, something may have been released before the
+                // waiter was queued or taken by another thread since the
+                // wake-up
+                pooledConn = borrowIdleObject();
+                if (null != pooledConn) {
+                    return pooledConn;
+                }
+                if (!prewarming && totalPermit.tryAcquire()) {
+                    break;
+                }
+                if (isShutdown()) {
+                    throw new IllegalStateException("Object pool already shutdown");
+                }
+                if (nanos <= 0) {
+                    timeoutCount.incrementAndGet();
+                    throw new ConnectorException("TimeOut");
+                }
+                LockSupport.parkNanos(this, nanos);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                nanos = deadline - System.nanoTime();
+            }
+        } finally {
+            waiters.remove(waiter);
+            // pass the wake-up on if this thread leaves something behind
+            if (!idleObjects.isEmpty() || totalPermit.availablePermits() > 0) {
+                signalWaiters();
             }
         }
-        return pooledConn;
+        // create it after leaving the queue, so the wake-ups go to the others
+        return makeObject();
     }
 
     /**
@@ -333,9 +786,11 @@ public class ObjectPool<T> {
      * size and the {@code MinEvictableIdleTime} before accepts the object.
      *
      * @return null if there was no fresh/new object in the queue.
-     * @throws InterruptedException
      */
-    private PooledObject borrowIdleObject() throws InterruptedException {
+    private PooledObject borrowIdleObject() {
+        if (null != evictor) {
+            return idleObjects.poll();
+        }
         for (PooledObject pooledConn = idleObjects.poll(); pooledConn != null; pooledConn =
                 idleObjects.poll()) {
             int size = idleObjects.size();
@@ -358,46 +813,105 @@ public class ObjectPool<T> {
      */
     public void shutdown() {
         isShutdown = true;
+        if (null != evictor) {
+            evictor.cancel(false);
+            EVICTOR.purge();
+        }
+        // wake up the waiting threads, they see the shutdown
+        for (Thread waiter : waiters) {
+            LockSupport.unpark(waiter);
+        }
         // just evict idle objects
         // if there are any active objects still
         // going, leave them alone so they can return
         // gracefully
         try {
             for (PooledObject entry = idleObjects.poll(); entry != null; entry = idleObjects.poll()) {
-                try {
-                    dispose(entry);
-                } catch (InterruptedException e) {
-                    LOG.error(e, "Failed to dispose PooledObject object");
-                }
+                dispose(entry);
             }
         } finally {
             handler.shutdown();
         }
     }
 
+    /**
+     * Runs one eviction pass.
+     * <p/>
+     * Disposes the idle objects over {@code maxIdle} and those idle for longer
+     * than {@code minEvictableIdleTimeMillis} as long as more than
+     * {@code minIdle} remain, tests the other idle objects and then starts
+     * creating new ones in the background until {@code minIdle} objects are
+     * idle.
+     */
+    void evict() {
+        try {
+            // a snapshot, the objects which pass the test are put back into
+            // the queue and must not be visited again
+            for (PooledObject entry : new ArrayList<PooledObject>(idleObjects)) {
+                if (isShutdown()) {
+                    return;
+                }
+                int size = idleObjects.size();
+                if (poolConfiguration.getMinIdle() < size
+                        && (poolConfiguration.getMaxIdle() < size || entry
+                                .isOlderThan(poolConfiguration.getMinEvictableIdleTimeMillis()))) {
+                    if (idleObjects.remove(entry)) {
+                        dispose(entry);
+                    }
+                } else if (idleObjects.remove(entry)) {
+                    // borrowers can not take it while it is tested
+                    try {
+                        testObject(entry);
+                        release(entry);
+                    } catch (Exception e) {
+                        LOG.ok(e, "Disposing idle object which failed the test");
+                        dispose(entry);
+                    }
+                }
+            }
+            if (!isShutdown() && idleObjects.size() < poolConfiguration.getMinIdle()) {
+                warmUp(false);
+            }
+        } catch (Exception e) {
+            LOG.warn(e, "Failed to evict or create idle objects");
+        }
+    }
+
     /**
      * Gets a snapshot of the pool's stats at a point in time.
      *
      * @return The statistics
      */
     public Statistics getStatistics() {
-        return new Statistics(idleObjects.size(), activeObjects.size());
+        return new Statistics(this);
     }
 
     /**
      * This is a long running process to create and init the connector instance.
      * <p/>
+     * The caller holds a permit, it is released if the creation fails. No lock
+     * is held, so the other threads keep borrowing and returning meanwhile.
      *
      * @throws ConnectorException
      *             if something happens.
      */
     private PooledObject makeObject() {
-        synchronized (activeObjects) {
-            PooledObject pooledConn =
-                    new PooledObject((activeObjects.size() > 0) ? handler.makeObject() : handler
-                            .makeObject());
+        final long start = System.nanoTime();
+        boolean created = false;
+        try {
+            PooledObject pooledConn = new PooledObject(handler.makeObject());
             activeObjects.add(pooledConn);
+            created = true;
             return pooledConn;
+        } finally {
+            createTimeNanos.addAndGet(System.nanoTime() - start);
+            if (created) {
+                createCount.incrementAndGet();
+            } else {
+                createFailureCount.incrementAndGet();
+                totalPermit.release();
+                signalWaiters();
+            }
         }
     }
 
@@ -406,38 +920,19 @@ public class ObjectPool<T> {
      *
      * @param entry
      */
-    private void dispose(final PooledObject entry) throws InterruptedException {
-        final ReentrantLock lock = this.takeLock;
-        lock.lockInterruptibly();
+    private void dispose(final PooledObject entry) {
+        final long start = System.nanoTime();
         try {
-            synchronized (activeObjects) {
-                // Make sure the disposed object was the last item in the
-                // activeObjects
-                if (activeObjects.remove(entry) && activeObjects.isEmpty()) {
-                    handler.disposeObject(entry.getPooledObject());
-                } else {
-                    handler.disposeObject(entry.getPooledObject());
-                }
-            }
+            handler.disposeObject(entry.getPooledObject());
         } catch (Exception e) {
             LOG.warn(e, "disposeObject() is not supposed to throw");
         } finally {
-            totalPermit.release();
-            notEmpty.signal();
-            lock.unlock();
-        }
-    }
-
-    /**
-     * Signals a waiting take. Called only from borrowObjectNoTest
-     */
-    private void signalNotEmpty() {
-        final ReentrantLock takeLock = this.takeLock;
-        takeLock.lock();
-        try {
-            notEmpty.signal();
-        } finally {
-            takeLock.unlock();
+            disposeCount.incrementAndGet();
+            disposeTimeNanos.addAndGet(System.nanoTime() - start);
+            if (activeObjects.remove(entry)) {
+                totalPermit.release();
+                signalWaiters();
+            }
         }
     }
 }
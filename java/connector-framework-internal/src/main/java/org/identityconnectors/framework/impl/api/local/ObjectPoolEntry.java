@@ -40,6 +40,15 @@ public interface ObjectPoolEntry<T> extends Closeable {
      */
     public T getPooledObject();
 
+    /**
+     * Tells the pool that the object may be broken, for example because an
+     * operation failed on it. The pool tests it when it is returned, and
+     * disposes it if the test fails.
+     *
+     * @since 1.4.4
+     */
+    public void invalidate();
+
     /**
      * Release the pooled object and puts back to the pool where is was borrowed
      * from.
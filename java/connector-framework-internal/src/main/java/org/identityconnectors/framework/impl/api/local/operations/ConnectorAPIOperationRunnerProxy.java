@@ -75,12 +75,23 @@ public class ConnectorAPIOperationRunnerProxy implements InvocationHandler {
         if (method.getDeclaringClass() == Object.class) {
             return method.invoke(this, args);
         }
+        // keeps the pool from being disposed while it is in use
+        context.acquire();
+        try {
+            return invokeRunner(method, args);
+        } finally {
+            context.release();
+        }
+    }
+
+    private Object invokeRunner(Method method, Object[] args) throws Throwable {
         Object ret = null;
         Connector connector = null;
         ObjectPool<PoolableConnector> pool = context.getPool();
         ObjectPoolEntry<PoolableConnector> poolEntry = null;
         // get the connector class..
         Class<? extends Connector> connectorClazz = context.getConnectorClass();
+        boolean succeeded = false;
         try {
             // pooling is implemented get one..
             if (pool != null) {
@@ -97,6 +108,7 @@ public class ConnectorAPIOperationRunnerProxy implements InvocationHandler {
                 runnerImplConstructor.newInstance(context,connector);
             ret = method.invoke(runner, args);
             // call out to the operation..
+            succeeded = true;
         } catch (InvocationTargetException e) {
             Throwable root = e.getCause();
             throw root;
@@ -112,7 +124,11 @@ public class ConnectorAPIOperationRunnerProxy implements InvocationHandler {
                         //a bad state. The contract of checkAlive
                         //is that it will tell you if the connector is
                         //still valid and so we leave it up to the pool
-                        //and connector to work it out.
+                        //and connector to work it out. The pool tests
+                        //it on return, whatever the validation interval.
+                        if (!succeeded) {
+                            poolEntry.invalidate();
+                        }
                         poolEntry.close();
                     } catch (Exception e) {
                         //don't let pool exceptions propagate or mask
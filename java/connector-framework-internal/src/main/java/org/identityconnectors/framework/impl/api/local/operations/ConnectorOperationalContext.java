@@ -23,6 +23,8 @@
  */
 package org.identityconnectors.framework.impl.api.local.operations;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.identityconnectors.common.Pair;
 import org.identityconnectors.framework.impl.api.APIConfigurationImpl;
 import org.identityconnectors.framework.impl.api.local.ConnectorPoolManager;
@@ -40,7 +42,18 @@ public class ConnectorOperationalContext extends OperationalContext {
     /**
      * Pool Key for Connectors
      */
-    private ConnectorPoolManager.ConnectorPoolKey connectorPoolKey;
+    private volatile ConnectorPoolManager.ConnectorPoolKey connectorPoolKey;
+
+    /**
+     * Set in {@link #inFlight} while {@link #dispose()} waits for the
+     * operations in flight to finish.
+     */
+    private static final int DISPOSE_PENDING = 1 << 30;
+
+    /**
+     * The number of operations in flight, plus {@link #DISPOSE_PENDING}.
+     */
+    private final AtomicInteger inFlight = new AtomicInteger();
 
     public ConnectorOperationalContext(final LocalConnectorInfoImpl connectorInfo,
             final APIConfigurationImpl apiConfiguration) {
@@ -76,12 +89,58 @@ public class ConnectorOperationalContext extends OperationalContext {
         return getConnectorInfo().getConnectorClass();
     }
 
+    /**
+     * Marks the start of an operation. The context is not disposed until
+     * {@link #release()} has been called for each started operation.
+     *
+     * @since 1.4.4
+     */
+    public void acquire() {
+        inFlight.incrementAndGet();
+    }
+
+    /**
+     * Marks the end of an operation, and performs the {@link #dispose()}
+     * deferred until the last operation in flight has finished.
+     *
+     * @since 1.4.4
+     */
+    public void release() {
+        // only one of the threads which find the last operation gone
+        // performs the pending dispose
+        if (inFlight.decrementAndGet() == DISPOSE_PENDING
+                && inFlight.compareAndSet(DISPOSE_PENDING, 0)) {
+            doDispose();
+        }
+    }
+
+    /**
+     * Disposes the context, once the operations in flight have finished.
+     * An operation started afterwards opens a new pool.
+     */
     @Override
     public void dispose() {
+        while (true) {
+            int current = inFlight.get();
+            if ((current & DISPOSE_PENDING) != 0) {
+                return;
+            }
+            if (current == 0) {
+                doDispose();
+                return;
+            }
+            if (inFlight.compareAndSet(current, current | DISPOSE_PENDING)) {
+                return;
+            }
+        }
+    }
+
+    private void doDispose() {
         super.dispose();
-        if (null != connectorPoolKey) {
-            ConnectorPoolManager.dispose(connectorPoolKey);
+        ConnectorPoolManager.ConnectorPoolKey key = connectorPoolKey;
+        if (null != key) {
             connectorPoolKey = null;
+            ConnectorPoolManager.dispose(key);
         }
     }
 }
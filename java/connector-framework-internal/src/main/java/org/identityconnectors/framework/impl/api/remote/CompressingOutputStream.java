@@ -0,0 +1,227 @@
+/*
+ * ====================
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2017 ConnId. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of the Common Development
+ * and Distribution License("CDDL") (the "License").  You may not use this file
+ * except in compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.php
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ *
+ * When distributing the Covered Code, include this CDDL Header Notice in each file
+ * and include the License file at http://opensource.org/licenses/cddl1.php.
+ * If applicable, add the following below this CDDL Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ * ====================
+ */
+package org.identityconnectors.framework.impl.api.remote;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses what is written to a connection once both ends have agreed on it.
+ * <p/>
+ * Until {@link #enable(int)} is called the bytes pass through unchanged. Then
+ * the data is cut into frames, one per flush or per {@link #MAX_FRAME_SIZE}
+ * bytes. A frame starts with an int holding the length of its payload. If the
+ * high bit of that int is set, the payload is compressed with Deflate. Another
+ * int follows with the uncompressed length. Frames smaller than the threshold
+ * are sent as they are, so small control messages do not pay for compression.
+ * <p/>
+ * Each frame is compressed with the last {@link #DICTIONARY_SIZE} bytes of the
+ * stream as preset dictionary. Type names and attribute names repeat across
+ * frames, so even small frames compress well. The
+ * {@link DecompressingInputStream} on the other end keeps the same history.
+ */
+class CompressingOutputStream extends FilterOutputStream {
+
+    /**
+     * Largest number of uncompressed bytes in a frame.
+     */
+    static final int MAX_FRAME_SIZE = 16 * 1024;
+
+    /**
+     * Number of bytes of history used as dictionary, the Deflate window.
+     */
+    static final int DICTIONARY_SIZE = 32 * 1024;
+
+    /**
+     * Marks the header of a compressed frame.
+     */
+    static final int COMPRESSED = 0x80000000;
+
+    /**
+     * Room left for the header in front of the payload so a frame goes out
+     * in a single write.
+     */
+    private static final int HEADER_SIZE = 8;
+
+    private boolean enabled = false;
+
+    private int threshold;
+
+    private Deflater deflater;
+
+    private byte[] frame;
+
+    private int frameLength;
+
+    private byte[] compressed;
+
+    private byte[] history;
+
+    private int historyLength;
+
+    public CompressingOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    /**
+     * Starts compressing. Everything written before must have been flushed.
+     *
+     * @param threshold
+     *            the number of bytes below which a frame is sent uncompressed.
+     */
+    public void enable(int threshold) {
+        this.threshold = threshold;
+        deflater = new Deflater(Deflater.BEST_SPEED);
+        frame = new byte[HEADER_SIZE + MAX_FRAME_SIZE];
+        compressed = new byte[HEADER_SIZE + MAX_FRAME_SIZE];
+        history = new byte[DICTIONARY_SIZE];
+        enabled = true;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (!enabled) {
+            out.write(b);
+            return;
+        }
+        if (frameLength == MAX_FRAME_SIZE) {
+            writeFrame();
+        }
+        frame[HEADER_SIZE + frameLength++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (!enabled) {
+            out.write(b, off, len);
+            return;
+        }
+        while (len > 0) {
+            if (frameLength == MAX_FRAME_SIZE) {
+                writeFrame();
+            }
+            int n = Math.min(len, MAX_FRAME_SIZE - frameLength);
+            System.arraycopy(b, off, frame, HEADER_SIZE + frameLength, n);
+            frameLength += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (enabled && frameLength > 0) {
+            writeFrame();
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            end();
+        }
+    }
+
+    /**
+     * Releases the compressor, the stream must not be written anymore.
+     */
+    public void end() {
+        if (null != deflater) {
+            deflater.end();
+        }
+    }
+
+    private void writeFrame() throws IOException {
+        int length = frameLength;
+        frameLength = 0;
+        if (length >= threshold) {
+            int n = deflate(length);
+            if (n > 0) {
+                putInt(compressed, 0, COMPRESSED | n);
+                putInt(compressed, 4, length);
+                out.write(compressed, 0, HEADER_SIZE + n);
+                historyLength =
+                        appendHistory(history, historyLength, frame, HEADER_SIZE, length);
+                return;
+            }
+        }
+        putInt(frame, 4, length);
+        out.write(frame, 4, 4 + length);
+        historyLength = appendHistory(history, historyLength, frame, HEADER_SIZE, length);
+    }
+
+    /**
+     * Compresses the frame.
+     *
+     * @return the compressed length or 0 if compression does not pay off.
+     */
+    private int deflate(int length) {
+        deflater.reset();
+        if (historyLength > 0) {
+            deflater.setDictionary(history, 0, historyLength);
+        }
+        deflater.setInput(frame, HEADER_SIZE, length);
+        deflater.finish();
+        int n = 0;
+        while (!deflater.finished()) {
+            if (n >= length) {
+                return 0;
+            }
+            n += deflater.deflate(compressed, HEADER_SIZE + n, MAX_FRAME_SIZE - n);
+        }
+        return n < length ? n : 0;
+    }
+
+    private static void putInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+
+    /**
+     * Appends the bytes of a frame to the history kept as dictionary.
+     *
+     * @return the new length of the history.
+     */
+    static int appendHistory(byte[] history, int historyLength, byte[] data, int off,
+            int length) {
+        if (length >= history.length) {
+            System.arraycopy(data, off + length - history.length, history, 0, history.length);
+            return history.length;
+        }
+        int keep = Math.min(historyLength, history.length - length);
+        System.arraycopy(history, historyLength - keep, history, 0, keep);
+        System.arraycopy(data, off, history, keep, length);
+        return keep + length;
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * ====================
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2017 ConnId. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of the Common Development
+ * and Distribution License("CDDL") (the "License").  You may not use this file
+ * except in compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.php
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ *
+ * When distributing the Covered Code, include this CDDL Header Notice in each file
+ * and include the License file at http://opensource.org/licenses/cddl1.php.
+ * If applicable, add the following below this CDDL Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ * ====================
+ */
+package org.identityconnectors.framework.impl.api.remote;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the frames written by a {@link CompressingOutputStream} once both ends
+ * have agreed on compression, the bytes pass through unchanged until then.
+ * <p/>
+ * A frame may be read in several attempts: a read timing out in the middle of
+ * a frame keeps what has been received and resumes with the next read.
+ */
+class DecompressingInputStream extends FilterInputStream {
+
+    private boolean enabled = false;
+
+    private Inflater inflater;
+
+    private final byte[] header = new byte[8];
+
+    private int headerRead;
+
+    private byte[] payload;
+
+    private int payloadRead;
+
+    private byte[] frame;
+
+    private int frameLength;
+
+    private int framePosition;
+
+    private byte[] history;
+
+    private int historyLength;
+
+    public DecompressingInputStream(InputStream in) {
+        super(in);
+    }
+
+    /**
+     * Starts decompressing. Nothing may have been read ahead of the first
+     * frame.
+     */
+    public void enable() {
+        inflater = new Inflater();
+        payload = new byte[CompressingOutputStream.MAX_FRAME_SIZE];
+        frame = new byte[CompressingOutputStream.MAX_FRAME_SIZE];
+        history = new byte[CompressingOutputStream.DICTIONARY_SIZE];
+        enabled = true;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!enabled) {
+            return in.read();
+        }
+        if (framePosition == frameLength && !readFrame()) {
+            return -1;
+        }
+        return frame[framePosition++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (!enabled) {
+            return in.read(b, off, len);
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (framePosition == frameLength && !readFrame()) {
+            return -1;
+        }
+        int n = Math.min(len, frameLength - framePosition);
+        System.arraycopy(frame, framePosition, b, off, n);
+        framePosition += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (!enabled) {
+            return in.skip(n);
+        }
+        if (n <= 0 || (framePosition == frameLength && !readFrame())) {
+            return 0;
+        }
+        int skipped = (int) Math.min(n, frameLength - framePosition);
+        framePosition += skipped;
+        return skipped;
+    }
+
+    /**
+     * Returns the decompressed bytes ready to be read. A frame which has
+     * started to arrive counts as one byte, it can be read without waiting
+     * for the peer.
+     */
+    @Override
+    public int available() throws IOException {
+        if (!enabled) {
+            return in.available();
+        }
+        if (framePosition < frameLength) {
+            return frameLength - framePosition;
+        }
+        return headerRead > 0 || in.available() > 0 ? 1 : 0;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            end();
+        }
+    }
+
+    /**
+     * Releases the decompressor, the stream must not be read anymore.
+     */
+    public void end() {
+        if (null != inflater) {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Reads the next frame.
+     *
+     * @return false at the end of the stream.
+     */
+    private boolean readFrame() throws IOException {
+        if (!fill(header, headerRead, 4, true)) {
+            return false;
+        }
+        int length = getInt(header, 0);
+        boolean compressed = (length & CompressingOutputStream.COMPRESSED) != 0;
+        length &= ~CompressingOutputStream.COMPRESSED;
+        if (compressed) {
+            fill(header, headerRead, 8, false);
+        }
+        if (length > CompressingOutputStream.MAX_FRAME_SIZE) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        fill(payload, payloadRead, length, false);
+        if (compressed) {
+            inflate(length, getInt(header, 4));
+        } else {
+            // the payload becomes the frame
+            byte[] tmp = frame;
+            frame = payload;
+            payload = tmp;
+            frameLength = length;
+        }
+        framePosition = 0;
+        headerRead = 0;
+        payloadRead = 0;
+        historyLength =
+                CompressingOutputStream.appendHistory(history, historyLength, frame, 0,
+                        frameLength);
+        return true;
+    }
+
+    private void inflate(int length, int uncompressedLength) throws IOException {
+        if (uncompressedLength > CompressingOutputStream.MAX_FRAME_SIZE) {
+            throw new IOException("Invalid frame length: " + uncompressedLength);
+        }
+        inflater.reset();
+        inflater.setInput(payload, 0, length);
+        int n = 0;
+        try {
+            while (n < uncompressedLength) {
+                int k = inflater.inflate(frame, n, uncompressedLength - n);
+                if (k == 0) {
+                    if (inflater.needsDictionary()) {
+                        inflater.setDictionary(history, 0, historyLength);
+                    } else if (inflater.finished() || inflater.needsInput()) {
+                        throw new IOException("Truncated compressed frame");
+                    }
+                }
+                n += k;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed frame: " + e.getMessage());
+        }
+        frameLength = uncompressedLength;
+    }
+
+    /**
+     * Reads into the buffer until it holds the given number of bytes. The
+     * progress is kept in case the read times out.
+     *
+     * @return false if the stream has ended before the first byte.
+     */
+    private boolean fill(byte[] buffer, int read, int length, boolean eofAllowed)
+            throws IOException {
+        while (read < length) {
+            int n = in.read(buffer, read, length - read);
+            if (n < 0) {
+                if (eofAllowed && read == 0) {
+                    return false;
+                }
+                throw new EOFException("Connection closed in the middle of a frame");
+            }
+            read += n;
+            if (buffer == header) {
+                headerRead = read;
+            } else {
+                payloadRead = read;
+            }
+        }
+        return true;
+    }
+
+    private static int getInt(byte[] b, int off) {
+        return ((b[off] & 0xFF) << 24) | ((b[off + 1] & 0xFF) << 16) | ((b[off + 2] & 0xFF) << 8)
+                | (b[off + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * ====================
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2017 ConnId. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of the Common Development
+ * and Distribution License("CDDL") (the "License").  You may not use this file
+ * except in compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.php
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ *
+ * When distributing the Covered Code, include this CDDL Header Notice in each file
+ * and include the License file at http://opensource.org/licenses/cddl1.php.
+ * If applicable, add the following below this CDDL Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ * ====================
+ */
+package org.identityconnectors.framework.impl.api.remote;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides how much credit a client grants a connector server for the objects
+ * of a streaming response.
+ * <p/>
+ * The server may send as many objects as the window ahead of the result
+ * handler. New credit is granted once half of the window has been handled, so
+ * the server keeps streaming while the credit is on its way. The window
+ * doubles whenever the handler had to wait for the server, otherwise it
+ * settles on the objects the handler consumes during two round trips. It never
+ * exceeds the memory budget divided by the average size of the received
+ * messages.
+ */
+class FlowControlWindow {
+
+    /**
+     * The window of a connection which has not streamed yet.
+     */
+    static final int INITIAL_WINDOW = 200;
+
+    /**
+     * The smallest window, keeps the number of credit messages reasonable.
+     */
+    static final int MIN_WINDOW = 16;
+
+    /**
+     * Round trip assumed if it has not been measured.
+     */
+    private static final long DEFAULT_ROUND_TRIP = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final RemoteFrameworkConnection connection;
+
+    private final long memoryBudget;
+
+    private int window;
+
+    /**
+     * Credit granted for objects not handled yet.
+     */
+    private int outstanding;
+
+    private int handled = 0;
+
+    private boolean starved = false;
+
+    private long intervalStart;
+
+    private long intervalBytes;
+
+    /**
+     * Creates the window of a new stream, starting from the window the last
+     * stream of the connection has settled on.
+     *
+     * @param connection
+     *            the connection the objects are received on.
+     * @param memoryBudget
+     *            the number of bytes which may be received ahead of the
+     *            handler.
+     */
+    public FlowControlWindow(RemoteFrameworkConnection connection, long memoryBudget) {
+        this.connection = connection;
+        this.memoryBudget = memoryBudget;
+        window = connection.getStreamWindow() > 0 ? connection.getStreamWindow() : INITIAL_WINDOW;
+        outstanding = window;
+        intervalStart = System.nanoTime();
+        intervalBytes = connection.getBytesRead();
+    }
+
+    /**
+     * Returns the current window, the credit sent along with the request
+     * before any object has been handled.
+     */
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * Records that an object has been handled.
+     *
+     * @param waited
+     *            true if the handler had to wait for the object to arrive.
+     * @return the credit to grant the server now, 0 if it still has enough.
+     */
+    public int handled(boolean waited) {
+        handled++;
+        outstanding--;
+        starved |= waited;
+        if (outstanding > window / 2) {
+            return 0;
+        }
+        resize();
+        int credits = window - outstanding;
+        if (credits <= 0) {
+            return 0;
+        }
+        outstanding += credits;
+        return credits;
+    }
+
+    /**
+     * Remembers the window for the next stream of the connection.
+     */
+    public void close() {
+        connection.setStreamWindow(window);
+    }
+
+    private void resize() {
+        long now = System.nanoTime();
+        long bytes = connection.getBytesRead();
+        long target;
+        if (starved) {
+            // the server could have sent faster
+            target = 2L * window;
+        } else {
+            // the handler is the bottleneck, cover two round trips of it
+            long elapsed = Math.max(now - intervalStart, 1);
+            long roundTrip =
+                    connection.getRoundTripTime() > 0 ? connection.getRoundTripTime()
+                            : DEFAULT_ROUND_TRIP;
+            target = 2 * roundTrip * handled / elapsed;
+        }
+        long averageSize = Math.max((bytes - intervalBytes) / handled, 1);
+        long maxWindow = Math.max(memoryBudget / averageSize, MIN_WINDOW);
+        window = (int) Math.max(MIN_WINDOW, Math.min(target, Math.min(maxWindow,
+                Integer.MAX_VALUE / 2)));
+        handled = 0;
+        starved = false;
+        intervalStart = now;
+        intervalBytes = bytes;
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * ====================
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2017 ConnId. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of the Common Development
+ * and Distribution License("CDDL") (the "License").  You may not use this file
+ * except in compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.php
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ *
+ * When distributing the Covered Code, include this CDDL Header Notice in each file
+ * and include the License file at http://opensource.org/licenses/cddl1.php.
+ * If applicable, add the following below this CDDL Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ * ====================
+ */
+package org.identityconnectors.framework.impl.api.remote;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.api.AsyncCallback;
+import org.identityconnectors.framework.api.AsyncFuture;
+
+/**
+ * The pending result of a remote operation, completed by whichever thread
+ * receives its response.
+ *
+ * @param <V>
+ *            the type of the result.
+ */
+class RemoteAsyncFuture<V> implements AsyncFuture<V> {
+
+    private static final Log LOG = Log.getLog(RemoteAsyncFuture.class);
+
+    private boolean done = false;
+
+    private boolean cancelled = false;
+
+    private V result;
+
+    private Throwable failure;
+
+    private List<AsyncCallback<? super V>> callbacks = new ArrayList<AsyncCallback<? super V>>();
+
+    /**
+     * Stops the operation when the future is cancelled, null if there is
+     * nothing to stop.
+     */
+    private Runnable canceller;
+
+    /**
+     * Sets what stops the operation if the future is cancelled. Runs right
+     * away if it has already been cancelled.
+     */
+    void setCanceller(Runnable canceller) {
+        synchronized (this) {
+            if (!cancelled) {
+                this.canceller = canceller;
+                return;
+            }
+        }
+        canceller.run();
+    }
+
+    /**
+     * Completes the future with the result of the operation.
+     *
+     * @return false if the future was already done.
+     */
+    boolean complete(V value) {
+        List<AsyncCallback<? super V>> toNotify;
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            result = value;
+            toNotify = finish();
+        }
+        for (AsyncCallback<? super V> callback : toNotify) {
+            notifyCompleted(callback, value);
+        }
+        return true;
+    }
+
+    /**
+     * Completes the future with the exception thrown by the operation.
+     *
+     * @return false if the future was already done.
+     */
+    boolean fail(Throwable exception) {
+        List<AsyncCallback<? super V>> toNotify;
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            failure = exception;
+            toNotify = finish();
+        }
+        for (AsyncCallback<? super V> callback : toNotify) {
+            notifyFailed(callback, exception);
+        }
+        return true;
+    }
+
+    private List<AsyncCallback<? super V>> finish() {
+        done = true;
+        canceller = null;
+        notifyAll();
+        List<AsyncCallback<? super V>> rv = callbacks;
+        callbacks = null;
+        return rv;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        Runnable toRun;
+        List<AsyncCallback<? super V>> toNotify;
+        CancellationException exception = new CancellationException("Operation cancelled");
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            cancelled = true;
+            failure = exception;
+            toRun = canceller;
+            toNotify = finish();
+        }
+        if (null != toRun) {
+            try {
+                toRun.run();
+            } catch (RuntimeException e) {
+                LOG.ok(e, "Failed to stop cancelled operation");
+            }
+        }
+        for (AsyncCallback<? super V> callback : toNotify) {
+            notifyFailed(callback, exception);
+        }
+        return true;
+    }
+
+    @Override
+    public void addCallback(AsyncCallback<? super V> callback) {
+        boolean failed;
+        V value;
+        Throwable exception;
+        synchronized (this) {
+            if (!done) {
+                callbacks.add(callback);
+                return;
+            }
+            failed = null != failure;
+            value = result;
+            exception = failure;
+        }
+        if (failed) {
+            notifyFailed(callback, exception);
+        } else {
+            notifyCompleted(callback, value);
+        }
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public synchronized V get() throws InterruptedException, ExecutionException {
+        while (!done) {
+            wait();
+        }
+        return getResult();
+    }
+
+    @Override
+    public synchronized V get(long timeout, TimeUnit unit) throws InterruptedException,
+            ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!done) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return getResult();
+    }
+
+    private V getResult() throws ExecutionException {
+        if (failure instanceof CancellationException) {
+            throw (CancellationException) failure;
+        }
+        if (null != failure) {
+            throw new ExecutionException(failure);
+        }
+        return result;
+    }
+
+    private static <V> void notifyCompleted(AsyncCallback<? super V> callback, V value) {
+        try {
+            callback.completed(value);
+        } catch (RuntimeException e) {
+            LOG.warn(e, "Callback failed");
+        }
+    }
+
+    private static void notifyFailed(AsyncCallback<?> callback, Throwable exception) {
+        try {
+            callback.failed(exception);
+        } catch (RuntimeException e) {
+            LOG.warn(e, "Callback failed");
+        }
+    }
+}
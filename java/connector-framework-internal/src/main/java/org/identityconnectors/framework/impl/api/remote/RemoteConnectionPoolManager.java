@@ -0,0 +1,712 @@
+/*
+ * ====================
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2017 ConnId. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of the Common Development
+ * and Distribution License("CDDL") (the "License").  You may not use this file
+ * except in compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.php
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ *
+ * When distributing the Covered Code, include this CDDL Header Notice in each file
+ * and include the License file at http://opensource.org/licenses/cddl1.php.
+ * If applicable, add the following below this CDDL Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ * ====================
+ */
+package org.identityconnectors.framework.impl.api.remote;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.identityconnectors.common.Assertions;
+import org.identityconnectors.common.l10n.CurrentLocale;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.common.pooling.ObjectPoolConfiguration;
+import org.identityconnectors.framework.api.RemoteFrameworkConnectionInfo;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.impl.api.local.ObjectPool;
+import org.identityconnectors.framework.impl.api.local.ObjectPoolEntry;
+import org.identityconnectors.framework.impl.api.local.ObjectPoolHandler;
+import org.identityconnectors.framework.impl.api.remote.messages.HelloRequest;
+import org.identityconnectors.framework.impl.api.remote.messages.HelloResponse;
+
+/**
+ * Keeps a pool of open {@link RemoteFrameworkConnection}s for each remote
+ * connector server, so that sequential operations reuse already established
+ * (and possibly SSL-handshaked) sockets.
+ * <p/>
+ * Pools are keyed by {@link RemoteFrameworkConnectionInfo}, hence by host,
+ * port, SSL settings, key and timeout.
+ * <p/>
+ * Servers which support the multiplexed protocol are reached through a few
+ * {@link RemoteMultiplexedConnection}s shared by all the concurrent
+ * operations; the pooled exclusive connections are used for the other
+ * servers.
+ */
+public class RemoteConnectionPoolManager {
+
+    private static final Log LOG = Log.getLog(RemoteConnectionPoolManager.class);
+
+    private static class RemoteConnectionPoolHandler implements
+            ObjectPoolHandler<RemoteFrameworkConnection> {
+
+        private final RemoteFrameworkConnectionInfo connectionInfo;
+
+        public RemoteConnectionPoolHandler(final RemoteFrameworkConnectionInfo connectionInfo) {
+            this.connectionInfo = connectionInfo;
+        }
+
+        @Override
+        public ObjectPoolConfiguration validate(final ObjectPoolConfiguration original) {
+            ObjectPoolConfiguration configuration = new ObjectPoolConfiguration(original);
+            configuration.validate();
+            return configuration;
+        }
+
+        @Override
+        public RemoteFrameworkConnection makeObject() {
+            RemoteFrameworkConnection connection = new RemoteFrameworkConnection(connectionInfo);
+            boolean success = false;
+            try {
+                openSession(connection);
+                success = true;
+                return connection;
+            } finally {
+                if (!success) {
+                    disposeObject(connection);
+                }
+            }
+        }
+
+        /**
+         * Authenticates once for the lifetime of the connection. Servers
+         * which do not support sessions keep getting the key with every
+         * request.
+         */
+        private void openSession(final RemoteFrameworkConnection connection) {
+            Locale locale = CurrentLocale.get();
+            long start = System.nanoTime();
+            connection.writeObject(locale);
+            connection.writeObject(connectionInfo.getKey());
+            connection.writeObject(new HelloRequest(0, HelloRequest.SESSION
+                    | HelloRequest.FLOW_CONTROL | getEncodingCapabilities(), maxBatchSize));
+            HelloResponse response = (HelloResponse) connection.readObject();
+            connection.setRoundTripTime(System.nanoTime() - start);
+            if (response.getException() != null) {
+                throw ConnectorException.wrap(response.getException());
+            }
+            if (Boolean.TRUE.equals(response.getServerInfo().get(HelloResponse.SESSION))) {
+                connection.setSessionLocale(locale);
+                connection.setFlowControl(Boolean.TRUE.equals(response.getServerInfo().get(
+                        HelloResponse.FLOW_CONTROL)));
+                connection.setBatchSize(getBatchSize(response));
+                enableEncoding(connection, response);
+            }
+        }
+
+        @Override
+        public void testObject(final RemoteFrameworkConnection object) {
+            object.checkAlive();
+        }
+
+        @Override
+        public void disposeObject(final RemoteFrameworkConnection object) {
+            try {
+                object.close();
+            } catch (Exception e) {
+                LOG.ok(e, "Failed to close connection to {0}", connectionInfo);
+            }
+        }
+
+        @Override
+        public void shutdown() {
+        }
+    }
+
+    /**
+     * Cache of the connection pools.
+     */
+    private static final ConcurrentMap<RemoteFrameworkConnectionInfo, ObjectPool<RemoteFrameworkConnection>> POOLS =
+            new ConcurrentHashMap<RemoteFrameworkConnectionInfo, ObjectPool<RemoteFrameworkConnection>>();
+
+    private static volatile ObjectPoolConfiguration poolConfiguration = createDefaultConfiguration();
+
+    /**
+     * The multiplexed connections to one connector server, guarded by the
+     * instance lock.
+     */
+    private static final class MultiplexedConnections {
+        private final List<RemoteMultiplexedConnection> connections =
+                new ArrayList<RemoteMultiplexedConnection>();
+
+        /**
+         * Number of connections being opened outside the lock.
+         */
+        private int opening = 0;
+    }
+
+    /**
+     * The multiplexed connections of each connector server.
+     */
+    private static final ConcurrentMap<RemoteFrameworkConnectionInfo, MultiplexedConnections> MULTIPLEXED =
+            new ConcurrentHashMap<RemoteFrameworkConnectionInfo, MultiplexedConnections>();
+
+    /**
+     * How long a connector server which did not accept the multiplexed
+     * protocol is not asked again, it may be upgraded meanwhile.
+     */
+    private static final long LEGACY_SERVER_RECHECK_MILLIS = 5 * 60 * 1000;
+
+    /**
+     * Connector servers which did not accept the multiplexed protocol, with
+     * the time they are asked again.
+     */
+    private static final ConcurrentMap<RemoteFrameworkConnectionInfo, Long> LEGACY_SERVERS =
+            new ConcurrentHashMap<RemoteFrameworkConnectionInfo, Long>();
+
+    private static volatile boolean multiplexingEnabled = true;
+
+    private static volatile int maxMultiplexedConnections = 2;
+
+    private static volatile long streamMemoryBudget = 4 * 1024 * 1024;
+
+    private static volatile int maxBatchSize = 100;
+
+    private static volatile boolean compressionEnabled = false;
+
+    private static volatile int compressionThreshold = 512;
+
+    private static volatile boolean dictionaryEnabled = true;
+
+    private static volatile boolean compactEncodingEnabled = true;
+
+    private static volatile boolean positionalObjectsEnabled = true;
+
+    private static volatile boolean facadeDigestEnabled = true;
+
+    /**
+     * Runs the result handlers of asynchronous operations.
+     */
+    private static final ExecutorService ASYNC_EXECUTOR = new ThreadPoolExecutor(0,
+            Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+            new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(final Runnable r) {
+                    Thread thread = new Thread(r, "RemoteAsync-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * Runs the asynchronous operations on servers which do not support the
+     * multiplexed protocol, each blocking a thread and a connection. It has no
+     * more threads than a server has connections, {@code maxObjects} of the
+     * pool configuration, the other operations wait in its queue. So they do
+     * not fail for lack of a connection once {@code maxWait} has passed.
+     */
+    private static final ThreadPoolExecutor SESSION_EXECUTOR = new ThreadPoolExecutor(
+            getSessionWorkers(poolConfiguration), getSessionWorkers(poolConfiguration), 60,
+            TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(final Runnable r) {
+                    Thread thread = new Thread(r, "RemoteSession-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    static {
+        SESSION_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private static int getSessionWorkers(final ObjectPoolConfiguration configuration) {
+        return Math.max(1, configuration.getMaxObjects());
+    }
+
+    private static ObjectPoolConfiguration createDefaultConfiguration() {
+        ObjectPoolConfiguration config = new ObjectPoolConfiguration();
+        // max connections per connector server
+        config.setMaxObjects(64);
+        config.setMaxIdle(10);
+        config.setMinIdle(0);
+        config.setMinEvictableIdleTimeMillis(60 * 1000);
+        return config;
+    }
+
+    /**
+     * Gets the configuration applied to the connection pools created from now
+     * on.
+     *
+     * @return a copy of the current pool configuration.
+     */
+    public static ObjectPoolConfiguration getPoolConfiguration() {
+        return new ObjectPoolConfiguration(poolConfiguration);
+    }
+
+    /**
+     * Sets the configuration applied to the connection pools created from now
+     * on. {@code maxObjects} limits the number of connections per connector
+     * server and {@code minEvictableIdleTimeMillis} limits how long an unused
+     * connection is kept open. Setting {@code maxIdle} to zero disables
+     * connection reuse. {@code maxObjects} also limits the number of
+     * asynchronous operations run at once on the servers which do not support
+     * the multiplexed protocol, see
+     * {@link org.identityconnectors.framework.api.AsyncConnectorFacade}.
+     *
+     * @param configuration
+     *            the new pool configuration.
+     */
+    public static void setPoolConfiguration(final ObjectPoolConfiguration configuration) {
+        Assertions.nullCheck(configuration, "configuration");
+        ObjectPoolConfiguration copy = new ObjectPoolConfiguration(configuration);
+        copy.validate();
+        poolConfiguration = copy;
+        int workers = getSessionWorkers(copy);
+        synchronized (SESSION_EXECUTOR) {
+            // the core size must never exceed the max size
+            if (workers > SESSION_EXECUTOR.getMaximumPoolSize()) {
+                SESSION_EXECUTOR.setMaximumPoolSize(workers);
+                SESSION_EXECUTOR.setCorePoolSize(workers);
+            } else {
+                SESSION_EXECUTOR.setCorePoolSize(workers);
+                SESSION_EXECUTOR.setMaximumPoolSize(workers);
+            }
+        }
+    }
+
+    public static boolean isMultiplexingEnabled() {
+        return multiplexingEnabled;
+    }
+
+    /**
+     * Enables or disables the multiplexed protocol for the connections opened
+     * from now on. It is enabled by default and used with every connector
+     * server supporting it.
+     */
+    public static void setMultiplexingEnabled(final boolean enabled) {
+        multiplexingEnabled = enabled;
+    }
+
+    public static int getMaxMultiplexedConnections() {
+        return maxMultiplexedConnections;
+    }
+
+    /**
+     * Sets the number of multiplexed connections opened to a connector server.
+     * A new connection is opened only when the existing ones run the maximum
+     * number of concurrent requests the server allows.
+     */
+    public static void setMaxMultiplexedConnections(final int max) {
+        if (max < 1) {
+            throw new IllegalArgumentException("The max must be greater than 0");
+        }
+        maxMultiplexedConnections = max;
+    }
+
+    public static long getStreamMemoryBudget() {
+        return streamMemoryBudget;
+    }
+
+    /**
+     * Sets the number of bytes of a streaming response the connector server
+     * may send ahead of the result handler. It limits the flow control window
+     * of each stream, the window is otherwise sized by the rate the handler
+     * consumes the objects at.
+     */
+    public static void setStreamMemoryBudget(final long budget) {
+        if (budget < 1) {
+            throw new IllegalArgumentException("The budget must be greater than 0");
+        }
+        streamMemoryBudget = budget;
+    }
+
+    public static int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * Sets the largest number of search results the connector servers may
+     * send in one message over the connections opened from now on. Batches
+     * amortize the cost of encoding and sending a message, they never hold
+     * more objects than the flow control window allows. Zero disables
+     * batching.
+     */
+    public static void setMaxBatchSize(final int max) {
+        if (max < 0) {
+            throw new IllegalArgumentException("The max must not be negative");
+        }
+        maxBatchSize = max;
+    }
+
+    public static boolean isCompressionEnabled() {
+        return compressionEnabled;
+    }
+
+    /**
+     * Enables or disables the compression of the messages exchanged over the
+     * connections opened from now on. It is disabled by default, it pays off
+     * when the network rather than the CPU is the bottleneck. Connector
+     * servers which do not support it keep exchanging uncompressed messages.
+     */
+    public static void setCompressionEnabled(final boolean enabled) {
+        compressionEnabled = enabled;
+    }
+
+    public static int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * Sets the number of bytes below which a message is sent uncompressed
+     * over a compressed connection, so small requests and flow control
+     * messages are not delayed by the compressor.
+     */
+    public static void setCompressionThreshold(final int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("The threshold must not be negative");
+        }
+        compressionThreshold = threshold;
+    }
+
+    public static boolean isDictionaryEnabled() {
+        return dictionaryEnabled;
+    }
+
+    /**
+     * Enables or disables the dictionary of the connections opened from now
+     * on. Strings sent again over a connection with a dictionary, such as the
+     * names of the attributes of search results, are replaced by a reference
+     * to the first copy. It is enabled by default. Connector servers which do
+     * not support it keep getting every string in full.
+     */
+    public static void setDictionaryEnabled(final boolean enabled) {
+        dictionaryEnabled = enabled;
+    }
+
+    public static boolean isCompactEncodingEnabled() {
+        return compactEncodingEnabled;
+    }
+
+    /**
+     * Enables or disables the compact binary encoding of the connections
+     * opened from now on, which writes integers and lengths as varints. It is
+     * enabled by default. Connector servers which do not support it keep
+     * using the original encoding.
+     */
+    public static void setCompactEncodingEnabled(final boolean enabled) {
+        compactEncodingEnabled = enabled;
+    }
+
+    public static boolean isPositionalObjectsEnabled() {
+        return positionalObjectsEnabled;
+    }
+
+    /**
+     * Enables or disables the positional layout of the search results, sync
+     * deltas and attributes sent over the connections opened from now on,
+     * which writes them without field names. It is enabled by default.
+     * Connector servers which do not support it keep getting named fields.
+     */
+    public static void setPositionalObjectsEnabled(final boolean enabled) {
+        positionalObjectsEnabled = enabled;
+    }
+
+    public static boolean isFacadeDigestEnabled() {
+        return facadeDigestEnabled;
+    }
+
+    /**
+     * Enables or disables the facade digests of the connections opened from
+     * now on. The configuration of a connector facade is sent in full with
+     * the first request over a connection, the following requests send only
+     * its digest. It is enabled by default. Connector servers which do not
+     * support it keep getting the configuration with every request.
+     */
+    public static void setFacadeDigestEnabled(final boolean enabled) {
+        facadeDigestEnabled = enabled;
+    }
+
+    /**
+     * Returns the capabilities to send with the Hello for the encoding of the
+     * messages.
+     */
+    static int getEncodingCapabilities() {
+        return (compressionEnabled ? HelloRequest.COMPRESSION : 0)
+                | (dictionaryEnabled ? HelloRequest.DICTIONARY : 0)
+                | (compactEncodingEnabled ? HelloRequest.COMPACT_ENCODING : 0)
+                | (positionalObjectsEnabled ? HelloRequest.POSITIONAL_OBJECTS : 0)
+                | (facadeDigestEnabled ? HelloRequest.FACADE_DIGEST : 0);
+    }
+
+    /**
+     * Starts encoding the messages the way the server has agreed on in its
+     * response to the Hello.
+     */
+    static void enableEncoding(final RemoteFrameworkConnection connection,
+            final HelloResponse response) {
+        if (Boolean.TRUE.equals(response.getServerInfo().get(HelloResponse.COMPRESSION))) {
+            connection.enableCompression(compressionThreshold);
+        }
+        if (Boolean.TRUE.equals(response.getServerInfo().get(HelloResponse.DICTIONARY))) {
+            connection.enableDictionary();
+        }
+        if (Boolean.TRUE.equals(response.getServerInfo().get(HelloResponse.COMPACT_ENCODING))) {
+            connection.enableCompactEncoding();
+        }
+        if (Boolean.TRUE.equals(response.getServerInfo().get(HelloResponse.POSITIONAL_OBJECTS))) {
+            connection.enablePositionalObjects();
+        }
+        if (Boolean.TRUE.equals(response.getServerInfo().get(HelloResponse.FACADE_DIGEST))) {
+            connection.enableFacadeDigest();
+        }
+    }
+
+    /**
+     * Returns the batch size the server has agreed on in its response to the
+     * Hello, 0 if it sends the objects one by one.
+     */
+    static int getBatchSize(final HelloResponse response) {
+        Object batchSize = response.getServerInfo().get(HelloResponse.BATCH_SIZE);
+        return batchSize instanceof Integer ? (Integer) batchSize : 0;
+    }
+
+    /**
+     * Returns the executor running the result handlers of asynchronous
+     * operations. Its threads are started on demand and never wait for the
+     * network on multiplexed connections.
+     */
+    static Executor getAsyncExecutor() {
+        return ASYNC_EXECUTOR;
+    }
+
+    /**
+     * Returns the executor running the asynchronous operations on the
+     * connections of the servers which do not support the multiplexed
+     * protocol.
+     */
+    static Executor getSessionExecutor() {
+        return SESSION_EXECUTOR;
+    }
+
+    /**
+     * Gets the least busy multiplexed connection to the given connector server,
+     * opening a new one when needed.
+     *
+     * @param info
+     *            the connector server to connect to.
+     * @return the connection or null if multiplexing is disabled or the server
+     *         supports the legacy protocol only.
+     */
+    public static RemoteMultiplexedConnection getMultiplexedConnection(
+            final RemoteFrameworkConnectionInfo info) {
+        Assertions.nullCheck(info, "info");
+        if (!multiplexingEnabled || isLegacyServer(info)) {
+            return null;
+        }
+        MultiplexedConnections server = MULTIPLEXED.get(info);
+        if (null == server) {
+            server = new MultiplexedConnections();
+            MultiplexedConnections previous = MULTIPLEXED.putIfAbsent(info, server);
+            if (null != previous) {
+                server = previous;
+            }
+        }
+        RemoteMultiplexedConnection best = null;
+        synchronized (server) {
+            while (true) {
+                best = getLeastBusy(server.connections);
+                int count = server.connections.size() + server.opening;
+                if (null != best
+                        && (best.getActiveStreams() < best.getMaxStreams()
+                                || count >= maxMultiplexedConnections)) {
+                    return best;
+                }
+                if (count < maxMultiplexedConnections) {
+                    server.opening++;
+                    break;
+                }
+                // nothing to share yet, wait for the connections being opened
+                try {
+                    server.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+        }
+        // connect without the lock, so the other threads keep sharing the
+        // open connections meanwhile
+        RemoteMultiplexedConnection connection = null;
+        boolean opened = false;
+        try {
+            connection = RemoteMultiplexedConnection.open(info);
+            opened = true;
+        } finally {
+            synchronized (server) {
+                server.opening--;
+                if (null != connection) {
+                    if (MULTIPLEXED.get(info) == server) {
+                        server.connections.add(connection);
+                    } else {
+                        // disposed meanwhile
+                        connection.close();
+                        connection = null;
+                    }
+                }
+                server.notifyAll();
+            }
+        }
+        if (opened && null == connection && MULTIPLEXED.get(info) == server) {
+            LOG.ok("Connector server does not support multiplexing: {0}", info);
+            LEGACY_SERVERS.put(info, System.currentTimeMillis() + LEGACY_SERVER_RECHECK_MILLIS);
+            return best;
+        }
+        return connection;
+    }
+
+    /**
+     * Returns the connection with the fewest active streams, closing the
+     * connections idle for too long on the way. The caller holds the lock.
+     */
+    private static RemoteMultiplexedConnection getLeastBusy(
+            final List<RemoteMultiplexedConnection> connections) {
+        long maxIdleTime = poolConfiguration.getMinEvictableIdleTimeMillis();
+        RemoteMultiplexedConnection best = null;
+        for (Iterator<RemoteMultiplexedConnection> it = connections.iterator(); it.hasNext();) {
+            RemoteMultiplexedConnection connection = it.next();
+            if (connection.isClosed()) {
+                it.remove();
+            } else if (null != best && connection.isIdleLongerThan(maxIdleTime)) {
+                it.remove();
+                connection.close();
+            } else if (null == best
+                    || connection.getActiveStreams() < best.getActiveStreams()) {
+                best = connection;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns true if the connector server did not accept the multiplexed
+     * protocol recently.
+     */
+    private static boolean isLegacyServer(final RemoteFrameworkConnectionInfo info) {
+        Long recheck = LEGACY_SERVERS.get(info);
+        if (null == recheck) {
+            return false;
+        }
+        if (System.currentTimeMillis() < recheck) {
+            return true;
+        }
+        LEGACY_SERVERS.remove(info, recheck);
+        return false;
+    }
+
+    /**
+     * Returns the open multiplexed connections to the given connector server.
+     */
+    public static List<RemoteMultiplexedConnection> getMultiplexedConnections(
+            final RemoteFrameworkConnectionInfo info) {
+        MultiplexedConnections server = MULTIPLEXED.get(info);
+        if (null == server) {
+            return Collections.emptyList();
+        }
+        synchronized (server) {
+            return new ArrayList<RemoteMultiplexedConnection>(server.connections);
+        }
+    }
+
+    /**
+     * Borrows a connection to the given connector server. The connection must
+     * be returned by closing the returned entry; connections which are not at
+     * a message boundary must be marked broken before they are returned.
+     *
+     * @param info
+     *            the connector server to connect to.
+     * @return the pooled connection.
+     */
+    public static ObjectPoolEntry<RemoteFrameworkConnection> borrowConnection(
+            final RemoteFrameworkConnectionInfo info) {
+        return getPool(info).borrowObject();
+    }
+
+    /**
+     * Gets the connection pool of the given connector server, creating it
+     * when necessary.
+     */
+    public static ObjectPool<RemoteFrameworkConnection> getPool(
+            final RemoteFrameworkConnectionInfo info) {
+        Assertions.nullCheck(info, "info");
+        ObjectPool<RemoteFrameworkConnection> pool = POOLS.get(info);
+        if (pool == null) {
+            LOG.ok("Creating new connection pool: {0}", info);
+            pool =
+                    new ObjectPool<RemoteFrameworkConnection>(new RemoteConnectionPoolHandler(
+                            info), poolConfiguration);
+            ObjectPool<RemoteFrameworkConnection> previousPool = POOLS.putIfAbsent(info, pool);
+            // Use the pool made by other thread
+            if (previousPool != null) {
+                pool.shutdown();
+                pool = previousPool;
+            }
+        }
+        return pool;
+    }
+
+    public static void dispose(final RemoteFrameworkConnectionInfo info) {
+        LEGACY_SERVERS.remove(info);
+        MultiplexedConnections server = MULTIPLEXED.remove(info);
+        if (null != server) {
+            synchronized (server) {
+                for (RemoteMultiplexedConnection connection : server.connections) {
+                    connection.close();
+                }
+                server.connections.clear();
+            }
+        }
+        ObjectPool<RemoteFrameworkConnection> pool = POOLS.remove(info);
+        if (null != pool) {
+            try {
+                pool.shutdown();
+            } catch (Exception e) {
+                LOG.warn(e, "Failed to close connection pool: {0}", info);
+            }
+        }
+    }
+
+    public static void dispose() {
+        LEGACY_SERVERS.clear();
+        for (RemoteFrameworkConnectionInfo info : MULTIPLEXED.keySet()) {
+            dispose(info);
+        }
+        for (RemoteFrameworkConnectionInfo info : POOLS.keySet()) {
+            dispose(info);
+        }
+    }
+}
@@ -24,21 +24,75 @@
 package org.identityconnectors.framework.impl.api.remote;
 
 import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.MessageFormat;
 import java.util.HashMap;
+import java.util.Set;
 
+import org.identityconnectors.common.Base64;
+import org.identityconnectors.framework.api.AsyncConnectorFacade;
+import org.identityconnectors.framework.api.AsyncFuture;
 import org.identityconnectors.framework.api.operations.APIOperation;
+import org.identityconnectors.framework.api.operations.CreateApiOp;
+import org.identityconnectors.framework.api.operations.DeleteApiOp;
+import org.identityconnectors.framework.api.operations.GetApiOp;
+import org.identityconnectors.framework.api.operations.SearchApiOp;
+import org.identityconnectors.framework.api.operations.SyncApiOp;
+import org.identityconnectors.framework.api.operations.UpdateApiOp;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.OperationOptions;
+import org.identityconnectors.framework.common.objects.ResultsHandler;
+import org.identityconnectors.framework.common.objects.SearchResult;
+import org.identityconnectors.framework.common.objects.SyncResultsHandler;
+import org.identityconnectors.framework.common.objects.SyncToken;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.identityconnectors.framework.common.objects.filter.Filter;
 import org.identityconnectors.framework.common.serializer.SerializerUtil;
 import org.identityconnectors.framework.impl.api.APIConfigurationImpl;
 import org.identityconnectors.framework.impl.api.AbstractConnectorFacade;
 import org.identityconnectors.framework.impl.api.LoggingProxy;
+import org.identityconnectors.framework.impl.api.SearchResultsHandlerLoggingProxy;
 
 /**
  * Implements all the methods of the facade
  */
-public class RemoteConnectorFacadeImpl extends AbstractConnectorFacade {
+public class RemoteConnectorFacadeImpl extends AbstractConnectorFacade implements
+        AsyncConnectorFacade {
+
+    private static final Method CREATE = getMethod(CreateApiOp.class, "create",
+            ObjectClass.class, Set.class, OperationOptions.class);
+
+    private static final Method UPDATE = getMethod(UpdateApiOp.class, "update",
+            ObjectClass.class, Uid.class, Set.class, OperationOptions.class);
+
+    private static final Method DELETE = getMethod(DeleteApiOp.class, "delete",
+            ObjectClass.class, Uid.class, OperationOptions.class);
+
+    private static final Method GET = getMethod(GetApiOp.class, "getObject", ObjectClass.class,
+            Uid.class, OperationOptions.class);
+
+    private static final Method SEARCH = getMethod(SearchApiOp.class, "search",
+            ObjectClass.class, Filter.class, ResultsHandler.class, OperationOptions.class);
+
+    private static final Method SYNC = getMethod(SyncApiOp.class, "sync", ObjectClass.class,
+            SyncToken.class, SyncResultsHandler.class, OperationOptions.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
 
     final String remoteConnectorFacadeKey;
 
+    /**
+     * SHA-256 digest of the configuration, sent instead of the configuration
+     * itself once the connection has sent it.
+     */
+    final String remoteConnectorFacadeDigest;
+
     /**
      * Builds up the maps of supported operations and calls.
      */
@@ -48,12 +102,14 @@ public class RemoteConnectorFacadeImpl extends AbstractConnectorFacade {
         getAPIConfiguration().setProducerBufferSize(configuration.getProducerBufferSize());
         getAPIConfiguration().setTimeoutMap(configuration.getTimeoutMap());
         remoteConnectorFacadeKey = getConnectorFacadeKey();
+        remoteConnectorFacadeDigest = generateRemoteConnectorFacadeDigest(remoteConnectorFacadeKey);
     }
 
     public RemoteConnectorFacadeImpl(final RemoteConnectorInfoImpl connectorInfo,
             String configuration) {
         super(configuration, connectorInfo);
         remoteConnectorFacadeKey = generateRemoteConnectorFacadeKey(getAPIConfiguration());
+        remoteConnectorFacadeDigest = generateRemoteConnectorFacadeDigest(remoteConnectorFacadeKey);
     }
 
     private static String generateRemoteConnectorFacadeKey(final APIConfigurationImpl configuration){
@@ -63,12 +119,22 @@ public class RemoteConnectorFacadeImpl extends AbstractConnectorFacade {
         return SerializerUtil.serializeBase64Object(copy);
     }
 
+    private static String generateRemoteConnectorFacadeDigest(final String connectorFacadeKey) {
+        try {
+            MessageDigest hasher = MessageDigest.getInstance("SHA-256");
+            return Base64.encode(hasher.digest(connectorFacadeKey.getBytes(UTF8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new ConnectorException(e);
+        }
+    }
+
     @Override
     protected APIOperation getOperationImplementation(final Class<? extends APIOperation> api) {
         // add remote proxy
         InvocationHandler handler =
                 new RemoteOperationInvocationHandler((RemoteConnectorInfoImpl) getAPIConfiguration()
-                        .getConnectorInfo(), remoteConnectorFacadeKey, api);
+                        .getConnectorInfo(), remoteConnectorFacadeKey, remoteConnectorFacadeDigest,
+                        api);
         APIOperation proxy = newAPIOperationProxy(api, handler);
         // now wrap the proxy in the appropriate timeout proxy
         proxy = createTimeoutProxy(api, proxy);
@@ -79,4 +145,68 @@ public class RemoteConnectorFacadeImpl extends AbstractConnectorFacade {
 
         return proxy;
     }
+
+    @Override
+    public AsyncFuture<Uid> createAsync(final ObjectClass objectClass,
+            final Set<Attribute> createAttributes, final OperationOptions options) {
+        return invokeAsync(CreateApiOp.class, CREATE, objectClass, createAttributes, options);
+    }
+
+    @Override
+    public AsyncFuture<Uid> updateAsync(final ObjectClass objectClass, final Uid uid,
+            final Set<Attribute> replaceAttributes, final OperationOptions options) {
+        return invokeAsync(UpdateApiOp.class, UPDATE, objectClass, uid, replaceAttributes,
+                options);
+    }
+
+    @Override
+    public AsyncFuture<Void> deleteAsync(final ObjectClass objectClass, final Uid uid,
+            final OperationOptions options) {
+        return invokeAsync(DeleteApiOp.class, DELETE, objectClass, uid, options);
+    }
+
+    @Override
+    public AsyncFuture<ConnectorObject> getObjectAsync(final ObjectClass objectClass,
+            final Uid uid, final OperationOptions options) {
+        return invokeAsync(GetApiOp.class, GET, objectClass, uid, options);
+    }
+
+    @Override
+    public AsyncFuture<SearchResult> searchAsync(final ObjectClass objectClass,
+            final Filter filter, final ResultsHandler handler, final OperationOptions options) {
+        ResultsHandler resultsHandler = handler;
+        if (LoggingProxy.isLoggable()) {
+            resultsHandler = new SearchResultsHandlerLoggingProxy(handler);
+        }
+        return invokeAsync(SearchApiOp.class, SEARCH, objectClass, filter, resultsHandler, options);
+    }
+
+    @Override
+    public AsyncFuture<SyncToken> syncAsync(final ObjectClass objectClass, final SyncToken token,
+            final SyncResultsHandler handler, final OperationOptions options) {
+        return invokeAsync(SyncApiOp.class, SYNC, objectClass, token, handler, options);
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private <T> AsyncFuture<T> invokeAsync(final Class<? extends APIOperation> api,
+            final Method method, final Object... args) {
+        if (!getAPIConfiguration().isSupportedOperation(api)) {
+            throw new UnsupportedOperationException(MessageFormat.format(
+                    "Operation ''{0}'' not supported.", api));
+        }
+        RemoteOperationInvocationHandler handler =
+                new RemoteOperationInvocationHandler((RemoteConnectorInfoImpl) getAPIConfiguration()
+                        .getConnectorInfo(), remoteConnectorFacadeKey, remoteConnectorFacadeDigest,
+                        api);
+        return (AsyncFuture) handler.invokeAsync(method, args);
+    }
+
+    private static Method getMethod(final Class<? extends APIOperation> api, final String name,
+            final Class<?>... parameterTypes) {
+        try {
+            return api.getMethod(name, parameterTypes);
+        } catch (NoSuchMethodException e) {
+            throw new ConnectorException(e);
+        }
+    }
 }
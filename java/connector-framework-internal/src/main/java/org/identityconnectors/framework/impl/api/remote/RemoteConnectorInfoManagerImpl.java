@@ -24,6 +24,7 @@
 
 package org.identityconnectors.framework.impl.api.remote;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
@@ -35,7 +36,6 @@ import org.identityconnectors.common.CollectionUtil;
 import org.identityconnectors.common.event.ConnectorEvent;
 import org.identityconnectors.common.event.ConnectorEventHandler;
 import org.identityconnectors.common.event.ConnectorEventPublisher;
-import org.identityconnectors.common.l10n.CurrentLocale;
 import org.identityconnectors.common.logging.Log;
 import org.identityconnectors.framework.api.ConnectorInfo;
 import org.identityconnectors.framework.api.ConnectorInfoManager;
@@ -44,6 +44,7 @@ import org.identityconnectors.framework.api.RemoteFrameworkConnectionInfo;
 import org.identityconnectors.framework.common.exceptions.ConnectorException;
 import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
 import org.identityconnectors.framework.common.serializer.SerializerUtil;
+import org.identityconnectors.framework.impl.api.local.ObjectPoolEntry;
 import org.identityconnectors.framework.impl.api.remote.messages.HelloRequest;
 import org.identityconnectors.framework.impl.api.remote.messages.HelloResponse;
 
@@ -81,17 +82,7 @@ public class RemoteConnectorInfoManagerImpl implements ConnectorInfoManager,
     }
 
     private void init() {
-        RemoteFrameworkConnection connection =
-                new RemoteFrameworkConnection(frameworkConnectionInfo);
-        HelloResponse response = null;
-        try {
-            connection.writeObject(CurrentLocale.get());
-            connection.writeObject(frameworkConnectionInfo.getKey());
-            connection.writeObject(new HelloRequest(HelloRequest.CONNECTOR_INFO));
-            response = (HelloResponse) connection.readObject();
-        } finally {
-            connection.close();
-        }
+        HelloResponse response = sendHelloRequest(HelloRequest.CONNECTOR_INFO);
         if (null == response) {
             LOG.error("HelloResponse is null from {0}", frameworkConnectionInfo);
             throw new ConnectorIOException("HelloResponse is null from "
@@ -249,40 +240,80 @@ public class RemoteConnectorInfoManagerImpl implements ConnectorInfoManager,
     }
 
     public Map<String, Object> getServerInfo() throws RuntimeException {
-        RemoteFrameworkConnection connection =
-                new RemoteFrameworkConnection(frameworkConnectionInfo);
-        try {
-            connection.writeObject(CurrentLocale.get());
-            connection.writeObject(frameworkConnectionInfo.getKey());
-            connection.writeObject(new HelloRequest(HelloRequest.SERVER_INFO));
-            HelloResponse response = (HelloResponse) connection.readObject();
-            if (response.getException() instanceof ConnectorException) {
-                throw (ConnectorException) response.getException();
-            } else if (response.getException() != null) {
-                throw ConnectorException.wrap(response.getException());
-            }
-            return response.getServerInfo();
-        } finally {
-            connection.close();
+        HelloResponse response = sendHelloRequest(HelloRequest.SERVER_INFO);
+        if (response.getException() instanceof ConnectorException) {
+            throw (ConnectorException) response.getException();
+        } else if (response.getException() != null) {
+            throw ConnectorException.wrap(response.getException());
         }
+        return response.getServerInfo();
     }
 
     public List<ConnectorKey> getConnectorKeys() throws RuntimeException {
-        RemoteFrameworkConnection connection =
-                new RemoteFrameworkConnection(frameworkConnectionInfo);
+        HelloResponse response = sendHelloRequest(HelloRequest.CONNECTOR_KEY_LIST);
+        if (response.getException() instanceof ConnectorException) {
+            throw (ConnectorException) response.getException();
+        } else if (response.getException() != null) {
+            throw ConnectorException.wrap(response.getException());
+        }
+        return response.getConnectorKeys();
+    }
+
+    /**
+     * Returns the statistics of the connector pools of the server.
+     *
+     * @return a map for each pool, see
+     *         {@link HelloResponse#CONNECTOR_POOL_STATISTICS}. Empty if the
+     *         server has no pool or does not report them.
+     * @since 1.4.4
+     */
+    @SuppressWarnings("unchecked")
+    public List<Map<String, Object>> getConnectorPoolStatistics() throws RuntimeException {
+        HelloResponse response = sendHelloRequest(HelloRequest.POOL_STATISTICS);
+        if (response.getException() instanceof ConnectorException) {
+            throw (ConnectorException) response.getException();
+        } else if (response.getException() != null) {
+            throw ConnectorException.wrap(response.getException());
+        }
+        Object statistics = response.getServerInfo().get(HelloResponse.CONNECTOR_POOL_STATISTICS);
+        if (statistics == null) {
+            return Collections.emptyList();
+        }
+        return (List<Map<String, Object>>) statistics;
+    }
+
+    /**
+     * Sends a {@link HelloRequest} over a pooled connection.
+     *
+     * @param infoLevel
+     *            the requested info level.
+     * @return the response of the connector server.
+     */
+    private HelloResponse sendHelloRequest(int infoLevel) {
+        ObjectPoolEntry<RemoteFrameworkConnection> entry =
+                RemoteConnectionPoolManager.borrowConnection(frameworkConnectionInfo);
+        RemoteFrameworkConnection connection = entry.getPooledObject();
+        boolean completed = false;
         try {
-            connection.writeObject(CurrentLocale.get());
-            connection.writeObject(frameworkConnectionInfo.getKey());
-            connection.writeObject(new HelloRequest(HelloRequest.CONNECTOR_KEY_LIST));
+            connection.writeRequest(frameworkConnectionInfo.getKey(), new HelloRequest(infoLevel));
             HelloResponse response = (HelloResponse) connection.readObject();
-            if (response.getException() instanceof ConnectorException) {
-                throw (ConnectorException) response.getException();
-            } else if (response.getException() != null) {
-                throw ConnectorException.wrap(response.getException());
-            }
-            return response.getConnectorKeys();
+            completed = true;
+            return response;
         } finally {
-            connection.close();
+            if (!completed) {
+                connection.markBroken();
+                entry.invalidate();
+                try {
+                    connection.close();
+                } catch (Exception e) {
+                    /* ignore */
+                }
+            }
+            try {
+                entry.close();
+            } catch (IOException e) {
+                LOG.ok(e, "Failed to return connection to the pool");
+            }
         }
     }
 
@@ -23,32 +23,161 @@
 package org.identityconnectors.framework.impl.api.remote;
 
 import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
 
+import org.identityconnectors.common.l10n.CurrentLocale;
 import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.common.security.GuardedString;
 import org.identityconnectors.framework.api.RemoteFrameworkConnectionInfo;
 import org.identityconnectors.framework.common.exceptions.ConnectorException;
 import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
 import org.identityconnectors.framework.common.serializer.BinaryObjectDeserializer;
 import org.identityconnectors.framework.common.serializer.BinaryObjectSerializer;
 import org.identityconnectors.framework.common.serializer.ObjectSerializerFactory;
+import org.identityconnectors.framework.impl.api.remote.messages.OperationRequest;
+import org.identityconnectors.framework.impl.serializer.binary.BinaryObjectDecoder;
+import org.identityconnectors.framework.impl.serializer.binary.BinaryObjectEncoder;
 
 public class RemoteFrameworkConnection implements Closeable {
 
     private static final Log LOG = Log.getLog(RemoteFrameworkConnection.class);
+
+    /**
+     * Connections idle for less than this many milliseconds are trusted to be
+     * alive without probing the socket.
+     */
+    private static final long PROBE_IDLE_THRESHOLD = 1000;
+
+    /**
+     * Number of facade configurations remembered by each side of a
+     * connection, the least recently used one is forgotten first.
+     * <p/>
+     * Both sides see the same requests in the same order, so they forget the
+     * same configurations. A server which remembers more than the client
+     * still knows everything the client refers to, but one which remembers
+     * less does not, so this must never be lowered.
+     *
+     * @since 1.4.4
+     */
+    public static final int MAX_FACADE_KEYS = 64;
+
+    /**
+     * Counts the bytes received on the connection.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+
+        private volatile long count = 0;
+
+        public CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        public long getCount() {
+            return count;
+        }
+    }
+
     private Socket socket;
+    private CountingInputStream inputStream;
+    private DecompressingInputStream decompressingInput;
+    private CompressingOutputStream compressingOutput;
     private BinaryObjectSerializer encoder;
     private BinaryObjectDeserializer decoder;
+    private boolean dictionaryEnabled = false;
+    private boolean compactEncoding = false;
+    private boolean positionalObjectsEnabled = false;
+
+    /**
+     * The configurations of the connector facades sent or received over this
+     * connection by their digest, at most {@link #MAX_FACADE_KEYS} of the most
+     * recently used ones, null if they are sent with every request.
+     */
+    private Map<String, String> facadeKeys = null;
+
+    /**
+     * Set once the connection has been closed or an I/O error has left the
+     * stream in an unknown state. Such a connection must never be reused.
+     */
+    private volatile boolean broken = false;
+
+    /**
+     * Last time the connection has been used to exchange a message.
+     */
+    private volatile long lastUsed = System.currentTimeMillis();
+
+    /**
+     * The locale of the authenticated session or null if no session has been
+     * opened on this connection.
+     */
+    private Locale sessionLocale = null;
+
+    /**
+     * True if the server streams on the credit granted by the client instead
+     * of pausing.
+     */
+    private boolean flowControl = false;
+
+    /**
+     * Time of a request/response round trip in nanoseconds, 0 if unknown.
+     */
+    private volatile long roundTripTime = 0;
+
+    /**
+     * The flow control window the last stream has settled on, 0 if nothing
+     * has been streamed yet.
+     */
+    private volatile int streamWindow = 0;
+
+    /**
+     * The largest number of objects of a streaming response sent in one
+     * batch, 0 if the objects are sent one by one.
+     */
+    private int batchSize = 0;
 
     public RemoteFrameworkConnection(RemoteFrameworkConnectionInfo info) {
         try {
@@ -115,16 +244,25 @@ public class RemoteFrameworkConnection implements Closeable {
 
     private void init(Socket socket) throws Exception {
         this.socket = socket;
-        InputStream inputStream = this.socket.getInputStream();
-        OutputStream outputStream = this.socket.getOutputStream();
+        inputStream = new CountingInputStream(this.socket.getInputStream());
+        decompressingInput = new DecompressingInputStream(inputStream);
+        compressingOutput = new CompressingOutputStream(this.socket.getOutputStream());
         ObjectSerializerFactory factory = ObjectSerializerFactory.getInstance();
-        encoder = factory.newBinarySerializer(outputStream);
-        decoder = factory.newBinaryDeserializer(inputStream);
+        encoder = factory.newBinarySerializer(compressingOutput);
+        decoder = factory.newBinaryDeserializer(decompressingInput);
     }
 
     @Override
     public void close() {
-        flush();
+        if (socket.isClosed()) {
+            return;
+        }
+        broken = true;
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            LOG.ok(e, "Failed to flush connection before close.");
+        }
         try {
             if (socket instanceof SSLSocket) {
                 // SSLSocket doesn't like shutdownOutput/shutdownInput
@@ -137,21 +275,414 @@ public class RemoteFrameworkConnection implements Closeable {
         } catch (Exception e) {
             LOG.info(e, "Failed to close connection.");
             throw ConnectorException.wrap(e);
+        } finally {
+            compressingOutput.end();
+            decompressingInput.end();
         }
     }
 
     public void flush() {
-        encoder.flush();
+        try {
+            encoder.flush();
+        } catch (RuntimeException e) {
+            broken = true;
+            throw e;
+        }
     }
 
     public void writeObject(Object object) {
-        encoder.writeObject(object);
+        try {
+            encoder.writeObject(object);
+        } catch (RuntimeException e) {
+            broken = true;
+            throw e;
+        }
     }
 
     public Object readObject() {
         // flush first in case there is any data in the
         // output buffer
         flush();
-        return decoder.readObject();
+        return readObjectNoFlush();
+    }
+
+    /**
+     * Reads the next object without flushing the output first. Used by a
+     * reader thread while other threads write to the connection.
+     *
+     * @return the next object.
+     */
+    public Object readObjectNoFlush() {
+        try {
+            return decoder.readObject();
+        } catch (RuntimeException e) {
+            broken = true;
+            throw e;
+        } finally {
+            lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Waits for the next message to start arriving without consuming any of
+     * it. Must only be called between two messages.
+     *
+     * @param timeout
+     *            the maximum time to wait in milliseconds.
+     * @return true if a message or the end of the stream is ready to be read,
+     *         false if nothing has arrived within the timeout.
+     */
+    public boolean awaitInput(int timeout) {
+        if (!(decoder instanceof BinaryObjectDecoder)) {
+            // can't peek, let the next read block
+            return true;
+        }
+        BinaryObjectDecoder binaryDecoder = (BinaryObjectDecoder) decoder;
+        try {
+            if (binaryDecoder.available() > 0) {
+                return true;
+            }
+            int current = socket.getSoTimeout();
+            socket.setSoTimeout(timeout);
+            try {
+                binaryDecoder.awaitInput();
+                return true;
+            } catch (SocketTimeoutException e) {
+                return false;
+            } finally {
+                socket.setSoTimeout(current);
+            }
+        } catch (IOException e) {
+            broken = true;
+            throw new ConnectorIOException(e.getMessage(), e);
+        } catch (RuntimeException e) {
+            broken = true;
+            throw e;
+        }
+    }
+
+    /**
+     * Returns true if a message has at least partially arrived and can be read
+     * without waiting for the peer.
+     */
+    public boolean isInputAvailable() {
+        if (decoder instanceof BinaryObjectDecoder) {
+            return ((BinaryObjectDecoder) decoder).available() > 0;
+        }
+        try {
+            return inputStream.available() > 0;
+        } catch (IOException e) {
+            throw new ConnectorIOException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Returns the number of bytes received on this connection.
+     */
+    public long getBytesRead() {
+        return inputStream.getCount();
+    }
+
+    /**
+     * Returns the time of a request/response round trip in nanoseconds, 0 if
+     * it has not been measured.
+     */
+    public long getRoundTripTime() {
+        return roundTripTime;
+    }
+
+    public void setRoundTripTime(long nanos) {
+        roundTripTime = nanos;
+    }
+
+    public boolean isFlowControl() {
+        return flowControl;
+    }
+
+    /**
+     * Set once the server has agreed to stream on credit over the session of
+     * this connection.
+     */
+    public void setFlowControl(boolean flowControl) {
+        this.flowControl = flowControl;
+    }
+
+    /**
+     * Returns the flow control window the last stream has settled on, 0 if
+     * nothing has been streamed over this connection.
+     */
+    public int getStreamWindow() {
+        return streamWindow;
+    }
+
+    public void setStreamWindow(int window) {
+        streamWindow = window;
+    }
+
+    /**
+     * Returns true if the messages are compressed in both directions.
+     */
+    public boolean isCompressed() {
+        return compressingOutput.isEnabled();
+    }
+
+    /**
+     * Compresses the following messages in both directions, once both ends
+     * have agreed on it and neither has anything in flight.
+     *
+     * @param threshold
+     *            the number of bytes below which a write is sent uncompressed.
+     */
+    public void enableCompression(int threshold) {
+        flush();
+        compressingOutput.enable(threshold);
+        decompressingInput.enable();
+    }
+
+    /**
+     * Returns true if the strings repeated in the messages are replaced by
+     * references to a dictionary in both directions.
+     */
+    public boolean isDictionaryEnabled() {
+        return dictionaryEnabled;
+    }
+
+    /**
+     * Replaces the strings repeated in the following messages by references
+     * to a dictionary kept for the lifetime of the connection, once the peer
+     * has agreed on it.
+     */
+    public void enableDictionary() {
+        ((BinaryObjectEncoder) encoder).enableDictionary();
+        dictionaryEnabled = true;
+    }
+
+    /**
+     * Returns true if the search results, sync deltas and attributes are
+     * written with their positional layout in both directions.
+     */
+    public boolean isPositionalObjectsEnabled() {
+        return positionalObjectsEnabled;
+    }
+
+    /**
+     * Writes the search results, sync deltas and attributes of the following
+     * messages with their positional layout, once the peer has agreed on it.
+     */
+    public void enablePositionalObjects() {
+        ((BinaryObjectEncoder) encoder).enablePositionalObjects();
+        positionalObjectsEnabled = true;
+    }
+
+    /**
+     * Returns true if the messages use the compact encoding in both
+     * directions.
+     */
+    public boolean isCompactEncoding() {
+        return compactEncoding;
+    }
+
+    /**
+     * Switches the following messages to the compact encoding in both
+     * directions, once both ends have agreed on it and neither has anything
+     * in flight.
+     */
+    public void enableCompactEncoding() {
+        ((BinaryObjectEncoder) encoder)
+                .setEncodingVersion(BinaryObjectEncoder.COMPACT_ENCODING_VERSION);
+        ((BinaryObjectDecoder) decoder)
+                .setEncodingVersion(BinaryObjectEncoder.COMPACT_ENCODING_VERSION);
+        compactEncoding = true;
+    }
+
+    /**
+     * Returns true if the configuration of a connector facade is sent only
+     * with the first request which uses it.
+     */
+    public boolean isFacadeDigestEnabled() {
+        return null != facadeKeys;
+    }
+
+    /**
+     * Sends the configuration of a connector facade only with the first of
+     * the following requests which uses it, the others refer to it by its
+     * digest, once the peer has agreed on it.
+     */
+    public void enableFacadeDigest() {
+        facadeKeys = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > MAX_FACADE_KEYS;
+            }
+        };
+    }
+
+    /**
+     * Restores the configuration of a request received with its digest only.
+     * The requests must be passed in the order they have been read.
+     *
+     * @param request
+     *            the request read from this connection.
+     * @return the request with its configuration, which is null if the digest
+     *         is unknown.
+     */
+    public OperationRequest resolveConnectorFacadeKey(OperationRequest request) {
+        String digest = request.getConnectorFacadeDigest();
+        if (null == facadeKeys || null == digest) {
+            return request;
+        }
+        String key = request.getConnectorFacadeKey();
+        if (null != key) {
+            facadeKeys.put(digest, key);
+            return request;
+        }
+        return request.withConnectorFacadeKey(facadeKeys.get(digest));
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Set once the client and the server have agreed to send the objects of
+     * streaming responses in batches of at most the given size.
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Returns true if an authenticated session has been opened on this
+     * connection.
+     */
+    public boolean isSession() {
+        return null != sessionLocale;
+    }
+
+    public Locale getSessionLocale() {
+        return sessionLocale;
+    }
+
+    /**
+     * Opens the authenticated session or changes its locale. Once the session
+     * is open the requests are sent without the key and the locale is sent
+     * only when it changes.
+     *
+     * @param locale
+     *            the locale of the following requests.
+     */
+    public void setSessionLocale(Locale locale) {
+        sessionLocale = locale;
+    }
+
+    /**
+     * Writes a request preceded by the current locale and the key, leaving out
+     * what the session already knows.
+     *
+     * @param key
+     *            the key of the connector server.
+     * @param request
+     *            the request.
+     */
+    public void writeRequest(GuardedString key, Object request) {
+        Locale locale = CurrentLocale.get();
+        if (!isSession()) {
+            writeObject(locale);
+            writeObject(key);
+        } else if (!locale.equals(sessionLocale)) {
+            writeObject(locale);
+            sessionLocale = locale;
+        }
+        if (null != facadeKeys && request instanceof OperationRequest) {
+            OperationRequest operationRequest = (OperationRequest) request;
+            String digest = operationRequest.getConnectorFacadeDigest();
+            if (null != digest && null != operationRequest.getConnectorFacadeKey()) {
+                // a lookup, so that it counts as a use like on the server
+                if (null != facadeKeys.get(digest)) {
+                    // the server knows the configuration already
+                    request = operationRequest.withConnectorFacadeKey(null);
+                } else {
+                    facadeKeys.put(digest, operationRequest.getConnectorFacadeKey());
+                }
+            }
+        }
+        writeObject(request);
+    }
+
+    /**
+     * Sets the read timeout of the underlying socket.
+     *
+     * @param timeout
+     *            the timeout in milliseconds, 0 means no timeout.
+     */
+    public void setReadTimeout(int timeout) {
+        try {
+            socket.setSoTimeout(timeout);
+        } catch (SocketException e) {
+            throw new ConnectorIOException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Checks whether this connection can be reused for a new request.
+     * <p/>
+     * The server never writes to an idle connection, so any pending data or an
+     * end-of-stream means the connection is either out of sync or has been
+     * closed by the peer.
+     *
+     * @throws ConnectorIOException
+     *             if the connection is no longer usable.
+     */
+    public void checkAlive() {
+        if (broken || socket.isClosed() || !socket.isConnected() || socket.isInputShutdown()
+                || socket.isOutputShutdown()) {
+            throw new ConnectorIOException("Connection is closed: " + socket);
+        }
+        if (System.currentTimeMillis() - lastUsed < PROBE_IDLE_THRESHOLD) {
+            return;
+        }
+        int timeout = 0;
+        try {
+            timeout = socket.getSoTimeout();
+            if (inputStream.available() > 0) {
+                throw new ConnectorIOException("Unexpected data on idle connection: " + socket);
+            }
+            socket.setSoTimeout(1);
+            try {
+                inputStream.read();
+                // either end of stream or unsolicited data
+                throw new ConnectorIOException("Connection is closed by peer: " + socket);
+            } catch (SocketTimeoutException e) {
+                // nothing to read, the connection is alive
+            } finally {
+                socket.setSoTimeout(timeout);
+            }
+        } catch (ConnectorIOException e) {
+            broken = true;
+            throw e;
+        } catch (Exception e) {
+            broken = true;
+            throw new ConnectorIOException("Connection is not alive: " + socket, e);
+        }
+    }
+
+    /**
+     * Returns true if the connection has been closed or failed and therefore
+     * must not be reused.
+     *
+     * @return true if the connection must not be reused.
+     */
+    public boolean isBroken() {
+        return broken;
+    }
+
+    /**
+     * Marks this connection as not reusable. Used when a request was
+     * interrupted and the stream is not at a message boundary anymore.
+     */
+    public void markBroken() {
+        broken = true;
     }
 }
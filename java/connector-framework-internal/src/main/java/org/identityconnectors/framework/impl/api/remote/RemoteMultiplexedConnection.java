@@ -0,0 +1,684 @@
+/*
+ * ====================
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2017 ConnId. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of the Common Development
+ * and Distribution License("CDDL") (the "License").  You may not use this file
+ * except in compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.php
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ *
+ * When distributing the Covered Code, include this CDDL Header Notice in each file
+ * and include the License file at http://opensource.org/licenses/cddl1.php.
+ * If applicable, add the following below this CDDL Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ * ====================
+ */
+package org.identityconnectors.framework.impl.api.remote;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.identityconnectors.common.l10n.CurrentLocale;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.api.RemoteFrameworkConnectionInfo;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+import org.identityconnectors.framework.impl.api.ObjectStreamHandler;
+import org.identityconnectors.framework.impl.api.remote.messages.HelloRequest;
+import org.identityconnectors.framework.impl.api.remote.messages.HelloResponse;
+import org.identityconnectors.framework.impl.api.remote.messages.OperationRequest;
+import org.identityconnectors.framework.impl.api.remote.messages.OperationRequestMoreData;
+import org.identityconnectors.framework.impl.api.remote.messages.OperationRequestStopData;
+import org.identityconnectors.framework.impl.api.remote.messages.OperationResponseBatch;
+import org.identityconnectors.framework.impl.api.remote.messages.OperationResponseEnd;
+import org.identityconnectors.framework.impl.api.remote.messages.OperationResponsePart;
+
+/**
+ * A connection to a connector server which has been switched to the
+ * multiplexed protocol.
+ * <p/>
+ * Several threads can run operations over the connection at the same time, up
+ * to the limit announced by the server. Every request and response carries a
+ * request id and a reader thread hands the responses over to the waiting
+ * callers. Search results are flow controlled per request: the server sends
+ * no more objects than the client has granted credit for, so a slow result
+ * handler never holds up the other requests. The credit follows a
+ * {@link FlowControlWindow}.
+ * <p/>
+ * The key is verified once when the connection is opened; the locale is sent
+ * only when it differs from the one of the previous request.
+ * <p/>
+ * Requests started with {@link #invokeAsync} have no thread waiting for them:
+ * the reader thread hands their responses to an executor which runs the
+ * stream handler and completes the future. They wait in a queue if the server
+ * runs the maximum number of concurrent requests already.
+ */
+public class RemoteMultiplexedConnection implements Closeable {
+
+    private static final Log LOG = Log.getLog(RemoteMultiplexedConnection.class);
+
+    /**
+     * Queued for the pending requests when the connection is closed.
+     */
+    private static final Object CLOSED = new Object();
+
+    private final RemoteFrameworkConnectionInfo connectionInfo;
+
+    private final RemoteFrameworkConnection connection;
+
+    private final int maxStreams;
+
+    private final Semaphore streamPermits;
+
+    /**
+     * Response queues of the pending requests by request id.
+     */
+    private final ConcurrentMap<Integer, BlockingQueue<Object>> streams =
+            new ConcurrentHashMap<Integer, BlockingQueue<Object>>();
+
+    /**
+     * Asynchronous requests waiting for a free stream.
+     */
+    private final Queue<AsyncStream> waiting = new ConcurrentLinkedQueue<AsyncStream>();
+
+    private final AtomicInteger lastRequestId = new AtomicInteger();
+
+    private final Object writeLock = new Object();
+
+    private volatile boolean closed = false;
+
+    private volatile Throwable failure;
+
+    private volatile long lastUsed = System.currentTimeMillis();
+
+    private RemoteMultiplexedConnection(final RemoteFrameworkConnectionInfo connectionInfo,
+            final RemoteFrameworkConnection connection, final int maxStreams) {
+        this.connectionInfo = connectionInfo;
+        this.connection = connection;
+        this.maxStreams = maxStreams;
+        streamPermits = new Semaphore(maxStreams, true);
+        // the reader must not give up on a quiet connection, the timeout is
+        // applied to every request instead
+        connection.setReadTimeout(0);
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readResponses();
+            }
+        }, "RemoteMultiplexedConnection-" + connectionInfo.getHost() + ":"
+                + connectionInfo.getPort());
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Connects to the connector server and asks it to switch the connection to
+     * the multiplexed protocol.
+     *
+     * @param connectionInfo
+     *            the connector server to connect to.
+     * @return the new connection or null if the server supports the legacy
+     *         protocol only.
+     */
+    public static RemoteMultiplexedConnection open(
+            final RemoteFrameworkConnectionInfo connectionInfo) {
+        RemoteFrameworkConnection connection = new RemoteFrameworkConnection(connectionInfo);
+        RemoteMultiplexedConnection rv = null;
+        try {
+            Locale locale = CurrentLocale.get();
+            long start = System.nanoTime();
+            connection.writeObject(locale);
+            connection.writeObject(connectionInfo.getKey());
+            connection.writeObject(new HelloRequest(0, HelloRequest.MULTIPLEX
+                    | HelloRequest.SESSION | RemoteConnectionPoolManager.getEncodingCapabilities(),
+                    RemoteConnectionPoolManager.getMaxBatchSize()));
+            HelloResponse response = (HelloResponse) connection.readObject();
+            connection.setRoundTripTime(System.nanoTime() - start);
+            if (response.getException() != null) {
+                throw ConnectorException.wrap(response.getException());
+            }
+            Object maxStreams = response.getServerInfo().get(HelloResponse.MULTIPLEX_MAX_STREAMS);
+            Object window = response.getServerInfo().get(HelloResponse.MULTIPLEX_INITIAL_WINDOW);
+            Object session = response.getServerInfo().get(HelloResponse.SESSION);
+            if (maxStreams instanceof Integer && window instanceof Integer
+                    && Boolean.TRUE.equals(session)) {
+                connection.setSessionLocale(locale);
+                connection.setStreamWindow((Integer) window);
+                connection.setBatchSize(RemoteConnectionPoolManager.getBatchSize(response));
+                RemoteConnectionPoolManager.enableEncoding(connection, response);
+                rv = new RemoteMultiplexedConnection(connectionInfo, connection, (Integer) maxStreams);
+            }
+            return rv;
+        } finally {
+            if (null == rv) {
+                try {
+                    connection.close();
+                } catch (Exception e) {
+                    /* ignore */
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends the request and waits for its response. The objects of a
+     * streaming response are passed to the stream handler.
+     *
+     * @param request
+     *            the request to send, its request id is assigned here.
+     * @param streamHandler
+     *            the handler of the streamed objects or null if the operation
+     *            does not stream.
+     * @return the result of the operation.
+     * @throws Throwable
+     *             the exception thrown by the operation.
+     */
+    public Object invoke(final OperationRequest request, final ObjectStreamHandler streamHandler)
+            throws Throwable {
+        acquireStream();
+        final int requestId = nextRequestId();
+        final BlockingQueue<Object> queue = new LinkedBlockingQueue<Object>();
+        streams.put(requestId, queue);
+        final FlowControlWindow window =
+                null == streamHandler ? null : new FlowControlWindow(connection,
+                        RemoteConnectionPoolManager.getStreamMemoryBudget());
+        try {
+            if (closed) {
+                throw newClosedException();
+            }
+            write(new OperationRequest(requestId, null == window ? 0 : window.getWindow(),
+                    request.getConnectorKey(), request.getConnectorFacadeKey(), request
+                            .getConnectorFacadeDigest(), request.getOperation(), request
+                            .getOperationMethodName(), request.getArguments()));
+
+            boolean streamEnded = null == streamHandler;
+            boolean handleMore = true;
+            while (true) {
+                boolean waited = queue.isEmpty();
+                Object response = poll(requestId, queue);
+                List<Object> objects;
+                if (response instanceof OperationResponsePart) {
+                    OperationResponsePart part = (OperationResponsePart) response;
+                    if (part.getException() != null) {
+                        throw part.getException();
+                    }
+                    if (streamEnded) {
+                        return part.getResult();
+                    }
+                    objects = Collections.singletonList(part.getResult());
+                } else if (response instanceof OperationResponseBatch && !streamEnded) {
+                    objects = ((OperationResponseBatch) response).getResults();
+                } else if (response instanceof OperationResponseEnd) {
+                    streamEnded = true;
+                    continue;
+                } else {
+                    throw new ConnectorException("Unexpected response: " + response);
+                }
+                if (handleMore) {
+                    int credits = 0;
+                    for (Object object : objects) {
+                        handleMore = handle(requestId, streamHandler, object);
+                        if (!handleMore) {
+                            break;
+                        }
+                        credits += window.handled(waited);
+                        // the rest of a batch arrived along with the first
+                        waited = false;
+                    }
+                    if (!handleMore) {
+                        write(new OperationRequestStopData(requestId));
+                    } else if (credits > 0) {
+                        write(new OperationRequestMoreData(requestId, credits));
+                    }
+                }
+            }
+        } finally {
+            if (null != window) {
+                window.close();
+            }
+            streams.remove(requestId);
+            lastUsed = System.currentTimeMillis();
+            releaseStream();
+        }
+    }
+
+    /**
+     * Sends the request and returns without waiting for its response. The
+     * objects of a streaming response are passed to the stream handler on the
+     * executor, one at a time, and the future is completed there as well.
+     *
+     * @param request
+     *            the request to send, its request id is assigned here.
+     * @param streamHandler
+     *            the handler of the streamed objects or null if the operation
+     *            does not stream.
+     * @param future
+     *            completed with the result of the operation.
+     * @param executor
+     *            runs the stream handler.
+     */
+    public void invokeAsync(final OperationRequest request,
+            final ObjectStreamHandler streamHandler, final RemoteAsyncFuture<Object> future,
+            final Executor executor) {
+        AsyncStream stream =
+                new AsyncStream(request, streamHandler, future, executor, CurrentLocale.get());
+        if (streamPermits.tryAcquire()) {
+            stream.start();
+        } else {
+            waiting.add(stream);
+            if (closed) {
+                failWaiting();
+            } else {
+                startWaiting();
+            }
+        }
+    }
+
+    /**
+     * Receives the responses of an asynchronous request from the reader thread
+     * and processes them on the executor, in order.
+     */
+    private class AsyncStream extends LinkedBlockingQueue<Object> implements Runnable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final OperationRequest request;
+
+        private final ObjectStreamHandler streamHandler;
+
+        private final RemoteAsyncFuture<Object> future;
+
+        private final Executor executor;
+
+        private final Locale locale;
+
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+        private final AtomicBoolean finished = new AtomicBoolean(false);
+
+        private int requestId;
+
+        private FlowControlWindow window;
+
+        private boolean streamEnded;
+
+        private boolean handleMore = true;
+
+        AsyncStream(final OperationRequest request, final ObjectStreamHandler streamHandler,
+                final RemoteAsyncFuture<Object> future, final Executor executor,
+                final Locale locale) {
+            this.request = request;
+            this.streamHandler = streamHandler;
+            this.future = future;
+            this.executor = executor;
+            this.locale = locale;
+        }
+
+        /**
+         * Sends the request once a stream permit has been acquired.
+         */
+        void start() {
+            if (future.isDone()) {
+                // cancelled while waiting for a stream
+                releaseStream();
+                return;
+            }
+            requestId = nextRequestId();
+            streamEnded = null == streamHandler;
+            window =
+                    null == streamHandler ? null : new FlowControlWindow(connection,
+                            RemoteConnectionPoolManager.getStreamMemoryBudget());
+            streams.put(requestId, this);
+            future.setCanceller(new Runnable() {
+                @Override
+                public void run() {
+                    if (finish()) {
+                        stopQuietly(requestId);
+                    }
+                }
+            });
+            // the locale goes along with the request, this may be the thread
+            // of another request
+            Locale current = CurrentLocale.isSet() ? CurrentLocale.get() : null;
+            CurrentLocale.set(locale);
+            try {
+                write(new OperationRequest(requestId, null == window ? 0 : window.getWindow(),
+                        request.getConnectorKey(), request.getConnectorFacadeKey(), request
+                                .getConnectorFacadeDigest(), request.getOperation(), request
+                                .getOperationMethodName(), request.getArguments()));
+            } catch (RuntimeException e) {
+                fail(e);
+            } finally {
+                if (null == current) {
+                    CurrentLocale.clear();
+                } else {
+                    CurrentLocale.set(current);
+                }
+            }
+        }
+
+        @Override
+        public boolean add(Object message) {
+            super.add(message);
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    executor.execute(this);
+                } catch (RuntimeException e) {
+                    scheduled.set(false);
+                    if (finish()) {
+                        stopQuietly(requestId);
+                        future.fail(e);
+                    }
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void run() {
+            // the handler has caught up with the server
+            boolean waited = true;
+            while (true) {
+                Object message = poll();
+                if (null == message) {
+                    scheduled.set(false);
+                    if (isEmpty() || !scheduled.compareAndSet(false, true)) {
+                        return;
+                    }
+                    waited = true;
+                    continue;
+                }
+                if (!finished.get()) {
+                    try {
+                        process(message, waited);
+                    } catch (Throwable t) {
+                        fail(t);
+                    }
+                }
+                waited = false;
+            }
+        }
+
+        private void process(final Object message, boolean waited) throws Throwable {
+            if (CLOSED == message) {
+                throw newClosedException();
+            }
+            List<Object> objects;
+            if (message instanceof OperationResponsePart) {
+                OperationResponsePart part = (OperationResponsePart) message;
+                if (part.getException() != null) {
+                    throw part.getException();
+                }
+                if (streamEnded) {
+                    if (finish()) {
+                        future.complete(part.getResult());
+                    }
+                    return;
+                }
+                objects = Collections.singletonList(part.getResult());
+            } else if (message instanceof OperationResponseBatch && !streamEnded) {
+                objects = ((OperationResponseBatch) message).getResults();
+            } else if (message instanceof OperationResponseEnd) {
+                streamEnded = true;
+                return;
+            } else {
+                throw new ConnectorException("Unexpected response: " + message);
+            }
+            if (handleMore) {
+                int credits = 0;
+                for (Object object : objects) {
+                    handleMore = handle(requestId, streamHandler, object);
+                    if (!handleMore) {
+                        break;
+                    }
+                    credits += window.handled(waited);
+                    waited = false;
+                }
+                if (!handleMore) {
+                    write(new OperationRequestStopData(requestId));
+                } else if (credits > 0) {
+                    write(new OperationRequestMoreData(requestId, credits));
+                }
+            }
+        }
+
+        void fail(final Throwable t) {
+            if (finish()) {
+                future.fail(t);
+            }
+        }
+
+        /**
+         * Releases the stream once.
+         *
+         * @return false if it has already been released.
+         */
+        private boolean finish() {
+            if (!finished.compareAndSet(false, true)) {
+                return false;
+            }
+            if (null != window) {
+                window.close();
+            }
+            if (streams.remove(requestId, this)) {
+                lastUsed = System.currentTimeMillis();
+            }
+            releaseStream();
+            return true;
+        }
+    }
+
+    private void releaseStream() {
+        streamPermits.release();
+        startWaiting();
+    }
+
+    private void startWaiting() {
+        while (!waiting.isEmpty() && streamPermits.tryAcquire()) {
+            AsyncStream stream = waiting.poll();
+            if (null == stream) {
+                streamPermits.release();
+                return;
+            }
+            stream.start();
+        }
+    }
+
+    private void failWaiting() {
+        AsyncStream stream;
+        while (null != (stream = waiting.poll())) {
+            stream.future.fail(newClosedException());
+        }
+    }
+
+    private boolean handle(final int requestId, final ObjectStreamHandler streamHandler,
+            final Object object) {
+        boolean success = false;
+        try {
+            boolean rv = streamHandler.handle(object);
+            success = true;
+            return rv;
+        } finally {
+            if (!success) {
+                stopQuietly(requestId);
+            }
+        }
+    }
+
+    private void acquireStream() throws InterruptedException {
+        if (connectionInfo.getTimeout() > 0) {
+            if (!streamPermits.tryAcquire(connectionInfo.getTimeout(), TimeUnit.MILLISECONDS)) {
+                throw new ConnectorException("Timeout waiting for a free stream on "
+                        + connectionInfo);
+            }
+        } else {
+            streamPermits.acquire();
+        }
+    }
+
+    private int nextRequestId() {
+        int id = lastRequestId.incrementAndGet();
+        // 0 is reserved for the legacy protocol
+        while (id <= 0) {
+            lastRequestId.compareAndSet(id, 0);
+            id = lastRequestId.incrementAndGet();
+        }
+        return id;
+    }
+
+    private Object poll(final int requestId, final BlockingQueue<Object> queue) {
+        Object response;
+        try {
+            if (connectionInfo.getTimeout() > 0) {
+                response = queue.poll(connectionInfo.getTimeout(), TimeUnit.MILLISECONDS);
+            } else {
+                response = queue.take();
+            }
+        } catch (InterruptedException e) {
+            stopQuietly(requestId);
+            Thread.currentThread().interrupt();
+            throw ConnectorException.wrap(e);
+        }
+        if (null == response) {
+            stopQuietly(requestId);
+            throw new ConnectorIOException("Read timed out from " + connectionInfo);
+        } else if (CLOSED == response) {
+            throw newClosedException();
+        }
+        return response;
+    }
+
+    private void stopQuietly(final int requestId) {
+        try {
+            write(new OperationRequestStopData(requestId));
+        } catch (Exception e) {
+            LOG.ok(e, "Failed to stop request {0}", requestId);
+        }
+    }
+
+    private void write(final Object message) {
+        synchronized (writeLock) {
+            if (closed) {
+                throw newClosedException();
+            }
+            try {
+                if (message instanceof OperationRequest) {
+                    // the locale goes along only when it changes
+                    connection.writeRequest(connectionInfo.getKey(), message);
+                } else {
+                    connection.writeObject(message);
+                }
+                connection.flush();
+            } catch (RuntimeException e) {
+                failure = e;
+                close();
+                throw e;
+            }
+        }
+    }
+
+    private ConnectorIOException newClosedException() {
+        return new ConnectorIOException("Connection is closed: " + connectionInfo, failure);
+    }
+
+    private void readResponses() {
+        try {
+            while (!closed) {
+                Object message = connection.readObjectNoFlush();
+                int requestId;
+                if (message instanceof OperationResponsePart) {
+                    requestId = ((OperationResponsePart) message).getRequestId();
+                } else if (message instanceof OperationResponseBatch) {
+                    requestId = ((OperationResponseBatch) message).getRequestId();
+                } else if (message instanceof OperationResponseEnd) {
+                    requestId = ((OperationResponseEnd) message).getRequestId();
+                } else {
+                    throw new ConnectorException("Unexpected response: " + message);
+                }
+                BlockingQueue<Object> queue = streams.get(requestId);
+                if (null != queue) {
+                    queue.add(message);
+                } else {
+                    LOG.ok("Discarding response of abandoned request {0}", requestId);
+                }
+            }
+        } catch (Throwable t) {
+            if (!closed) {
+                failure = t;
+                LOG.info(t, "Multiplexed connection to {0} failed", connectionInfo);
+            }
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Returns the number of requests being processed over the connection.
+     */
+    public int getActiveStreams() {
+        return streams.size() + waiting.size();
+    }
+
+    /**
+     * Returns the maximum number of concurrent requests announced by the
+     * server.
+     */
+    public int getMaxStreams() {
+        return maxStreams;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Returns true if the connection has had no pending request for longer
+     * than the given time.
+     */
+    public boolean isIdleLongerThan(long millis) {
+        return streams.isEmpty() && waiting.isEmpty()
+                && System.currentTimeMillis() - lastUsed > millis;
+    }
+
+    /**
+     * Closes the connection. The pending requests fail with a
+     * {@link ConnectorIOException}.
+     */
+    @Override
+    public void close() {
+        synchronized (writeLock) {
+            if (!closed) {
+                closed = true;
+                try {
+                    connection.close();
+                } catch (Exception e) {
+                    LOG.ok(e, "Failed to close connection to {0}", connectionInfo);
+                }
+            }
+        }
+        for (BlockingQueue<Object> queue : streams.values()) {
+            queue.add(CLOSED);
+        }
+        failWaiting();
+    }
+}
@@ -27,7 +27,10 @@ package org.identityconnectors.framework.impl.api.remote;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
+
 import org.identityconnectors.common.CollectionUtil;
 import org.identityconnectors.common.l10n.CurrentLocale;
 import org.identityconnectors.framework.api.RemoteFrameworkConnectionInfo;
@@ -35,9 +38,11 @@ import org.identityconnectors.framework.api.operations.APIOperation;
 import org.identityconnectors.framework.common.exceptions.ConnectorException;
 import org.identityconnectors.framework.impl.api.ObjectStreamHandler;
 import org.identityconnectors.framework.impl.api.StreamHandlerUtil;
+import org.identityconnectors.framework.impl.api.local.ObjectPoolEntry;
 import org.identityconnectors.framework.impl.api.remote.messages.OperationRequest;
 import org.identityconnectors.framework.impl.api.remote.messages.OperationRequestMoreData;
 import org.identityconnectors.framework.impl.api.remote.messages.OperationRequestStopData;
+import org.identityconnectors.framework.impl.api.remote.messages.OperationResponseBatch;
 import org.identityconnectors.framework.impl.api.remote.messages.OperationResponseEnd;
 import org.identityconnectors.framework.impl.api.remote.messages.OperationResponsePart;
 import org.identityconnectors.framework.impl.api.remote.messages.OperationResponsePause;
@@ -51,12 +56,26 @@ public class RemoteOperationInvocationHandler implements InvocationHandler {
 
     private final String connectorFacadeKey;
 
+    private final String connectorFacadeDigest;
+
     private final Class<? extends APIOperation> operation;
 
     public RemoteOperationInvocationHandler(final RemoteConnectorInfoImpl connectorInfo,
             String connectorFacadeKey, final Class<? extends APIOperation> operation) {
+        this(connectorInfo, connectorFacadeKey, null, operation);
+    }
+
+    /**
+     * @param connectorFacadeDigest
+     *            the digest of the configuration, which is sent instead of the
+     *            configuration once a connection has sent it. May be null.
+     */
+    public RemoteOperationInvocationHandler(final RemoteConnectorInfoImpl connectorInfo,
+            String connectorFacadeKey, String connectorFacadeDigest,
+            final Class<? extends APIOperation> operation) {
         this.connectorInfo = connectorInfo;
         this.connectorFacadeKey = connectorFacadeKey;
+        this.connectorFacadeDigest = connectorFacadeDigest;
         this.operation = operation;
     }
 
@@ -74,66 +93,183 @@ public class RemoteOperationInvocationHandler implements InvocationHandler {
 
         // build the request object
         RemoteFrameworkConnectionInfo connectionInfo = connectorInfo.getRemoteConnectionInfo();
-        OperationRequest request = new OperationRequest(
-                connectorInfo.getConnectorKey(), connectorFacadeKey, operation, method.getName(), simpleMarshallArgs);
+        OperationRequest request = new OperationRequest(0, 0, connectorInfo.getConnectorKey(),
+                connectorFacadeKey, connectorFacadeDigest, operation, method.getName(),
+                simpleMarshallArgs);
 
-        // create the connection
-        RemoteFrameworkConnection connection = null;
+        // share a multiplexed connection if the server supports it
+        RemoteMultiplexedConnection multiplexed =
+                RemoteConnectionPoolManager.getMultiplexedConnection(connectionInfo);
+        if (null != multiplexed) {
+            return multiplexed.invoke(request, streamHandlerArg);
+        }
+
+        // otherwise borrow an exclusive connection from the pool
+        ObjectPoolEntry<RemoteFrameworkConnection> entry =
+                RemoteConnectionPoolManager.borrowConnection(connectionInfo);
+        RemoteFrameworkConnection connection = entry.getPooledObject();
+        // the connection goes back to the pool only if the whole response
+        // has been read
+        boolean completed = false;
 
         try {
-            connection = new RemoteFrameworkConnection(connectionInfo);
-            connection.writeObject(CurrentLocale.get());
-            connection.writeObject(connectionInfo.getKey());
+            // stream on credit if the server supports it, otherwise it pauses
+            FlowControlWindow window = null;
+            if (streamHandlerArg != null && connection.isFlowControl()) {
+                window = new FlowControlWindow(connection,
+                        RemoteConnectionPoolManager.getStreamMemoryBudget());
+                request = new OperationRequest(0, window.getWindow(), request.getConnectorKey(),
+                        connectorFacadeKey, connectorFacadeDigest, operation, method.getName(),
+                        simpleMarshallArgs);
+            }
+
             // send the request
-            connection.writeObject(request);
+            connection.writeRequest(connectionInfo.getKey(), request);
 
             // now process the response stream (if any)
+            OperationResponsePart response = null;
             if (streamHandlerArg != null) {
-                handleStreamResponse(connection, streamHandlerArg);
+                response = handleStreamResponse(connection, streamHandlerArg, window);
             }
 
             // finally return the actual return value
-            OperationResponsePart response = (OperationResponsePart) connection.readObject();
+            if (null == response) {
+                response = (OperationResponsePart) connection.readObject();
+            }
+            completed = true;
             if (response.getException() != null) {
                 throw response.getException();
             }
             return response.getResult();
         } finally {
-            if (null != connection) {
-                connection.close();
+            if (!completed) {
+                connection.markBroken();
+                entry.invalidate();
+                try {
+                    connection.close();
+                } catch (Exception e) {
+                    /* ignore */
+                }
             }
+            entry.close();
         }
 
     }
 
+    /**
+     * Starts the operation without waiting for its result. The operation goes
+     * over a multiplexed connection if the server supports it. Otherwise it
+     * runs on a thread of the shared executor.
+     *
+     * @param method
+     *            the method of the operation.
+     * @param args
+     *            the arguments of the method.
+     * @return the future completed with the result of the operation.
+     */
+    public RemoteAsyncFuture<Object> invokeAsync(final Method method, final Object[] args) {
+        final RemoteAsyncFuture<Object> future = new RemoteAsyncFuture<Object>();
+        try {
+            RemoteFrameworkConnectionInfo connectionInfo = connectorInfo.getRemoteConnectionInfo();
+            RemoteMultiplexedConnection multiplexed =
+                    RemoteConnectionPoolManager.getMultiplexedConnection(connectionInfo);
+            if (null != multiplexed) {
+                List<Object> simpleMarshallArgs = CollectionUtil.newList(args);
+                ObjectStreamHandler streamHandlerArg =
+                        extractStreamHandler(method.getParameterTypes(), simpleMarshallArgs);
+                OperationRequest request =
+                        new OperationRequest(0, 0, connectorInfo.getConnectorKey(),
+                                connectorFacadeKey, connectorFacadeDigest, operation, method
+                                        .getName(), simpleMarshallArgs);
+                multiplexed.invokeAsync(request, streamHandlerArg, future,
+                        RemoteConnectionPoolManager.getAsyncExecutor());
+            } else {
+                final Locale locale = CurrentLocale.get();
+                RemoteConnectionPoolManager.getSessionExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        CurrentLocale.set(locale);
+                        try {
+                            future.complete(invoke(null, method, args));
+                        } catch (Throwable t) {
+                            future.fail(t);
+                        } finally {
+                            CurrentLocale.clear();
+                        }
+                    }
+                });
+            }
+        } catch (RuntimeException e) {
+            future.fail(e);
+        }
+        return future;
+    }
+
     /**
      * Handles a stream response until the end of the stream.
+     *
+     * @param window
+     *            the credit granted to the server or null if the server
+     *            pauses.
+     * @return the failed response part which terminated the stream or null if
+     *         the stream ended normally.
      */
-    private static void handleStreamResponse(final RemoteFrameworkConnection connection,
-            final ObjectStreamHandler streamHandler) throws ConnectorException {
+    private static OperationResponsePart handleStreamResponse(
+            final RemoteFrameworkConnection connection, final ObjectStreamHandler streamHandler,
+            final FlowControlWindow window) throws ConnectorException {
 
         boolean handleMore = true;
-        while (true) {
-            Object response = connection.readObject();
-            if (response instanceof OperationResponsePart) {
-                OperationResponsePart part = (OperationResponsePart) response;
-                if (part.getException() != null) {
-                    throw part.getException();
-                }
-                Object object = part.getResult();
-                if (handleMore) {
-                    handleMore = streamHandler.handle(object);
-                }
-            } else if (response instanceof OperationResponsePause) {
-                if (handleMore) {
-                    connection.writeObject(new OperationRequestMoreData());
+        try {
+            while (true) {
+                boolean waited = !connection.isInputAvailable();
+                Object response = connection.readObject();
+                List<Object> objects = null;
+                if (response instanceof OperationResponsePart) {
+                    OperationResponsePart part = (OperationResponsePart) response;
+                    if (part.getException() != null) {
+                        // the server sends no end of stream after a failure
+                        return part;
+                    }
+                    objects = Collections.singletonList(part.getResult());
+                } else if (response instanceof OperationResponseBatch) {
+                    objects = ((OperationResponseBatch) response).getResults();
+                } else if (response instanceof OperationResponsePause) {
+                    if (handleMore) {
+                        connection.writeObject(new OperationRequestMoreData());
+                    } else {
+                        connection.writeObject(new OperationRequestStopData());
+                    }
+                } else if (response instanceof OperationResponseEnd) {
+                    return null;
                 } else {
-                    connection.writeObject(new OperationRequestStopData());
+                    throw new ConnectorException("Unexpected response: " + response);
                 }
-            } else if (response instanceof OperationResponseEnd) {
-                break;
-            } else {
-                throw new ConnectorException("Unexpected response: " + response);
+                if (null != objects && handleMore) {
+                    int credits = 0;
+                    for (Object object : objects) {
+                        handleMore = streamHandler.handle(object);
+                        if (!handleMore) {
+                            break;
+                        }
+                        if (null != window) {
+                            credits += window.handled(waited);
+                        }
+                        // the rest of a batch arrived along with the first
+                        waited = false;
+                    }
+                    if (null != window) {
+                        // sent along with the next read
+                        if (!handleMore) {
+                            connection.writeObject(new OperationRequestStopData());
+                        } else if (credits > 0) {
+                            connection.writeObject(new OperationRequestMoreData(0, credits));
+                        }
+                    }
+                }
+            }
+        } finally {
+            if (null != window) {
+                window.close();
             }
         }
     }
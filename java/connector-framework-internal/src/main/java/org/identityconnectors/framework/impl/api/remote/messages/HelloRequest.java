@@ -35,16 +35,133 @@ public class HelloRequest implements Message {
     //public static final int DEFAULT_CONFIG = 32;
     public static final int CONNECTOR_INFO = CONNECTOR_KEY_LIST | SERVER_INFO;
 
+    /**
+     * Asks for the statistics of the connector pools of the server, see
+     * {@link HelloResponse#CONNECTOR_POOL_STATISTICS}.
+     */
+    public static final int POOL_STATISTICS = 64;
+
+    /**
+     * Capability of a client which can switch the connection to the
+     * multiplexed protocol after the handshake.
+     */
+    public static final int MULTIPLEX = 1;
+
+    /**
+     * Capability of a client which sends the key only once per connection.
+     */
+    public static final int SESSION = 2;
+
+    /**
+     * Capability of a client which grants the server credit for the objects
+     * of a streaming response instead of answering pauses. Applies to session
+     * connections, multiplexed connections always use credit.
+     */
+    public static final int FLOW_CONTROL = 4;
+
+    /**
+     * Capability of a client which can compress the messages exchanged over
+     * its session once the server has agreed to.
+     */
+    public static final int COMPRESSION = 8;
+
+    /**
+     * Capability of a client which can replace the strings repeated in the
+     * messages exchanged over its session by references to a dictionary once
+     * the server has agreed to.
+     */
+    public static final int DICTIONARY = 16;
+
+    /**
+     * Capability of a client which can switch the messages exchanged over its
+     * session to the compact binary encoding once the server has agreed to.
+     */
+    public static final int COMPACT_ENCODING = 32;
+
+    /**
+     * Capability of a client which can read and write the search results,
+     * sync deltas and attributes exchanged over its session with their
+     * positional layout, once the server has agreed to.
+     */
+    public static final int POSITIONAL_OBJECTS = 64;
+
+    /**
+     * Capability of a client which sends the configuration of a connector
+     * facade only once over its session and then refers to it by its digest,
+     * once the server has agreed to.
+     */
+    public static final int FACADE_DIGEST = 128;
+
     private final int level;
 
+    private final int capabilities;
+
+    private final int batchSize;
+
     public HelloRequest(int infoLevel) {
+        this(infoLevel, 0);
+    }
+
+    public HelloRequest(int infoLevel, int capabilities) {
+        this(infoLevel, capabilities, 0);
+    }
+
+    /**
+     * @param batchSize
+     *            the largest number of objects the client accepts in one
+     *            {@link OperationResponseBatch}, 0 if it does not accept
+     *            batches.
+     */
+    public HelloRequest(int infoLevel, int capabilities, int batchSize) {
         level = infoLevel;
+        this.capabilities = capabilities;
+        this.batchSize = batchSize;
     }
 
     public int getInfoLevel() {
         return level;
     }
 
+    public int getCapabilities() {
+        return capabilities;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public boolean isMultiplex() {
+        return (capabilities & MULTIPLEX) == MULTIPLEX;
+    }
+
+    public boolean isSession() {
+        return (capabilities & SESSION) == SESSION;
+    }
+
+    public boolean isFlowControl() {
+        return (capabilities & FLOW_CONTROL) == FLOW_CONTROL;
+    }
+
+    public boolean isCompression() {
+        return (capabilities & COMPRESSION) == COMPRESSION;
+    }
+
+    public boolean isDictionary() {
+        return (capabilities & DICTIONARY) == DICTIONARY;
+    }
+
+    public boolean isCompactEncoding() {
+        return (capabilities & COMPACT_ENCODING) == COMPACT_ENCODING;
+    }
+
+    public boolean isPositionalObjects() {
+        return (capabilities & POSITIONAL_OBJECTS) == POSITIONAL_OBJECTS;
+    }
+
+    public boolean isFacadeDigest() {
+        return (capabilities & FACADE_DIGEST) == FACADE_DIGEST;
+    }
+
     private boolean checkInfoLevel(int info) {
         return ((level & info) == info);
     }
@@ -60,4 +177,8 @@ public class HelloRequest implements Message {
     public boolean isConnectorInfo() {
         return checkInfoLevel(CONNECTOR_INFO);
     }
+
+    public boolean isPoolStatistics() {
+        return checkInfoLevel(POOL_STATISTICS);
+    }
 }
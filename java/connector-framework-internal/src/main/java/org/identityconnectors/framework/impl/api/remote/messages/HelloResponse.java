@@ -37,6 +37,93 @@ import org.identityconnectors.framework.impl.api.remote.RemoteConnectorInfoImpl;
 public class HelloResponse implements Message {
 
     public static final String SERVER_START_TIME = "SERVER_START_TIME";
+
+    /**
+     * Present only if the server has switched the connection to the
+     * multiplexed protocol. The maximum number of concurrent requests on the
+     * connection.
+     */
+    public static final String MULTIPLEX_MAX_STREAMS = "MULTIPLEX_MAX_STREAMS";
+
+    /**
+     * The number of objects the server sends on a stream before it waits for
+     * credit from the client.
+     */
+    public static final String MULTIPLEX_INITIAL_WINDOW = "MULTIPLEX_INITIAL_WINDOW";
+
+    /**
+     * Set to true if the server has opened an authenticated session on the
+     * connection. The following requests are sent without the key and the
+     * locale is sent only when it changes.
+     */
+    public static final String SESSION = "SESSION";
+
+    /**
+     * Set to true if the server honours the window of the requests sent over
+     * the session and streams on credit granted with
+     * {@link OperationRequestMoreData} instead of pausing.
+     */
+    public static final String FLOW_CONTROL = "FLOW_CONTROL";
+
+    /**
+     * Present only if the server sends the objects of streaming responses in
+     * {@link OperationResponseBatch}es. The largest number of objects in a
+     * batch, never more than the client has asked for.
+     */
+    public static final String BATCH_SIZE = "BATCH_SIZE";
+
+    /**
+     * Set to true if the server compresses the messages following this
+     * response and expects the client to do the same.
+     */
+    public static final String COMPRESSION = "COMPRESSION";
+
+    /**
+     * Set to true if the server replaces the strings repeated in the messages
+     * following this response by references to a dictionary and expects the
+     * client to do the same.
+     */
+    public static final String DICTIONARY = "DICTIONARY";
+
+    /**
+     * Set to true if the server switches the messages following this response
+     * to the compact binary encoding and expects the client to do the same.
+     */
+    public static final String COMPACT_ENCODING = "COMPACT_ENCODING";
+
+    /**
+     * Set to true if the server writes the search results, sync deltas and
+     * attributes of the messages following this response with their
+     * positional layout and expects the client to do the same.
+     */
+    public static final String POSITIONAL_OBJECTS = "POSITIONAL_OBJECTS";
+
+    /**
+     * Set to true if the server accepts requests which refer to a connector
+     * facade configuration sent earlier over the same session by its digest.
+     */
+    public static final String FACADE_DIGEST = "FACADE_DIGEST";
+
+    /**
+     * Present only if asked for with {@link HelloRequest#POOL_STATISTICS}. A
+     * list with a map for each connector pool of the server, holding the
+     * {@link #POOL_CONNECTOR_KEY}, the {@link #POOL_CONFIGURATION} and the
+     * statistics of the pool as returned by
+     * {@link org.identityconnectors.framework.impl.api.local.ObjectPool.Statistics#toMap()}.
+     */
+    public static final String CONNECTOR_POOL_STATISTICS = "CONNECTOR_POOL_STATISTICS";
+
+    /**
+     * The {@link ConnectorKey} of the connectors of a pool.
+     */
+    public static final String POOL_CONNECTOR_KEY = "connectorKey";
+
+    /**
+     * The {@link org.identityconnectors.common.pooling.ObjectPoolConfiguration}
+     * of a pool.
+     */
+    public static final String POOL_CONFIGURATION = "poolConfiguration";
+
     /**
      * The exception
      */
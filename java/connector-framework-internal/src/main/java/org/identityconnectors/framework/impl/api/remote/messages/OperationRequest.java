@@ -35,16 +35,36 @@ import org.identityconnectors.framework.api.operations.APIOperation;
  */
 public class OperationRequest implements Message {
 
+    /**
+     * Identifies the request and its responses on a multiplexed connection,
+     * 0 on a legacy connection.
+     */
+    private final int requestId;
+
+    /**
+     * The number of objects the server may stream before it waits for credit
+     * from the client, 0 to use the pauses of the legacy protocol or the
+     * window announced by the server on a multiplexed connection.
+     */
+    private final int window;
+
     /**
      * The key of the connector to operate on.
      */
     private final ConnectorKey connectorKey;
 
     /**
-     * The configuration information to use.
+     * The configuration information to use, null if the connection has already
+     * sent it along with the same digest.
      */
     private final String configuration;
 
+    /**
+     * The digest of the configuration, null if the configuration is always
+     * sent in full.
+     */
+    private final String configurationDigest;
+
     /**
      * The operation to perform.
      */
@@ -66,13 +86,44 @@ public class OperationRequest implements Message {
     public OperationRequest(ConnectorKey key, String connectorFacadeKey,
             Class<? extends APIOperation> operation, String operationMethodName,
             List<Object> arguments) {
+        this(0, key, connectorFacadeKey, operation, operationMethodName, arguments);
+    }
+
+    public OperationRequest(int requestId, ConnectorKey key, String connectorFacadeKey,
+            Class<? extends APIOperation> operation, String operationMethodName,
+            List<Object> arguments) {
+        this(requestId, 0, key, connectorFacadeKey, operation, operationMethodName, arguments);
+    }
+
+    public OperationRequest(int requestId, int window, ConnectorKey key,
+            String connectorFacadeKey, Class<? extends APIOperation> operation,
+            String operationMethodName, List<Object> arguments) {
+        this(requestId, window, key, connectorFacadeKey, null, operation, operationMethodName,
+                arguments);
+    }
+
+    public OperationRequest(int requestId, int window, ConnectorKey key,
+            String connectorFacadeKey, String connectorFacadeDigest,
+            Class<? extends APIOperation> operation, String operationMethodName,
+            List<Object> arguments) {
+        this.requestId = requestId;
+        this.window = window;
         connectorKey = key;
         configuration = connectorFacadeKey;
+        configurationDigest = connectorFacadeDigest;
         this.operation = operation;
         this.operationMethodName = operationMethodName;
         this.arguments = CollectionUtil.newReadOnlyList(arguments);
     }
 
+    public int getRequestId() {
+        return requestId;
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
     public ConnectorKey getConnectorKey() {
         return connectorKey;
     }
@@ -81,6 +132,21 @@ public class OperationRequest implements Message {
         return configuration;
     }
 
+    public String getConnectorFacadeDigest() {
+        return configurationDigest;
+    }
+
+    /**
+     * Returns a copy of this request with the given configuration.
+     *
+     * @param connectorFacadeKey
+     *            the configuration, null to send only its digest.
+     */
+    public OperationRequest withConnectorFacadeKey(String connectorFacadeKey) {
+        return new OperationRequest(requestId, window, connectorKey, connectorFacadeKey,
+                configurationDigest, operation, operationMethodName, arguments);
+    }
+
     public Class<? extends APIOperation> getOperation() {
         return operation;
     }
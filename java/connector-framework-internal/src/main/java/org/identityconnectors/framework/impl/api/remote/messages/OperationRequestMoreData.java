@@ -24,10 +24,30 @@ package org.identityconnectors.framework.impl.api.remote.messages;
 
 /**
  * Sent by the client to request more data.
+ * <p/>
+ * On a multiplexed connection it grants the stream of the given request the
+ * credit to send the given number of further objects.
  */
 public class OperationRequestMoreData implements Message {
 
+    private final int requestId;
+
+    private final int credits;
+
     public OperationRequestMoreData() {
+        this(0, 0);
+    }
+
+    public OperationRequestMoreData(int requestId, int credits) {
+        this.requestId = requestId;
+        this.credits = credits;
     }
 
+    public int getRequestId() {
+        return requestId;
+    }
+
+    public int getCredits() {
+        return credits;
+    }
 }
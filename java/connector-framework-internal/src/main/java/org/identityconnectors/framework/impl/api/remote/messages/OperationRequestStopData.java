@@ -27,7 +27,17 @@ package org.identityconnectors.framework.impl.api.remote.messages;
  */
 public class OperationRequestStopData implements Message {
 
+    private final int requestId;
+
     public OperationRequestStopData() {
+        this(0);
+    }
+
+    public OperationRequestStopData(int requestId) {
+        this.requestId = requestId;
     }
 
+    public int getRequestId() {
+        return requestId;
+    }
 }
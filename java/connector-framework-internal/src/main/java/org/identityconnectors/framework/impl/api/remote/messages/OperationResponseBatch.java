@@ -0,0 +1,62 @@
+/*
+ * ====================
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2017 ConnId. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of the Common Development
+ * and Distribution License("CDDL") (the "License").  You may not use this file
+ * except in compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.php
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ *
+ * When distributing the Covered Code, include this CDDL Header Notice in each file
+ * and include the License file at http://opensource.org/licenses/cddl1.php.
+ * If applicable, add the following below this CDDL Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ * ====================
+ */
+package org.identityconnectors.framework.impl.api.remote.messages;
+
+import java.util.List;
+
+import org.identityconnectors.common.CollectionUtil;
+
+/**
+ * Carries several objects of a streaming response at once. The objects are
+ * encoded together so they share one frame and one table of type names, which
+ * amortizes the framing cost over the batch. Sent instead of a series of
+ * {@link OperationResponsePart}s once the client and the server have agreed
+ * on a batch size.
+ */
+public class OperationResponseBatch implements Message {
+
+    private final int requestId;
+
+    private final List<Object> results;
+
+    public OperationResponseBatch(List<Object> results) {
+        this(0, results);
+    }
+
+    public OperationResponseBatch(int requestId, List<Object> results) {
+        this.requestId = requestId;
+        this.results = CollectionUtil.asReadOnlyList(results);
+    }
+
+    /**
+     * Returns the id of the request the objects belong to, 0 on a session
+     * connection.
+     */
+    public int getRequestId() {
+        return requestId;
+    }
+
+    public List<Object> getResults() {
+        return results;
+    }
+}
@@ -27,7 +27,17 @@ package org.identityconnectors.framework.impl.api.remote.messages;
  */
 public class OperationResponseEnd implements Message {
 
+    private final int requestId;
+
     public OperationResponseEnd() {
+        this(0);
+    }
+
+    public OperationResponseEnd(int requestId) {
+        this.requestId = requestId;
     }
 
+    public int getRequestId() {
+        return requestId;
+    }
 }
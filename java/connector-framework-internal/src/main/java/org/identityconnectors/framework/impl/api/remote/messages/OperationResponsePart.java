@@ -31,14 +31,28 @@ import org.identityconnectors.framework.impl.api.remote.RemoteWrappedException;
  * Search, which returns multiple parts.
  */
 public class OperationResponsePart implements Message {
+    private int requestId;
     private RemoteWrappedException exception;
     private Object result;
 
     public OperationResponsePart(Throwable ex, Object result) {
+        this(0, ex, result);
+    }
+
+    public OperationResponsePart(int requestId, Throwable ex, Object result) {
+        this.requestId = requestId;
         exception = RemoteWrappedException.wrap(ex);
         this.result = result;
     }
 
+    /**
+     * Returns the id of the request this part answers, 0 on a legacy
+     * connection.
+     */
+    public int getRequestId() {
+        return requestId;
+    }
+
     public RemoteWrappedException getException() {
         return exception;
     }
@@ -58,6 +58,12 @@ class APIConfigurationHandlers {
                 rv.setMinEvictableIdleTimeMillis(decoder.readLongField(
                         "minEvictableIdleTimeMillis", rv.getMinEvictableIdleTimeMillis()));
                 rv.setMinIdle(decoder.readIntField("minIdle", rv.getMinIdle()));
+                rv.setTimeBetweenEvictionRunsMillis(decoder.readLongField(
+                        "timeBetweenEvictionRunsMillis", rv.getTimeBetweenEvictionRunsMillis()));
+                rv.setTestOnBorrow(decoder.readBooleanField("testOnBorrow", rv.isTestOnBorrow()));
+                rv.setValidationIntervalMillis(decoder.readLongField("validationIntervalMillis", rv
+                        .getValidationIntervalMillis()));
+                rv.setTestOnReturn(decoder.readBooleanField("testOnReturn", rv.isTestOnReturn()));
                 return rv;
             }
 
@@ -69,6 +75,12 @@ class APIConfigurationHandlers {
                 encoder.writeLongField("minEvictableIdleTimeMillis", val
                         .getMinEvictableIdleTimeMillis());
                 encoder.writeIntField("minIdle", val.getMinIdle());
+                encoder.writeLongField("timeBetweenEvictionRunsMillis", val
+                        .getTimeBetweenEvictionRunsMillis());
+                encoder.writeBooleanField("testOnBorrow", val.isTestOnBorrow());
+                encoder.writeLongField("validationIntervalMillis", val
+                        .getValidationIntervalMillis());
+                encoder.writeBooleanField("testOnReturn", val.isTestOnReturn());
             }
 
         });
@@ -320,9 +320,9 @@ class CommonObjectHandlers {
                 encoder.writeStringField(RemoteWrappedException.FIELD_CLASS, val
                         .getExceptionClass());
                 encoder.writeStringField(RemoteWrappedException.FIELD_MESSAGE, val.getMessage());
-                encoder.writeObjectField("RemoteWrappedException", val.getCause(), true);
                 encoder.writeStringField(RemoteWrappedException.FIELD_STACK_TRACE, val
                         .readStackTrace());
+                encoder.writeObjectField("RemoteWrappedException", val.getCause(), true);
             }
         });
 
@@ -405,12 +405,12 @@ class CommonObjectHandlers {
                 final AttributeInfo val = (AttributeInfo) object;
                 encoder.writeStringField("name", val.getName());
                 encoder.writeClassField("type", val.getType());
+                encoder.writeStringField("nativeName", val.getNativeName());
+                encoder.writeStringField("subtype", val.getSubtype());
                 final Set<Flags> flags = val.getFlags();
                 for (Flags flag : flags) {
                     encoder.writeObjectContents(flag);
                 }
-                encoder.writeStringField("nativeName", val.getNativeName());
-                encoder.writeStringField("subtype", val.getSubtype());
             }
         });
 
@@ -37,6 +37,7 @@ import org.identityconnectors.framework.impl.api.remote.messages.HelloResponse;
 import org.identityconnectors.framework.impl.api.remote.messages.OperationRequest;
 import org.identityconnectors.framework.impl.api.remote.messages.OperationRequestMoreData;
 import org.identityconnectors.framework.impl.api.remote.messages.OperationRequestStopData;
+import org.identityconnectors.framework.impl.api.remote.messages.OperationResponseBatch;
 import org.identityconnectors.framework.impl.api.remote.messages.OperationResponseEnd;
 import org.identityconnectors.framework.impl.api.remote.messages.OperationResponsePart;
 import org.identityconnectors.framework.impl.api.remote.messages.OperationResponsePause;
@@ -54,12 +55,19 @@ class MessageHandlers {
 
             public Object deserialize(final ObjectDecoder decoder) {
                 return new HelloRequest(decoder.readIntField("infoLevel",
-                        HelloRequest.CONNECTOR_INFO));
+                        HelloRequest.CONNECTOR_INFO), decoder.readIntField("capabilities", 0),
+                        decoder.readIntField("batchSize", 0));
             }
 
             public void serialize(final Object object, final ObjectEncoder encoder) {
                 HelloRequest val = (HelloRequest) object;
                 encoder.writeIntField("infoLevel", val.getInfoLevel());
+                if (val.getCapabilities() != 0) {
+                    encoder.writeIntField("capabilities", val.getCapabilities());
+                }
+                if (val.getBatchSize() != 0) {
+                    encoder.writeIntField("batchSize", val.getBatchSize());
+                }
             }
         });
 
@@ -94,11 +102,15 @@ class MessageHandlers {
                 "OperationRequest") {
 
             public Object deserialize(final ObjectDecoder decoder) {
+                final int requestId = decoder.readIntField("requestId", 0);
+                final int window = decoder.readIntField("window", 0);
                 final ConnectorKey connectorKey =
                         (ConnectorKey) decoder.readObjectField("ConnectorKey", ConnectorKey.class,
                                 null);
                 final String connectorFacadeKey =
                         decoder.readStringField("connectorFacadeKey", null);
+                final String connectorFacadeDigest =
+                        decoder.readStringField("connectorFacadeDigest", null);
                 @SuppressWarnings("unchecked")
                 final Class<? extends APIOperation> operation =
                         (Class) decoder.readClassField("operation", null);
@@ -107,16 +119,29 @@ class MessageHandlers {
                 @SuppressWarnings("unchecked")
                 final List<Object> arguments =
                         (List) decoder.readObjectField("Arguments", List.class, null);
-                return new OperationRequest(connectorKey, connectorFacadeKey, operation,
+                return new OperationRequest(requestId, window, connectorKey,
+                        connectorFacadeKey, connectorFacadeDigest, operation,
                         operationMethodName, arguments);
             }
 
             public void serialize(final Object object, final ObjectEncoder encoder) {
                 OperationRequest val = (OperationRequest) object;
+                if (val.getRequestId() != 0) {
+                    encoder.writeIntField("requestId", val.getRequestId());
+                }
+                if (val.getWindow() != 0) {
+                    encoder.writeIntField("window", val.getWindow());
+                }
                 encoder.writeClassField("operation", val.getOperation());
                 encoder.writeStringField("operationMethodName", val.getOperationMethodName());
+                if (val.getConnectorFacadeKey() != null) {
+                    encoder.writeStringField("connectorFacadeKey", val.getConnectorFacadeKey());
+                }
+                if (val.getConnectorFacadeDigest() != null) {
+                    encoder.writeStringField("connectorFacadeDigest", val
+                            .getConnectorFacadeDigest());
+                }
                 encoder.writeObjectField("ConnectorKey", val.getConnectorKey(), true);
-                encoder.writeStringField("connectorFacadeKey", val.getConnectorFacadeKey());
                 encoder.writeObjectField("Arguments", val.getArguments(), true);
             }
         });
@@ -125,10 +150,14 @@ class MessageHandlers {
                 "OperationResponseEnd") {
 
             public Object deserialize(final ObjectDecoder decoder) {
-                return new OperationResponseEnd();
+                return new OperationResponseEnd(decoder.readIntField("requestId", 0));
             }
 
             public void serialize(final Object object, final ObjectEncoder encoder) {
+                final OperationResponseEnd val = (OperationResponseEnd) object;
+                if (val.getRequestId() != 0) {
+                    encoder.writeIntField("requestId", val.getRequestId());
+                }
             }
         });
 
@@ -136,28 +165,64 @@ class MessageHandlers {
                 "OperationResponsePart") {
 
             public Object deserialize(final ObjectDecoder decoder) {
+                final int requestId = decoder.readIntField("requestId", 0);
                 final Throwable exception =
                         (Throwable) decoder.readObjectField("exception", null, null);
                 final Object result = decoder.readObjectField("result", null, null);
 
-                return new OperationResponsePart(exception, result);
+                return new OperationResponsePart(requestId, exception, result);
             }
 
             public void serialize(final Object object, final ObjectEncoder encoder) {
                 final OperationResponsePart val = (OperationResponsePart) object;
+                if (val.getRequestId() != 0) {
+                    encoder.writeIntField("requestId", val.getRequestId());
+                }
                 encoder.writeObjectField("exception", val.getException(), false);
                 encoder.writeObjectField("result", val.getResult(), false);
             }
         });
 
+        HANDLERS.add(new AbstractObjectSerializationHandler(OperationResponseBatch.class,
+                "OperationResponseBatch") {
+
+            public Object deserialize(final ObjectDecoder decoder) {
+                final int requestId = decoder.readIntField("requestId", 0);
+                final int count = decoder.getNumSubObjects();
+                final List<Object> results = new ArrayList<Object>(count);
+                for (int i = 0; i < count; i++) {
+                    results.add(decoder.readObjectContents(i));
+                }
+                return new OperationResponseBatch(requestId, results);
+            }
+
+            public void serialize(final Object object, final ObjectEncoder encoder) {
+                final OperationResponseBatch val = (OperationResponseBatch) object;
+                if (val.getRequestId() != 0) {
+                    encoder.writeIntField("requestId", val.getRequestId());
+                }
+                for (Object result : val.getResults()) {
+                    encoder.writeObjectContents(result);
+                }
+            }
+        });
+
         HANDLERS.add(new AbstractObjectSerializationHandler(OperationRequestMoreData.class,
                 "OperationRequestMoreData") {
 
             public Object deserialize(final ObjectDecoder decoder) {
-                return new OperationRequestMoreData();
+                return new OperationRequestMoreData(decoder.readIntField("requestId", 0), decoder
+                        .readIntField("credits", 0));
             }
 
             public void serialize(final Object object, final ObjectEncoder encoder) {
+                final OperationRequestMoreData val = (OperationRequestMoreData) object;
+                if (val.getRequestId() != 0) {
+                    encoder.writeIntField("requestId", val.getRequestId());
+                }
+                if (val.getCredits() != 0) {
+                    encoder.writeIntField("credits", val.getCredits());
+                }
             }
         });
 
@@ -165,10 +230,14 @@ class MessageHandlers {
                 "OperationRequestStopData") {
 
             public Object deserialize(final ObjectDecoder decoder) {
-                return new OperationRequestStopData();
+                return new OperationRequestStopData(decoder.readIntField("requestId", 0));
             }
 
             public void serialize(final Object object, final ObjectEncoder encoder) {
+                final OperationRequestStopData val = (OperationRequestStopData) object;
+                if (val.getRequestId() != 0) {
+                    encoder.writeIntField("requestId", val.getRequestId());
+                }
             }
         });
 
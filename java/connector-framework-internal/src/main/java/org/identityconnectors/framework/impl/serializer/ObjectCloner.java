@@ -0,0 +1,255 @@
+/*
+ * ====================
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2017 ConnId. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of the Common Development
+ * and Distribution License("CDDL") (the "License").  You may not use this file
+ * except in compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.php
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ *
+ * When distributing the Covered Code, include this CDDL Header Notice in each file
+ * and include the License file at http://opensource.org/licenses/cddl1.php.
+ * If applicable, add the following below this CDDL Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ * ====================
+ */
+package org.identityconnectors.framework.impl.serializer;
+
+import java.io.File;
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+
+import org.identityconnectors.common.pooling.ObjectPoolConfiguration;
+import org.identityconnectors.framework.api.ConnectorKey;
+import org.identityconnectors.framework.api.ResultsHandlerConfiguration;
+import org.identityconnectors.framework.api.operations.APIOperation;
+import org.identityconnectors.framework.common.serializer.SerializerUtil;
+import org.identityconnectors.framework.impl.api.APIConfigurationImpl;
+import org.identityconnectors.framework.impl.api.ConfigurationPropertiesImpl;
+import org.identityconnectors.framework.impl.api.ConfigurationPropertyImpl;
+import org.identityconnectors.framework.impl.api.ConnectorMessagesImpl;
+import org.identityconnectors.framework.impl.api.remote.RemoteConnectorInfoImpl;
+
+/**
+ * Copies objects the same way a binary serialization round trip would, but
+ * without encoding them to bytes.
+ * <p>
+ * The configuration types and the plain collections and arrays they contain
+ * are copied field by field, immutable leaves are shared. Any other type is
+ * still cloned through the binary serializer so that the result, and the
+ * errors raised for types which can't be serialized, stay the same.
+ */
+final class ObjectCloner {
+
+    /**
+     * Types whose instances can't change, so clones may share them.
+     */
+    private static final Set<Class<?>> IMMUTABLE_TYPES = new HashSet<Class<?>>();
+
+    static {
+        IMMUTABLE_TYPES.add(String.class);
+        IMMUTABLE_TYPES.add(Boolean.class);
+        IMMUTABLE_TYPES.add(Character.class);
+        IMMUTABLE_TYPES.add(Byte.class);
+        IMMUTABLE_TYPES.add(Integer.class);
+        IMMUTABLE_TYPES.add(Long.class);
+        IMMUTABLE_TYPES.add(Float.class);
+        IMMUTABLE_TYPES.add(Double.class);
+        IMMUTABLE_TYPES.add(BigInteger.class);
+        IMMUTABLE_TYPES.add(BigDecimal.class);
+        IMMUTABLE_TYPES.add(URI.class);
+        IMMUTABLE_TYPES.add(File.class);
+        IMMUTABLE_TYPES.add(Locale.class);
+        IMMUTABLE_TYPES.add(ConnectorKey.class);
+    }
+
+    private ObjectCloner() {
+    }
+
+    /**
+     * Returns a deep copy of the given object.
+     *
+     * @param object
+     *            The object. May be null.
+     * @return A clone of the object
+     */
+    public static Object cloneObject(final Object object) {
+        if (object == null) {
+            return null;
+        }
+        final Class<?> clazz = object.getClass();
+        if (IMMUTABLE_TYPES.contains(clazz) || object instanceof Class) {
+            return object;
+        } else if (clazz == APIConfigurationImpl.class) {
+            return cloneAPIConfiguration((APIConfigurationImpl) object);
+        } else if (clazz == ConfigurationPropertiesImpl.class) {
+            return cloneConfigurationProperties((ConfigurationPropertiesImpl) object);
+        } else if (clazz == ConfigurationPropertyImpl.class) {
+            return cloneConfigurationProperty((ConfigurationPropertyImpl) object);
+        } else if (clazz == ObjectPoolConfiguration.class) {
+            return new ObjectPoolConfiguration((ObjectPoolConfiguration) object);
+        } else if (clazz == ResultsHandlerConfiguration.class) {
+            return new ResultsHandlerConfiguration((ResultsHandlerConfiguration) object);
+        } else if (clazz == ConnectorMessagesImpl.class) {
+            return cloneConnectorMessages((ConnectorMessagesImpl) object);
+        } else if (clazz == RemoteConnectorInfoImpl.class) {
+            return cloneRemoteConnectorInfo((RemoteConnectorInfoImpl) object);
+        } else if (object instanceof List && isHandledAs(clazz, List.class)) {
+            return cloneList((List<?>) object);
+        } else if (object instanceof Map && !(object instanceof SortedMap)
+                && isHandledAs(clazz, Map.class)) {
+            return cloneMap((Map<?, ?>) object);
+        } else if (object instanceof Set && !(object instanceof SortedSet)
+                && isHandledAs(clazz, Set.class)) {
+            return cloneSet((Set<?>) object);
+        } else if (clazz.isArray() && isSerializable(clazz.getComponentType())) {
+            return cloneArray(object, clazz.getComponentType());
+        }
+        // case insensitive collections and anything not handled above
+        return SerializerUtil.deserializeBinaryObject(SerializerUtil.serializeBinaryObject(object));
+    }
+
+    private static APIConfigurationImpl cloneAPIConfiguration(final APIConfigurationImpl val) {
+        final APIConfigurationImpl rv = new APIConfigurationImpl();
+        rv.setProducerBufferSize(val.getProducerBufferSize());
+        rv.setConnectorPoolingSupported(val.isConnectorPoolingSupported());
+        rv.setConnectorPoolConfiguration((ObjectPoolConfiguration) cloneObject(val
+                .getConnectorPoolConfiguration()));
+        rv.setResultsHandlerConfiguration((ResultsHandlerConfiguration) cloneObject(val
+                .getResultsHandlerConfiguration()));
+        rv.setConfigurationProperties((ConfigurationPropertiesImpl) cloneObject(val
+                .getConfigurationProperties()));
+        @SuppressWarnings("unchecked")
+        final Map<Class<? extends APIOperation>, Integer> map =
+                (Map) cloneObject(val.getTimeoutMap());
+        rv.setTimeoutMap(map);
+        @SuppressWarnings("unchecked")
+        final Set<Class<? extends APIOperation>> set =
+                (Set) cloneObject(val.getSupportedOperations());
+        rv.setSupportedOperations(set);
+        return rv;
+    }
+
+    private static ConfigurationPropertiesImpl cloneConfigurationProperties(
+            final ConfigurationPropertiesImpl val) {
+        final ConfigurationPropertiesImpl rv = new ConfigurationPropertiesImpl();
+        final List<ConfigurationPropertyImpl> props = new ArrayList<ConfigurationPropertyImpl>();
+        for (ConfigurationPropertyImpl prop : val.getProperties()) {
+            props.add(cloneConfigurationProperty(prop));
+        }
+        rv.setProperties(props);
+        return rv;
+    }
+
+    private static ConfigurationPropertyImpl cloneConfigurationProperty(
+            final ConfigurationPropertyImpl val) {
+        final ConfigurationPropertyImpl rv = new ConfigurationPropertyImpl();
+        rv.setOrder(val.getOrder());
+        rv.setRequired(val.isRequired());
+        rv.setConfidential(val.isConfidential());
+        rv.setName(val.getName());
+        rv.setHelpMessageKey(val.getHelpMessageKey());
+        rv.setDisplayMessageKey(val.getDisplayMessageKey());
+        rv.setGroupMessageKey(val.getGroupMessageKey());
+        rv.setType(val.getType());
+        rv.setValue(cloneObject(val.getValue()));
+        @SuppressWarnings("unchecked")
+        final Set<Class<? extends APIOperation>> ops = (Set) cloneObject(val.getOperations());
+        rv.setOperations(ops);
+        return rv;
+    }
+
+    private static ConnectorMessagesImpl cloneConnectorMessages(final ConnectorMessagesImpl val) {
+        final ConnectorMessagesImpl rv = new ConnectorMessagesImpl();
+        @SuppressWarnings("unchecked")
+        final Map<Locale, Map<String, String>> catalogs = (Map) cloneObject(val.getCatalogs());
+        rv.setCatalogs(catalogs);
+        return rv;
+    }
+
+    private static RemoteConnectorInfoImpl cloneRemoteConnectorInfo(
+            final RemoteConnectorInfoImpl val) {
+        final RemoteConnectorInfoImpl rv = new RemoteConnectorInfoImpl();
+        rv.setConnectorDisplayNameKey(val.getConnectorDisplayNameKey());
+        rv.setConnectorCategoryKey(val.getConnectorCategoryKey());
+        rv.setConnectorKey(val.getConnectorKey());
+        rv.setMessages((ConnectorMessagesImpl) cloneObject(val.getMessages()));
+        rv.setDefaultAPIConfiguration((APIConfigurationImpl) cloneObject(val
+                .getDefaultAPIConfiguration()));
+        return rv;
+    }
+
+    private static List<Object> cloneList(final List<?> list) {
+        final List<Object> rv = new ArrayList<Object>(list.size());
+        for (Object obj : list) {
+            rv.add(cloneObject(obj));
+        }
+        return rv;
+    }
+
+    private static Map<Object, Object> cloneMap(final Map<?, ?> map) {
+        final Map<Object, Object> rv = new HashMap<Object, Object>();
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            rv.put(cloneObject(entry.getKey()), cloneObject(entry.getValue()));
+        }
+        return rv;
+    }
+
+    private static Set<Object> cloneSet(final Set<?> set) {
+        final Set<Object> rv = new HashSet<Object>();
+        for (Object obj : set) {
+            rv.add(cloneObject(obj));
+        }
+        return rv;
+    }
+
+    private static Object cloneArray(final Object array, final Class<?> componentType) {
+        final int length = Array.getLength(array);
+        final Object rv = Array.newInstance(componentType, length);
+        if (componentType.isPrimitive()) {
+            System.arraycopy(array, 0, rv, 0, length);
+        } else {
+            for (int i = 0; i < length; i++) {
+                Array.set(rv, i, cloneObject(Array.get(array, i)));
+            }
+        }
+        return rv;
+    }
+
+    /**
+     * Returns true if the given class is serialized by the handler of the
+     * given collection type rather than by a more specific one.
+     */
+    private static boolean isHandledAs(final Class<?> clazz, final Class<?> collectionType) {
+        return ObjectSerializerRegistry.getHandlerByObjectType(clazz) == ObjectSerializerRegistry
+                .getHandlerByObjectType(collectionType);
+    }
+
+    /**
+     * Returns true if the serializer can write arrays of the given type.
+     */
+    private static boolean isSerializable(final Class<?> clazz) {
+        if (clazz.isArray()) {
+            return isSerializable(clazz.getComponentType());
+        }
+        return ObjectSerializerRegistry.getMapperByObjectType(clazz) != null;
+    }
+}
@@ -64,4 +64,9 @@ public class ObjectSerializerFactoryImpl extends ObjectSerializerFactory {
         XmlObjectParser.parse(is, handler, validate);
     }
 
+    @Override
+    public Object cloneObject(Object object) {
+        return ObjectCloner.cloneObject(object);
+    }
+
 }
@@ -25,11 +25,24 @@ package org.identityconnectors.framework.impl.serializer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.Uid;
 
 public final class ObjectSerializerRegistry {
 
@@ -50,7 +63,9 @@ public final class ObjectSerializerRegistry {
         // serialize
         HANDLERS.add(new ObjectTypeMapperImpl(Object.class, "Object"));
 
-        for (ObjectTypeMapper handler : HANDLERS) {
+        List<ObjectTypeMapper> serialTypes = new ArrayList<ObjectTypeMapper>(HANDLERS);
+        serialTypes.addAll(PositionalObjectHandlers.HANDLERS);
+        for (ObjectTypeMapper handler : serialTypes) {
             final ObjectTypeMapper previous =
                     HANDLERS_BY_SERIAL_TYPE.put(handler.getHandledSerialType(), handler);
             if (previous != null) {
@@ -61,10 +76,68 @@ public final class ObjectSerializerRegistry {
     }
 
     /**
-     * Mapping by class. Dynamically built since actual class may be a subclass.
+     * Positional handlers by the exact class they handle, used instead of the
+     * handlers above by the encoders which enable them.
      */
-    private static final Map<Class<?>, ObjectTypeMapper> HANDLERS_BY_OBJECT_TYPE = Collections
-            .synchronizedMap(new WeakHashMap<Class<?>, ObjectTypeMapper>());
+    private static final Map<Class<?>, PositionalSerializationHandler>
+            POSITIONAL_HANDLERS_BY_OBJECT_TYPE = new HashMap<Class<?>, PositionalSerializationHandler>();
+
+    static {
+        for (PositionalSerializationHandler handler : PositionalObjectHandlers.HANDLERS) {
+            POSITIONAL_HANDLERS_BY_OBJECT_TYPE.put(handler.getHandledObjectType(), handler);
+        }
+    }
+
+    /**
+     * Cached for the classes which have no mapper, since the map can not hold
+     * null.
+     */
+    private static final ObjectTypeMapper NO_MAPPER = new ObjectTypeMapperImpl(null, null);
+
+    /**
+     * Mapping by class for the classes of the framework's class loader and
+     * its parents, which live as long as the registry. Dynamically built since
+     * actual class may be a subclass, and read without locking since every
+     * value sent to or received from a connector server is looked up here.
+     */
+    private static final ConcurrentMap<Class<?>, ObjectTypeMapper> HANDLERS_BY_OBJECT_TYPE =
+            new ConcurrentHashMap<Class<?>, ObjectTypeMapper>();
+
+    /**
+     * Mapping by class for the classes of other class loaders, typically
+     * connector bundles, which must not be kept from being unloaded.
+     */
+    private static final Map<Class<?>, ObjectTypeMapper> HANDLERS_BY_FOREIGN_OBJECT_TYPE =
+            Collections.synchronizedMap(new WeakHashMap<Class<?>, ObjectTypeMapper>());
+
+    private static final Set<ClassLoader> FRAMEWORK_CLASS_LOADERS = new HashSet<ClassLoader>();
+
+    static {
+        ClassLoader loader = ObjectSerializerRegistry.class.getClassLoader();
+        while (loader != null) {
+            FRAMEWORK_CLASS_LOADERS.add(loader);
+            loader = loader.getParent();
+        }
+
+        // the types of most of the values sent over the wire
+        Class<?>[] hotTypes =
+                { String.class, Attribute.class, Uid.class, Name.class, ConnectorObject.class,
+                    ArrayList.class, LinkedList.class, HashSet.class, LinkedHashSet.class,
+                    TreeSet.class, HashMap.class, LinkedHashMap.class, TreeMap.class,
+                    Collections.emptyList().getClass(), Collections.emptySet().getClass(),
+                    Collections.singletonList(null).getClass(),
+                    Collections.singleton(null).getClass(),
+                    Collections.unmodifiableList(new ArrayList<Object>()).getClass(),
+                    Collections.unmodifiableList(new LinkedList<Object>()).getClass(),
+                    Collections.unmodifiableSet(new HashSet<Object>()).getClass(),
+                    Collections.unmodifiableMap(new HashMap<Object, Object>()).getClass() };
+        for (Class<?> clazz : hotTypes) {
+            getMapperByObjectType(clazz);
+        }
+        for (ObjectTypeMapper handler : HANDLERS) {
+            getMapperByObjectType(handler.getHandledObjectType());
+        }
+    }
 
     public static ObjectTypeMapper getMapperBySerialType(final String type) {
         return HANDLERS_BY_SERIAL_TYPE.get(type);
@@ -73,20 +146,41 @@ public final class ObjectSerializerRegistry {
     public static ObjectTypeMapper getMapperByObjectType(final Class<?> clazz) {
         ObjectTypeMapper mapper = HANDLERS_BY_OBJECT_TYPE.get(clazz);
         if (mapper == null) {
-            for (ObjectTypeMapper handler : HANDLERS) {
-                if (handler.isMatchSubclasses()) {
-                    if (handler.getHandledObjectType().isAssignableFrom(clazz)) {
-                        mapper = handler;
-                        break;
-                    }
-                } else if (handler.getHandledObjectType().equals(clazz)) {
-                    mapper = handler;
-                    break;
+            ClassLoader loader = clazz.getClassLoader();
+            if (loader == null || FRAMEWORK_CLASS_LOADERS.contains(loader)) {
+                mapper = findMapper(clazz);
+                HANDLERS_BY_OBJECT_TYPE.putIfAbsent(clazz, mapper);
+            } else {
+                mapper = HANDLERS_BY_FOREIGN_OBJECT_TYPE.get(clazz);
+                if (mapper == null) {
+                    mapper = findMapper(clazz);
+                    HANDLERS_BY_FOREIGN_OBJECT_TYPE.put(clazz, mapper);
+                }
+            }
+        }
+        return mapper == NO_MAPPER ? null : mapper;
+    }
+
+    private static ObjectTypeMapper findMapper(final Class<?> clazz) {
+        for (ObjectTypeMapper handler : HANDLERS) {
+            if (handler.isMatchSubclasses()) {
+                if (handler.getHandledObjectType().isAssignableFrom(clazz)) {
+                    return handler;
                 }
+            } else if (handler.getHandledObjectType().equals(clazz)) {
+                return handler;
             }
-            HANDLERS_BY_OBJECT_TYPE.put(clazz, mapper);
         }
-        return mapper;
+        return NO_MAPPER;
+    }
+
+    /**
+     * Returns the positional handler of the class, or null if it has none. It
+     * never matches subclasses.
+     */
+    public static PositionalSerializationHandler getPositionalHandlerByObjectType(
+            final Class<?> clazz) {
+        return POSITIONAL_HANDLERS_BY_OBJECT_TYPE.get(clazz);
     }
 
     public static ObjectSerializationHandler getHandlerBySerialType(final String type) {
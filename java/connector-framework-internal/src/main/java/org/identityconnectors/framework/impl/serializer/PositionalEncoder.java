@@ -0,0 +1,51 @@
+/*
+ * ====================
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2017 ConnId. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of the Common Development
+ * and Distribution License("CDDL") (the "License").  You may not use this file
+ * except in compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.php
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ *
+ * When distributing the Covered Code, include this CDDL Header Notice in each file
+ * and include the License file at http://opensource.org/licenses/cddl1.php.
+ * If applicable, add the following below this CDDL Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ * ====================
+ */
+package org.identityconnectors.framework.impl.serializer;
+
+/**
+ * Writes the values of a {@link PositionalSerializationHandler} one after the
+ * other, without field names. They are read back in the same order.
+ */
+public interface PositionalEncoder {
+
+    /**
+     * Writes a boolean.
+     */
+    public void writeBooleanValue(boolean v);
+
+    /**
+     * Writes an int.
+     */
+    public void writeIntValue(int v);
+
+    /**
+     * Writes a String, which must not be null.
+     */
+    public void writeStringValue(String v);
+
+    /**
+     * Writes an object, which may be null, using the appropriate serializer
+     * for that object.
+     */
+    public void writeObjectValue(Object o);
+}
@@ -0,0 +1,240 @@
+/*
+ * ====================
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2017 ConnId. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of the Common Development
+ * and Distribution License("CDDL") (the "License").  You may not use this file
+ * except in compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.php
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ *
+ * When distributing the Covered Code, include this CDDL Header Notice in each file
+ * and include the License file at http://opensource.org/licenses/cddl1.php.
+ * If applicable, add the following below this CDDL Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ * ====================
+ */
+package org.identityconnectors.framework.impl.serializer;
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.AttributeBuilder;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.SyncDelta;
+import org.identityconnectors.framework.common.objects.SyncDeltaBuilder;
+import org.identityconnectors.framework.common.objects.SyncDeltaType;
+import org.identityconnectors.framework.common.objects.SyncToken;
+import org.identityconnectors.framework.common.objects.Uid;
+
+/**
+ * Positional serialization handlers for the objects sent the most, such as
+ * search results and sync deltas. They produce the same objects as the
+ * handlers in {@link CommonObjectHandlers}.
+ */
+class PositionalObjectHandlers {
+
+    public static final List<PositionalSerializationHandler> HANDLERS =
+            new ArrayList<PositionalSerializationHandler>();
+
+    /**
+     * Written instead of the number of values of an attribute without values.
+     */
+    private static final int NULL_VALUES = -1;
+
+    /**
+     * Written instead of the number of values of a {@link Uid}, followed by
+     * its value and revision.
+     */
+    private static final int UID_VALUE = -2;
+
+    /**
+     * Written instead of the number of values of a {@link Name}, followed by
+     * its value.
+     */
+    private static final int NAME_VALUE = -3;
+
+    /**
+     * Read-only set over the attributes of a decoded object, which the
+     * {@link ConnectorObject} only iterates to build its own map.
+     */
+    private static final class AttributeArraySet extends AbstractSet<Attribute> {
+
+        private final List<Attribute> attributes;
+
+        AttributeArraySet(final Attribute[] attributes) {
+            this.attributes = Arrays.asList(attributes);
+        }
+
+        @Override
+        public Iterator<Attribute> iterator() {
+            return attributes.iterator();
+        }
+
+        @Override
+        public int size() {
+            return attributes.size();
+        }
+    }
+
+    private static void writeAttribute(final Attribute attribute, final PositionalEncoder encoder) {
+        encoder.writeStringValue(attribute.getName());
+        if (attribute instanceof Uid) {
+            final Uid uid = (Uid) attribute;
+            encoder.writeIntValue(UID_VALUE);
+            encoder.writeStringValue(uid.getUidValue());
+            writeNullableString(uid.getRevision(), encoder);
+        } else if (attribute instanceof Name) {
+            encoder.writeIntValue(NAME_VALUE);
+            encoder.writeStringValue(((Name) attribute).getNameValue());
+        } else {
+            final List<Object> values = attribute.getValue();
+            if (values == null) {
+                encoder.writeIntValue(NULL_VALUES);
+            } else {
+                encoder.writeIntValue(values.size());
+                for (Object value : values) {
+                    encoder.writeObjectValue(value);
+                }
+            }
+        }
+    }
+
+    private static Attribute readAttribute(final PositionalDecoder decoder) {
+        final String name = decoder.readStringValue();
+        final int count = decoder.readIntValue();
+        if (count == UID_VALUE) {
+            return readUid(decoder);
+        } else if (count == NAME_VALUE) {
+            return new Name(decoder.readStringValue());
+        } else if (count == NULL_VALUES) {
+            return AttributeBuilder.build(name, (Collection<?>) null);
+        }
+        final List<Object> values = new ArrayList<Object>(count);
+        for (int i = 0; i < count; i++) {
+            values.add(decoder.readObjectValue());
+        }
+        return AttributeBuilder.build(name, values);
+    }
+
+    private static Uid readUid(final PositionalDecoder decoder) {
+        final String value = decoder.readStringValue();
+        final String revision = readNullableString(decoder);
+        if (null == revision) {
+            return new Uid(value);
+        } else {
+            return new Uid(value, revision);
+        }
+    }
+
+    private static void writeNullableString(final String v, final PositionalEncoder encoder) {
+        encoder.writeBooleanValue(v != null);
+        if (v != null) {
+            encoder.writeStringValue(v);
+        }
+    }
+
+    private static String readNullableString(final PositionalDecoder decoder) {
+        return decoder.readBooleanValue() ? decoder.readStringValue() : null;
+    }
+
+    static {
+
+        HANDLERS.add(new PositionalSerializationHandler(Attribute.class, "PositionalAttribute") {
+
+            @Override
+            protected Object deserialize(final PositionalDecoder decoder) {
+                return readAttribute(decoder);
+            }
+
+            @Override
+            protected void serialize(final Object object, final PositionalEncoder encoder) {
+                writeAttribute((Attribute) object, encoder);
+            }
+        });
+
+        HANDLERS.add(new PositionalSerializationHandler(Uid.class, "PositionalUid") {
+
+            @Override
+            protected Object deserialize(final PositionalDecoder decoder) {
+                return readUid(decoder);
+            }
+
+            @Override
+            protected void serialize(final Object object, final PositionalEncoder encoder) {
+                final Uid val = (Uid) object;
+                encoder.writeStringValue(val.getUidValue());
+                writeNullableString(val.getRevision(), encoder);
+            }
+        });
+
+        HANDLERS.add(new PositionalSerializationHandler(ConnectorObject.class,
+                "PositionalConnectorObject") {
+
+            @Override
+            protected Object deserialize(final PositionalDecoder decoder) {
+                final ObjectClass objectClass = new ObjectClass(decoder.readStringValue());
+                final Attribute[] attributes = new Attribute[decoder.readIntValue()];
+                for (int i = 0; i < attributes.length; i++) {
+                    attributes[i] = readAttribute(decoder);
+                }
+                return new ConnectorObject(objectClass, new AttributeArraySet(attributes));
+            }
+
+            @Override
+            protected void serialize(final Object object, final PositionalEncoder encoder) {
+                final ConnectorObject val = (ConnectorObject) object;
+                encoder.writeStringValue(val.getObjectClass().getObjectClassValue());
+                final Collection<Attribute> attributes = val.getAttributes();
+                encoder.writeIntValue(attributes.size());
+                for (Attribute attribute : attributes) {
+                    writeAttribute(attribute, encoder);
+                }
+            }
+        });
+
+        HANDLERS.add(new PositionalSerializationHandler(SyncDelta.class, "PositionalSyncDelta") {
+
+            @Override
+            protected Object deserialize(final PositionalDecoder decoder) {
+                final SyncDeltaBuilder builder = new SyncDeltaBuilder();
+                builder.setDeltaType(SyncDeltaType.valueOf(decoder.readStringValue()));
+                builder.setToken((SyncToken) decoder.readObjectValue());
+                builder.setPreviousUid((Uid) decoder.readObjectValue());
+                final String objectClass = readNullableString(decoder);
+                if (objectClass != null) {
+                    builder.setObjectClass(new ObjectClass(objectClass));
+                }
+                builder.setUid((Uid) decoder.readObjectValue());
+                builder.setObject((ConnectorObject) decoder.readObjectValue());
+                return builder.build();
+            }
+
+            @Override
+            protected void serialize(final Object object, final PositionalEncoder encoder) {
+                final SyncDelta val = (SyncDelta) object;
+                encoder.writeStringValue(val.getDeltaType().name());
+                encoder.writeObjectValue(val.getToken());
+                encoder.writeObjectValue(val.getPreviousUid());
+                final ObjectClass objectClass = val.getObjectClass();
+                writeNullableString(objectClass == null ? null : objectClass
+                        .getObjectClassValue(), encoder);
+                encoder.writeObjectValue(val.getUid());
+                encoder.writeObjectValue(val.getObject());
+            }
+        });
+    }
+}
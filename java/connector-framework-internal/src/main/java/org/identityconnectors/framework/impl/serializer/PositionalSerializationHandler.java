@@ -0,0 +1,66 @@
+/*
+ * ====================
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2017 ConnId. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of the Common Development
+ * and Distribution License("CDDL") (the "License").  You may not use this file
+ * except in compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.php
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ *
+ * When distributing the Covered Code, include this CDDL Header Notice in each file
+ * and include the License file at http://opensource.org/licenses/cddl1.php.
+ * If applicable, add the following below this CDDL Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ * ====================
+ */
+package org.identityconnectors.framework.impl.serializer;
+
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+
+/**
+ * Handler which writes an object as a fixed sequence of values rather than
+ * named fields. Only the binary serialization supports it, and only for the
+ * peers which have agreed on it, so it is registered by its serial type
+ * alone and never replaces the handler of its class.
+ */
+public abstract class PositionalSerializationHandler extends AbstractObjectSerializationHandler {
+
+    protected PositionalSerializationHandler(Class<?> handledClass, String type) {
+        super(handledClass, type);
+    }
+
+    @Override
+    public final void serialize(Object object, ObjectEncoder encoder) {
+        if (!(encoder instanceof PositionalEncoder)) {
+            throw new ConnectorException("Serialization of " + getHandledSerialType()
+                    + " not supported by " + encoder.getClass().getName());
+        }
+        serialize(object, (PositionalEncoder) encoder);
+    }
+
+    @Override
+    public final Object deserialize(ObjectDecoder decoder) {
+        if (!(decoder instanceof PositionalDecoder)) {
+            throw new ConnectorException("Deserialization of " + getHandledSerialType()
+                    + " not supported by " + decoder.getClass().getName());
+        }
+        return deserialize((PositionalDecoder) decoder);
+    }
+
+    /**
+     * Called to serialize the object.
+     */
+    protected abstract void serialize(Object object, PositionalEncoder encoder);
+
+    /**
+     * Called to deserialize the object.
+     */
+    protected abstract Object deserialize(PositionalDecoder decoder);
+}
@@ -23,16 +23,17 @@
 package org.identityconnectors.framework.impl.serializer.binary;
 
 import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Array;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Stack;
 
 import org.identityconnectors.framework.common.exceptions.ConnectorException;
 import org.identityconnectors.framework.common.serializer.BinaryObjectDeserializer;
@@ -40,46 +41,131 @@ import org.identityconnectors.framework.impl.serializer.ObjectDecoder;
 import org.identityconnectors.framework.impl.serializer.ObjectSerializationHandler;
 import org.identityconnectors.framework.impl.serializer.ObjectSerializerRegistry;
 import org.identityconnectors.framework.impl.serializer.ObjectTypeMapper;
+import org.identityconnectors.framework.impl.serializer.PositionalDecoder;
+import org.identityconnectors.framework.impl.serializer.PositionalSerializationHandler;
 
-public class BinaryObjectDecoder implements ObjectDecoder, BinaryObjectDeserializer {
+public class BinaryObjectDecoder implements ObjectDecoder, PositionalDecoder,
+        BinaryObjectDeserializer {
 
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+
+    /**
+     * Buffers which grew larger than this to hold a big object are released
+     * once it is decoded.
+     */
+    private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The fields of an object being decoded, kept as offsets into the buffer
+     * of the top-level object, and the position within the current field.
+     */
     private static class ReadState {
-        public Map<String, byte[]> objectFields = new HashMap<String, byte[]>();
-        public List<byte[]> anonymousFields = new ArrayList<byte[]>();
-        public DataInputStream currentInput;
+        private String[] fieldNames = new String[8];
+        private int[] fieldOffsets = new int[8];
+        private int[] fieldLengths = new int[8];
+        private int numFields;
+
+        private int[] anonymousOffsets = new int[8];
+        private int[] anonymousLengths = new int[8];
+        private int numAnonymousFields;
+
+        public int position;
+        public int limit;
 
         public ReadState() {
         }
 
+        public void reset() {
+            Arrays.fill(fieldNames, 0, numFields, null);
+            numFields = 0;
+            numAnonymousFields = 0;
+            position = 0;
+            limit = 0;
+        }
+
+        public void addField(String name, int offset, int length) {
+            if (numFields == fieldNames.length) {
+                int size = numFields * 2;
+                fieldNames = Arrays.copyOf(fieldNames, size);
+                fieldOffsets = Arrays.copyOf(fieldOffsets, size);
+                fieldLengths = Arrays.copyOf(fieldLengths, size);
+            }
+            fieldNames[numFields] = name;
+            fieldOffsets[numFields] = offset;
+            fieldLengths[numFields] = length;
+            numFields++;
+        }
+
+        public void addAnonymousField(int offset, int length) {
+            if (numAnonymousFields == anonymousOffsets.length) {
+                int size = numAnonymousFields * 2;
+                anonymousOffsets = Arrays.copyOf(anonymousOffsets, size);
+                anonymousLengths = Arrays.copyOf(anonymousLengths, size);
+            }
+            anonymousOffsets[numAnonymousFields] = offset;
+            anonymousLengths[numAnonymousFields] = length;
+            numAnonymousFields++;
+        }
+
+        public int getNumAnonymousFields() {
+            return numAnonymousFields;
+        }
+
         public boolean startField(String name) {
-            currentInput = null;
-            byte[] content = objectFields.get(name);
-            if (content == null) {
-                return false;
-            } else {
-                currentInput = new DataInputStream(new ByteArrayInputStream(content));
-                return true;
+            // the last one wins if a field is repeated
+            for (int i = numFields - 1; i >= 0; i--) {
+                if (name.equals(fieldNames[i])) {
+                    position = fieldOffsets[i];
+                    limit = position + fieldLengths[i];
+                    return true;
+                }
             }
+            position = 0;
+            limit = 0;
+            return false;
         }
 
         public void startAnonymousField(int index) {
-            if (index >= anonymousFields.size()) {
+            if (index >= numAnonymousFields) {
                 throw new ConnectorException("Anonymous content not found");
             }
-            currentInput =
-                    new DataInputStream(new ByteArrayInputStream(anonymousFields.get(index)));
+            position = anonymousOffsets[index];
+            limit = position + anonymousLengths[index];
         }
     }
 
+    /**
+     * Reads the fields of each top-level object from the stream into a single
+     * buffer. Nested objects are then decoded in place from that buffer.
+     */
     private static class InternalDecoder {
 
         private boolean firstObject = true;
 
         private final Map<Integer, String> constantPool = new HashMap<Integer, String>();
 
-        private final Stack<ReadState> readStateStack = new Stack<ReadState>();
+        /**
+         * The states of the objects being decoded, indexed by depth and reused
+         * from one object to the next.
+         */
+        private final List<ReadState> readStates = new ArrayList<ReadState>();
+
+        /**
+         * Number of objects being decoded, the state at depth - 1 holds the
+         * field being read. Zero reads from the stream.
+         */
+        private int depth = 0;
+
         private final DataInputStream rootInput;
 
+        private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+
+        private int bufferLength = 0;
+
+        private boolean compact = false;
+
         public InternalDecoder(DataInputStream input) {
             rootInput = input;
         }
@@ -87,19 +173,22 @@ public class BinaryObjectDecoder implements ObjectDecoder, BinaryObjectDeseriali
         public Object readObject(ObjectDecoder decoder) {
 
             if (firstObject) {
-                int magic = readInt();
+                int magic = readFixedInt();
                 if (magic != BinaryObjectEncoder.OBJECT_MAGIC) {
                     throw new ConnectorException("Bad magic number: " + magic);
                 }
-                int version = readInt();
-                if (version != BinaryObjectEncoder.ENCODING_VERSION) {
+                int version = readFixedInt();
+                if (version == BinaryObjectEncoder.COMPACT_ENCODING_VERSION) {
+                    compact = true;
+                } else if (version != BinaryObjectEncoder.ENCODING_VERSION) {
                     throw new ConnectorException("Unexpected version: " + version);
                 }
                 firstObject = false;
             }
 
             // if it's a top-level object, it's proceeded by a constant pool
-            if (readStateStack.size() == 0) {
+            if (depth == 0) {
+                bufferLength = 0;
                 int size = readInt();
                 for (int i = 0; i < size; i++) {
                     String constant = readString(false);
@@ -108,31 +197,60 @@ public class BinaryObjectDecoder implements ObjectDecoder, BinaryObjectDeseriali
                 }
             }
 
-            Class<?> clazz = readClass();
-            ReadState state = new ReadState();
+            byte objectType = readByte();
+            if (compact) {
+                // the compact encoding writes these as their type alone
+                if (objectType == BinaryObjectEncoder.OBJECT_TYPE_NULL) {
+                    return null;
+                } else if (objectType == BinaryObjectEncoder.OBJECT_TYPE_TRUE) {
+                    return Boolean.TRUE;
+                } else if (objectType == BinaryObjectEncoder.OBJECT_TYPE_FALSE) {
+                    return Boolean.FALSE;
+                }
+            }
+            ObjectTypeMapper mapper = null;
+            Class<?> clazz;
+            if (objectType == BinaryObjectEncoder.OBJECT_TYPE_CLASS) {
+                mapper = readMapper();
+                clazz = mapper.getHandledObjectType();
+            } else {
+                clazz = readClass(objectType);
+            }
+            ReadState state;
+            if (depth < readStates.size()) {
+                state = readStates.get(depth);
+                state.reset();
+            } else {
+                state = new ReadState();
+                readStates.add(state);
+            }
 
             while (true) {
                 byte type = readByte();
                 if (type == BinaryObjectEncoder.FIELD_TYPE_END_OBJECT) {
                     break;
                 } else if (type == BinaryObjectEncoder.FIELD_TYPE_ANONYMOUS_FIELD) {
-                    byte[] bytes = readByteArray();
-                    state.anonymousFields.add(bytes);
+                    int length = readInt();
+                    state.addAnonymousField(readField(length), length);
                 } else if (type == BinaryObjectEncoder.FIELD_TYPE_NAMED_FIELD) {
                     String fieldName = readString(true);
-                    byte[] bytes = readByteArray();
-                    state.objectFields.put(fieldName, bytes);
+                    int length = readInt();
+                    state.addField(fieldName, readField(length), length);
                 } else {
                     throw new ConnectorException("Unknown type: " + type);
                 }
             }
-            // push the state on the stack before we read the body
-            readStateStack.push(state);
-
-            Object rv;
-            if (clazz == null) {
-                rv = null;
-            } else {
+            // the state becomes current before we read the body
+            depth++;
+            try {
+                if (clazz == null) {
+                    return null;
+                }
+                if (mapper instanceof PositionalSerializationHandler) {
+                    // the values follow each other in a single field
+                    startAnonymousField(0);
+                    return ((PositionalSerializationHandler) mapper).deserialize(decoder);
+                }
                 ObjectSerializationHandler handler =
                         ObjectSerializerRegistry.getHandlerByObjectType(clazz);
                 if (handler == null) {
@@ -146,129 +264,230 @@ public class BinaryObjectDecoder implements ObjectDecoder, BinaryObjectDeseriali
                             Object element = readObject(decoder);
                             Array.set(array, i, element);
                         }
-                        rv = array;
+                        return array;
                     } else {
                         throw new ConnectorException("No deserializer for type: " + clazz);
                     }
                 } else {
-                    rv = handler.deserialize(decoder);
+                    return handler.deserialize(decoder);
+                }
+            } finally {
+                depth--;
+                if (depth == 0 && buffer.length > MAX_RETAINED_BUFFER_SIZE) {
+                    buffer = new byte[INITIAL_BUFFER_SIZE];
                 }
             }
-            // pop
-            readStateStack.pop();
-            return rv;
+        }
+
+        /**
+         * Locates the content of a field in the buffer. Fields of a top-level
+         * object are read into the buffer, those of nested objects are already
+         * there and are only skipped.
+         *
+         * @return the offset of the field in the buffer.
+         */
+        private int readField(int length) {
+            if (depth > 0) {
+                return next(length);
+            }
+            if (length < 0) {
+                throw new ConnectorException("Bad field length: " + length);
+            }
+            ensureCapacity(bufferLength + length);
+            try {
+                rootInput.readFully(buffer, bufferLength, length);
+            } catch (IOException e) {
+                throw ConnectorException.wrap(e);
+            }
+            int offset = bufferLength;
+            bufferLength += length;
+            return offset;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, capacity));
+            }
+        }
+
+        /**
+         * Consumes bytes of the current field.
+         *
+         * @return the offset of the bytes in the buffer.
+         */
+        private int next(int length) {
+            ReadState state = readStates.get(depth - 1);
+            int offset = state.position;
+            if (length < 0 || length > state.limit - offset) {
+                throw ConnectorException.wrap(new EOFException());
+            }
+            state.position = offset + length;
+            return offset;
         }
 
         public Class<?> readClass() {
-            int type = readByte();
+            return readClass(readByte());
+        }
+
+        private Class<?> readClass(int type) {
             if (type == BinaryObjectEncoder.OBJECT_TYPE_NULL) {
                 return null;
             } else if (type == BinaryObjectEncoder.OBJECT_TYPE_ARRAY) {
                 Class<?> componentClass = readClass();
                 return Array.newInstance(componentClass, 0).getClass();
             } else if (type == BinaryObjectEncoder.OBJECT_TYPE_CLASS) {
-                String typeName = readString(true);
-                ObjectTypeMapper mapper = ObjectSerializerRegistry.getMapperBySerialType(typeName);
-                if (mapper == null) {
-                    throw new ConnectorException("No deserializer for type: " + typeName);
-                }
-                return mapper.getHandledObjectType();
+                return readMapper().getHandledObjectType();
             } else {
                 throw new ConnectorException("Bad type value: " + type);
             }
         }
 
+        private ObjectTypeMapper readMapper() {
+            String typeName = readString(true);
+            ObjectTypeMapper mapper = ObjectSerializerRegistry.getMapperBySerialType(typeName);
+            if (mapper == null) {
+                throw new ConnectorException("No deserializer for type: " + typeName);
+            }
+            return mapper;
+        }
+
         public int getNumAnonymousFields() {
-            ReadState readState = readStateStack.get(readStateStack.size() - 1);
-            return readState.anonymousFields.size();
+            return readStates.get(depth - 1).getNumAnonymousFields();
         }
 
         public void startAnonymousField(int index) {
-            ReadState readState = readStateStack.get(readStateStack.size() - 1);
-            readState.startAnonymousField(index);
+            readStates.get(depth - 1).startAnonymousField(index);
         }
 
         public boolean startField(String name) {
-            ReadState readState = readStateStack.get(readStateStack.size() - 1);
-            return readState.startField(name);
+            return readStates.get(depth - 1).startField(name);
         }
 
         public int readInt() {
-            try {
-                return getCurrentInput().readInt();
-            } catch (IOException e) {
-                throw ConnectorException.wrap(e);
+            if (compact) {
+                long v = readVarint();
+                if (v != (int) v) {
+                    throw new ConnectorException("Integer overflow: " + v);
+                }
+                return (int) v;
+            }
+            return readFixedInt();
+        }
+
+        private int readFixedInt() {
+            if (depth == 0) {
+                try {
+                    return rootInput.readInt();
+                } catch (IOException e) {
+                    throw ConnectorException.wrap(e);
+                }
             }
+            int offset = next(4);
+            return ((buffer[offset] & 0xFF) << 24) | ((buffer[offset + 1] & 0xFF) << 16)
+                    | ((buffer[offset + 2] & 0xFF) << 8) | (buffer[offset + 3] & 0xFF);
         }
 
         public long readLong() {
-            try {
-                return getCurrentInput().readLong();
-            } catch (IOException e) {
-                throw ConnectorException.wrap(e);
+            return compact ? readVarint() : readFixedLong();
+        }
+
+        private long readFixedLong() {
+            if (depth == 0) {
+                try {
+                    return rootInput.readLong();
+                } catch (IOException e) {
+                    throw ConnectorException.wrap(e);
+                }
             }
+            long high = readFixedInt();
+            return (high << 32) | (readFixedInt() & 0xFFFFFFFFL);
         }
 
-        public double readDouble() {
-            try {
-                return getCurrentInput().readDouble();
-            } catch (IOException e) {
-                throw ConnectorException.wrap(e);
+        /**
+         * Reads a zig-zag varint of up to 64 bits.
+         */
+        private long readVarint() {
+            long zigzag = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = readByte();
+                zigzag |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return (zigzag >>> 1) ^ -(zigzag & 1);
+                }
             }
+            throw new ConnectorException("Malformed varint");
+        }
+
+        public double readDouble() {
+            return Double.longBitsToDouble(readFixedLong());
         }
 
         public byte[] readByteArray() {
-            try {
-                int length = getCurrentInput().readInt();
-                byte[] rv = new byte[length];
-                getCurrentInput().readFully(rv);
-                return rv;
-            } catch (IOException e) {
-                throw ConnectorException.wrap(e);
+            int length = readInt();
+            if (depth == 0) {
+                try {
+                    byte[] rv = new byte[length];
+                    rootInput.readFully(rv);
+                    return rv;
+                } catch (IOException e) {
+                    throw ConnectorException.wrap(e);
+                }
             }
+            int offset = next(length);
+            return Arrays.copyOfRange(buffer, offset, offset + length);
         }
 
         public byte readByte() {
-            try {
-                return getCurrentInput().readByte();
-            } catch (IOException e) {
-                throw ConnectorException.wrap(e);
+            if (depth == 0) {
+                try {
+                    return rootInput.readByte();
+                } catch (IOException e) {
+                    throw ConnectorException.wrap(e);
+                }
             }
+            return buffer[next(1)];
         }
 
         public boolean readBoolean() {
-            try {
-                return getCurrentInput().readBoolean();
-            } catch (IOException e) {
-                throw ConnectorException.wrap(e);
-            }
+            return readByte() != 0;
         }
 
         public String readString(boolean interned) {
             if (interned) {
-                int code = readInt();
-                String name = constantPool.get(code);
-                if (name == null) {
-                    throw new ConnectorException("Undeclared code: " + code);
-                }
-                return name;
+                return getConstant(readInt());
             }
 
-            try {
-                byte[] bytes = readByteArray();
-                return new String(bytes, "UTF8");
-            } catch (IOException e) {
-                throw ConnectorException.wrap(e);
+            int length = readInt();
+            if (depth == 0) {
+                // decode from the free end of the buffer
+                if (length < 0) {
+                    throw new ConnectorException("Bad string length: " + length);
+                }
+                ensureCapacity(bufferLength + length);
+                try {
+                    rootInput.readFully(buffer, bufferLength, length);
+                } catch (IOException e) {
+                    throw ConnectorException.wrap(e);
+                }
+                return new String(buffer, bufferLength, length, UTF8);
             }
+            if (length < 0) {
+                // sent by an encoder with the dictionary enabled
+                return getConstant(-1 - length);
+            }
+            return new String(buffer, next(length), length, UTF8);
         }
 
-        private DataInputStream getCurrentInput() {
-            if (readStateStack.size() > 0) {
-                ReadState state = readStateStack.get(readStateStack.size() - 1);
-                return state.currentInput;
-            } else {
-                return rootInput;
+        public void setCompact(boolean compact) {
+            this.compact = compact;
+        }
+
+        private String getConstant(int code) {
+            String rv = constantPool.get(code);
+            if (rv == null) {
+                throw new ConnectorException("Undeclared code: " + code);
             }
+            return rv;
         }
     }
 
@@ -288,11 +507,57 @@ public class BinaryObjectDecoder implements ObjectDecoder, BinaryObjectDeseriali
         }
     }
 
+    /**
+     * Sets the version of the encoding of the following objects, either
+     * {@link BinaryObjectEncoder#ENCODING_VERSION} or
+     * {@link BinaryObjectEncoder#COMPACT_ENCODING_VERSION}, at the same point
+     * of the stream where the encoder switches. The version declared at the
+     * start of the stream overrides it.
+     */
+    public void setEncodingVersion(int version) {
+        if (version != BinaryObjectEncoder.ENCODING_VERSION
+                && version != BinaryObjectEncoder.COMPACT_ENCODING_VERSION) {
+            throw new IllegalArgumentException("Unsupported version: " + version);
+        }
+        internalDecoder.setCompact(version == BinaryObjectEncoder.COMPACT_ENCODING_VERSION);
+    }
+
     @Override
     public Object readObject() {
         return internalDecoder.readObject(this);
     }
 
+    /**
+     * Returns the number of bytes that can be read without blocking, including
+     * the bytes already buffered by this decoder.
+     *
+     * @return the number of bytes available.
+     */
+    public int available() {
+        try {
+            return internalDecoder.rootInput.available();
+        } catch (IOException e) {
+            throw ConnectorException.wrap(e);
+        }
+    }
+
+    /**
+     * Blocks until the next object starts to arrive without consuming any of
+     * it. Must only be called between two objects.
+     *
+     * @return false if the end of the stream has been reached.
+     * @throws IOException
+     *             if the underlying stream fails or times out, in which case
+     *             nothing has been consumed.
+     */
+    public boolean awaitInput() throws IOException {
+        DataInputStream input = internalDecoder.rootInput;
+        input.mark(1);
+        int b = input.read();
+        input.reset();
+        return b >= 0;
+    }
+
     @Override
     public boolean readBooleanContents() {
         internalDecoder.startAnonymousField(0);
@@ -430,4 +695,24 @@ public class BinaryObjectDecoder implements ObjectDecoder, BinaryObjectDeseriali
             return dflt;
         }
     }
+
+    @Override
+    public boolean readBooleanValue() {
+        return internalDecoder.readBoolean();
+    }
+
+    @Override
+    public int readIntValue() {
+        return internalDecoder.readInt();
+    }
+
+    @Override
+    public String readStringValue() {
+        return internalDecoder.readString(false);
+    }
+
+    @Override
+    public Object readObjectValue() {
+        return internalDecoder.readObject(this);
+    }
 }
@@ -23,26 +23,30 @@
 package org.identityconnectors.framework.impl.serializer.binary;
 
 import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.lang.reflect.Array;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Stack;
+import java.util.Set;
 
-import org.identityconnectors.common.Pair;
 import org.identityconnectors.framework.common.exceptions.ConnectorException;
 import org.identityconnectors.framework.common.serializer.BinaryObjectSerializer;
 import org.identityconnectors.framework.impl.serializer.ObjectEncoder;
 import org.identityconnectors.framework.impl.serializer.ObjectSerializationHandler;
+import org.identityconnectors.framework.impl.serializer.PositionalEncoder;
+import org.identityconnectors.framework.impl.serializer.PositionalSerializationHandler;
 import org.identityconnectors.framework.impl.serializer.ObjectSerializerRegistry;
 import org.identityconnectors.framework.impl.serializer.ObjectTypeMapper;
 
-public class BinaryObjectEncoder implements ObjectEncoder, BinaryObjectSerializer {
+public class BinaryObjectEncoder implements ObjectEncoder, PositionalEncoder,
+        BinaryObjectSerializer {
 
     /**
      * Version for the overall encoding - if we need to change anything in the
@@ -50,22 +54,50 @@ public class BinaryObjectEncoder implements ObjectEncoder, BinaryObjectSerialize
      */
     public static final int ENCODING_VERSION = 2;
 
+    /**
+     * Version of the compact encoding. Integers, longs, lengths and codes are
+     * written as zig-zag varints, null and booleans as a single byte. Used
+     * only with peers which have agreed on it.
+     */
+    public static final int COMPACT_ENCODING_VERSION = 3;
+
     public static final int OBJECT_MAGIC = 0xFAFB;
 
     public static final byte OBJECT_TYPE_NULL = 60;
     public static final byte OBJECT_TYPE_CLASS = 61;
     public static final byte OBJECT_TYPE_ARRAY = 62;
+    public static final byte OBJECT_TYPE_TRUE = 63;
+    public static final byte OBJECT_TYPE_FALSE = 64;
 
     public static final byte FIELD_TYPE_ANONYMOUS_FIELD = 70;
     public static final byte FIELD_TYPE_NAMED_FIELD = 71;
     public static final byte FIELD_TYPE_END_OBJECT = 72;
 
-    private static class OutputBuffer extends Pair<ByteArrayOutputStream, DataOutputStream> {
-        public OutputBuffer(ByteArrayOutputStream buf, DataOutputStream data) {
-            super(buf, data);
-        }
-    }
+    /**
+     * Largest number of strings added to the constant pool of a stream when
+     * the dictionary is enabled.
+     */
+    private static final int MAX_DICTIONARY_SIZE = 4096;
+
+    /**
+     * Longer strings are never added to the dictionary.
+     */
+    private static final int MAX_DICTIONARY_STRING_LENGTH = 64;
 
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+
+    /**
+     * Buffers which grew larger than this to hold a big object are released
+     * once it is written.
+     */
+    private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Encodes each top-level object into a single buffer. The length of a
+     * field is reserved when the field starts and filled in when it ends.
+     */
     private static class InternalEncoder {
 
         /**
@@ -75,9 +107,39 @@ public class BinaryObjectEncoder implements ObjectEncoder, BinaryObjectSerialize
 
         private List<String> constantBuffer = new ArrayList<String>();
 
-        private Stack<OutputBuffer> outputBufferStack = new Stack<OutputBuffer>();
         private DataOutputStream rootOutput;
         private boolean firstObject = true;
+        private boolean compact = false;
+
+        /**
+         * Number of objects being encoded, zero writes to the stream.
+         */
+        private int depth = 0;
+
+        private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+
+        private int bufferLength = 0;
+
+        /**
+         * Offsets in the buffer where the open fields start.
+         */
+        private int[] fieldStarts = new int[16];
+
+        private int numOpenFields = 0;
+
+        /**
+         * Strings sent once, they join the constant pool if they are sent
+         * again. Null unless the peer has agreed on it.
+         */
+        private Set<String> dictionaryCandidates = null;
+
+        private int dictionarySize = 0;
+
+        /**
+         * Whether the objects which have a positional handler are written
+         * with it.
+         */
+        private boolean positionalObjects = false;
 
         public InternalEncoder(DataOutputStream output) {
             rootOutput = output;
@@ -86,76 +148,98 @@ public class BinaryObjectEncoder implements ObjectEncoder, BinaryObjectSerialize
         public void writeObject(ObjectEncoder encoder, Object object) {
 
             if (firstObject) {
-                writeInt(OBJECT_MAGIC);
-                writeInt(ENCODING_VERSION);
+                try {
+                    rootOutput.writeInt(OBJECT_MAGIC);
+                    rootOutput.writeInt(compact ? COMPACT_ENCODING_VERSION : ENCODING_VERSION);
+                } catch (IOException e) {
+                    throw ConnectorException.wrap(e);
+                }
                 firstObject = false;
             }
 
-            // push the stack
-            OutputBuffer objectBuffer;
-            {
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                DataOutputStream data = new DataOutputStream(baos);
-                objectBuffer = new OutputBuffer(baos, data);
-                outputBufferStack.push(objectBuffer);
+            if (depth == 0) {
+                bufferLength = 0;
+                numOpenFields = 0;
             }
-
-            if (object == null) {
-                writeByte(OBJECT_TYPE_NULL);
-            } else {
-                Class<?> clazz = object.getClass();
-                writeClass(clazz);
-                ObjectSerializationHandler handler =
-                        ObjectSerializerRegistry.getHandlerByObjectType(clazz);
-                if (handler == null) {
-                    // we may have special handlers for certain types of arrays
-                    // if handler is null, treat like any other array
-                    if (clazz.isArray()) {
-                        int length = Array.getLength(object);
-                        for (int i = 0; i < length; i++) {
-                            Object val = Array.get(object, i);
-                            startAnonymousField();
-                            writeObject(encoder, val);
-                            endField();
-                        }
-                    } else {
-                        throw new ConnectorException("No serializer for class: " + clazz);
+            depth++;
+            try {
+                if (object == null) {
+                    writeByte(OBJECT_TYPE_NULL);
+                    if (!compact) {
+                        writeByte(FIELD_TYPE_END_OBJECT);
                     }
+                } else if (compact && object instanceof Boolean) {
+                    writeByte((Boolean) object ? OBJECT_TYPE_TRUE : OBJECT_TYPE_FALSE);
                 } else {
-                    handler.serialize(object, encoder);
+                    Class<?> clazz = object.getClass();
+                    PositionalSerializationHandler positionalHandler =
+                            positionalObjects ? ObjectSerializerRegistry
+                                    .getPositionalHandlerByObjectType(clazz) : null;
+                    if (positionalHandler != null) {
+                        writeByte(OBJECT_TYPE_CLASS);
+                        writeString(positionalHandler.getHandledSerialType(), true);
+                        // the values follow each other in a single field
+                        startAnonymousField();
+                        positionalHandler.serialize(object, encoder);
+                        endField();
+                    } else {
+                        writeObjectFields(encoder, object, clazz);
+                    }
+                    writeByte(FIELD_TYPE_END_OBJECT); // write end-object into the
+                                                      // current obj buffer
                 }
+            } finally {
+                depth--;
             }
-            writeByte(FIELD_TYPE_END_OBJECT); // write end-object into the
-                                              // current obj buffer
-
-            // pop the stack
-            outputBufferStack.pop();
 
             // it's a top-level object, flush the constant pool
-            if (outputBufferStack.size() == 0) {
+            if (depth == 0) {
                 writeInt(constantBuffer.size());
                 for (String constant : constantBuffer) {
                     writeString(constant, false);
                     writeInt(constantPool.get(constant));
                 }
                 constantBuffer.clear();
-            }
 
-            // now write the actual object
-            try {
-                objectBuffer.second.close();
-            } catch (IOException e) {
-                throw ConnectorException.wrap(e);
+                // now write the actual object
+                try {
+                    rootOutput.write(buffer, 0, bufferLength);
+                } catch (IOException e) {
+                    throw ConnectorException.wrap(e);
+                } finally {
+                    if (buffer.length > MAX_RETAINED_BUFFER_SIZE) {
+                        buffer = new byte[INITIAL_BUFFER_SIZE];
+                    }
+                }
             }
-            byte[] bytes = objectBuffer.first.toByteArray();
-            writeBytes(bytes);
         }
 
-        public void writeClass(Class<?> clazz) {
+        private void writeObjectFields(ObjectEncoder encoder, Object object, Class<?> clazz) {
+            writeClass(clazz);
             ObjectSerializationHandler handler =
                     ObjectSerializerRegistry.getHandlerByObjectType(clazz);
+            if (handler == null) {
+                // we may have special handlers for certain types of arrays
+                // if handler is null, treat like any other array
+                if (clazz.isArray()) {
+                    int length = Array.getLength(object);
+                    for (int i = 0; i < length; i++) {
+                        Object val = Array.get(object, i);
+                        startAnonymousField();
+                        writeObject(encoder, val);
+                        endField();
+                    }
+                } else {
+                    throw new ConnectorException("No serializer for class: " + clazz);
+                }
+            } else {
+                handler.serialize(object, encoder);
+            }
+        }
+
+        public void writeClass(Class<?> clazz) {
             ObjectTypeMapper mapper = ObjectSerializerRegistry.getMapperByObjectType(clazz);
-            if (handler == null && clazz.isArray()) {
+            if (!(mapper instanceof ObjectSerializationHandler) && clazz.isArray()) {
                 // we may have special handlers for certain types of arrays
                 // if handler is null, treat like any other array
                 writeByte(OBJECT_TYPE_ARRAY);
@@ -171,77 +255,176 @@ public class BinaryObjectEncoder implements ObjectEncoder, BinaryObjectSerialize
 
         public void startAnonymousField() {
             writeByte(FIELD_TYPE_ANONYMOUS_FIELD);
-            ByteArrayOutputStream buf = new ByteArrayOutputStream();
-            DataOutputStream data = new DataOutputStream(buf);
-            outputBufferStack.push(new OutputBuffer(buf, data));
+            openField();
         }
 
         public void startField(String name) {
             writeByte(FIELD_TYPE_NAMED_FIELD);
             writeString(name, true);
-            ByteArrayOutputStream buf = new ByteArrayOutputStream();
-            DataOutputStream data = new DataOutputStream(buf);
-            outputBufferStack.push(new OutputBuffer(buf, data));
+            openField();
         }
 
         public void endField() {
-            OutputBuffer buf = outputBufferStack.pop();
-            try {
-                buf.second.close();
-            } catch (IOException e) {
-                throw ConnectorException.wrap(e);
+            int start = fieldStarts[--numOpenFields];
+            int length = bufferLength - start;
+            if (!compact) {
+                putInt(start - 4, length);
+                return;
+            }
+            int size = getVarintSize(length);
+            if (size > 1) {
+                // the length needs more than the byte reserved for it
+                next(size - 1);
+                System.arraycopy(buffer, start, buffer, start + size - 1, length);
+            }
+            putVarint(start - 1, length);
+        }
+
+        /**
+         * Reserves the length of a field, it is filled in by {@link #endField}.
+         * The compact encoding reserves a single byte, which fits lengths up
+         * to 63.
+         */
+        private void openField() {
+            next(compact ? 1 : 4);
+            if (numOpenFields == fieldStarts.length) {
+                fieldStarts = Arrays.copyOf(fieldStarts, numOpenFields * 2);
+            }
+            fieldStarts[numOpenFields++] = bufferLength;
+        }
+
+        /**
+         * Makes room for bytes at the end of the buffer.
+         *
+         * @return the offset of the bytes in the buffer.
+         */
+        private int next(int length) {
+            int offset = bufferLength;
+            if (offset + length > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, offset + length));
+            }
+            bufferLength = offset + length;
+            return offset;
+        }
+
+        private void putInt(int offset, int v) {
+            buffer[offset] = (byte) (v >>> 24);
+            buffer[offset + 1] = (byte) (v >>> 16);
+            buffer[offset + 2] = (byte) (v >>> 8);
+            buffer[offset + 3] = (byte) v;
+        }
+
+        /**
+         * Writes a zig-zag varint at the given offset.
+         *
+         * @return the offset following the varint.
+         */
+        private int putVarint(int offset, long v) {
+            long zigzag = (v << 1) ^ (v >> 63);
+            while ((zigzag & ~0x7FL) != 0) {
+                buffer[offset++] = (byte) ((zigzag & 0x7F) | 0x80);
+                zigzag >>>= 7;
+            }
+            buffer[offset++] = (byte) zigzag;
+            return offset;
+        }
+
+        private static int getVarintSize(long v) {
+            long zigzag = ((v << 1) ^ (v >> 63)) >>> 7;
+            int size = 1;
+            while (zigzag != 0) {
+                zigzag >>>= 7;
+                size++;
+            }
+            return size;
+        }
+
+        private void writeVarint(long v) {
+            if (depth == 0) {
+                long zigzag = (v << 1) ^ (v >> 63);
+                try {
+                    while ((zigzag & ~0x7FL) != 0) {
+                        rootOutput.writeByte((int) ((zigzag & 0x7F) | 0x80));
+                        zigzag >>>= 7;
+                    }
+                    rootOutput.writeByte((int) zigzag);
+                } catch (IOException e) {
+                    throw ConnectorException.wrap(e);
+                }
+            } else {
+                bufferLength = putVarint(next(10), v);
             }
-            byte[] bytes = buf.first.toByteArray();
-            writeByteArray(bytes);
         }
 
         public void writeInt(int v) {
-            try {
-                getCurrentOutput().writeInt(v);
-            } catch (IOException e) {
-                throw ConnectorException.wrap(e);
+            if (compact) {
+                writeVarint(v);
+            } else if (depth == 0) {
+                try {
+                    rootOutput.writeInt(v);
+                } catch (IOException e) {
+                    throw ConnectorException.wrap(e);
+                }
+            } else {
+                putInt(next(4), v);
             }
         }
 
         public void writeLong(long v) {
-            try {
-                getCurrentOutput().writeLong(v);
-            } catch (IOException e) {
-                throw ConnectorException.wrap(e);
+            if (compact) {
+                writeVarint(v);
+            } else {
+                writeFixedLong(v);
             }
         }
 
-        public void writeDouble(double l) {
-            try {
-                getCurrentOutput().writeDouble(l);
-            } catch (IOException e) {
-                throw ConnectorException.wrap(e);
+        private void writeFixedLong(long v) {
+            if (depth == 0) {
+                try {
+                    rootOutput.writeLong(v);
+                } catch (IOException e) {
+                    throw ConnectorException.wrap(e);
+                }
+            } else {
+                int offset = next(8);
+                putInt(offset, (int) (v >>> 32));
+                putInt(offset + 4, (int) v);
             }
         }
 
+        public void writeDouble(double l) {
+            writeFixedLong(Double.doubleToLongBits(l));
+        }
+
         public void writeByteArray(byte[] v) {
-            try {
-                getCurrentOutput().writeInt(v.length);
-                getCurrentOutput().write(v);
-            } catch (IOException e) {
-                throw ConnectorException.wrap(e);
+            writeInt(v.length);
+            if (depth == 0) {
+                try {
+                    rootOutput.write(v);
+                } catch (IOException e) {
+                    throw ConnectorException.wrap(e);
+                }
+            } else {
+                int offset = next(v.length);
+                System.arraycopy(v, 0, buffer, offset, v.length);
             }
         }
 
         public void writeByte(byte b) {
-            try {
-                getCurrentOutput().writeByte(b);
-            } catch (IOException e) {
-                throw ConnectorException.wrap(e);
+            if (depth == 0) {
+                try {
+                    rootOutput.writeByte(b);
+                } catch (IOException e) {
+                    throw ConnectorException.wrap(e);
+                }
+            } else {
+                int offset = next(1);
+                buffer[offset] = b;
             }
         }
 
         public void writeBoolean(boolean b) {
-            try {
-                getCurrentOutput().writeBoolean(b);
-            } catch (IOException e) {
-                throw ConnectorException.wrap(e);
-            }
+            writeByte(b ? (byte) 1 : (byte) 0);
         }
 
         public void writeString(String str, boolean intern) {
@@ -250,22 +433,65 @@ public class BinaryObjectEncoder implements ObjectEncoder, BinaryObjectSerialize
                 writeInt(code);
                 return;
             }
-            try {
-                byte[] bytes = str.getBytes("UTF8");
-                writeByteArray(bytes);
-            } catch (IOException e) {
-                throw ConnectorException.wrap(e);
+            if (depth > 0 && dictionaryCandidates != null
+                    && str.length() <= MAX_DICTIONARY_STRING_LENGTH) {
+                Integer code = constantPool.get(str);
+                if (code == null) {
+                    if (dictionaryCandidates.add(str)) {
+                        if (dictionaryCandidates.size() > MAX_DICTIONARY_SIZE) {
+                            dictionaryCandidates.clear();
+                        }
+                    } else if (dictionarySize < MAX_DICTIONARY_SIZE) {
+                        // sent again, from now on it is sent once per stream
+                        dictionaryCandidates.remove(str);
+                        dictionarySize++;
+                        code = internIdentifier(str);
+                    }
+                }
+                if (code != null) {
+                    // a negative length refers to the constant pool
+                    writeInt(-1 - code);
+                    return;
+                }
             }
+            if (depth > 0) {
+                // most strings are ASCII and need no intermediate array
+                int length = str.length();
+                int prefix = compact ? getVarintSize(length) : 4;
+                int offset = next(prefix + length);
+                for (int i = 0; i < length; i++) {
+                    char c = str.charAt(i);
+                    if (c >= 0x80) {
+                        bufferLength = offset;
+                        writeByteArray(str.getBytes(UTF8));
+                        return;
+                    }
+                    buffer[offset + prefix + i] = (byte) c;
+                }
+                if (compact) {
+                    putVarint(offset, length);
+                } else {
+                    putInt(offset, length);
+                }
+                return;
+            }
+            writeByteArray(str.getBytes(UTF8));
         }
 
-        private void writeBytes(byte[] v) {
-            try {
-                getCurrentOutput().write(v);
-            } catch (IOException e) {
-                throw ConnectorException.wrap(e);
+        public void setCompact(boolean compact) {
+            this.compact = compact;
+        }
+
+        public void enableDictionary() {
+            if (dictionaryCandidates == null) {
+                dictionaryCandidates = new HashSet<String>();
             }
         }
 
+        public void enablePositionalObjects() {
+            positionalObjects = true;
+        }
+
         private int internIdentifier(String name) {
             Integer code = constantPool.get(name);
             if (code == null) {
@@ -275,14 +501,6 @@ public class BinaryObjectEncoder implements ObjectEncoder, BinaryObjectSerialize
             }
             return code;
         }
-
-        private DataOutputStream getCurrentOutput() {
-            if (outputBufferStack.size() == 0) {
-                return rootOutput;
-            } else {
-                return outputBufferStack.peek().second;
-            }
-        }
     }
 
     private InternalEncoder internalEncoder;
@@ -292,6 +510,37 @@ public class BinaryObjectEncoder implements ObjectEncoder, BinaryObjectSerialize
                 new InternalEncoder(new DataOutputStream(new BufferedOutputStream(output, 4096)));
     }
 
+    /**
+     * Replaces the strings sent again by references to the constant pool,
+     * which is kept for the lifetime of the stream. The peer must support it,
+     * older decoders fail on such references.
+     */
+    public void enableDictionary() {
+        internalEncoder.enableDictionary();
+    }
+
+    /**
+     * Writes the objects which have a positional handler with it rather than
+     * with named fields. The peer must support it, older decoders do not know
+     * these types.
+     */
+    public void enablePositionalObjects() {
+        internalEncoder.enablePositionalObjects();
+    }
+
+    /**
+     * Sets the version of the encoding of the following objects, either
+     * {@link #ENCODING_VERSION} or {@link #COMPACT_ENCODING_VERSION}. Set
+     * before the first object, the version is declared in the stream.
+     * Otherwise the decoder must switch at the same point of the stream.
+     */
+    public void setEncodingVersion(int version) {
+        if (version != ENCODING_VERSION && version != COMPACT_ENCODING_VERSION) {
+            throw new IllegalArgumentException("Unsupported version: " + version);
+        }
+        internalEncoder.setCompact(version == COMPACT_ENCODING_VERSION);
+    }
+
     @Override
     public void flush() {
         try {
@@ -447,4 +696,24 @@ public class BinaryObjectEncoder implements ObjectEncoder, BinaryObjectSerialize
             internalEncoder.endField();
         }
     }
+
+    @Override
+    public void writeBooleanValue(boolean v) {
+        internalEncoder.writeBoolean(v);
+    }
+
+    @Override
+    public void writeIntValue(int v) {
+        internalEncoder.writeInt(v);
+    }
+
+    @Override
+    public void writeStringValue(String v) {
+        internalEncoder.writeString(v, false);
+    }
+
+    @Override
+    public void writeObjectValue(Object o) {
+        internalEncoder.writeObject(this, o);
+    }
 }
@@ -0,0 +1,163 @@
+/*
+ * ====================
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2017 ConnId. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of the Common Development
+ * and Distribution License("CDDL") (the "License").  You may not use this file
+ * except in compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.php
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ *
+ * When distributing the Covered Code, include this CDDL Header Notice in each file
+ * and include the License file at http://opensource.org/licenses/cddl1.php.
+ * If applicable, add the following below this CDDL Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ * ====================
+ */
+package org.identityconnectors.framework.impl.serializer.xml;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Element of a parsed object, lighter than a DOM element and with indexed
+ * access to its child elements.
+ */
+final class XmlElement {
+
+    private final String name;
+
+    /**
+     * Names and values of the attributes, one after the other.
+     */
+    private final List<String> attributes = new ArrayList<String>(4);
+
+    /**
+     * Child elements and text, adjacent text being kept in a single
+     * StringBuilder.
+     */
+    private List<Object> children = null;
+
+    private List<XmlElement> elements = null;
+
+    XmlElement(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Copies a DOM element.
+     */
+    static XmlElement fromDom(Element element) {
+        XmlElement rv = new XmlElement(element.getTagName());
+        NamedNodeMap attrs = element.getAttributes();
+        for (int i = 0; i < attrs.getLength(); i++) {
+            Attr attr = (Attr) attrs.item(i);
+            rv.addAttribute(attr.getName(), attr.getValue());
+        }
+        for (Node child = element.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                rv.addElement(fromDom((Element) child));
+            } else if (child.getNodeType() == Node.TEXT_NODE
+                    || child.getNodeType() == Node.CDATA_SECTION_NODE) {
+                String data = child.getNodeValue();
+                rv.appendText(data.toCharArray(), 0, data.length());
+            }
+        }
+        return rv;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    void addAttribute(String attrName, String value) {
+        attributes.add(attrName);
+        attributes.add(value);
+    }
+
+    /**
+     * Returns the value of the attribute or null if it is missing.
+     */
+    String getAttribute(String attrName) {
+        for (int i = 0; i < attributes.size(); i += 2) {
+            if (attributes.get(i).equals(attrName)) {
+                return attributes.get(i + 1);
+            }
+        }
+        return null;
+    }
+
+    void addElement(XmlElement element) {
+        if (children == null) {
+            children = new ArrayList<Object>();
+            elements = new ArrayList<XmlElement>();
+        }
+        children.add(element);
+        elements.add(element);
+    }
+
+    void appendText(char[] ch, int start, int length) {
+        if (children == null) {
+            children = new ArrayList<Object>();
+            elements = new ArrayList<XmlElement>();
+        }
+        Object last = children.isEmpty() ? null : children.get(children.size() - 1);
+        if (last instanceof StringBuilder) {
+            ((StringBuilder) last).append(ch, start, length);
+        } else {
+            children.add(new StringBuilder(length).append(ch, start, length));
+        }
+    }
+
+    /**
+     * Returns the child elements, in document order.
+     */
+    List<XmlElement> getElements() {
+        if (elements == null) {
+            return Collections.emptyList();
+        }
+        return elements;
+    }
+
+    /**
+     * Returns the first child element of the name or null.
+     */
+    XmlElement findElement(String elementName) {
+        for (XmlElement element : getElements()) {
+            if (element.getName().equals(elementName)) {
+                return element;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the first text found at any level below this element, like
+     * {@link org.identityconnectors.common.XmlUtil#getContent}, or null.
+     */
+    String getContent() {
+        if (children != null) {
+            for (Object child : children) {
+                String content =
+                        child instanceof StringBuilder ? child.toString() : ((XmlElement) child)
+                                .getContent();
+                if (content != null) {
+                    return content;
+                }
+            }
+        }
+        return null;
+    }
+}
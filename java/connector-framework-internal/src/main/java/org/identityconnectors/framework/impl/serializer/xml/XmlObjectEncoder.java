@@ -22,8 +22,11 @@
  */
 package org.identityconnectors.framework.impl.serializer.xml;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.lang.reflect.Array;
-import java.util.Stack;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.identityconnectors.common.Assertions;
 import org.identityconnectors.common.Base64;
@@ -34,11 +37,17 @@ import org.identityconnectors.framework.impl.serializer.ObjectSerializationHandl
 import org.identityconnectors.framework.impl.serializer.ObjectSerializerRegistry;
 import org.identityconnectors.framework.impl.serializer.ObjectTypeMapper;
 
+/**
+ * Writes objects as XML straight to the output. Only the start tag of the
+ * current element is pending, until its first content or its end tells
+ * whether it is empty, so the fields of an object must be written before its
+ * contents.
+ */
 public class XmlObjectEncoder implements ObjectEncoder {
 
     private static class OutputElement {
         private final String name;
-        private final StringBuilder contents = new StringBuilder();
+        private boolean started = false;
         private boolean elementData = false;
 
         public OutputElement(String name) {
@@ -46,19 +55,52 @@ public class XmlObjectEncoder implements ObjectEncoder {
         }
     }
 
-    private Stack<OutputElement> outputStack = new Stack<OutputElement>();
+    /**
+     * Larger escape buffers, left by big values, are released once written.
+     */
+    private static final int MAX_RETAINED_ESCAPE_SIZE = 64 * 1024;
+
+    private final List<OutputElement> outputStack = new ArrayList<OutputElement>();
 
-    private StringBuilder rootBuilder;
+    private final Appendable output;
+
+    /**
+     * Holds the escaped values before they are written.
+     */
+    private final StringBuilder escapeBuilder = new StringBuilder();
 
     public XmlObjectEncoder(StringBuilder builder) {
         Assertions.nullCheck(builder, "builder");
-        rootBuilder = builder;
+        output = builder;
+    }
+
+    public XmlObjectEncoder(Writer writer) {
+        Assertions.nullCheck(writer, "writer");
+        output = writer;
     }
 
     public String writeObject(Object o) {
         return writeObjectInternal(o, false);
     }
 
+    /**
+     * Returns the name of the element {@link #writeObject} writes for the
+     * object.
+     */
+    public static String getElementName(Object object) {
+        if (object == null) {
+            return "null";
+        }
+        Class<?> clazz = object.getClass();
+        if (ObjectSerializerRegistry.getHandlerByObjectType(clazz) == null) {
+            if (clazz.isArray()) {
+                return "Array";
+            }
+            throw new ConnectorException("No serializer for class: " + clazz);
+        }
+        return encodeClass(clazz);
+    }
+
     @Override
     public void writeBooleanContents(boolean v) {
         writeStringContentsInternal(encodeBoolean(v));
@@ -272,72 +314,83 @@ public class XmlObjectEncoder implements ObjectEncoder {
         if (outputStack.size() == 0) {
             return null;
         } else {
-            return outputStack.peek();
-        }
-    }
-
-    private StringBuilder getCurrentBuilder() {
-        if (outputStack.size() == 0) {
-            return rootBuilder;
-        } else {
-            return getCurrentElement().contents;
-        }
-    }
-
-    private StringBuilder getPreviousBuilder() {
-        if (outputStack.size() == 0) {
-            return null;
-        } else if (outputStack.size() == 1) {
-            return rootBuilder;
-        } else {
-            return outputStack.get(outputStack.size() - 2).contents;
+            return outputStack.get(outputStack.size() - 1);
         }
     }
 
     private void beginElement(String name) {
-        indent(getCurrentBuilder(), outputStack.size());
         OutputElement current = getCurrentElement();
         if (current != null) {
+            if (!current.started) {
+                append(">\n");
+                current.started = true;
+            }
             current.elementData = true;
         }
-        getCurrentBuilder().append("<" + name);
-        outputStack.push(new OutputElement(name));
+        indent(outputStack.size());
+        append("<");
+        append(name);
+        outputStack.add(new OutputElement(name));
     }
 
     private void endElement() {
-        OutputElement endedElement = outputStack.pop();
-        String contents = endedElement.contents.toString();
-        StringBuilder currentBuilder = getCurrentBuilder();
-        if (contents.length() == 0) {
-            currentBuilder.append("/>\n"); // empty element
+        OutputElement endedElement = outputStack.remove(outputStack.size() - 1);
+        if (!endedElement.started) {
+            append("/>\n"); // empty element
         } else {
-            currentBuilder.append(">");
             if (endedElement.elementData) {
-                currentBuilder.append("\n");
+                indent(outputStack.size());
             }
-            getCurrentBuilder().append(contents);
-            if (endedElement.elementData) {
-                indent(currentBuilder, outputStack.size());
-            }
-            currentBuilder.append("</").append(endedElement.name).append(">\n");
+            append("</");
+            append(endedElement.name);
+            append(">\n");
         }
     }
 
     private void writeAttributeInternal(String fieldName, String str) {
-        StringBuilder previousBuilder = getPreviousBuilder();
-        previousBuilder.append(" ").append(fieldName).append("='");
-        XmlUtil.escape(previousBuilder, str, XmlUtil.SINGLE_QUOTE);
-        previousBuilder.append("'");
+        OutputElement current = getCurrentElement();
+        if (current == null || current.started) {
+            throw new IllegalStateException("Field " + fieldName
+                    + " must be written before the contents of the object");
+        }
+        escapeBuilder.setLength(0);
+        XmlUtil.escape(escapeBuilder, str, XmlUtil.SINGLE_QUOTE);
+        append(" ");
+        append(fieldName);
+        append("='");
+        append(escapeBuilder);
+        append("'");
     }
 
     private void writeStringContentsInternal(String str) {
-        StringBuilder builder = getCurrentBuilder();
-        XmlUtil.escape(builder, str, XmlUtil.NO_DELIM);
+        if (str == null || str.length() == 0) {
+            return;
+        }
+        OutputElement current = getCurrentElement();
+        if (current != null && !current.started) {
+            append(">");
+            current.started = true;
+        }
+        escapeBuilder.setLength(0);
+        XmlUtil.escape(escapeBuilder, str, XmlUtil.NO_DELIM);
+        append(escapeBuilder);
+        if (escapeBuilder.length() > MAX_RETAINED_ESCAPE_SIZE) {
+            escapeBuilder.setLength(0);
+            escapeBuilder.trimToSize();
+        }
+    }
+
+    private void indent(int level) {
+        for (int i = 0; i < level; i++) {
+            append("  ");
+        }
     }
 
-    private void indent(StringBuilder builder, int level) {
-        for (int i = 0; i < level * 2; i++) {
-            builder.append(" ");
+    private void append(CharSequence str) {
+        try {
+            output.append(str);
+        } catch (IOException e) {
+            throw ConnectorException.wrap(e);
         }
     }
 }
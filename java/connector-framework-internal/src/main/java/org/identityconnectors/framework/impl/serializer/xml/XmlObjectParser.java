@@ -25,14 +25,11 @@ package org.identityconnectors.framework.impl.serializer.xml;
 import java.io.IOException;
 import java.io.StringReader;
 import java.net.URL;
-import java.util.Stack;
-
-import javax.xml.parsers.DocumentBuilderFactory;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.identityconnectors.framework.common.exceptions.ConnectorException;
 import org.identityconnectors.framework.common.serializer.XmlObjectResultsHandler;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
 import org.xml.sax.Attributes;
 import org.xml.sax.ContentHandler;
 import org.xml.sax.EntityResolver;
@@ -63,15 +60,11 @@ public class XmlObjectParser {
 
     private static class MySAXHandler implements ContentHandler, EntityResolver, ErrorHandler {
         /**
-         * The document for the current top-level element. with each top-level
-         * element, we discard the previous to avoid accumulating memory
+         * Stack of elements we are creating. Only the current top-level
+         * element is kept, it is discarded once its object has been handled
+         * to avoid accumulating memory.
          */
-        private Document currentTopLevelElementDocument;
-
-        /**
-         * Stack of elements we are creating.
-         */
-        private Stack<Element> elementStack = new Stack<Element>();
+        private final List<XmlElement> elementStack = new ArrayList<XmlElement>();
 
         /**
          * Do we want to validate.
@@ -93,9 +86,9 @@ public class XmlObjectParser {
             this.validate = validate;
         }
 
-        private Element getCurrentElement() {
+        private XmlElement getCurrentElement() {
             if (elementStack.size() > 0) {
-                return elementStack.peek();
+                return elementStack.get(elementStack.size() - 1);
             } else {
                 return null;
             }
@@ -103,10 +96,9 @@ public class XmlObjectParser {
 
         @Override
         public void characters(char[] ch, int start, int length) {
-            Element currentElement = getCurrentElement();
+            XmlElement currentElement = getCurrentElement();
             if (currentElement != null) {
-                currentElement.appendChild(currentTopLevelElementDocument
-                        .createTextNode(new String(ch, start, length)));
+                currentElement.appendText(ch, start, length);
             }
         }
 
@@ -118,9 +110,8 @@ public class XmlObjectParser {
         public void endElement(String namespaceURI, String localName, String qName) {
             // we don't push the top-level MULTI_OBJECT_ELEMENT on the stack
             if (elementStack.size() > 0) {
-                Element element = elementStack.pop();
+                XmlElement element = elementStack.remove(elementStack.size() - 1);
                 if (elementStack.isEmpty()) {
-                    currentTopLevelElementDocument = null;
                     if (_stillHandling) {
                         XmlObjectDecoder decoder = new XmlObjectDecoder(element, null);
                         Object object = decoder.readObject();
@@ -136,10 +127,9 @@ public class XmlObjectParser {
 
         @Override
         public void ignorableWhitespace(char[] ch, int start, int length) {
-            Element currentElement = getCurrentElement();
+            XmlElement currentElement = getCurrentElement();
             if (currentElement != null) {
-                currentElement.appendChild(currentTopLevelElementDocument
-                        .createTextNode(new String(ch, start, length)));
+                currentElement.appendText(ch, start, length);
             }
         }
 
@@ -162,29 +152,22 @@ public class XmlObjectParser {
         @Override
         public void startElement(String namespaceURI, String localName, String qName,
                 Attributes atts) {
-            Element element = null;
+            XmlElement element = null;
             if (elementStack.isEmpty()) {
                 if (!XmlObjectSerializerImpl.MULTI_OBJECT_ELEMENT.equals(localName)) {
-                    try {
-                        currentTopLevelElementDocument =
-                                DocumentBuilderFactory.newInstance().newDocumentBuilder()
-                                        .newDocument();
-                    } catch (Exception e) {
-                        throw ConnectorException.wrap(e);
-                    }
-                    element = currentTopLevelElementDocument.createElement(localName);
+                    element = new XmlElement(localName);
                 }
             } else {
-                element = currentTopLevelElementDocument.createElement(localName);
-                getCurrentElement().appendChild(element);
+                element = new XmlElement(localName);
+                getCurrentElement().addElement(element);
             }
 
             if (element != null) {
-                elementStack.push(element);
+                elementStack.add(element);
                 for (int i = 0; i < atts.getLength(); i++) {
                     String attrName = atts.getLocalName(i);
                     String value = atts.getValue(i);
-                    element.setAttribute(attrName, value);
+                    element.addAttribute(attrName, value);
                 }
             }
         }
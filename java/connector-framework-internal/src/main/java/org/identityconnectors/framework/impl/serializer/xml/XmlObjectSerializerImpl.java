@@ -65,19 +65,17 @@ public class XmlObjectSerializerImpl implements XmlObjectSerializer {
             throw new IllegalStateException(
                     "Attempt to writeObject after the document is already closed");
         }
-        StringBuilder buf = new StringBuilder();
-        XmlObjectEncoder encoder = new XmlObjectEncoder(buf);
-        String elementName = encoder.writeObject(object);
         if (!firstObjectWritten) {
-            startDocument(elementName);
+            startDocument(XmlObjectEncoder.getElementName(object));
         } else {
             if (!multiObject) {
                 throw new IllegalStateException(
                         "Attempt to write multiple objects on a single-object document");
             }
         }
-        write(buf.toString());
         firstObjectWritten = true;
+        // the object goes straight to the output
+        new XmlObjectEncoder(output).writeObject(object);
     }
 
     @Override
@@ -364,4 +364,30 @@ public abstract class ConnectorServer {
      *             if the waiting thread is interrupted.
      */
     abstract public void awaitStop() throws InterruptedException;
+
+    /**
+     * Returns the number of client connections currently being served by a
+     * worker thread.
+     *
+     * @return the number of busy connections, 0 if the server is not started.
+     */
+    abstract public int getActiveConnections();
+
+    /**
+     * Returns the number of open client connections waiting for their next
+     * request. Idle connections don't hold a worker thread.
+     *
+     * @return the number of idle connections, 0 if the server is not started.
+     */
+    abstract public int getIdleConnections();
+
+    /**
+     * Returns the number of connections with a pending request waiting for a
+     * free worker thread. New connections are not accepted while this is not
+     * zero.
+     *
+     * @return the number of queued connections, 0 if the server is not
+     *         started.
+     */
+    abstract public int getAcceptQueueSize();
 }
@@ -22,29 +22,76 @@
  */
 package org.identityconnectors.framework.server.impl;
 
-import java.net.ServerSocket;
+import java.io.IOException;
 import java.net.Socket;
-import java.net.SocketException;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.ExecutorService;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
 
 import org.identityconnectors.common.logging.Log;
 import org.identityconnectors.framework.common.exceptions.ConnectorException;
 import org.identityconnectors.framework.server.ConnectorServer;
 
+/**
+ * Accepts the connections and parks them on a selector while they wait for
+ * the next request, so idle clients don't hold a worker thread. A connection
+ * is handed to a worker when its next request arrives and given back by the
+ * worker once the client goes quiet.
+ * <p/>
+ * When all the workers are busy the requests queue up and no new connections
+ * are accepted until the queue drains. The pending connections wait in the
+ * accept queue of the socket which turns away the excess ones.
+ */
 class ConnectionListener extends CCLWatchThread {
 
+    private static final Log LOG = Log.getLog(ConnectionListener.class);
+
     /**
-     * This is the size of our internal queue. For now I have this relatively
-     * small because I want the OS to manage the connect queue coming in. That
-     * way it can properly turn away excessive requests
+     * Queues the tasks only once the pool can't grow anymore. A plain
+     * {@link ThreadPoolExecutor} with an unbounded queue never starts more
+     * than its core threads.
      */
-    private final static int INTERNAL_QUEUE_SIZE = 2;
+    private static class WorkQueue extends LinkedBlockingQueue<Runnable> {
 
-    private static final Log LOG = Log.getLog(ConnectionListener.class);
+        private static final long serialVersionUID = 1L;
+
+        private ThreadPoolExecutor executor;
+
+        @Override
+        public boolean offer(Runnable task) {
+            if (executor.getActiveCount() < executor.getPoolSize()
+                    || executor.getPoolSize() >= executor.getMaximumPoolSize()) {
+                return super.offer(task);
+            }
+            // let the executor start a new thread
+            return false;
+        }
+
+        /**
+         * Queues a task the executor failed to start a thread for.
+         */
+        public void force(Runnable task) {
+            super.offer(task);
+        }
+    }
 
     /**
      * The server object that we are using
@@ -52,14 +99,47 @@ class ConnectionListener extends CCLWatchThread {
     private final ConnectorServer connectorServer;
 
     /**
-     * The server socket. This must be bound at the time of creation.
+     * The server channel. This must be bound at the time of creation.
      */
-    private final ServerSocket socket;
+    private final ServerSocketChannel serverChannel;
+
+    /**
+     * Creates the SSL sockets layered over the accepted connections, null for
+     * plain connections.
+     */
+    private final SSLSocketFactory sslSocketFactory;
+
+    private final Selector selector;
+
+    private final SelectionKey acceptKey;
 
     /**
      * Pool of executors
      */
-    private final ExecutorService threadPool;
+    private final ThreadPoolExecutor threadPool;
+
+    /**
+     * Connections given back by the workers, registered with the selector by
+     * the listener thread.
+     */
+    private final Queue<ConnectionProcessor> parking =
+            new ConcurrentLinkedQueue<ConnectionProcessor>();
+
+    /**
+     * The open connections and their channels.
+     */
+    private final ConcurrentMap<ConnectionProcessor, SocketChannel> connections =
+            new ConcurrentHashMap<ConnectionProcessor, SocketChannel>();
+
+    private final AtomicInteger activeConnections = new AtomicInteger(0);
+
+    private final AtomicInteger idleConnections = new AtomicInteger(0);
+
+    /**
+     * Set while no new connections are accepted because all the workers are
+     * busy.
+     */
+    private volatile boolean acceptPaused = false;
 
     /**
      * Set to indicated we need to start shutting down
@@ -71,52 +151,66 @@ class ConnectionListener extends CCLWatchThread {
      *
      * @param server
      *            The server object
-     * @param socket
-     *            The socket (should already be bound)
+     * @param serverChannel
+     *            The channel (should already be bound)
+     * @param sslSocketFactory
+     *            The factory of the SSL sockets or null to use plain
+     *            connections
      */
-    public ConnectionListener(ConnectorServer server, ServerSocket socket) {
+    public ConnectionListener(ConnectorServer server, ServerSocketChannel serverChannel,
+            SSLSocketFactory sslSocketFactory) {
         super("ConnectionListener");
         connectorServer = server;
-        this.socket = socket;
+        this.serverChannel = serverChannel;
+        this.sslSocketFactory = sslSocketFactory;
+        try {
+            selector = Selector.open();
+            serverChannel.configureBlocking(false);
+            acceptKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            throw ConnectorException.wrap(e);
+        }
+        final WorkQueue queue = new WorkQueue();
         // idle time timeout
         threadPool =
                 new ThreadPoolExecutor(server.getMinWorkers(), server.getMaxWorkers(), 30,
-                        TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(INTERNAL_QUEUE_SIZE,
-                                true), // fair
-                        new CCLWatchThreadFactory());
+                        TimeUnit.SECONDS, queue, new CCLWatchThreadFactory(),
+                        new RejectedExecutionHandler() {
+                            @Override
+                            public void rejectedExecution(Runnable task,
+                                    ThreadPoolExecutor executor) {
+                                if (executor.isShutdown()) {
+                                    throw new RejectedExecutionException("Server is stopped");
+                                }
+                                queue.force(task);
+                            }
+                        });
+        queue.executor = threadPool;
     }
 
     @Override
     public void run() {
         while (!isStopped()) {
             try {
-                Socket connection = socket.accept();
-                ConnectionProcessor processor =
-                        new ConnectionProcessor(connectorServer, connection);
-                // this really sucks - ideally, execute would block
-                // if the queue is full. now we have to do a busy wait
-                // the effect is that eventually our socket's accept
-                // queue will fill up and start rejecting requests
-                // at the connection (which is what we want)
-                while (true) {
-                    try {
-                        threadPool.execute(processor);
-                        break;
-                    } catch (RejectedExecutionException e) {
-                        try {
-                            Thread.sleep(100);
-                        } catch (Exception e2) {
-                            /* ignore */
-                        }
+                registerParkedConnections();
+                acceptPaused = !threadPool.getQueue().isEmpty();
+                acceptKey.interestOps(acceptPaused ? 0 : SelectionKey.OP_ACCEPT);
+                selector.select();
+                List<ConnectionProcessor> ready = processSelectedKeys();
+                while (!ready.isEmpty()) {
+                    // the cancelled keys are deregistered by the next selection,
+                    // only then the channels can be switched to blocking mode
+                    selector.selectNow();
+                    for (ConnectionProcessor processor : ready) {
+                        resume(processor);
                     }
+                    ready = processSelectedKeys();
                 }
             } catch (Throwable e) {
                 // log the error unless it's because we've stopped
-                if (!isStopped() || !(e instanceof SocketException)) {
-                    LOG.error(e, "Error processing request");
-                }
-                // wait a second before trying again
                 if (!isStopped()) {
+                    LOG.error(e, "Error processing request");
+                    // wait a second before trying again
                     try {
                         Thread.sleep(1000);
                     } catch (Exception e2) {
@@ -127,6 +221,159 @@ class ConnectionListener extends CCLWatchThread {
         }
     }
 
+    private List<ConnectionProcessor> processSelectedKeys() throws IOException {
+        List<ConnectionProcessor> ready = new ArrayList<ConnectionProcessor>();
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            if (!key.isValid()) {
+                continue;
+            }
+            if (key.isAcceptable()) {
+                accept();
+            } else if (key.isReadable()) {
+                key.cancel();
+                ready.add((ConnectionProcessor) key.attachment());
+            }
+        }
+        return ready;
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while (null != (channel = serverChannel.accept())) {
+            try {
+                Socket socket = channel.socket();
+                if (null != sslSocketFactory) {
+                    SSLSocket sslSocket =
+                            (SSLSocket) sslSocketFactory.createSocket(socket, socket
+                                    .getInetAddress().getHostAddress(), socket.getPort(), true);
+                    sslSocket.setUseClientMode(false);
+                    socket = sslSocket;
+                }
+                ConnectionProcessor processor =
+                        new ConnectionProcessor(connectorServer, socket, this);
+                connections.put(processor, channel);
+                // the client speaks first, wait for its first request
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ, processor);
+                idleConnections.incrementAndGet();
+            } catch (Exception e) {
+                LOG.error(e, "Failed to accept connection");
+                closeQuietly(channel);
+            }
+        }
+    }
+
+    private void registerParkedConnections() {
+        ConnectionProcessor processor;
+        while (null != (processor = parking.poll())) {
+            SocketChannel channel = connections.get(processor);
+            if (null == channel) {
+                continue;
+            }
+            try {
+                channel.register(selector, SelectionKey.OP_READ, processor);
+            } catch (Exception e) {
+                // the processor finds the connection closed and releases it
+                resume(processor);
+            }
+        }
+    }
+
+    /**
+     * Hands a connection whose next request has arrived to a worker.
+     */
+    private void resume(final ConnectionProcessor processor) {
+        idleConnections.decrementAndGet();
+        SocketChannel channel = connections.get(processor);
+        if (null != channel) {
+            try {
+                channel.configureBlocking(true);
+            } catch (Exception e) {
+                LOG.ok(e, "Failed to resume connection");
+            }
+        }
+        threadPool.execute(new Runnable() {
+            @Override
+            public void run() {
+                activeConnections.incrementAndGet();
+                try {
+                    processor.run();
+                } finally {
+                    activeConnections.decrementAndGet();
+                    if (acceptPaused && threadPool.getQueue().isEmpty()) {
+                        selector.wakeup();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Parks a connection until the client sends the next request. Called by
+     * the worker serving the connection after it has answered the last
+     * request.
+     *
+     * @return false if the connection can't be parked and the worker must
+     *         keep serving it.
+     */
+    boolean park(ConnectionProcessor processor) {
+        SocketChannel channel = connections.get(processor);
+        if (null == channel || isStopped()) {
+            return false;
+        }
+        try {
+            channel.configureBlocking(false);
+        } catch (Exception e) {
+            LOG.ok(e, "Failed to park connection");
+            return false;
+        }
+        idleConnections.incrementAndGet();
+        parking.add(processor);
+        selector.wakeup();
+        return true;
+    }
+
+    /**
+     * Called by the processor once the connection has been closed.
+     */
+    void closed(ConnectionProcessor processor) {
+        connections.remove(processor);
+    }
+
+    /**
+     * Returns the number of connections being served by a worker.
+     */
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    /**
+     * Returns the number of connections waiting for the next request without
+     * a worker.
+     */
+    public int getIdleConnections() {
+        return idleConnections.get();
+    }
+
+    /**
+     * Returns the number of connections whose request waits for a free
+     * worker.
+     */
+    public int getAcceptQueueSize() {
+        return threadPool.getQueue().size();
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (Exception e) {
+            /* ignore */
+        }
+    }
+
     private synchronized void markStopped() {
         stopped = true;
     }
@@ -141,16 +388,25 @@ class ConnectionListener extends CCLWatchThread {
         }
         if (!isStopped()) {
             try {
-                // set the stopped flag so we no its a normal
-                // shutdown and don't log the SocketException
+                // set the stopped flag so we know its a normal shutdown
                 markStopped();
-                // close the socket - this causes accept to throw an exception
-                socket.close();
+                selector.wakeup();
                 // wait for the main listener thread to die so we don't
                 // get any new requests
                 join();
+                selector.close();
+                serverChannel.close();
                 // wait for all in-progress requests to finish
                 threadPool.shutdown();
+                // close the connections waiting for the next request
+                for (Map.Entry<ConnectionProcessor, SocketChannel> entry : connections
+                        .entrySet()) {
+                    ConnectionProcessor processor = entry.getKey();
+                    processor.shutdown();
+                    if (processor.isIdle()) {
+                        closeQuietly(entry.getValue());
+                    }
+                }
             } catch (Exception e) {
                 throw ConnectorException.wrap(e);
             }
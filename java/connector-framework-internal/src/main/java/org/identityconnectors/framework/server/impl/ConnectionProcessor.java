@@ -32,9 +32,19 @@ import java.net.Socket;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.identityconnectors.common.l10n.CurrentLocale;
 import org.identityconnectors.common.logging.Log;
@@ -52,7 +62,10 @@ import org.identityconnectors.framework.common.serializer.SerializerUtil;
 import org.identityconnectors.framework.impl.api.ConnectorInfoManagerFactoryImpl;
 import org.identityconnectors.framework.impl.api.ObjectStreamHandler;
 import org.identityconnectors.framework.impl.api.StreamHandlerUtil;
+import org.identityconnectors.framework.impl.api.local.ConnectorPoolManager;
+import org.identityconnectors.framework.impl.api.local.ConnectorPoolManager.ConnectorPoolKey;
 import org.identityconnectors.framework.impl.api.local.LocalConnectorInfoImpl;
+import org.identityconnectors.framework.impl.api.local.ObjectPool;
 import org.identityconnectors.framework.impl.api.remote.RemoteConnectorInfoImpl;
 import org.identityconnectors.framework.impl.api.remote.RemoteFrameworkConnection;
 import org.identityconnectors.framework.impl.api.remote.messages.EchoMessage;
@@ -60,6 +73,8 @@ import org.identityconnectors.framework.impl.api.remote.messages.HelloRequest;
 import org.identityconnectors.framework.impl.api.remote.messages.HelloResponse;
 import org.identityconnectors.framework.impl.api.remote.messages.OperationRequest;
 import org.identityconnectors.framework.impl.api.remote.messages.OperationRequestMoreData;
+import org.identityconnectors.framework.impl.api.remote.messages.OperationRequestStopData;
+import org.identityconnectors.framework.impl.api.remote.messages.OperationResponseBatch;
 import org.identityconnectors.framework.impl.api.remote.messages.OperationResponseEnd;
 import org.identityconnectors.framework.impl.api.remote.messages.OperationResponsePart;
 import org.identityconnectors.framework.impl.api.remote.messages.OperationResponsePause;
@@ -69,22 +84,203 @@ public class ConnectionProcessor implements Runnable {
 
     private static final Log LOG = Log.getLog(ConnectionListener.class);
 
-    private static class RemoteResultsHandler implements ObjectStreamHandler {
+    /**
+     * Maximum number of concurrent requests on a multiplexed connection.
+     */
+    private static final int MULTIPLEX_MAX_STREAMS = 32;
+
+    /**
+     * Number of objects sent on a multiplexed stream before waiting for credit
+     * from the client, unless the request carries its own window.
+     */
+    private static final int MULTIPLEX_INITIAL_WINDOW = 200;
+
+    /**
+     * Milliseconds to wait for the next request before the connection is
+     * parked and its thread released.
+     */
+    private static final int IDLE_PARK_DELAY = 100;
+
+    /**
+     * Largest number of objects sent in one batch, whatever the client accepts.
+     */
+    private static final int MAX_BATCH_SIZE = 1000;
+
+    /**
+     * Milliseconds an object may be held back waiting for a batch to fill up.
+     */
+    private static final long MAX_BATCH_DELAY = 50;
+
+    /**
+     * Sends the batches whose first object has waited {@link #MAX_BATCH_DELAY}
+     * while the connector has not produced the next one.
+     */
+    private static final ScheduledThreadPoolExecutor BATCH_FLUSHER =
+            new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(final Runnable r) {
+                    Thread thread = new Thread(r, "ResultsBatchFlusher-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    thread.setContextClassLoader(ConnectionProcessor.class.getClassLoader());
+                    return thread;
+                }
+            });
+
+    /**
+     * Writes smaller than this many bytes are sent uncompressed.
+     */
+    private static final int COMPRESSION_THRESHOLD = 512;
+
+    /**
+     * Sends the objects of a streaming operation to the client.
+     */
+    private interface ResultsStream extends ObjectStreamHandler {
+
+        /**
+         * Sends the objects held back for the next batch.
+         */
+        void flush();
+
+        /**
+         * Marks the end of the stream.
+         */
+        void end();
+    }
+
+    /**
+     * Collects the objects of a stream until they are sent together in one
+     * {@link OperationResponseBatch}. A batch is sent when it is full, when it
+     * uses up the credit of the client or once its first object has waited
+     * {@link #MAX_BATCH_DELAY}, even if the connector does not produce another
+     * object meanwhile. A stream not sent in batches collects nothing.
+     * <p>
+     * The batch is guarded by itself. The stream takes that lock while it
+     * sends the batch, so that the batch sent on time by the
+     * {@link #BATCH_FLUSHER} can not overtake or interleave with the
+     * stream's own writes.
+     */
+    private static class ResultsBatch implements Runnable {
+
+        private final int requestId;
+        private final int maxSize;
+        private final ResultsStream stream;
+        private List<Object> objects;
+        private long deadline;
+
+        public ResultsBatch(int requestId, int maxSize, ResultsStream stream) {
+            this.requestId = requestId;
+            this.maxSize = maxSize;
+            this.stream = stream;
+        }
+
+        public boolean isEnabled() {
+            return maxSize > 1;
+        }
+
+        /**
+         * Adds an object to the batch.
+         *
+         * @return true if the batch is ready to be sent.
+         */
+        public synchronized boolean add(Object obj) {
+            if (null == objects) {
+                objects = new ArrayList<Object>(maxSize);
+                deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MAX_BATCH_DELAY);
+                BATCH_FLUSHER.schedule(this, MAX_BATCH_DELAY, TimeUnit.MILLISECONDS);
+            }
+            objects.add(obj);
+            return objects.size() >= maxSize || System.nanoTime() - deadline >= 0;
+        }
+
+        /**
+         * Sends the batch if its first object has waited long enough, called
+         * by the {@link #BATCH_FLUSHER}.
+         */
+        @Override
+        public synchronized void run() {
+            if (null == objects || System.nanoTime() - deadline < 0) {
+                // sent meanwhile, possibly followed by a newer batch
+                return;
+            }
+            try {
+                stream.flush();
+            } catch (RuntimeException e) {
+                // the stream fails on its next write as well
+                LOG.ok(e, "Failed to send a batch of results");
+            }
+        }
+
+        /**
+         * Returns the message carrying the collected objects and starts a new
+         * batch, null if no object has been collected.
+         */
+        public synchronized Object take() {
+            if (null == objects) {
+                return null;
+            }
+            Object rv =
+                    objects.size() == 1 ? new OperationResponsePart(requestId, null, objects
+                            .get(0)) : new OperationResponseBatch(requestId, objects);
+            objects = null;
+            return rv;
+        }
+    }
+
+    /**
+     * Sends the objects of a streaming operation on a connection serving one
+     * request at a time. If the client has sent a window with the request the
+     * objects are streamed on the credit it grants, otherwise the stream pauses
+     * for the client every {@link #PAUSE_INTERVAL} objects. The objects are
+     * sent in batches if the client has agreed to.
+     */
+    private static class RemoteResultsHandler implements ResultsStream {
         private static final int PAUSE_INTERVAL = 200;
 
         private final RemoteFrameworkConnection connection;
+        private final boolean flowControl;
+        private final ResultsBatch batch;
+        private int credits;
         private long count = 0;
 
-        public RemoteResultsHandler(RemoteFrameworkConnection conn) {
+        public RemoteResultsHandler(RemoteFrameworkConnection conn, int window) {
             connection = conn;
+            flowControl = window > 0;
+            credits = window;
+            batch = new ResultsBatch(0, conn.getBatchSize(), this);
+        }
+
+        @Override
+        public void flush() {
+            synchronized (batch) {
+                Object message = batch.take();
+                if (null != message) {
+                    connection.writeObject(message);
+                    // the client may wait for this batch
+                    connection.flush();
+                }
+            }
+        }
+
+        @Override
+        public void end() {
+            flush();
+            connection.writeObject(new OperationResponseEnd());
         }
 
         @Override
         public boolean handle(Object obj) {
             try {
-                OperationResponsePart part = new OperationResponsePart(null, obj);
-                connection.writeObject(part);
+                if (flowControl) {
+                    return handleWithCredit(obj);
+                }
                 count++;
+                if (!batch.isEnabled()) {
+                    connection.writeObject(new OperationResponsePart(null, obj));
+                } else if (batch.add(obj) || count % PAUSE_INTERVAL == 0) {
+                    flush();
+                }
                 if (count % PAUSE_INTERVAL == 0) {
                     connection.writeObject(new OperationResponsePause());
                     Object message = connection.readObject();
@@ -101,31 +297,192 @@ public class ConnectionProcessor implements Runnable {
             }
         }
 
+        private boolean handleWithCredit(Object obj) {
+            // take the credit granted so far, wait for more once it is used up;
+            // the batch is always sent before the credit runs out
+            while (credits <= 0 || connection.isInputAvailable()) {
+                // nothing is left to send while reading, so the flusher never
+                // writes to the connection meanwhile
+                flush();
+                Object message = connection.readObject();
+                if (message instanceof OperationRequestMoreData) {
+                    credits += ((OperationRequestMoreData) message).getCredits();
+                } else {
+                    return false;
+                }
+            }
+            credits--;
+            if (!batch.isEnabled()) {
+                connection.writeObject(new OperationResponsePart(null, obj));
+            } else if (batch.add(obj) || credits <= 0) {
+                flush();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Sends the objects of a streaming operation on a multiplexed connection.
+     * Each object uses one credit, the client grants new credit as it consumes
+     * the objects. The objects are sent in batches if the client has agreed
+     * to.
+     */
+    private class MultiplexedResultsHandler implements ResultsStream {
+
+        private final int requestId;
+        private final ResultsBatch batch;
+        private int credits;
+        private boolean stopped = false;
+        private boolean aborted = false;
+
+        public MultiplexedResultsHandler(int requestId, int credits) {
+            this.requestId = requestId;
+            this.credits = credits;
+            batch = new ResultsBatch(requestId, connection.getBatchSize(), this);
+        }
+
+        @Override
+        public boolean handle(Object obj) {
+            boolean creditUsedUp;
+            synchronized (this) {
+                while (credits <= 0 && !stopped && !aborted) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        throw ConnectorException.wrap(e);
+                    }
+                }
+                if (aborted) {
+                    throw new BrokenConnectionException(new EOFException("Connection closed"));
+                }
+                if (stopped) {
+                    return false;
+                }
+                credits--;
+                creditUsedUp = credits <= 0;
+            }
+            try {
+                if (!batch.isEnabled()) {
+                    writeMessage(new OperationResponsePart(requestId, null, obj));
+                } else if (batch.add(obj) || creditUsedUp) {
+                    // the batch is always sent before the credit runs out
+                    flush();
+                }
+                return true;
+            } catch (RuntimeException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw new BrokenConnectionException((IOException) e.getCause());
+                } else {
+                    throw e;
+                }
+            }
+        }
+
+        @Override
+        public void flush() {
+            synchronized (batch) {
+                Object message = batch.take();
+                if (null != message) {
+                    writeMessage(message);
+                }
+            }
+        }
+
+        @Override
+        public void end() {
+            flush();
+            writeMessage(new OperationResponseEnd(requestId));
+        }
+
+        public synchronized void addCredits(int n) {
+            credits += n;
+            notifyAll();
+        }
+
+        public synchronized void stop() {
+            stopped = true;
+            notifyAll();
+        }
+
+        public synchronized void abort() {
+            aborted = true;
+            notifyAll();
+        }
     }
 
     private final ConnectorServer connectorServer;
     private final RemoteFrameworkConnection connection;
 
+    /**
+     * The listener parking this connection while it is idle, null if the
+     * connection keeps its thread until it is closed.
+     */
+    private final ConnectionListener listener;
+
+    /**
+     * Runs the requests of a multiplexed connection, null until the client
+     * switches to the multiplexed protocol.
+     */
+    private ThreadPoolExecutor executor = null;
+
+    /**
+     * Serializes the writes of the concurrent requests of a multiplexed
+     * connection.
+     */
+    private final Object writeLock = new Object();
+
+    /**
+     * Streams of the requests being processed on a multiplexed connection.
+     */
+    private final ConcurrentMap<Integer, MultiplexedResultsHandler> streams =
+            new ConcurrentHashMap<Integer, MultiplexedResultsHandler>();
+
+    /**
+     * Guards {@link #idle} and {@link #stopped}.
+     */
+    private final Object stateLock = new Object();
+
+    /**
+     * True while waiting for the next request of the client.
+     */
+    private boolean idle = true;
+
+    private boolean stopped = false;
+
     public ConnectionProcessor(ConnectorServer server, Socket socket) {
+        this(server, socket, null);
+    }
+
+    ConnectionProcessor(ConnectorServer server, Socket socket, ConnectionListener listener) {
         connectorServer = server;
         connection = new RemoteFrameworkConnection(socket);
+        this.listener = listener;
     }
 
+    /**
+     * Processes the requests of the client. If the connection is parked by a
+     * listener this returns as soon as the client stops sending requests and
+     * is called again by the listener when the next request arrives.
+     */
     @Override
     public void run() {
+        boolean parked = false;
         try {
             try {
                 while (true) {
-                    boolean keepGoing = processRequest();
+                    if (parkIfIdle()) {
+                        parked = true;
+                        break;
+                    }
+                    boolean keepGoing =
+                            null == executor ? processRequest() : processMultiplexedRequest();
                     if (!keepGoing) {
                         break;
                     }
                 }
             } finally {
-                try {
-                    connection.close();
-                } catch (Exception e) {
-                    LOG.error(e, null);
+                if (!parked) {
+                    release();
                 }
             }
         } catch (Throwable e) {
@@ -133,46 +490,193 @@ public class ConnectionProcessor implements Runnable {
         }
     }
 
-    private boolean processRequest() throws Exception {
-        Locale locale;
+    /**
+     * Hands the connection back to the listener if no request arrives shortly.
+     * A multiplexed connection is parked only once all of its requests have
+     * been answered because the running operations write to the connection.
+     *
+     * @return true if the connection has been parked.
+     */
+    private boolean parkIfIdle() {
+        if (null == listener) {
+            return false;
+        }
         try {
-            locale = (Locale) connection.readObject();
+            // the response may still be buffered
+            synchronized (writeLock) {
+                connection.flush();
+            }
+            while (!connection.awaitInput(IDLE_PARK_DELAY)) {
+                synchronized (stateLock) {
+                    if (stopped) {
+                        return false;
+                    }
+                    if (!streams.isEmpty()) {
+                        continue;
+                    }
+                    idle = true;
+                }
+                return listener.park(this);
+            }
         } catch (RuntimeException e) {
-            if (e.getCause() instanceof EOFException) {
-                return false;
+            // the following read reports the failure
+            LOG.ok(e, "Failed to wait for the next request");
+        }
+        return false;
+    }
+
+    /**
+     * Releases the resources of the connection once no more requests will be
+     * processed.
+     */
+    private void release() {
+        try {
+            if (null != executor) {
+                // nobody will grant credit anymore
+                for (MultiplexedResultsHandler stream : streams.values()) {
+                    stream.abort();
+                }
+                executor.shutdown();
+            }
+            // multiplexed requests may still be writing
+            synchronized (writeLock) {
+                connection.close();
+            }
+        } catch (Exception e) {
+            LOG.error(e, null);
+        } finally {
+            if (null != listener) {
+                listener.closed(this);
             }
-            throw e;
         }
-        CurrentLocale.set(locale);
-        GuardedString key = (GuardedString) connection.readObject();
+    }
 
-        boolean authorized;
+    /**
+     * Returns true while the connection waits for the next request.
+     */
+    boolean isIdle() {
+        synchronized (stateLock) {
+            return idle;
+        }
+    }
+
+    /**
+     * Stops processing requests on this connection. The connection is closed
+     * immediately if it is waiting for the next request, otherwise after the
+     * current request has been answered.
+     */
+    public void shutdown() {
+        synchronized (stateLock) {
+            stopped = true;
+            if (idle) {
+                closeQuietly();
+            }
+        }
+    }
+
+    private boolean isStopped() {
+        synchronized (stateLock) {
+            return stopped;
+        }
+    }
+
+    private boolean processRequest() throws Exception {
+        synchronized (stateLock) {
+            if (stopped) {
+                return false;
+            }
+            idle = true;
+        }
+        Object requestObject;
         try {
-            authorized = key.verifyBase64SHA1Hash(connectorServer.getKeyHash());
+            requestObject = connection.readObject();
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof EOFException || isStopped()) {
+                return false;
+            }
+            throw e;
         } finally {
-            key.dispose();
+            synchronized (stateLock) {
+                idle = false;
+            }
         }
         InvalidCredentialException authException = null;
-        if (!authorized) {
-            authException = new InvalidCredentialException("Remote framework key is invalid");
+        if (connection.isSession()) {
+            if (requestObject instanceof OperationRequestMoreData
+                    || requestObject instanceof OperationRequestStopData) {
+                // credit granted for a stream which has ended meanwhile
+                return true;
+            }
+            // the key has been verified when the session was opened and the
+            // locale comes only when it changes
+            if (requestObject instanceof Locale) {
+                connection.setSessionLocale((Locale) requestObject);
+                requestObject = connection.readObject();
+            }
+            CurrentLocale.set(connection.getSessionLocale());
+        } else {
+            CurrentLocale.set((Locale) requestObject);
+            GuardedString key = (GuardedString) connection.readObject();
+
+            boolean authorized;
+            try {
+                authorized = key.verifyBase64SHA1Hash(connectorServer.getKeyHash());
+            } finally {
+                key.dispose();
+            }
+            if (!authorized) {
+                authException = new InvalidCredentialException("Remote framework key is invalid");
 
+            }
+            requestObject = connection.readObject();
         }
-        Object requestObject = connection.readObject();
         if (requestObject instanceof HelloRequest) {
             if (authException != null) {
                 HelloResponse response = new HelloResponse(authException, null, null, null);
                 connection.writeObject(response);
             } else {
-                HelloResponse response = processHelloRequest((HelloRequest) requestObject);
+                HelloRequest hello = (HelloRequest) requestObject;
+                HelloResponse response = processHelloRequest(hello);
                 connection.writeObject(response);
+                if (hello.isSession() || hello.isMultiplex()) {
+                    connection.setSessionLocale(CurrentLocale.get());
+                    connection.setBatchSize(getBatchSize(hello));
+                    if (hello.isCompression()) {
+                        // the response has been the last uncompressed message
+                        connection.enableCompression(COMPRESSION_THRESHOLD);
+                    }
+                    if (hello.isDictionary()) {
+                        connection.enableDictionary();
+                    }
+                    if (hello.isCompactEncoding()) {
+                        connection.enableCompactEncoding();
+                    }
+                    if (hello.isPositionalObjects()) {
+                        connection.enablePositionalObjects();
+                    }
+                    if (hello.isFacadeDigest()) {
+                        connection.enableFacadeDigest();
+                    }
+                }
+                if (hello.isMultiplex()) {
+                    // the rest of the conversation uses the multiplexed
+                    // protocol
+                    connection.flush();
+                    executor =
+                            new ThreadPoolExecutor(0, MULTIPLEX_MAX_STREAMS, 30, TimeUnit.SECONDS,
+                                    new SynchronousQueue<Runnable>(), new CCLWatchThreadFactory());
+                }
             }
         } else if (requestObject instanceof OperationRequest) {
             if (authException != null) {
                 OperationResponsePart part = new OperationResponsePart(authException, null);
                 connection.writeObject(part);
             } else {
-                OperationRequest opRequest = (OperationRequest) requestObject;
-                OperationResponsePart part = processOperationRequest(opRequest);
+                OperationRequest opRequest =
+                        connection.resolveConnectorFacadeKey((OperationRequest) requestObject);
+                OperationResponsePart part =
+                        processOperationRequest(opRequest, new RemoteResultsHandler(connection,
+                                connection.isSession() ? opRequest.getWindow() : 0));
                 connection.writeObject(part);
             }
         } else if (requestObject instanceof EchoMessage) {
@@ -198,6 +702,112 @@ public class ConnectionProcessor implements Runnable {
         return true;
     }
 
+    /**
+     * Processes the next message of a connection switched to the multiplexed
+     * protocol. This thread reads the requests and flow control messages while
+     * the operations run on their own threads.
+     */
+    private boolean processMultiplexedRequest() {
+        Object message;
+        synchronized (stateLock) {
+            if (stopped && streams.isEmpty()) {
+                return false;
+            }
+            idle = streams.isEmpty();
+        }
+        try {
+            message = connection.readObjectNoFlush();
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof EOFException || isStopped()) {
+                return false;
+            }
+            throw e;
+        }
+        if (message instanceof Locale) {
+            // applies to the following requests
+            connection.setSessionLocale((Locale) message);
+        } else if (message instanceof OperationRequest) {
+            // resolved by this thread since the requests run out of order
+            startStream(connection.getSessionLocale(), connection
+                    .resolveConnectorFacadeKey((OperationRequest) message));
+        } else if (message instanceof OperationRequestMoreData) {
+            OperationRequestMoreData moreData = (OperationRequestMoreData) message;
+            MultiplexedResultsHandler stream = streams.get(moreData.getRequestId());
+            if (null != stream) {
+                stream.addCredits(moreData.getCredits());
+            }
+        } else if (message instanceof OperationRequestStopData) {
+            MultiplexedResultsHandler stream =
+                    streams.get(((OperationRequestStopData) message).getRequestId());
+            if (null != stream) {
+                stream.stop();
+            }
+        } else {
+            throw new ConnectorException("Unexpected request: " + message);
+        }
+        return true;
+    }
+
+    private void startStream(final Locale locale, final OperationRequest request) {
+        final int requestId = request.getRequestId();
+        final MultiplexedResultsHandler stream =
+                new MultiplexedResultsHandler(requestId, request.getWindow() > 0 ? request
+                        .getWindow() : MULTIPLEX_INITIAL_WINDOW);
+        synchronized (stateLock) {
+            streams.put(requestId, stream);
+            idle = false;
+        }
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    CurrentLocale.set(locale);
+                    writeMessage(processOperationRequest(request, stream));
+                } catch (Exception e) {
+                    LOG.ok(e, "Failed to respond to request {0}", requestId);
+                } finally {
+                    CurrentLocale.clear();
+                    endStream(requestId);
+                }
+            }
+        };
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            endStream(requestId);
+            writeMessage(new OperationResponsePart(requestId, new ConnectorException(
+                    "Too many concurrent requests on the connection"), null));
+        }
+    }
+
+    private void endStream(int requestId) {
+        synchronized (stateLock) {
+            streams.remove(requestId);
+            idle = streams.isEmpty();
+            if (stopped && idle) {
+                // the reader is waiting for a request which is never served
+                closeQuietly();
+            }
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            synchronized (writeLock) {
+                connection.close();
+            }
+        } catch (Exception e) {
+            LOG.ok(e, "Failed to close idle connection");
+        }
+    }
+
+    private void writeMessage(Object message) {
+        synchronized (writeLock) {
+            connection.writeObject(message);
+            connection.flush();
+        }
+    }
+
     private ConnectorInfoManager getConnectorInfoManager() {
         ConnectorInfoManagerFactoryImpl factory =
                 (ConnectorInfoManagerFactoryImpl) ConnectorInfoManagerFactory.getInstance();
@@ -215,6 +825,37 @@ public class ConnectionProcessor implements Runnable {
             if (request.isServerInfo()) {
                 serverInfo.put(HelloResponse.SERVER_START_TIME, connectorServer.getStartTime());
             }
+            if (request.isMultiplex()) {
+                serverInfo.put(HelloResponse.MULTIPLEX_MAX_STREAMS, MULTIPLEX_MAX_STREAMS);
+                serverInfo.put(HelloResponse.MULTIPLEX_INITIAL_WINDOW, MULTIPLEX_INITIAL_WINDOW);
+            }
+            if (request.isSession() || request.isMultiplex()) {
+                serverInfo.put(HelloResponse.SESSION, Boolean.TRUE);
+                if (request.isFlowControl()) {
+                    serverInfo.put(HelloResponse.FLOW_CONTROL, Boolean.TRUE);
+                }
+                if (getBatchSize(request) > 0) {
+                    serverInfo.put(HelloResponse.BATCH_SIZE, getBatchSize(request));
+                }
+                if (request.isCompression()) {
+                    serverInfo.put(HelloResponse.COMPRESSION, Boolean.TRUE);
+                }
+                if (request.isDictionary()) {
+                    serverInfo.put(HelloResponse.DICTIONARY, Boolean.TRUE);
+                }
+                if (request.isCompactEncoding()) {
+                    serverInfo.put(HelloResponse.COMPACT_ENCODING, Boolean.TRUE);
+                }
+                if (request.isPositionalObjects()) {
+                    serverInfo.put(HelloResponse.POSITIONAL_OBJECTS, Boolean.TRUE);
+                }
+                if (request.isFacadeDigest()) {
+                    serverInfo.put(HelloResponse.FACADE_DIGEST, Boolean.TRUE);
+                }
+            }
+            if (request.isPoolStatistics()) {
+                serverInfo.put(HelloResponse.CONNECTOR_POOL_STATISTICS, getPoolStatistics());
+            }
             if (request.isConnectorKeys()) {
                 ConnectorInfoManager manager = getConnectorInfoManager();
                 List<ConnectorInfo> localInfos = manager.getConnectorInfos();
@@ -238,6 +879,28 @@ public class ConnectionProcessor implements Runnable {
         return new HelloResponse(exception, serverInfo, connectorKeys, connectorInfo);
     }
 
+    private List<Map<String, Object>> getPoolStatistics() {
+        List<Map<String, Object>> statistics = new ArrayList<Map<String, Object>>();
+        for (Map.Entry<ConnectorPoolKey, ObjectPool.Statistics> entry : ConnectorPoolManager
+                .getStatistics().entrySet()) {
+            Map<String, Object> pool = new LinkedHashMap<String, Object>();
+            pool.put(HelloResponse.POOL_CONNECTOR_KEY, entry.getKey().getConnectorKey());
+            pool.put(HelloResponse.POOL_CONFIGURATION, entry.getKey().getPoolingConfig());
+            pool.putAll(entry.getValue().toMap());
+            statistics.add(pool);
+        }
+        return statistics;
+    }
+
+    /**
+     * Returns the batch size agreed with the client, 0 if the objects are sent
+     * one by one.
+     */
+    private static int getBatchSize(HelloRequest request) {
+        int batchSize = Math.min(request.getBatchSize(), MAX_BATCH_SIZE);
+        return batchSize > 1 ? batchSize : 0;
+    }
+
     private Method getOperationMethod(OperationRequest request) {
         Method[] methods = request.getOperation().getDeclaredMethods();
         Method found = null;
@@ -258,8 +921,8 @@ public class ConnectionProcessor implements Runnable {
         return found;
     }
 
-    private OperationResponsePart processOperationRequest(OperationRequest request)
-            throws IOException {
+    private OperationResponsePart processOperationRequest(OperationRequest request,
+            ResultsStream stream) throws IOException {
         Object result;
         Throwable exception = null;
         try {
@@ -267,7 +930,7 @@ public class ConnectionProcessor implements Runnable {
             APIOperation operation = getAPIOperation(request);
             List<Object> arguments = request.getArguments();
             List<Object> argumentsAndStreamHandlers =
-                    populateStreamHandlers(method.getParameterTypes(), arguments);
+                    populateStreamHandlers(method.getParameterTypes(), arguments, stream);
             try {
                 result = method.invoke(operation, argumentsAndStreamHandlers.toArray());
             } catch (InvocationTargetException e) {
@@ -276,7 +939,7 @@ public class ConnectionProcessor implements Runnable {
             boolean anyStreams = argumentsAndStreamHandlers.size() > arguments.size();
             if (anyStreams) {
                 try {
-                    connection.writeObject(new OperationResponseEnd());
+                    stream.end();
                 } catch (RuntimeException e) {
                     if (e.getCause() instanceof IOException) {
                         throw new BrokenConnectionException((IOException) e.getCause());
@@ -292,11 +955,21 @@ public class ConnectionProcessor implements Runnable {
             LOG.error(e, null);
             exception = e;
             result = null;
+            // the objects handled before the failure go first
+            try {
+                stream.flush();
+            } catch (RuntimeException ex) {
+                if (ex.getCause() instanceof IOException) {
+                    throw (IOException) ex.getCause();
+                }
+                throw ex;
+            }
         }
-        return new OperationResponsePart(exception, result);
+        return new OperationResponsePart(request.getRequestId(), exception, result);
     }
 
-    private List<Object> populateStreamHandlers(Class<?>[] paramTypes, List<Object> arguments) {
+    private List<Object> populateStreamHandlers(Class<?>[] paramTypes, List<Object> arguments,
+            ObjectStreamHandler osh) {
         List<Object> rv = new ArrayList<Object>();
         boolean firstStream = true;
         Iterator<Object> argIt = arguments.iterator();
@@ -306,7 +979,6 @@ public class ConnectionProcessor implements Runnable {
                     throw new UnsupportedOperationException(
                             "At most one stream handler is supported");
                 }
-                ObjectStreamHandler osh = new RemoteResultsHandler(connection);
                 rv.add(StreamHandlerUtil.adaptFromObjectStreamHandler(paramType, osh));
                 firstStream = false;
             } else {
@@ -323,6 +995,10 @@ public class ConnectionProcessor implements Runnable {
             throw new ConnectorException("No such connector: " + request.getConnectorKey() + " ");
         }
         String connectorFacadeKey = request.getConnectorFacadeKey();
+        if (connectorFacadeKey == null) {
+            throw new ConnectorException("Unknown connector facade digest: "
+                    + request.getConnectorFacadeDigest());
+        }
 
         ConnectorFacade facade =
                 ConnectorFacadeFactory.getManagedInstance().newInstance(info, connectorFacadeKey);
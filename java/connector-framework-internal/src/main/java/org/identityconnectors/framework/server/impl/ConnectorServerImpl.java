@@ -24,13 +24,14 @@
 
 package org.identityconnectors.framework.server.impl;
 
-import java.net.ServerSocket;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
 import java.util.concurrent.CountDownLatch;
 
-import javax.net.ServerSocketFactory;
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSocketFactory;
 
 import org.identityconnectors.framework.api.ConnectorFacadeFactory;
 import org.identityconnectors.framework.api.ConnectorInfoManagerFactory;
@@ -70,47 +71,67 @@ public class ConnectorServerImpl extends ConnectorServer {
                 (ConnectorInfoManagerFactoryImpl) ConnectorInfoManagerFactory.getInstance();
         factory.getLocalManager(getBundleURLs(), getBundleParentClassLoader());
 
-        final ServerSocket socket = createServerSocket();
-        final ConnectionListener listener = new ConnectionListener(this, socket);
+        final ServerSocketChannel channel = createServerChannel();
+        final ConnectionListener listener;
+        try {
+            listener =
+                    new ConnectionListener(this, channel, getUseSSL() ? createSSLSocketFactory()
+                            : null);
+        } catch (RuntimeException e) {
+            closeQuietly(channel);
+            throw e;
+        }
         listener.start();
         stopLatch = new CountDownLatch(1);
         startDate = System.currentTimeMillis();
         this.listener = listener;
     }
 
-    private ServerSocket createServerSocket() {
+    private ServerSocketChannel createServerChannel() {
+        ServerSocketChannel rv = null;
         try {
-            ServerSocketFactory factory;
-            if (getUseSSL()) {
-                factory = createSSLServerSocketFactory();
-            } else {
-                factory = ServerSocketFactory.getDefault();
-            }
-            final ServerSocket rv;
+            rv = ServerSocketChannel.open();
+            final InetSocketAddress address;
             if (getIfAddress() == null) {
-                rv = factory.createServerSocket(getPort(), getMaxConnections());
+                address = new InetSocketAddress(getPort());
             } else {
-                rv = factory.createServerSocket(getPort(), getMaxConnections(), getIfAddress());
+                address = new InetSocketAddress(getIfAddress(), getPort());
             }
+            rv.socket().bind(address, getMaxConnections());
             return rv;
         } catch (Exception e) {
+            closeQuietly(rv);
             throw ConnectorException.wrap(e);
         }
     }
 
-    private ServerSocketFactory createSSLServerSocketFactory() throws Exception {
-        KeyManager[] keyManagers = null;
-        // convert empty to null
-        if (getKeyManagers().size() > 0) {
-            keyManagers = getKeyManagers().toArray(new KeyManager[getKeyManagers().size()]);
+    private SSLSocketFactory createSSLSocketFactory() {
+        try {
+            KeyManager[] keyManagers = null;
+            // convert empty to null
+            if (getKeyManagers().size() > 0) {
+                keyManagers = getKeyManagers().toArray(new KeyManager[getKeyManagers().size()]);
+            }
+            // the only way to get the default keystore is this way
+            if (keyManagers == null) {
+                return SSLContext.getDefault().getSocketFactory();
+            } else {
+                SSLContext context = SSLContext.getInstance("TLS");
+                context.init(keyManagers, null, null);
+                return context.getSocketFactory();
+            }
+        } catch (Exception e) {
+            throw ConnectorException.wrap(e);
         }
-        // the only way to get the default keystore is this way
-        if (keyManagers == null) {
-            return SSLServerSocketFactory.getDefault();
-        } else {
-            SSLContext context = SSLContext.getInstance("TLS");
-            context.init(keyManagers, null, null);
-            return context.getServerSocketFactory();
+    }
+
+    private static void closeQuietly(ServerSocketChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                /* ignore */
+            }
         }
     }
 
@@ -129,6 +150,24 @@ public class ConnectorServerImpl extends ConnectorServer {
         ConnectorFacadeFactory.getManagedInstance().dispose();
     }
 
+    @Override
+    public int getActiveConnections() {
+        final ConnectionListener current = listener;
+        return current != null ? current.getActiveConnections() : 0;
+    }
+
+    @Override
+    public int getIdleConnections() {
+        final ConnectionListener current = listener;
+        return current != null ? current.getIdleConnections() : 0;
+    }
+
+    @Override
+    public int getAcceptQueueSize() {
+        final ConnectionListener current = listener;
+        return current != null ? current.getAcceptQueueSize() : 0;
+    }
+
     @Override
     public void awaitStop() throws InterruptedException {
         stopLatch.await();
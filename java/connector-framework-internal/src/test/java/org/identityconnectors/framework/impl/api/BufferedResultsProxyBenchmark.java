@@ -0,0 +1,144 @@
+/*
+ * ====================
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2017 ConnId. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of the Common Development
+ * and Distribution License("CDDL") (the "License").  You may not use this file
+ * except in compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.php
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ *
+ * When distributing the Covered Code, include this CDDL Header Notice in each file
+ * and include the License file at http://opensource.org/licenses/cddl1.php.
+ * If applicable, add the following below this CDDL Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ * ====================
+ */
+package org.identityconnectors.framework.impl.api;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.identityconnectors.framework.api.operations.SearchApiOp;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ConnectorObjectBuilder;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.OperationOptions;
+import org.identityconnectors.framework.common.objects.ResultsHandler;
+import org.identityconnectors.framework.common.objects.SearchResult;
+import org.identityconnectors.framework.common.objects.filter.Filter;
+
+/**
+ * Measures how many objects per second pass from a producer to a consumer
+ * thread through an {@link ArrayBlockingQueue}, which {@link BufferedResultsProxy}
+ * used before, and through a {@link ResultsRingBuffer}, and through the whole
+ * buffered search path, for several buffer sizes.
+ * <p/>
+ * Not part of the test suite, run the {@link #main} method by hand.
+ */
+public class BufferedResultsProxyBenchmark {
+
+    private static final int[] BUFFER_SIZES = { 1, 10, 100, 1000 };
+
+    private static final int OBJECTS = 2000000;
+
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) throws Exception {
+        for (int round = 0; round < ROUNDS; round++) {
+            for (int bufferSize : BUFFER_SIZES) {
+                System.out.println("buffer " + bufferSize + ": queue "
+                        + queueTransfer(bufferSize) + ", ring " + ringTransfer(bufferSize)
+                        + ", search " + search(bufferSize) + " objects per second");
+            }
+        }
+    }
+
+    private static long queueTransfer(int bufferSize) throws Exception {
+        final ArrayBlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(bufferSize);
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Object obj = new Object();
+                    for (int i = 0; i < OBJECTS; i++) {
+                        queue.put(obj);
+                    }
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        long start = System.nanoTime();
+        producer.start();
+        for (int i = 0; i < OBJECTS; i++) {
+            queue.poll(60, TimeUnit.SECONDS);
+        }
+        producer.join();
+        return perSecond(start);
+    }
+
+    private static long ringTransfer(int bufferSize) throws Exception {
+        final ResultsRingBuffer buffer = new ResultsRingBuffer(bufferSize);
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Object obj = new Object();
+                    for (int i = 0; i < OBJECTS; i++) {
+                        buffer.offer(obj, 60, TimeUnit.SECONDS);
+                    }
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        Object[] batch = new Object[bufferSize];
+        long start = System.nanoTime();
+        producer.start();
+        for (int received = 0; received < OBJECTS;) {
+            received += buffer.drainTo(batch, 60, TimeUnit.SECONDS);
+        }
+        producer.join();
+        return perSecond(start);
+    }
+
+    private static long search(int bufferSize) {
+        final ConnectorObject object =
+                new ConnectorObjectBuilder().setUid("0").setName("0").build();
+        SearchApiOp search = new SearchApiOp() {
+
+            @Override
+            public SearchResult search(ObjectClass objectClass, Filter filter,
+                    ResultsHandler handler, OperationOptions options) {
+                for (int i = 0; i < OBJECTS; i++) {
+                    handler.handle(object);
+                }
+                return new SearchResult();
+            }
+        };
+        SearchApiOp proxy = (SearchApiOp) Proxy.newProxyInstance(
+                SearchApiOp.class.getClassLoader(), new Class<?>[] { SearchApiOp.class },
+                new BufferedResultsProxy(search, bufferSize, 60000));
+        long start = System.nanoTime();
+        proxy.search(ObjectClass.ACCOUNT, null, new ResultsHandler() {
+
+            @Override
+            public boolean handle(ConnectorObject obj) {
+                return true;
+            }
+        }, null);
+        return perSecond(start);
+    }
+
+    private static long perSecond(long start) {
+        return OBJECTS * 1000000000L / Math.max(1, System.nanoTime() - start);
+    }
+}
@@ -23,17 +23,29 @@
 package org.identityconnectors.framework.impl.api;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
 import static org.testng.Assert.fail;
 
 import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.net.URLClassLoader;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
 
+import org.identityconnectors.common.l10n.CurrentLocale;
+import org.identityconnectors.framework.api.operations.APIOperation;
 import org.identityconnectors.framework.api.operations.SearchApiOp;
 import org.identityconnectors.framework.common.exceptions.OperationTimeoutException;
 import org.identityconnectors.framework.common.objects.ConnectorObject;
 import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.OperationOptions;
 import org.identityconnectors.framework.common.objects.ResultsHandler;
+import org.identityconnectors.framework.common.objects.SearchResult;
+import org.identityconnectors.framework.common.objects.filter.Filter;
 import org.testng.annotations.Test;
 
 public class BufferedSearchProxyTests {
@@ -188,6 +200,181 @@ public class BufferedSearchProxyTests {
         }
     }
 
+    @Test
+    public void testBufferedWithoutTimeout() {
+        BufferedResultsProxy.setDirectHandoffEnabled(false);
+        try {
+            for (int bufSize = 1; bufSize <= 16; bufSize *= 2) {
+                ExpectedTestResults expected = new ExpectedTestResults();
+                expected.addExpectedRange(0, 1000);
+                SearchApiOp search = new Searches.ConnectorObjectSearch(1000);
+                createSearchProxy(search, bufSize, APIOperation.NO_TIMEOUT).search(
+                        ObjectClass.ACCOUNT, null, expected, null);
+                expected.assertFinished();
+            }
+        } finally {
+            BufferedResultsProxy.setDirectHandoffEnabled(true);
+        }
+    }
+
+    @Test
+    public void testWorkerContext() {
+        final Thread caller = Thread.currentThread();
+        final ClassLoader savedClassLoader = caller.getContextClassLoader();
+        final ClassLoader classLoader = new URLClassLoader(new URL[0], savedClassLoader);
+        final List<Object> seen = new ArrayList<Object>();
+        SearchApiOp search = new Searches.ConnectorObjectSearch(1) {
+
+            @Override
+            protected void beforeObject(int count) {
+                Thread thread = Thread.currentThread();
+                seen.add(thread);
+                seen.add(thread.getContextClassLoader());
+                seen.add(CurrentLocale.isSet() ? CurrentLocale.get() : null);
+            }
+        };
+        try {
+            caller.setContextClassLoader(classLoader);
+            CurrentLocale.set(Locale.JAPANESE);
+            ExpectedTestResults expected = new ExpectedTestResults();
+            expected.addExpectedRange(0, 1);
+            createSearchProxy(search, 2, 20000).search(ObjectClass.ACCOUNT, null, expected, null);
+            expected.assertFinished();
+            assertNotSame(seen.get(0), caller);
+            assertSame(seen.get(1), classLoader);
+            assertEquals(seen.get(2), Locale.JAPANESE);
+
+            // the worker must not keep the context of the previous caller
+            CurrentLocale.clear();
+            caller.setContextClassLoader(savedClassLoader);
+            seen.clear();
+            expected = new ExpectedTestResults();
+            expected.addExpectedRange(0, 1);
+            createSearchProxy(search, 2, 20000).search(ObjectClass.ACCOUNT, null, expected, null);
+            expected.assertFinished();
+            assertSame(seen.get(1), savedClassLoader);
+            assertEquals(seen.get(2), null);
+        } finally {
+            CurrentLocale.clear();
+            caller.setContextClassLoader(savedClassLoader);
+        }
+    }
+
+    @Test
+    public void testDirectHandoff() {
+        final List<Thread> producers = new ArrayList<Thread>();
+        SearchApiOp search = new Searches.ConnectorObjectSearch(10) {
+
+            @Override
+            protected void beforeObject(int count) {
+                producers.add(Thread.currentThread());
+            }
+        };
+        ExpectedTestResults expected = new ExpectedTestResults();
+        expected.addExpectedRange(0, 10);
+        createSearchProxy(search, 2, APIOperation.NO_TIMEOUT).search(ObjectClass.ACCOUNT, null,
+                expected, null);
+        expected.assertFinished();
+        assertEquals(producers.size(), 10);
+        for (Thread producer : producers) {
+            assertSame(producer, Thread.currentThread());
+        }
+
+        // the connector must not be able to swallow the exception of the handler
+        SearchApiOp swallowing = new SearchApiOp() {
+
+            @Override
+            public SearchResult search(ObjectClass objectClass, Filter filter,
+                    ResultsHandler handler, OperationOptions options) {
+                try {
+                    new Searches.ConnectorObjectSearch(10).search(objectClass, filter, handler,
+                            options);
+                } catch (RuntimeException e) {
+                    // ignored on purpose
+                }
+                return new SearchResult();
+            }
+        };
+        final List<ConnectorObject> handled = new ArrayList<ConnectorObject>();
+        ResultsHandler failing = new ResultsHandler() {
+
+            @Override
+            public boolean handle(ConnectorObject object) {
+                handled.add(object);
+                if (handled.size() == 3) {
+                    throw new IllegalStateException("stop");
+                }
+                return true;
+            }
+        };
+        try {
+            createSearchProxy(swallowing, 2, APIOperation.NO_TIMEOUT).search(ObjectClass.ACCOUNT,
+                    null, failing, null);
+            fail("expected exception");
+        } catch (IllegalStateException e) {
+            assertEquals(e.getMessage(), "stop");
+        }
+        assertEquals(handled.size(), 3);
+    }
+
+    @Test
+    public void testMaxWorkers() throws Exception {
+        int maxWorkers = BufferedResultsProxy.getMaxWorkers();
+        BufferedResultsProxy.setMaxWorkers(1);
+        try {
+            final CountDownLatch started = new CountDownLatch(1);
+            final SearchApiOp slow = new Searches.WaitObjectSearch(5, 100) {
+
+                @Override
+                protected void beforeObject(int count) {
+                    started.countDown();
+                    super.beforeObject(count);
+                }
+            };
+            final ExpectedTestResults slowExpected = new ExpectedTestResults();
+            slowExpected.addExpectedRange(0, 5);
+            // keeps the only worker busy
+            Thread thread = new Thread() {
+
+                @Override
+                public void run() {
+                    createSearchProxy(slow, 6, 20000).search(ObjectClass.ACCOUNT, null,
+                            slowExpected, null);
+                }
+            };
+            thread.start();
+            started.await();
+
+            final List<Thread> producers = new ArrayList<Thread>();
+            SearchApiOp queued = new Searches.ConnectorObjectSearch(1) {
+
+                @Override
+                protected void beforeObject(int count) {
+                    producers.add(Thread.currentThread());
+                }
+            };
+            // waiting for a worker counts against the timeout
+            try {
+                createSearchProxy(queued, 2, 50).search(ObjectClass.ACCOUNT, null,
+                        new ExpectedTestResults(), null);
+                fail("expected timeout");
+            } catch (OperationTimeoutException e) {
+            }
+            thread.join();
+            slowExpected.assertFinished();
+            // the timed out producer has never run
+            assertTrue(producers.isEmpty());
+
+            ExpectedTestResults expected = new ExpectedTestResults();
+            expected.addExpectedRange(0, 1);
+            createSearchProxy(queued, 2, 20000).search(ObjectClass.ACCOUNT, null, expected, null);
+            expected.assertFinished();
+            assertEquals(producers.size(), 1);
+        } finally {
+            BufferedResultsProxy.setMaxWorkers(maxWorkers);
+        }
+    }
+
     private static SearchApiOp createSearchProxy(SearchApiOp search, int bufSize, long timeout) {
         BufferedResultsProxy timeoutHandler = new BufferedResultsProxy(search, bufSize, timeout);
         return (SearchApiOp)Proxy.newProxyInstance(SearchApiOp.class.getClassLoader(),
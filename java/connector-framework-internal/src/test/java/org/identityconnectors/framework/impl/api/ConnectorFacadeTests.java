@@ -614,6 +614,55 @@ public class ConnectorFacadeTests {
         assertTrue(obj.getAttributeByName("does not exist") == null);
     }
 
+    @Test
+    public void testManagedFacadeCache() throws Exception {
+        ConnectorFacadeFactory factory = ConnectorFacadeFactory.getManagedInstance();
+        int maxFacades = ManagedConnectorFacadeFactoryImpl.getMaxFacades();
+        long maxIdleTime = ManagedConnectorFacadeFactoryImpl.getMaxIdleTime();
+        factory.dispose();
+        ManagedConnectorFacadeFactoryImpl.setMaxFacades(2);
+        try {
+            APIConfiguration[] configs = new APIConfiguration[3];
+            ConnectorFacade[] facades = new ConnectorFacade[3];
+            for (int i = 0; i < configs.length; i++) {
+                configs[i] = TestHelpers.createTestConfiguration(MockAllOpsConnector.class,
+                        new MockConfiguration(false));
+                configs[i].setProducerBufferSize(100 + i);
+            }
+            long hits = ManagedConnectorFacadeFactoryImpl.getHitCount();
+            long misses = ManagedConnectorFacadeFactoryImpl.getMissCount();
+            long evictions = ManagedConnectorFacadeFactoryImpl.getEvictionCount();
+
+            facades[0] = factory.newInstance(configs[0]);
+            Thread.sleep(5);
+            facades[1] = factory.newInstance(configs[1]);
+            Thread.sleep(5);
+            // the first facade becomes the most recently used one
+            assertTrue(factory.newInstance(configs[0]) == facades[0]);
+            Thread.sleep(5);
+            facades[2] = factory.newInstance(configs[2]);
+
+            assertEquals(ManagedConnectorFacadeFactoryImpl.getHitCount() - hits, 1);
+            assertEquals(ManagedConnectorFacadeFactoryImpl.getMissCount() - misses, 3);
+            assertEquals(ManagedConnectorFacadeFactoryImpl.getEvictionCount() - evictions, 1);
+            List<ConnectorFacade> live = ManagedConnectorFacadeFactoryImpl.getFacades();
+            assertEquals(live.size(), 2);
+            assertTrue(live.contains(facades[0]) && live.contains(facades[2]));
+            // an evicted facade keeps working
+            facades[1].test();
+            assertTrue(factory.newInstance(configs[1]) != facades[1]);
+
+            ManagedConnectorFacadeFactoryImpl.setMaxIdleTime(1);
+            Thread.sleep(5);
+            assertEquals(ManagedConnectorFacadeFactoryImpl.evictIdleFacades(), 2);
+            assertTrue(ManagedConnectorFacadeFactoryImpl.getFacades().isEmpty());
+        } finally {
+            ManagedConnectorFacadeFactoryImpl.setMaxFacades(maxFacades);
+            ManagedConnectorFacadeFactoryImpl.setMaxIdleTime(maxIdleTime);
+            factory.dispose();
+        }
+    }
+
     static Uid newUid(int id) {
         return new Uid(Integer.toString(id));
     }
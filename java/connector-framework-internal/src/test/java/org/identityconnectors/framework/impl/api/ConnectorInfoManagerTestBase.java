@@ -85,6 +85,8 @@ import org.identityconnectors.framework.common.objects.filter.Filter;
 import org.identityconnectors.framework.common.objects.filter.FilterBuilder;
 import org.identityconnectors.framework.impl.api.local.ConnectorPoolManager;
 import org.identityconnectors.framework.impl.api.local.LocalConnectorFacadeImpl;
+import org.identityconnectors.framework.impl.api.remote.RemoteConnectionPoolManager;
+import org.identityconnectors.framework.impl.api.remote.RemoteConnectorInfoImpl;
 import org.identityconnectors.framework.impl.api.remote.RemoteWrappedException;
 import org.testng.annotations.AfterTest;
 import org.testng.annotations.BeforeMethod;
@@ -93,7 +95,13 @@ import org.testng.annotations.Test;
 
 public abstract class ConnectorInfoManagerTestBase {
 
-    private static ConnectorInfo findConnectorInfo(ConnectorInfoManager manager, String version,
+    /**
+     * The flow control window a new remote connection starts streaming with,
+     * FlowControlWindow.INITIAL_WINDOW.
+     */
+    private static final int INITIAL_STREAM_WINDOW = 200;
+
+    protected static ConnectorInfo findConnectorInfo(ConnectorInfoManager manager, String version,
             String connectorName) {
         for (ConnectorInfo info : manager.getConnectorInfos()) {
             ConnectorKey key = info.getConnectorKey();
@@ -334,42 +342,60 @@ public abstract class ConnectorInfoManagerTestBase {
         ConnectorFacadeFactory facf = ConnectorFacadeFactory.getInstance();
         ConnectorFacade facade = facf.newInstance(api);
 
-        final List<ConnectorObject> results = new ArrayList<ConnectorObject>();
-
-        SearchResult searchResult = facade.search(ObjectClass.ACCOUNT, null, new ResultsHandler() {
-            @Override
-            public boolean handle(ConnectorObject obj) {
-                results.add(obj);
-                return true;
-            }
-        }, null);
-
-        assertEquals(results.size(), 1000);
-        assertEquals(searchResult.getRemainingPagedResults(), 0);
-        for (int i = 0; i < results.size(); i++) {
-            ConnectorObject obj = results.get(i);
-            assertEquals(obj.getUid().getUidValue(), String.valueOf(i));
+        // a remote server streams the results ahead of the handler, by up to
+        // the flow control window. A new connection starts with the initial
+        // window, and this budget keeps the window from growing past it.
+        int maxOverrun = 0;
+        long budget = RemoteConnectionPoolManager.getStreamMemoryBudget();
+        if (info instanceof RemoteConnectorInfoImpl) {
+            RemoteConnectionPoolManager.dispose(((RemoteConnectorInfoImpl) info)
+                    .getRemoteConnectionInfo());
+            RemoteConnectionPoolManager.setStreamMemoryBudget(1);
+            maxOverrun = INITIAL_STREAM_WINDOW;
         }
+        try {
+            final List<ConnectorObject> results = new ArrayList<ConnectorObject>();
 
-        results.clear();
-
-        searchResult = facade.search(ObjectClass.ACCOUNT, null, new ResultsHandler() {
-            @Override
-            public boolean handle(ConnectorObject obj) {
-                if (results.size() < 500) {
+            SearchResult searchResult = facade.search(ObjectClass.ACCOUNT, null, new ResultsHandler() {
+                @Override
+                public boolean handle(ConnectorObject obj) {
                     results.add(obj);
                     return true;
-                } else {
-                    return false;
                 }
+            }, null);
+
+            assertEquals(results.size(), 1000);
+            assertEquals(searchResult.getRemainingPagedResults(), 0);
+            for (int i = 0; i < results.size(); i++) {
+                ConnectorObject obj = results.get(i);
+                assertEquals(obj.getUid().getUidValue(), String.valueOf(i));
             }
-        }, null);
 
-        assertEquals(results.size(), 500);
-        assertTrue(searchResult.getRemainingPagedResults() == 500 || searchResult.getRemainingPagedResults() == 401);
-        for (int i = 0; i < results.size(); i++) {
-            ConnectorObject obj = results.get(i);
-            assertEquals(obj.getUid().getUidValue(), String.valueOf(i));
+            results.clear();
+
+            searchResult = facade.search(ObjectClass.ACCOUNT, null, new ResultsHandler() {
+                @Override
+                public boolean handle(ConnectorObject obj) {
+                    if (results.size() < 500) {
+                        results.add(obj);
+                        return true;
+                    } else {
+                        return false;
+                    }
+                }
+            }, null);
+
+            assertEquals(results.size(), 500);
+            // the server stops at most a window after the client asked it to
+            int remaining = searchResult.getRemainingPagedResults();
+            assertTrue(remaining <= 500 && remaining >= 500 - maxOverrun, "Remaining: "
+                    + remaining);
+            for (int i = 0; i < results.size(); i++) {
+                ConnectorObject obj = results.get(i);
+                assertEquals(obj.getUid().getUidValue(), String.valueOf(i));
+            }
+        } finally {
+            RemoteConnectionPoolManager.setStreamMemoryBudget(budget);
         }
     }
 
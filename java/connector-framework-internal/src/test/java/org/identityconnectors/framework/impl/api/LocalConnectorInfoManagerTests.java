@@ -24,13 +24,25 @@ package org.identityconnectors.framework.impl.api;
 
 import java.net.URL;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.identityconnectors.common.Version;
+import org.identityconnectors.framework.api.APIConfiguration;
+import org.identityconnectors.framework.api.ConnectorFacade;
 import org.identityconnectors.framework.api.ConnectorFacadeFactory;
+import org.identityconnectors.framework.api.ConnectorInfo;
 import org.identityconnectors.framework.api.ConnectorInfoManager;
 import org.identityconnectors.framework.api.ConnectorInfoManagerFactory;
 import org.identityconnectors.framework.common.FrameworkUtilTestHelpers;
 import org.identityconnectors.framework.common.exceptions.ConfigurationException;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.ResultsHandler;
+import org.identityconnectors.framework.impl.api.local.ConnectorPoolManager;
+import org.identityconnectors.framework.impl.api.local.ConnectorPoolManager.ConnectorPoolKey;
+import org.identityconnectors.framework.impl.api.local.ObjectPool;
+import org.identityconnectors.framework.spi.PoolableConnector;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
@@ -58,6 +70,78 @@ public class LocalConnectorInfoManagerTests extends ConnectorInfoManagerTestBase
         }
     }
 
+    @Test
+    public void testConnectorPoolRegistry() throws Exception {
+        ConnectorPoolManager.dispose();
+        ConnectorInfo info =
+                findConnectorInfo(getConnectorInfoManager(), "1.0.0.0",
+                        "org.identityconnectors.testconnector.TstConnector");
+        ConnectorFacade[] facades = new ConnectorFacade[2];
+        for (int i = 0; i < facades.length; i++) {
+            APIConfiguration config = info.createDefaultAPIConfiguration();
+            config.getConfigurationProperties().setPropertyValue("tstField", "value" + i);
+            facades[i] = ConnectorFacadeFactory.getInstance().newInstance(config);
+            facades[i].schema();
+        }
+        Map<ConnectorPoolKey, ObjectPool<PoolableConnector>> pools = ConnectorPoolManager.getPools();
+        Assert.assertEquals(pools.size(), 2);
+        ConnectorPoolKey[] keys = pools.keySet().toArray(new ConnectorPoolKey[2]);
+        Assert.assertEquals(keys[0].getConnectorKey(), keys[1].getConnectorKey());
+        // different configurations of the same connector hash differently
+        Assert.assertNotEquals(keys[0].hashCode(), keys[1].hashCode());
+
+        Thread.sleep(5);
+        Assert.assertEquals(ConnectorPoolManager.evictUnusedPools(1), 2);
+        Assert.assertTrue(ConnectorPoolManager.getPools().isEmpty());
+        // the pool is created again on demand
+        facades[0].schema();
+        Assert.assertEquals(ConnectorPoolManager.getPools().size(), 1);
+        Assert.assertEquals(ConnectorPoolManager.evictUnusedPools(60000), 0);
+    }
+
+    @Test
+    public void testManagedFacadeEvictedInUse() throws Exception {
+        ConnectorPoolManager.dispose();
+        final ConnectorFacadeFactory factory = ConnectorFacadeFactory.getManagedInstance();
+        int maxFacades = ManagedConnectorFacadeFactoryImpl.getMaxFacades();
+        factory.dispose();
+        ManagedConnectorFacadeFactoryImpl.setMaxFacades(1);
+        try {
+            ConnectorInfo info =
+                    findConnectorInfo(getConnectorInfoManager(), "1.0.0.0",
+                            "org.identityconnectors.testconnector.TstConnector");
+            final APIConfiguration[] configs = new APIConfiguration[2];
+            for (int i = 0; i < configs.length; i++) {
+                configs[i] = info.createDefaultAPIConfiguration();
+                configs[i].getConfigurationProperties().setPropertyValue("tstField", "value" + i);
+                configs[i].getConfigurationProperties().setPropertyValue("numResults", 2);
+            }
+            final ConnectorFacade facade = factory.newInstance(configs[0]);
+            final AtomicInteger poolsAfterEviction = new AtomicInteger(-1);
+            facade.search(ObjectClass.ACCOUNT, null, new ResultsHandler() {
+                public boolean handle(ConnectorObject obj) {
+                    if (poolsAfterEviction.get() < 0) {
+                        // evicts the facade while its search is in flight
+                        factory.newInstance(configs[1]);
+                        poolsAfterEviction.set(ConnectorPoolManager.getPools().size());
+                    }
+                    return true;
+                }
+            }, null);
+            Assert.assertFalse(ManagedConnectorFacadeFactoryImpl.getFacades().contains(facade));
+            // the pool is disposed once the search has finished, not before
+            Assert.assertEquals(poolsAfterEviction.get(), 1);
+            Assert.assertTrue(ConnectorPoolManager.getPools().isEmpty());
+            // the evicted facade keeps working
+            facade.schema();
+            Assert.assertEquals(ConnectorPoolManager.getPools().size(), 1);
+        } finally {
+            ManagedConnectorFacadeFactoryImpl.setMaxFacades(maxFacades);
+            factory.dispose();
+            ConnectorPoolManager.dispose();
+        }
+    }
+
     /**
      * To be overridden by subclasses to get different ConnectorInfoManagers
      *
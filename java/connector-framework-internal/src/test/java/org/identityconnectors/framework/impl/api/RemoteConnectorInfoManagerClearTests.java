@@ -25,15 +25,49 @@ package org.identityconnectors.framework.impl.api;
 
 import java.net.InetAddress;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
+import org.identityconnectors.common.CollectionUtil;
+import org.identityconnectors.common.pooling.ObjectPoolConfiguration;
 import org.identityconnectors.common.security.GuardedString;
 import org.identityconnectors.common.security.SecurityUtil;
+import org.identityconnectors.framework.api.APIConfiguration;
+import org.identityconnectors.framework.api.AsyncCallback;
+import org.identityconnectors.framework.api.AsyncConnectorFacade;
+import org.identityconnectors.framework.api.AsyncFuture;
+import org.identityconnectors.framework.api.ConnectorFacade;
 import org.identityconnectors.framework.api.ConnectorFacadeFactory;
+import org.identityconnectors.framework.api.ConnectorInfo;
 import org.identityconnectors.framework.api.ConnectorInfoManager;
 import org.identityconnectors.framework.api.ConnectorInfoManagerFactory;
 import org.identityconnectors.framework.api.RemoteFrameworkConnectionInfo;
+import org.identityconnectors.framework.impl.api.local.ObjectPool;
+import org.identityconnectors.framework.impl.api.local.ObjectPoolEntry;
+import org.identityconnectors.framework.impl.api.remote.RemoteConnectionPoolManager;
+import org.identityconnectors.framework.common.exceptions.InvalidCredentialException;
+import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.AttributeBuilder;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.OperationOptionsBuilder;
+import org.identityconnectors.framework.common.objects.ResultsHandler;
+import org.identityconnectors.framework.common.objects.SearchResult;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.identityconnectors.framework.impl.api.remote.RemoteConnectorInfoImpl;
 import org.identityconnectors.framework.impl.api.remote.RemoteConnectorInfoManagerImpl;
+import org.identityconnectors.framework.impl.api.remote.RemoteFrameworkConnection;
+import org.identityconnectors.framework.impl.api.remote.RemoteMultiplexedConnection;
+import org.identityconnectors.framework.impl.api.remote.messages.HelloRequest;
 import org.identityconnectors.framework.impl.api.remote.messages.HelloResponse;
 import org.identityconnectors.framework.server.ConnectorServer;
 import org.testng.Assert;
@@ -97,4 +131,839 @@ public class RemoteConnectorInfoManagerClearTests extends ConnectorInfoManagerTe
         Assert.assertNotNull(mgr.getServerInfo().get(HelloResponse.SERVER_START_TIME));
         Assert.assertEquals(mgr.getConnectorKeys().size(),4);
     }
+
+    @Test
+    public void testRemotePoolStatistics() throws Exception {
+        ConnectorInfo info =
+                findConnectorInfo(getConnectorInfoManager(), "1.0.0.0",
+                        "org.identityconnectors.testconnector.TstConnector");
+        ConnectorFacade facade =
+                ConnectorFacadeFactory.getInstance().newInstance(
+                        info.createDefaultAPIConfiguration());
+        facade.schema();
+        facade.schema();
+
+        RemoteConnectorInfoManagerImpl mgr = new RemoteConnectorInfoManagerImpl(
+                new RemoteFrameworkConnectionInfo("127.0.0.1", PORT, new GuardedString("changeit".toCharArray())));
+        Map<String, Object> pool = null;
+        for (Map<String, Object> statistics : mgr.getConnectorPoolStatistics()) {
+            if (info.getConnectorKey().equals(statistics.get(HelloResponse.POOL_CONNECTOR_KEY))) {
+                pool = statistics;
+            }
+        }
+        Assert.assertNotNull(pool);
+        Assert.assertTrue(pool.get(HelloResponse.POOL_CONFIGURATION) instanceof ObjectPoolConfiguration);
+        Assert.assertTrue((Long) pool.get("borrowCount") >= 2);
+        Assert.assertTrue((Long) pool.get("createCount") >= 1);
+        Assert.assertEquals(((List<?>) pool.get("borrowTimeHistogram")).size(), 20);
+    }
+
+    @Test
+    public void testRemoteConnectionReuse() throws Exception {
+        getConnectorInfoManager();
+        RemoteFrameworkConnectionInfo connInfo = new RemoteFrameworkConnectionInfo("127.0.0.1",
+                PORT, new GuardedString("changeit".toCharArray()), false, null, 0);
+        RemoteConnectionPoolManager.dispose(connInfo);
+        RemoteConnectorInfoManagerImpl mgr = new RemoteConnectorInfoManagerImpl(connInfo, false);
+        mgr.getServerInfo();
+        mgr.getConnectorKeys();
+        mgr.getServerInfo();
+        ObjectPool.Statistics stats = RemoteConnectionPoolManager.getPool(connInfo).getStatistics();
+        Assert.assertEquals(stats.getNumIdle(), 1);
+        Assert.assertEquals(stats.getNumActive(), 0);
+
+        // the pooled connection is closed by the server, a new one must be made
+        synchronized (RemoteConnectorInfoManagerClearTests.class) {
+            _server.stop();
+            _server = null;
+        }
+        getConnectorInfoManager();
+        Thread.sleep(1500);
+        Assert.assertNotNull(mgr.getServerInfo().get(HelloResponse.SERVER_START_TIME));
+        RemoteConnectionPoolManager.dispose(connInfo);
+    }
+
+    @Test
+    public void testSessionAuthentication() throws Exception {
+        getConnectorInfoManager();
+        RemoteFrameworkConnection connection = new RemoteFrameworkConnection(
+                new RemoteFrameworkConnectionInfo("127.0.0.1", PORT, new GuardedString("changeit".toCharArray())));
+        try {
+            connection.writeObject(Locale.US);
+            connection.writeObject(new GuardedString("changeit".toCharArray()));
+            connection.writeObject(new HelloRequest(0, HelloRequest.SESSION));
+            HelloResponse response = (HelloResponse) connection.readObject();
+            Assert.assertNull(response.getException());
+            Assert.assertEquals(response.getServerInfo().get(HelloResponse.SESSION), Boolean.TRUE);
+
+            // neither key nor locale
+            connection.writeObject(new HelloRequest(HelloRequest.SERVER_INFO));
+            response = (HelloResponse) connection.readObject();
+            Assert.assertNull(response.getException());
+            Assert.assertNotNull(response.getServerInfo().get(HelloResponse.SERVER_START_TIME));
+
+            // a new locale, still no key
+            connection.writeObject(Locale.FRANCE);
+            connection.writeObject(new HelloRequest(HelloRequest.CONNECTOR_KEY_LIST));
+            response = (HelloResponse) connection.readObject();
+            Assert.assertNull(response.getException());
+            Assert.assertEquals(response.getConnectorKeys().size(), 4);
+        } finally {
+            connection.close();
+        }
+
+        // the session is not opened with a wrong key
+        connection = new RemoteFrameworkConnection(
+                new RemoteFrameworkConnectionInfo("127.0.0.1", PORT, new GuardedString("changeit".toCharArray())));
+        try {
+            connection.writeObject(Locale.US);
+            connection.writeObject(new GuardedString("wrong".toCharArray()));
+            connection.writeObject(new HelloRequest(0, HelloRequest.SESSION));
+            HelloResponse response = (HelloResponse) connection.readObject();
+            Assert.assertTrue(response.getException() instanceof InvalidCredentialException);
+            Assert.assertNull(response.getServerInfo().get(HelloResponse.SESSION));
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testIdleConnectionsParked() throws Exception {
+        final int port = PORT + 1;
+        ConnectorServer server = ConnectorServer.newInstance();
+        server.setKeyHash(SecurityUtil.computeBase64SHA1Hash("changeit".toCharArray()));
+        server.setBundleURLs(getTestBundles());
+        server.setPort(port);
+        server.setIfAddress(InetAddress.getByName("127.0.0.1"));
+        // a single worker serves all the connections
+        server.setMinWorkers(1);
+        server.setMaxWorkers(1);
+        server.start();
+        List<RemoteFrameworkConnection> connections = new ArrayList<RemoteFrameworkConnection>();
+        try {
+            for (int i = 0; i < 3; i++) {
+                RemoteFrameworkConnection connection = new RemoteFrameworkConnection(
+                        new RemoteFrameworkConnectionInfo("127.0.0.1", port, new GuardedString(
+                                "changeit".toCharArray())));
+                connections.add(connection);
+                connection.writeObject(Locale.US);
+                connection.writeObject(new GuardedString("changeit".toCharArray()));
+                connection.writeObject(new HelloRequest(HelloRequest.SERVER_INFO,
+                        HelloRequest.SESSION));
+                HelloResponse response = (HelloResponse) connection.readObject();
+                Assert.assertNull(response.getException());
+            }
+            // the connections opened first are still served
+            for (RemoteFrameworkConnection connection : connections) {
+                connection.writeObject(new HelloRequest(HelloRequest.SERVER_INFO));
+                HelloResponse response = (HelloResponse) connection.readObject();
+                Assert.assertNotNull(response.getServerInfo().get(HelloResponse.SERVER_START_TIME));
+            }
+            for (int i = 0; i < 50
+                    && (server.getIdleConnections() < 3 || server.getActiveConnections() > 0); i++) {
+                Thread.sleep(100);
+            }
+            Assert.assertEquals(server.getIdleConnections(), 3);
+            Assert.assertEquals(server.getActiveConnections(), 0);
+            Assert.assertEquals(server.getAcceptQueueSize(), 0);
+        } finally {
+            for (RemoteFrameworkConnection connection : connections) {
+                connection.close();
+            }
+            server.stop();
+        }
+        Assert.assertEquals(server.getIdleConnections(), 0);
+    }
+
+    private ConnectorInfo findTstConnectorInfo() throws Exception {
+        ConnectorInfoManager manager = getConnectorInfoManager();
+        for (ConnectorInfo candidate : manager.getConnectorInfos()) {
+            if ("org.identityconnectors.testconnector.TstConnector".equals(candidate
+                    .getConnectorKey().getConnectorName())
+                    && "1.0.0.0".equals(candidate.getConnectorKey().getBundleVersion())) {
+                return candidate;
+            }
+        }
+        throw new AssertionError("TstConnector not found");
+    }
+
+    @Test
+    public void testLegacyProtocol() throws Exception {
+        ConnectorInfo info = findTstConnectorInfo();
+        APIConfiguration api = info.createDefaultAPIConfiguration();
+        api.getConfigurationProperties().setPropertyValue("numResults", 500);
+        ConnectorFacade facade = ConnectorFacadeFactory.getInstance().newInstance(api);
+        RemoteFrameworkConnectionInfo connInfo =
+                ((RemoteConnectorInfoImpl) info).getRemoteConnectionInfo();
+        RemoteConnectionPoolManager.dispose(connInfo);
+        RemoteConnectionPoolManager.setMultiplexingEnabled(false);
+        try {
+            final List<ConnectorObject> results = new ArrayList<ConnectorObject>();
+            facade.search(ObjectClass.ACCOUNT, null, new ResultsHandler() {
+                @Override
+                public boolean handle(ConnectorObject obj) {
+                    results.add(obj);
+                    return true;
+                }
+            }, null);
+            Assert.assertEquals(results.size(), 500);
+            Assert.assertTrue(RemoteConnectionPoolManager.getMultiplexedConnections(connInfo)
+                    .isEmpty());
+            Assert.assertEquals(RemoteConnectionPoolManager.getPool(connInfo).getStatistics()
+                    .getNumIdle(), 1);
+        } finally {
+            RemoteConnectionPoolManager.setMultiplexingEnabled(true);
+            RemoteConnectionPoolManager.dispose(connInfo);
+        }
+    }
+
+    @Test
+    public void testConcurrentMultiplexedOpen() throws Exception {
+        ConnectorInfo info = findTstConnectorInfo();
+        final RemoteFrameworkConnectionInfo connInfo =
+                ((RemoteConnectorInfoImpl) info).getRemoteConnectionInfo();
+        RemoteConnectionPoolManager.dispose(connInfo);
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<RemoteMultiplexedConnection> opened =
+                Collections.synchronizedList(new ArrayList<RemoteMultiplexedConnection>());
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        opened.add(RemoteConnectionPoolManager.getMultiplexedConnection(connInfo));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        try {
+            // the threads which find no connection to share wait for those
+            // being opened instead of opening their own
+            Assert.assertEquals(opened.size(), threads.length);
+            Assert.assertFalse(opened.contains(null));
+            List<RemoteMultiplexedConnection> connections =
+                    RemoteConnectionPoolManager.getMultiplexedConnections(connInfo);
+            Assert.assertTrue(connections.size() <= RemoteConnectionPoolManager
+                    .getMaxMultiplexedConnections());
+            Assert.assertTrue(connections.containsAll(opened));
+        } finally {
+            RemoteConnectionPoolManager.dispose(connInfo);
+        }
+    }
+
+    @Test
+    public void testFlowControlledSession() throws Exception {
+        ConnectorInfo info = findTstConnectorInfo();
+        APIConfiguration api = info.createDefaultAPIConfiguration();
+        api.getConfigurationProperties().setPropertyValue("numResults", 1000);
+        ConnectorFacade facade = ConnectorFacadeFactory.getInstance().newInstance(api);
+        RemoteFrameworkConnectionInfo connInfo =
+                ((RemoteConnectorInfoImpl) info).getRemoteConnectionInfo();
+        RemoteConnectionPoolManager.dispose(connInfo);
+        RemoteConnectionPoolManager.setMultiplexingEnabled(false);
+        try {
+            final List<ConnectorObject> results = new ArrayList<ConnectorObject>();
+            facade.search(ObjectClass.ACCOUNT, null, new ResultsHandler() {
+                @Override
+                public boolean handle(ConnectorObject obj) {
+                    results.add(obj);
+                    return results.size() < 10;
+                }
+            }, null);
+            Assert.assertEquals(results.size(), 10);
+
+            // the credit granted to the stopped search must not get in the way
+            results.clear();
+            facade.search(ObjectClass.ACCOUNT, null, new ResultsHandler() {
+                @Override
+                public boolean handle(ConnectorObject obj) {
+                    results.add(obj);
+                    return true;
+                }
+            }, null);
+            Assert.assertEquals(results.size(), 1000);
+            for (int i = 0; i < results.size(); i++) {
+                Assert.assertEquals(results.get(i).getUid().getUidValue(), String.valueOf(i));
+            }
+
+            ObjectPool<RemoteFrameworkConnection> pool = RemoteConnectionPoolManager.getPool(connInfo);
+            Assert.assertEquals(pool.getStatistics().getNumIdle(), 1);
+            ObjectPoolEntry<RemoteFrameworkConnection> entry = pool.borrowObject();
+            try {
+                Assert.assertTrue(entry.getPooledObject().isFlowControl());
+                Assert.assertTrue(entry.getPooledObject().getStreamWindow() > 0);
+            } finally {
+                entry.close();
+            }
+        } finally {
+            RemoteConnectionPoolManager.setMultiplexingEnabled(true);
+            RemoteConnectionPoolManager.dispose(connInfo);
+        }
+    }
+
+    @Test
+    public void testBatchedSearch() throws Exception {
+        ConnectorInfo info = findTstConnectorInfo();
+        APIConfiguration api = info.createDefaultAPIConfiguration();
+        api.getConfigurationProperties().setPropertyValue("numResults", 1000);
+        ConnectorFacade facade = ConnectorFacadeFactory.getInstance().newInstance(api);
+        RemoteFrameworkConnectionInfo connInfo =
+                ((RemoteConnectorInfoImpl) info).getRemoteConnectionInfo();
+        int maxBatchSize = RemoteConnectionPoolManager.getMaxBatchSize();
+        RemoteConnectionPoolManager.dispose(connInfo);
+        RemoteConnectionPoolManager.setMaxBatchSize(7);
+        try {
+            for (boolean multiplexing : new boolean[] { false, true }) {
+                RemoteConnectionPoolManager.setMultiplexingEnabled(multiplexing);
+                final List<ConnectorObject> results = new ArrayList<ConnectorObject>();
+                facade.search(ObjectClass.ACCOUNT, null, new ResultsHandler() {
+                    @Override
+                    public boolean handle(ConnectorObject obj) {
+                        results.add(obj);
+                        return results.size() < 10;
+                    }
+                }, null);
+                Assert.assertEquals(results.size(), 10);
+
+                results.clear();
+                facade.search(ObjectClass.ACCOUNT, null, new ResultsHandler() {
+                    @Override
+                    public boolean handle(ConnectorObject obj) {
+                        results.add(obj);
+                        return true;
+                    }
+                }, null);
+                Assert.assertEquals(results.size(), 1000);
+                for (int i = 0; i < results.size(); i++) {
+                    Assert.assertEquals(results.get(i).getUid().getUidValue(), String.valueOf(i));
+                }
+            }
+
+            ObjectPool<RemoteFrameworkConnection> pool = RemoteConnectionPoolManager.getPool(connInfo);
+            ObjectPoolEntry<RemoteFrameworkConnection> entry = pool.borrowObject();
+            try {
+                Assert.assertEquals(entry.getPooledObject().getBatchSize(), 7);
+            } finally {
+                entry.close();
+            }
+        } finally {
+            RemoteConnectionPoolManager.setMaxBatchSize(maxBatchSize);
+            RemoteConnectionPoolManager.setMultiplexingEnabled(true);
+            RemoteConnectionPoolManager.dispose(connInfo);
+        }
+    }
+
+    @Test
+    public void testBatchSentOnTime() throws Exception {
+        ConnectorInfo info = findTstConnectorInfo();
+        APIConfiguration api = info.createDefaultAPIConfiguration();
+        api.getConfigurationProperties().setPropertyValue("numResults", 2);
+        ConnectorFacade facade = ConnectorFacadeFactory.getInstance().newInstance(api);
+        RemoteFrameworkConnectionInfo connInfo =
+                ((RemoteConnectorInfoImpl) info).getRemoteConnectionInfo();
+        RemoteConnectionPoolManager.dispose(connInfo);
+        RemoteConnectionPoolManager.setCompressionEnabled(true);
+        try {
+            for (boolean multiplexing : new boolean[] { false, true }) {
+                RemoteConnectionPoolManager.setMultiplexingEnabled(multiplexing);
+                final List<Long> arrivals = new ArrayList<Long>();
+                // the connector waits before each object
+                facade.search(ObjectClass.ACCOUNT, null, new ResultsHandler() {
+                    @Override
+                    public boolean handle(ConnectorObject obj) {
+                        arrivals.add(System.nanoTime());
+                        return true;
+                    }
+                }, new OperationOptionsBuilder().setOption("delay", 1000).build());
+                Assert.assertEquals(arrivals.size(), 2);
+                // the first object is sent without waiting for the second
+                Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(arrivals.get(1) - arrivals.get(0)) >= 500);
+            }
+        } finally {
+            RemoteConnectionPoolManager.setCompressionEnabled(false);
+            RemoteConnectionPoolManager.setMultiplexingEnabled(true);
+            RemoteConnectionPoolManager.dispose(connInfo);
+        }
+    }
+
+    @Test
+    public void testDictionarySearch() throws Exception {
+        ConnectorInfo info = findTstConnectorInfo();
+        APIConfiguration api = info.createDefaultAPIConfiguration();
+        api.getConfigurationProperties().setPropertyValue("numResults", 1000);
+        ConnectorFacade facade = ConnectorFacadeFactory.getInstance().newInstance(api);
+        RemoteFrameworkConnectionInfo connInfo =
+                ((RemoteConnectorInfoImpl) info).getRemoteConnectionInfo();
+        try {
+            for (boolean dictionary : new boolean[] { false, true }) {
+                RemoteConnectionPoolManager.dispose(connInfo);
+                RemoteConnectionPoolManager.setDictionaryEnabled(dictionary);
+                for (boolean multiplexing : new boolean[] { false, true }) {
+                    RemoteConnectionPoolManager.setMultiplexingEnabled(multiplexing);
+                    final List<ConnectorObject> results = new ArrayList<ConnectorObject>();
+                    facade.search(ObjectClass.ACCOUNT, null, new ResultsHandler() {
+                        @Override
+                        public boolean handle(ConnectorObject obj) {
+                            results.add(obj);
+                            return true;
+                        }
+                    }, null);
+                    Assert.assertEquals(results.size(), 1000);
+                    for (int i = 0; i < results.size(); i++) {
+                        ConnectorObject obj = results.get(i);
+                        Assert.assertEquals(obj.getUid().getUidValue(), String.valueOf(i));
+                        Assert.assertEquals(obj.getAttributeByName("myattribute49").getValue(),
+                                Collections.singletonList("myvaluevaluevalue49"));
+                    }
+                }
+
+                ObjectPool<RemoteFrameworkConnection> pool =
+                        RemoteConnectionPoolManager.getPool(connInfo);
+                ObjectPoolEntry<RemoteFrameworkConnection> entry = pool.borrowObject();
+                try {
+                    Assert.assertEquals(entry.getPooledObject().isDictionaryEnabled(), dictionary);
+                } finally {
+                    entry.close();
+                }
+            }
+        } finally {
+            RemoteConnectionPoolManager.setDictionaryEnabled(true);
+            RemoteConnectionPoolManager.setMultiplexingEnabled(true);
+            RemoteConnectionPoolManager.dispose(connInfo);
+        }
+    }
+
+    @Test
+    public void testCompactEncodingSearch() throws Exception {
+        ConnectorInfo info = findTstConnectorInfo();
+        APIConfiguration api = info.createDefaultAPIConfiguration();
+        api.getConfigurationProperties().setPropertyValue("numResults", 1000);
+        ConnectorFacade facade = ConnectorFacadeFactory.getInstance().newInstance(api);
+        RemoteFrameworkConnectionInfo connInfo =
+                ((RemoteConnectorInfoImpl) info).getRemoteConnectionInfo();
+        try {
+            for (boolean compact : new boolean[] { false, true }) {
+                RemoteConnectionPoolManager.dispose(connInfo);
+                RemoteConnectionPoolManager.setCompactEncodingEnabled(compact);
+                for (boolean multiplexing : new boolean[] { false, true }) {
+                    RemoteConnectionPoolManager.setMultiplexingEnabled(multiplexing);
+                    final List<ConnectorObject> results = new ArrayList<ConnectorObject>();
+                    facade.search(ObjectClass.ACCOUNT, null, new ResultsHandler() {
+                        @Override
+                        public boolean handle(ConnectorObject obj) {
+                            results.add(obj);
+                            return true;
+                        }
+                    }, null);
+                    Assert.assertEquals(results.size(), 1000);
+                    for (int i = 0; i < results.size(); i++) {
+                        ConnectorObject obj = results.get(i);
+                        Assert.assertEquals(obj.getUid().getUidValue(), String.valueOf(i));
+                        Assert.assertEquals(obj.getAttributeByName("myattribute49").getValue(),
+                                Collections.singletonList("myvaluevaluevalue49"));
+                    }
+                }
+
+                ObjectPool<RemoteFrameworkConnection> pool =
+                        RemoteConnectionPoolManager.getPool(connInfo);
+                ObjectPoolEntry<RemoteFrameworkConnection> entry = pool.borrowObject();
+                try {
+                    Assert.assertEquals(entry.getPooledObject().isCompactEncoding(), compact);
+                } finally {
+                    entry.close();
+                }
+            }
+        } finally {
+            RemoteConnectionPoolManager.setCompactEncodingEnabled(true);
+            RemoteConnectionPoolManager.setMultiplexingEnabled(true);
+            RemoteConnectionPoolManager.dispose(connInfo);
+        }
+    }
+
+    @Test
+    public void testPositionalObjectsSearch() throws Exception {
+        ConnectorInfo info = findTstConnectorInfo();
+        APIConfiguration api = info.createDefaultAPIConfiguration();
+        api.getConfigurationProperties().setPropertyValue("numResults", 1000);
+        ConnectorFacade facade = ConnectorFacadeFactory.getInstance().newInstance(api);
+        RemoteFrameworkConnectionInfo connInfo =
+                ((RemoteConnectorInfoImpl) info).getRemoteConnectionInfo();
+        try {
+            for (boolean positional : new boolean[] { false, true }) {
+                RemoteConnectionPoolManager.dispose(connInfo);
+                RemoteConnectionPoolManager.setPositionalObjectsEnabled(positional);
+                for (boolean multiplexing : new boolean[] { false, true }) {
+                    RemoteConnectionPoolManager.setMultiplexingEnabled(multiplexing);
+                    final List<ConnectorObject> results = new ArrayList<ConnectorObject>();
+                    facade.search(ObjectClass.ACCOUNT, null, new ResultsHandler() {
+                        @Override
+                        public boolean handle(ConnectorObject obj) {
+                            results.add(obj);
+                            return true;
+                        }
+                    }, null);
+                    Assert.assertEquals(results.size(), 1000);
+                    for (int i = 0; i < results.size(); i++) {
+                        ConnectorObject obj = results.get(i);
+                        Assert.assertEquals(obj.getUid().getUidValue(), String.valueOf(i));
+                        Assert.assertEquals(obj.getAttributeByName("myattribute49").getValue(),
+                                Collections.singletonList("myvaluevaluevalue49"));
+                    }
+                }
+
+                ObjectPool<RemoteFrameworkConnection> pool =
+                        RemoteConnectionPoolManager.getPool(connInfo);
+                ObjectPoolEntry<RemoteFrameworkConnection> entry = pool.borrowObject();
+                try {
+                    Assert.assertEquals(entry.getPooledObject().isPositionalObjectsEnabled(),
+                            positional);
+                } finally {
+                    entry.close();
+                }
+            }
+        } finally {
+            RemoteConnectionPoolManager.setPositionalObjectsEnabled(true);
+            RemoteConnectionPoolManager.setMultiplexingEnabled(true);
+            RemoteConnectionPoolManager.dispose(connInfo);
+        }
+    }
+
+    @Test
+    public void testFacadeDigest() throws Exception {
+        ConnectorInfo info = findTstConnectorInfo();
+        RemoteFrameworkConnectionInfo connInfo =
+                ((RemoteConnectorInfoImpl) info).getRemoteConnectionInfo();
+        ConnectorFacade[] facades = new ConnectorFacade[3];
+        int[] numResults = { 10, 20, 10 };
+        for (int i = 0; i < facades.length; i++) {
+            APIConfiguration api = info.createDefaultAPIConfiguration();
+            api.getConfigurationProperties().setPropertyValue("numResults", numResults[i]);
+            facades[i] = ConnectorFacadeFactory.getInstance().newInstance(api);
+        }
+        try {
+            for (boolean digest : new boolean[] { false, true }) {
+                RemoteConnectionPoolManager.dispose(connInfo);
+                RemoteConnectionPoolManager.setFacadeDigestEnabled(digest);
+                for (boolean multiplexing : new boolean[] { false, true }) {
+                    RemoteConnectionPoolManager.setMultiplexingEnabled(multiplexing);
+                    // the facades take turns over the same connection
+                    for (int round = 0; round < 2; round++) {
+                        for (int i = 0; i < facades.length; i++) {
+                            final List<ConnectorObject> results = new ArrayList<ConnectorObject>();
+                            facades[i].search(ObjectClass.ACCOUNT, null, new ResultsHandler() {
+                                @Override
+                                public boolean handle(ConnectorObject obj) {
+                                    results.add(obj);
+                                    return true;
+                                }
+                            }, null);
+                            Assert.assertEquals(results.size(), numResults[i]);
+                        }
+                    }
+                }
+
+                ObjectPool<RemoteFrameworkConnection> pool =
+                        RemoteConnectionPoolManager.getPool(connInfo);
+                ObjectPoolEntry<RemoteFrameworkConnection> entry = pool.borrowObject();
+                try {
+                    Assert.assertEquals(entry.getPooledObject().isFacadeDigestEnabled(), digest);
+                } finally {
+                    entry.close();
+                }
+            }
+        } finally {
+            RemoteConnectionPoolManager.setFacadeDigestEnabled(true);
+            RemoteConnectionPoolManager.setMultiplexingEnabled(true);
+            RemoteConnectionPoolManager.dispose(connInfo);
+        }
+    }
+
+    @Test
+    public void testFacadeDigestEviction() throws Exception {
+        ConnectorInfo info = findTstConnectorInfo();
+        RemoteFrameworkConnectionInfo connInfo =
+                ((RemoteConnectorInfoImpl) info).getRemoteConnectionInfo();
+        // more configurations than a connection remembers
+        ConnectorFacade[] facades = new ConnectorFacade[RemoteFrameworkConnection.MAX_FACADE_KEYS + 2];
+        for (int i = 0; i < facades.length; i++) {
+            APIConfiguration api = info.createDefaultAPIConfiguration();
+            api.getConfigurationProperties().setPropertyValue("numResults", i + 1);
+            facades[i] = ConnectorFacadeFactory.getInstance().newInstance(api);
+        }
+        // all of them, then some again, then the first ones which have been
+        // forgotten meanwhile, which makes both sides forget the least
+        // recently used ones, and the recently used ones again
+        List<Integer> order = new ArrayList<Integer>();
+        for (int i = 0; i < facades.length; i++) {
+            order.add(i);
+        }
+        for (int round = 0; round < 2; round++) {
+            for (int i = 2; i < facades.length / 2; i++) {
+                order.add(i);
+            }
+            if (round == 0) {
+                order.add(0);
+                order.add(1);
+            }
+        }
+        try {
+            for (boolean multiplexing : new boolean[] { false, true }) {
+                RemoteConnectionPoolManager.dispose(connInfo);
+                RemoteConnectionPoolManager.setMultiplexingEnabled(multiplexing);
+                // the client and the server forget the same configurations,
+                // the forgotten ones are sent again, the others by digest
+                for (int i : order) {
+                    final List<ConnectorObject> results = new ArrayList<ConnectorObject>();
+                    facades[i].search(ObjectClass.ACCOUNT, null, new ResultsHandler() {
+                        @Override
+                        public boolean handle(ConnectorObject obj) {
+                            results.add(obj);
+                            return true;
+                        }
+                    }, null);
+                    Assert.assertEquals(results.size(), i + 1);
+                }
+            }
+        } finally {
+            RemoteConnectionPoolManager.setMultiplexingEnabled(true);
+            RemoteConnectionPoolManager.dispose(connInfo);
+        }
+    }
+
+    @Test
+    public void testCompressedSearch() throws Exception {
+        ConnectorInfo info = findTstConnectorInfo();
+        APIConfiguration api = info.createDefaultAPIConfiguration();
+        api.getConfigurationProperties().setPropertyValue("numResults", 1000);
+        ConnectorFacade facade = ConnectorFacadeFactory.getInstance().newInstance(api);
+        RemoteFrameworkConnectionInfo connInfo =
+                ((RemoteConnectorInfoImpl) info).getRemoteConnectionInfo();
+        RemoteConnectionPoolManager.dispose(connInfo);
+        RemoteConnectionPoolManager.setCompressionEnabled(true);
+        try {
+            for (boolean multiplexing : new boolean[] { false, true }) {
+                RemoteConnectionPoolManager.setMultiplexingEnabled(multiplexing);
+                final List<ConnectorObject> results = new ArrayList<ConnectorObject>();
+                facade.search(ObjectClass.ACCOUNT, null, new ResultsHandler() {
+                    @Override
+                    public boolean handle(ConnectorObject obj) {
+                        results.add(obj);
+                        return true;
+                    }
+                }, null);
+                Assert.assertEquals(results.size(), 1000);
+                for (int i = 0; i < results.size(); i++) {
+                    Assert.assertEquals(results.get(i).getUid().getUidValue(), String.valueOf(i));
+                }
+            }
+
+            ObjectPool<RemoteFrameworkConnection> pool = RemoteConnectionPoolManager.getPool(connInfo);
+            ObjectPoolEntry<RemoteFrameworkConnection> entry = pool.borrowObject();
+            try {
+                Assert.assertTrue(entry.getPooledObject().isCompressed());
+            } finally {
+                entry.close();
+            }
+        } finally {
+            RemoteConnectionPoolManager.setCompressionEnabled(false);
+            RemoteConnectionPoolManager.setMultiplexingEnabled(true);
+            RemoteConnectionPoolManager.dispose(connInfo);
+        }
+    }
+
+    @Test
+    public void testAsyncOperations() throws Exception {
+        ConnectorInfo info = findTstConnectorInfo();
+        APIConfiguration api = info.createDefaultAPIConfiguration();
+        api.getConfigurationProperties().setPropertyValue("numResults", 1000);
+        AsyncConnectorFacade facade =
+                (AsyncConnectorFacade) ConnectorFacadeFactory.getInstance().newInstance(api);
+        RemoteFrameworkConnectionInfo connInfo =
+                ((RemoteConnectorInfoImpl) info).getRemoteConnectionInfo();
+        RemoteConnectionPoolManager.dispose(connInfo);
+        try {
+            for (boolean multiplexing : new boolean[] { true, false }) {
+                RemoteConnectionPoolManager.setMultiplexingEnabled(multiplexing);
+                AsyncFuture<Uid> uid =
+                        facade.createAsync(ObjectClass.ACCOUNT, CollectionUtil
+                                .<Attribute> newReadOnlySet(AttributeBuilder.build("a", "b")),
+                                new OperationOptionsBuilder().build());
+
+                final List<ConnectorObject> results = new ArrayList<ConnectorObject>();
+                final AtomicReference<SearchResult> callbackResult =
+                        new AtomicReference<SearchResult>();
+                final CountDownLatch latch = new CountDownLatch(1);
+                AsyncFuture<SearchResult> search =
+                        facade.searchAsync(ObjectClass.ACCOUNT, null, new ResultsHandler() {
+                            @Override
+                            public boolean handle(ConnectorObject obj) {
+                                results.add(obj);
+                                return true;
+                            }
+                        }, null);
+                search.addCallback(new AsyncCallback<SearchResult>() {
+                    @Override
+                    public void completed(SearchResult result) {
+                        callbackResult.set(result);
+                        latch.countDown();
+                    }
+
+                    @Override
+                    public void failed(Throwable exception) {
+                        latch.countDown();
+                    }
+                });
+
+                Assert.assertEquals(uid.get(30, TimeUnit.SECONDS).getUidValue(), "1.0");
+                SearchResult result = search.get(30, TimeUnit.SECONDS);
+                Assert.assertTrue(latch.await(30, TimeUnit.SECONDS));
+                Assert.assertSame(callbackResult.get(), result);
+                Assert.assertEquals(results.size(), 1000);
+                for (int i = 0; i < results.size(); i++) {
+                    Assert.assertEquals(results.get(i).getUid().getUidValue(), String.valueOf(i));
+                }
+            }
+        } finally {
+            RemoteConnectionPoolManager.setMultiplexingEnabled(true);
+            RemoteConnectionPoolManager.dispose(connInfo);
+        }
+    }
+
+    @Test
+    public void testAsyncSessionLimit() throws Exception {
+        ConnectorInfo info = findTstConnectorInfo();
+        APIConfiguration api = info.createDefaultAPIConfiguration();
+        api.getConfigurationProperties().setPropertyValue("numResults", 1);
+        AsyncConnectorFacade facade =
+                (AsyncConnectorFacade) ConnectorFacadeFactory.getInstance().newInstance(api);
+        RemoteFrameworkConnectionInfo connInfo =
+                ((RemoteConnectorInfoImpl) info).getRemoteConnectionInfo();
+        ObjectPoolConfiguration poolConfiguration = RemoteConnectionPoolManager.getPoolConfiguration();
+        ObjectPoolConfiguration limited = new ObjectPoolConfiguration(poolConfiguration);
+        limited.setMaxObjects(2);
+        limited.setMaxIdle(2);
+        limited.setMaxWait(100);
+        RemoteConnectionPoolManager.dispose(connInfo);
+        RemoteConnectionPoolManager.setMultiplexingEnabled(false);
+        RemoteConnectionPoolManager.setPoolConfiguration(limited);
+        try {
+            // more operations than connections, each longer than maxWait
+            final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+            List<AsyncFuture<SearchResult>> searches = new ArrayList<AsyncFuture<SearchResult>>();
+            for (int i = 0; i < 6; i++) {
+                searches.add(facade.searchAsync(ObjectClass.ACCOUNT, null, new ResultsHandler() {
+                    @Override
+                    public boolean handle(ConnectorObject obj) {
+                        threads.add(Thread.currentThread());
+                        return true;
+                    }
+                }, new OperationOptionsBuilder().setOption("delay", 300).build()));
+            }
+            // the operations wait for a thread instead of a connection
+            for (AsyncFuture<SearchResult> search : searches) {
+                search.get(30, TimeUnit.SECONDS);
+            }
+            Assert.assertTrue(threads.size() <= 2);
+        } finally {
+            RemoteConnectionPoolManager.setPoolConfiguration(poolConfiguration);
+            RemoteConnectionPoolManager.setMultiplexingEnabled(true);
+            RemoteConnectionPoolManager.dispose(connInfo);
+        }
+    }
+
+    @Test
+    public void testAsyncSearchCancel() throws Exception {
+        ConnectorInfo info = findTstConnectorInfo();
+        APIConfiguration api = info.createDefaultAPIConfiguration();
+        api.getConfigurationProperties().setPropertyValue("numResults", 1000);
+        AsyncConnectorFacade facade =
+                (AsyncConnectorFacade) ConnectorFacadeFactory.getInstance().newInstance(api);
+        RemoteFrameworkConnectionInfo connInfo =
+                ((RemoteConnectorInfoImpl) info).getRemoteConnectionInfo();
+        RemoteConnectionPoolManager.dispose(connInfo);
+        try {
+            final CountDownLatch first = new CountDownLatch(1);
+            final List<ConnectorObject> results = new ArrayList<ConnectorObject>();
+            AsyncFuture<SearchResult> search =
+                    facade.searchAsync(ObjectClass.ACCOUNT, null, new ResultsHandler() {
+                        @Override
+                        public boolean handle(ConnectorObject obj) {
+                            results.add(obj);
+                            first.countDown();
+                            return true;
+                        }
+                    }, new OperationOptionsBuilder().setOption("delay", 10).build());
+            Assert.assertTrue(first.await(30, TimeUnit.SECONDS));
+            Assert.assertTrue(search.cancel(false));
+            Assert.assertTrue(search.isCancelled());
+            Assert.assertTrue(search.isDone());
+            try {
+                search.get();
+                Assert.fail("The search was cancelled");
+            } catch (CancellationException e) {
+                // expected
+            }
+            Assert.assertTrue(results.size() < 1000);
+
+            // the connection stays usable after the stream is dropped
+            final List<ConnectorObject> more = new ArrayList<ConnectorObject>();
+            facade.searchAsync(ObjectClass.ACCOUNT, null, new ResultsHandler() {
+                @Override
+                public boolean handle(ConnectorObject obj) {
+                    more.add(obj);
+                    return true;
+                }
+            }, null).get(30, TimeUnit.SECONDS);
+            Assert.assertEquals(more.size(), 1000);
+        } finally {
+            RemoteConnectionPoolManager.dispose(connInfo);
+        }
+    }
+
+    @Test
+    public void testMultiplexedNestedSearch() throws Exception {
+        ConnectorInfo info = findTstConnectorInfo();
+        APIConfiguration api = info.createDefaultAPIConfiguration();
+        api.setProducerBufferSize(0);
+        api.getConfigurationProperties().setPropertyValue("numResults", 1000);
+        final ConnectorFacade facade = ConnectorFacadeFactory.getInstance().newInstance(api);
+        RemoteFrameworkConnectionInfo connInfo =
+                ((RemoteConnectorInfoImpl) info).getRemoteConnectionInfo();
+        RemoteConnectionPoolManager.dispose(connInfo);
+
+        final List<ConnectorObject> outer = new ArrayList<ConnectorObject>();
+        final List<ConnectorObject> nested = new ArrayList<ConnectorObject>();
+        facade.search(ObjectClass.ACCOUNT, null, new ResultsHandler() {
+            @Override
+            public boolean handle(ConnectorObject obj) {
+                if (outer.isEmpty()) {
+                    // runs while the outer search is still streaming
+                    facade.search(ObjectClass.ACCOUNT, null, new ResultsHandler() {
+                        @Override
+                        public boolean handle(ConnectorObject obj) {
+                            nested.add(obj);
+                            return nested.size() < 10;
+                        }
+                    }, null);
+                }
+                outer.add(obj);
+                return true;
+            }
+        }, null);
+        Assert.assertEquals(outer.size(), 1000);
+        Assert.assertEquals(nested.size(), 10);
+        // both searches shared one connection
+        Assert.assertEquals(RemoteConnectionPoolManager.getMultiplexedConnections(connInfo).size(), 1);
+        Assert.assertEquals(RemoteConnectionPoolManager.getPool(connInfo).getStatistics()
+                .getNumIdle(), 0);
+    }
 }
@@ -0,0 +1,123 @@
+/*
+ * ====================
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2017 ConnId. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of the Common Development
+ * and Distribution License("CDDL") (the "License").  You may not use this file
+ * except in compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.php
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ *
+ * When distributing the Covered Code, include this CDDL Header Notice in each file
+ * and include the License file at http://opensource.org/licenses/cddl1.php.
+ * If applicable, add the following below this CDDL Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ * ====================
+ */
+package org.identityconnectors.framework.impl.api.local;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.identityconnectors.common.pooling.ObjectPoolConfiguration;
+
+/**
+ * Measures the borrow and return throughput of an {@link ObjectPool} of
+ * {@link #MAX_OBJECTS} objects with 1 to {@link #MAX_THREADS} threads, and how
+ * evenly the objects are shared between the threads.
+ * <p/>
+ * Not part of the test suite, run the {@link #main} method by hand.
+ */
+public class ObjectPoolBenchmark {
+
+    private static final int MAX_OBJECTS = 10;
+
+    private static final int MAX_THREADS = 128;
+
+    private static final long DURATION_MILLIS = 2000;
+
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) throws Exception {
+        for (int round = 0; round < ROUNDS; round++) {
+            for (int threads = 1; threads <= MAX_THREADS; threads *= 2) {
+                run(threads);
+            }
+        }
+    }
+
+    private static void run(int numThreads) throws Exception {
+        ObjectPoolConfiguration config = new ObjectPoolConfiguration();
+        config.setMaxObjects(MAX_OBJECTS);
+        config.setMaxIdle(MAX_OBJECTS);
+        config.setMinIdle(0);
+        config.setMaxWait(60);
+        final ObjectPool<Object> pool = new ObjectPool<Object>(new ObjectPoolHandler<Object>() {
+            public ObjectPoolConfiguration validate(ObjectPoolConfiguration original) {
+                ObjectPoolConfiguration configuration = new ObjectPoolConfiguration(original);
+                configuration.validate();
+                return configuration;
+            }
+
+            public Object makeObject() {
+                return new Object();
+            }
+
+            public void testObject(Object object) {
+            }
+
+            public void disposeObject(Object object) {
+            }
+
+            public void shutdown() {
+            }
+        }, config);
+
+        final long[] operations = new long[numThreads];
+        final CountDownLatch start = new CountDownLatch(1);
+        final long end = System.currentTimeMillis() + DURATION_MILLIS;
+        Thread[] threads = new Thread[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            final int id = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    long count = 0;
+                    try {
+                        start.await();
+                        while (System.currentTimeMillis() < end) {
+                            for (int j = 0; j < 100; j++) {
+                                pool.borrowObject().close();
+                            }
+                            count += 100;
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                    operations[id] = count;
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        pool.shutdown();
+        long total = 0;
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        for (long count : operations) {
+            total += count;
+            min = Math.min(min, count);
+            max = Math.max(max, count);
+        }
+        System.out.println(numThreads + " threads: " + (total * 1000 / DURATION_MILLIS)
+                + " borrow/return per second, " + min + " to " + max + " per thread");
+    }
+}
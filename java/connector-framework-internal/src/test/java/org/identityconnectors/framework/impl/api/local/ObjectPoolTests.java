@@ -22,6 +22,11 @@
  */
 package org.identityconnectors.framework.impl.api.local;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 import org.identityconnectors.framework.common.serializer.SerializerUtil;
 import org.testng.Assert;
 import org.testng.annotations.Test;
@@ -34,7 +39,7 @@ public class ObjectPoolTests {
 
     private class MyTestConnection  {
 
-        private boolean _isGood = true;
+        private volatile boolean _isGood = true;
 
         @Test
 		public void test() {
@@ -54,7 +59,8 @@ public class ObjectPoolTests {
 
     private class MyTestConnectionFactory implements ObjectPoolHandler<MyTestConnection> {
         private boolean _createBadConnection = false;
-        private int _totalCreatedConnections = 0;
+        private volatile int _totalCreatedConnections = 0;
+        private volatile int _totalTests = 0;
 
         @Override
         public ObjectPoolConfiguration validate(ObjectPoolConfiguration original) {
@@ -76,6 +82,7 @@ public class ObjectPoolTests {
         @Test
         @Override
 		public void testObject(MyTestConnection object) {
+            _totalTests++;
             object.test();
         }
         @Override
@@ -87,6 +94,10 @@ public class ObjectPoolTests {
             return _totalCreatedConnections;
         }
 
+        public int getTotalTests() {
+            return _totalTests;
+        }
+
 
         public void setCreateBadConnection(boolean v) {
             _createBadConnection = v;
@@ -174,7 +185,8 @@ public class ObjectPoolTests {
         ObjectPoolConfiguration config = new ObjectPoolConfiguration();
         config.setMaxObjects(MAX_CONNECTIONS);
         config.setMaxIdle(MAX_CONNECTIONS);
-        config.setMinIdle(MAX_CONNECTIONS);
+        // no pre-warming, count the connections made by the borrowers
+        config.setMinIdle(0);
         config.setMinEvictableIdleTimeMillis(60*1000);
         config.setMaxWait(60*1000);
         MyTestConnectionFactory fact = new MyTestConnectionFactory();
@@ -236,6 +248,318 @@ public class ObjectPoolTests {
         Assert.assertEquals(true, conn4.getPooledObject().isGood());
     }
 
+    @Test
+    public void testWaitingThreadsServedInOrder() throws Exception {
+        ObjectPoolConfiguration config = new ObjectPoolConfiguration();
+        config.setMaxObjects(1);
+        config.setMaxIdle(1);
+        config.setMinIdle(0);
+        MyTestConnectionFactory fact = new MyTestConnectionFactory();
+
+        final ObjectPool<MyTestConnection> pool = new ObjectPool<MyTestConnection>(fact, config);
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        ObjectPoolEntry<MyTestConnection> conn = pool.borrowObject();
+        Thread[] threads = new Thread[3];
+        for (int i = 0; i < threads.length; i++) {
+            final int id = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        ObjectPoolEntry<MyTestConnection> entry = pool.borrowObject();
+                        order.add(id);
+                        entry.close();
+                    } catch (Exception e) {
+                        order.add(-1);
+                    }
+                }
+            };
+            threads[i].start();
+            // queue the threads one after the other
+            long timeout = System.currentTimeMillis() + 5000;
+            while (threads[i].getState() != Thread.State.TIMED_WAITING
+                    && System.currentTimeMillis() < timeout) {
+                Thread.sleep(10);
+            }
+        }
+        conn.close();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        // the waiting threads are woken up one after the other, in order
+        Assert.assertEquals(order, Arrays.asList(0, 1, 2));
+        Assert.assertEquals(fact.getTotalCreatedConnections(), 1);
+        pool.shutdown();
+    }
+
+    @Test
+    public void testValidationInterval() throws Exception {
+        ObjectPoolConfiguration config = new ObjectPoolConfiguration();
+        config.setValidationIntervalMillis(60 * 1000);
+        MyTestConnectionFactory fact = new MyTestConnectionFactory();
+
+        ObjectPool<MyTestConnection> pool = new ObjectPool<MyTestConnection>(fact, config);
+        // a new object counts as tested, and it stays so for the interval
+        for (int i = 0; i < 3; i++) {
+            pool.borrowObject().close();
+        }
+        Assert.assertEquals(fact.getTotalCreatedConnections(), 1);
+        Assert.assertEquals(fact.getTotalTests(), 0);
+        pool.shutdown();
+
+        config.setValidationIntervalMillis(0);
+        fact = new MyTestConnectionFactory();
+        pool = new ObjectPool<MyTestConnection>(fact, config);
+        for (int i = 0; i < 3; i++) {
+            pool.borrowObject().close();
+        }
+        Assert.assertEquals(fact.getTotalTests(), 3);
+        pool.shutdown();
+    }
+
+    @Test
+    public void testTestOnReturn() throws Exception {
+        ObjectPoolConfiguration config = new ObjectPoolConfiguration();
+        config.setTestOnBorrow(false);
+        config.setTestOnReturn(true);
+        MyTestConnectionFactory fact = new MyTestConnectionFactory();
+
+        ObjectPool<MyTestConnection> pool = new ObjectPool<MyTestConnection>(fact, config);
+        ObjectPoolEntry<MyTestConnection> conn = pool.borrowObject();
+        Assert.assertEquals(fact.getTotalTests(), 0);
+        conn.close();
+        Assert.assertEquals(fact.getTotalTests(), 1);
+        Assert.assertEquals(pool.getStatistics().getNumIdle(), 1);
+
+        // a broken object is not kept
+        conn = pool.borrowObject();
+        conn.getPooledObject().dispose();
+        conn.close();
+        Assert.assertEquals(fact.getTotalTests(), 2);
+        Assert.assertEquals(pool.getStatistics().getNumIdle(), 0);
+        Assert.assertNotSame(pool.borrowObject(), conn);
+        Assert.assertEquals(fact.getTotalCreatedConnections(), 2);
+        pool.shutdown();
+    }
+
+    @Test
+    public void testStatistics() throws Exception {
+        ObjectPoolConfiguration config = new ObjectPoolConfiguration();
+        config.setMaxObjects(2);
+        config.setMaxIdle(2);
+        config.setMinIdle(0);
+        config.setMaxWait(0);
+        MyTestConnectionFactory fact = new MyTestConnectionFactory();
+
+        ObjectPool<MyTestConnection> pool = new ObjectPool<MyTestConnection>(fact, config);
+        ObjectPoolEntry<MyTestConnection> conn1 = pool.borrowObject();
+        ObjectPoolEntry<MyTestConnection> conn2 = pool.borrowObject();
+        try {
+            pool.borrowObject();
+            Assert.fail("expected exception");
+        } catch (ConnectorException e) {
+            Assert.assertEquals(e.getMessage(), "TimeOut");
+        }
+        conn2.getPooledObject().dispose();
+        conn2.close();
+        conn1.close();
+        // the first idle object fails the test, and is replaced by the other
+        pool.borrowObject().close();
+
+        Statistics stats = pool.getStatistics();
+        Assert.assertEquals(stats.getBorrowCount(), 3);
+        Assert.assertEquals(stats.getExhaustedCount(), 1);
+        Assert.assertEquals(stats.getTimeoutCount(), 1);
+        Assert.assertEquals(stats.getCreateCount(), 2);
+        Assert.assertEquals(stats.getCreateFailureCount(), 0);
+        Assert.assertEquals(stats.getValidateCount(), 4);
+        Assert.assertEquals(stats.getValidateFailureCount(), 1);
+        Assert.assertEquals(stats.getDisposeCount(), 1);
+        Assert.assertEquals(stats.getNumWaiting(), 0);
+        long borrows = 0;
+        for (long count : stats.getBorrowTimeHistogram()) {
+            borrows += count;
+        }
+        Assert.assertEquals(borrows, 3);
+        Assert.assertEquals(stats.toMap().get("borrowCount"), 3L);
+
+        pool.shutdown();
+        Assert.assertEquals(pool.getStatistics().getDisposeCount(), 2);
+    }
+
+    @Test
+    public void testWaitTimeout() throws Exception {
+        ObjectPoolConfiguration config = new ObjectPoolConfiguration();
+        config.setMaxObjects(1);
+        config.setMaxIdle(1);
+        config.setMinIdle(0);
+        config.setMaxWait(0);
+        MyTestConnectionFactory fact = new MyTestConnectionFactory();
+
+        ObjectPool<MyTestConnection> pool = new ObjectPool<MyTestConnection>(fact, config);
+        ObjectPoolEntry<MyTestConnection> conn = pool.borrowObject();
+        try {
+            pool.borrowObject();
+            Assert.fail("expected exception");
+        } catch (ConnectorException e) {
+            Assert.assertEquals(e.getMessage(), "TimeOut");
+        }
+        conn.close();
+        // the permit of the timed out thread is not lost
+        Assert.assertSame(pool.borrowObject(), conn);
+        pool.shutdown();
+    }
+
+    @Test
+    public void testEvictor() throws Exception {
+        ObjectPoolConfiguration config = new ObjectPoolConfiguration();
+        config.setMaxObjects(3);
+        config.setMaxIdle(2);
+        config.setMinIdle(1);
+        config.setMinEvictableIdleTimeMillis(200);
+        config.setTimeBetweenEvictionRunsMillis(20);
+        MyTestConnectionFactory fact = new MyTestConnectionFactory();
+
+        ObjectPool<MyTestConnection> pool = new ObjectPool<MyTestConnection>(fact, config);
+        try {
+            // minIdle objects are created in the background
+            waitForIdle(pool, 1);
+            Assert.assertEquals(fact.getTotalCreatedConnections(), 1);
+
+            ObjectPoolEntry<MyTestConnection> conn1 = pool.borrowObject();
+            ObjectPoolEntry<MyTestConnection> conn2 = pool.borrowObject();
+            ObjectPoolEntry<MyTestConnection> conn3 = pool.borrowObject();
+            Assert.assertEquals(fact.getTotalCreatedConnections(), 3);
+            conn1.close();
+            conn2.close();
+            conn3.close();
+
+            // the evictor disposes the old objects, down to minIdle
+            waitForIdle(pool, 1);
+            Assert.assertEquals(fact.getTotalCreatedConnections(), 3);
+
+            // and replaces the idle objects which fail the test
+            ObjectPoolEntry<MyTestConnection> conn4 = pool.borrowObject();
+            conn4.close();
+            conn4.getPooledObject().dispose();
+            long timeout = System.currentTimeMillis() + 5000;
+            while (fact.getTotalCreatedConnections() < 4 && System.currentTimeMillis() < timeout) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(fact.getTotalCreatedConnections(), 4);
+            waitForIdle(pool, 1);
+        } finally {
+            pool.shutdown();
+        }
+        Assert.assertEquals(pool.getStatistics().getNumIdle(), 0);
+    }
+
+    @Test
+    public void testEvictHealthyIdleObjects() throws Exception {
+        ObjectPoolConfiguration config = new ObjectPoolConfiguration();
+        config.setMaxIdle(10);
+        config.setMinIdle(0);
+        config.setTimeBetweenEvictionRunsMillis(60 * 1000);
+        MyTestConnectionFactory fact = new MyTestConnectionFactory();
+
+        final ObjectPool<MyTestConnection> pool = new ObjectPool<MyTestConnection>(fact, config);
+        try {
+            ObjectPoolEntry<MyTestConnection> conn1 = pool.borrowObject();
+            ObjectPoolEntry<MyTestConnection> conn2 = pool.borrowObject();
+            ObjectPoolEntry<MyTestConnection> conn3 = pool.borrowObject();
+            conn1.close();
+            conn2.close();
+            conn3.close();
+            int tests = fact.getTotalTests();
+
+            // the objects which pass the test go back to the idle queue, one
+            // pass must still test each of them only once
+            Thread evictor = new Thread() {
+                @Override
+                public void run() {
+                    pool.evict();
+                }
+            };
+            evictor.setDaemon(true);
+            evictor.start();
+            evictor.join(5000);
+            Assert.assertFalse(evictor.isAlive());
+            Assert.assertEquals(fact.getTotalTests() - tests, 3);
+            Assert.assertEquals(pool.getStatistics().getNumIdle(), 3);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        ObjectPoolConfiguration config = new ObjectPoolConfiguration();
+        config.setValidationIntervalMillis(60 * 1000);
+        MyTestConnectionFactory fact = new MyTestConnectionFactory();
+
+        ObjectPool<MyTestConnection> pool = new ObjectPool<MyTestConnection>(fact, config);
+        try {
+            // an invalidated object is tested on return, and kept if it passes
+            ObjectPoolEntry<MyTestConnection> conn = pool.borrowObject();
+            conn.invalidate();
+            conn.close();
+            Assert.assertEquals(fact.getTotalTests(), 1);
+            Assert.assertEquals(pool.getStatistics().getNumIdle(), 1);
+
+            // a broken one is disposed instead of being handed out untested
+            conn = pool.borrowObject();
+            Assert.assertEquals(fact.getTotalTests(), 1);
+            conn.getPooledObject().dispose();
+            conn.invalidate();
+            conn.close();
+            Assert.assertEquals(fact.getTotalTests(), 2);
+            Assert.assertEquals(pool.getStatistics().getNumIdle(), 0);
+            conn = pool.borrowObject();
+            Assert.assertTrue(conn.getPooledObject().isGood());
+            conn.close();
+            Assert.assertEquals(fact.getTotalCreatedConnections(), 2);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testPrewarm() throws Exception {
+        ObjectPoolConfiguration config = new ObjectPoolConfiguration();
+        config.setMaxObjects(3);
+        config.setMaxIdle(3);
+        config.setMinIdle(2);
+        MyTestConnectionFactory fact = new MyTestConnectionFactory();
+
+        ObjectPool<MyTestConnection> pool = new ObjectPool<MyTestConnection>(fact, config);
+        try {
+            // the first borrower takes an object of the warm-up instead of
+            // creating its own
+            pool.borrowObject().close();
+            // minIdle objects are created without an evictor
+            waitForIdle(pool, 2);
+            Assert.assertEquals(fact.getTotalCreatedConnections(), 2);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Waits until the pool has no borrowed objects and the given number of
+     * idle ones. Objects being tested by the evictor count as borrowed.
+     */
+    private void waitForIdle(ObjectPool<?> pool, int numIdle) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + 5000;
+        Statistics stats = pool.getStatistics();
+        while ((stats.getNumIdle() != numIdle || stats.getNumActive() != 0)
+                && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+            stats = pool.getStatistics();
+        }
+        Assert.assertEquals(stats.getNumIdle(), numIdle);
+        Assert.assertEquals(stats.getNumActive(), 0);
+    }
+
     @Test
     public void testCreateBadConnection()
         throws Exception
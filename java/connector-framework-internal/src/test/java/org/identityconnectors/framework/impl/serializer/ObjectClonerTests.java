@@ -0,0 +1,160 @@
+/*
+ * ====================
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2017 ConnId. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of the Common Development
+ * and Distribution License("CDDL") (the "License").  You may not use this file
+ * except in compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.php
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ *
+ * When distributing the Covered Code, include this CDDL Header Notice in each file
+ * and include the License file at http://opensource.org/licenses/cddl1.php.
+ * If applicable, add the following below this CDDL Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ * ====================
+ */
+package org.identityconnectors.framework.impl.serializer;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.identityconnectors.common.CollectionUtil;
+import org.identityconnectors.common.pooling.ObjectPoolConfiguration;
+import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.api.ConnectorKey;
+import org.identityconnectors.framework.api.operations.APIOperation;
+import org.identityconnectors.framework.api.operations.CreateApiOp;
+import org.identityconnectors.framework.common.FrameworkUtil;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.serializer.SerializerUtil;
+import org.identityconnectors.framework.impl.api.APIConfigurationImpl;
+import org.identityconnectors.framework.impl.api.ConfigurationPropertiesImpl;
+import org.identityconnectors.framework.impl.api.ConfigurationPropertyImpl;
+import org.identityconnectors.framework.impl.api.ConnectorMessagesImpl;
+import org.identityconnectors.framework.impl.api.remote.RemoteConnectorInfoImpl;
+import org.testng.annotations.Test;
+
+public class ObjectClonerTests {
+
+    private Object cloneObject(Object o) {
+        return SerializerUtil.cloneObject(o);
+    }
+
+    private APIConfigurationImpl newAPIConfiguration() {
+        ConfigurationPropertyImpl prop1 = new ConfigurationPropertyImpl();
+        prop1.setName("foo");
+        prop1.setOrder(1);
+        prop1.setConfidential(true);
+        prop1.setHelpMessageKey("help key");
+        prop1.setType(String[].class);
+        prop1.setValue(new String[] { "bar", null });
+        Set<Class<? extends APIOperation>> operations = new HashSet<Class<? extends APIOperation>>();
+        operations.add(CreateApiOp.class);
+        prop1.setOperations(operations);
+
+        ConfigurationPropertyImpl prop2 = new ConfigurationPropertyImpl();
+        prop2.setName("password");
+        prop2.setOrder(2);
+        prop2.setType(GuardedString.class);
+        prop2.setValue(new GuardedString("secret".toCharArray()));
+
+        ConfigurationPropertyImpl prop3 = new ConfigurationPropertyImpl();
+        prop3.setName("options");
+        prop3.setOrder(3);
+        prop3.setType(Map.class);
+        prop3.setValue(CollectionUtil.newMap("a", Arrays.asList(1L, 2L), "b",
+                CollectionUtil.newCaseInsensitiveSet()));
+
+        ConfigurationPropertiesImpl props = new ConfigurationPropertiesImpl();
+        props.setProperties(CollectionUtil.newList(prop3, prop1, prop2));
+
+        APIConfigurationImpl config = new APIConfigurationImpl();
+        config.setConfigurationProperties(props);
+        config.setConnectorPoolingSupported(true);
+        config.setProducerBufferSize(200);
+        config.setSupportedOperations(FrameworkUtil.allAPIOperations());
+        config.setTimeout(CreateApiOp.class, 6);
+        return config;
+    }
+
+    @Test
+    public void testSameAsSerialization() {
+        RemoteConnectorInfoImpl v1 = new RemoteConnectorInfoImpl();
+        ConnectorMessagesImpl messages = new ConnectorMessagesImpl();
+        messages.getCatalogs().put(Locale.ENGLISH, CollectionUtil.newMap("key", "value"));
+        v1.setMessages(messages);
+        v1.setConnectorKey(new ConnectorKey("bundle", "1.0", "connector"));
+        v1.setConnectorCategoryKey("LDAP");
+        v1.setDefaultAPIConfiguration(newAPIConfiguration());
+
+        Object expected =
+                SerializerUtil.deserializeBinaryObject(SerializerUtil.serializeBinaryObject(v1));
+        Object actual = cloneObject(v1);
+        assertEquals(actual.getClass(), expected.getClass());
+        assertEquals(SerializerUtil.serializeXmlObject(actual, false), SerializerUtil
+                .serializeXmlObject(expected, false));
+    }
+
+    @Test(expectedExceptions = ConnectorException.class)
+    public void testUnsupportedValue() {
+        APIConfigurationImpl config = newAPIConfiguration();
+        config.getConfigurationProperties().setPropertyValue("foo", new Object[] { this });
+        cloneObject(config);
+    }
+
+    @Test
+    public void testSharedLeaves() {
+        ConfigurationPropertyImpl prop = new ConfigurationPropertyImpl();
+        prop.setName("foo");
+        prop.setType(String[].class);
+        prop.setValue(new String[] { "bar" });
+
+        ConfigurationPropertiesImpl props = new ConfigurationPropertiesImpl();
+        props.setProperties(Collections.singletonList(prop));
+
+        APIConfigurationImpl config = new APIConfigurationImpl();
+        config.setConfigurationProperties(props);
+        config.setConnectorPoolConfiguration(new ObjectPoolConfiguration());
+        config.setSupportedOperations(FrameworkUtil.allAPIOperations());
+
+        RemoteConnectorInfoImpl v1 = new RemoteConnectorInfoImpl();
+        v1.setMessages(new ConnectorMessagesImpl());
+        v1.setConnectorKey(new ConnectorKey("bundle", "1.0", "connector"));
+        v1.setDefaultAPIConfiguration(config);
+
+        RemoteConnectorInfoImpl v2 = (RemoteConnectorInfoImpl) cloneObject(v1);
+        APIConfigurationImpl config2 = v2.getDefaultAPIConfiguration();
+        ConfigurationPropertyImpl prop2 =
+                (ConfigurationPropertyImpl) config2.getConfigurationProperties().getProperty("foo");
+
+        assertSame(v2.getConnectorKey(), v1.getConnectorKey());
+        assertSame(config2.getConnectorInfo(), v2);
+        assertSame(config2.getConfigurationProperties().getParent(), config2);
+        assertSame(prop2.getParent(), config2.getConfigurationProperties());
+        assertSame(prop2.getType(), String[].class);
+        assertNotSame(config2.getConnectorPoolConfiguration(), config
+                .getConnectorPoolConfiguration());
+        assertNotSame(prop2.getValue(), prop.getValue());
+        assertSame(((String[]) prop2.getValue())[0], ((String[]) prop.getValue())[0]);
+        assertEquals(config2.getSupportedOperations(), FrameworkUtil.allAPIOperations());
+        assertEquals(config2.getTimeoutMap(), config.getTimeoutMap());
+        assertEquals(new ArrayList<Object>(config2.getConfigurationProperties().getPropertyNames()),
+                Collections.singletonList("foo"));
+    }
+}
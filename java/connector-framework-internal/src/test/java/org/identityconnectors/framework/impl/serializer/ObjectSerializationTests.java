@@ -40,6 +40,7 @@ import java.math.BigInteger;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -120,6 +121,7 @@ import org.identityconnectors.framework.impl.api.remote.messages.OperationReques
 import org.identityconnectors.framework.impl.api.remote.messages.OperationRequestMoreData;
 import org.identityconnectors.framework.impl.api.remote.messages.OperationRequestStopData;
 import org.identityconnectors.framework.impl.api.remote.messages.OperationResponseEnd;
+import org.identityconnectors.framework.impl.api.remote.messages.OperationResponseBatch;
 import org.identityconnectors.framework.impl.api.remote.messages.OperationResponsePart;
 import org.identityconnectors.framework.impl.api.remote.messages.OperationResponsePause;
 
@@ -423,6 +425,10 @@ public class ObjectSerializationTests {
         v1.setMaxWait(3);
         v1.setMinEvictableIdleTimeMillis(4);
         v1.setMinIdle(5);
+        v1.setTimeBetweenEvictionRunsMillis(6);
+        v1.setTestOnBorrow(false);
+        v1.setValidationIntervalMillis(7);
+        v1.setTestOnReturn(true);
 
         ObjectPoolConfiguration v2 =
             (ObjectPoolConfiguration)cloneObject(v1);
@@ -434,6 +440,10 @@ public class ObjectSerializationTests {
         assertEquals(3, v2.getMaxWait());
         assertEquals(4, v2.getMinEvictableIdleTimeMillis());
         assertEquals(5, v2.getMinIdle());
+        assertEquals(6, v2.getTimeBetweenEvictionRunsMillis());
+        assertFalse(v2.isTestOnBorrow());
+        assertEquals(7, v2.getValidationIntervalMillis());
+        assertTrue(v2.isTestOnReturn());
     }
 
     @Test
@@ -916,6 +926,50 @@ public class ObjectSerializationTests {
         HelloRequest v2 = (HelloRequest)cloneObject(v1);
         Assert.assertNotNull(v2);
         Assert.assertEquals(v2.getInfoLevel(),HelloRequest.CONNECTOR_INFO);
+        Assert.assertFalse(v2.isMultiplex());
+
+        v1 = new HelloRequest(HelloRequest.SERVER_INFO, HelloRequest.MULTIPLEX);
+        v2 = (HelloRequest)cloneObject(v1);
+        Assert.assertEquals(v2.getInfoLevel(),HelloRequest.SERVER_INFO);
+        Assert.assertTrue(v2.isMultiplex());
+        Assert.assertFalse(v2.isFlowControl());
+
+        v1 = new HelloRequest(0, HelloRequest.SESSION | HelloRequest.FLOW_CONTROL);
+        v2 = (HelloRequest)cloneObject(v1);
+        Assert.assertTrue(v2.isSession());
+        Assert.assertTrue(v2.isFlowControl());
+        Assert.assertFalse(v2.isMultiplex());
+        Assert.assertEquals(v2.getBatchSize(), 0);
+
+        v1 = new HelloRequest(0, HelloRequest.SESSION | HelloRequest.COMPRESSION, 100);
+        v2 = (HelloRequest)cloneObject(v1);
+        Assert.assertTrue(v2.isSession());
+        Assert.assertTrue(v2.isCompression());
+        Assert.assertFalse(v2.isDictionary());
+        Assert.assertEquals(v2.getBatchSize(), 100);
+
+        v1 = new HelloRequest(0, HelloRequest.MULTIPLEX | HelloRequest.DICTIONARY);
+        v2 = (HelloRequest)cloneObject(v1);
+        Assert.assertTrue(v2.isDictionary());
+        Assert.assertFalse(v2.isCompression());
+        Assert.assertFalse(v2.isCompactEncoding());
+
+        v1 = new HelloRequest(0, HelloRequest.SESSION | HelloRequest.COMPACT_ENCODING);
+        v2 = (HelloRequest)cloneObject(v1);
+        Assert.assertTrue(v2.isCompactEncoding());
+        Assert.assertFalse(v2.isDictionary());
+        Assert.assertFalse(v2.isPositionalObjects());
+
+        v1 = new HelloRequest(0, HelloRequest.SESSION | HelloRequest.POSITIONAL_OBJECTS);
+        v2 = (HelloRequest)cloneObject(v1);
+        Assert.assertTrue(v2.isPositionalObjects());
+        Assert.assertFalse(v2.isCompactEncoding());
+        Assert.assertFalse(v2.isFacadeDigest());
+
+        v1 = new HelloRequest(0, HelloRequest.MULTIPLEX | HelloRequest.FACADE_DIGEST);
+        v2 = (HelloRequest)cloneObject(v1);
+        Assert.assertTrue(v2.isFacadeDigest());
+        Assert.assertFalse(v2.isPositionalObjects());
     }
 
     @Test
@@ -968,6 +1022,28 @@ public class ObjectSerializationTests {
         assertEquals(CreateApiOp.class, v2.getOperation());
         assertEquals("mymethodName", v2.getOperationMethodName());
         assertEquals(args, v2.getArguments());
+        assertEquals(0, v2.getRequestId());
+
+        v1 = new OperationRequest(7, v1.getConnectorKey(), v1.getConnectorFacadeKey(),
+                CreateApiOp.class, "mymethodName", args);
+        v2 = (OperationRequest)cloneObject(v1);
+        assertEquals(7, v2.getRequestId());
+        assertEquals(0, v2.getWindow());
+        assertEquals(args, v2.getArguments());
+
+        v1 = new OperationRequest(0, 400, v1.getConnectorKey(), v1.getConnectorFacadeKey(),
+                CreateApiOp.class, "mymethodName", args);
+        v2 = (OperationRequest)cloneObject(v1);
+        assertEquals(0, v2.getRequestId());
+        assertEquals(400, v2.getWindow());
+        assertNull(v2.getConnectorFacadeDigest());
+
+        v1 = new OperationRequest(3, 0, v1.getConnectorKey(), null, "digest",
+                CreateApiOp.class, "mymethodName", args);
+        v2 = (OperationRequest)cloneObject(v1);
+        assertNull(v2.getConnectorFacadeKey());
+        assertEquals("digest", v2.getConnectorFacadeDigest());
+        assertEquals(args, v2.getArguments());
     }
 
     @Test
@@ -975,6 +1051,9 @@ public class ObjectSerializationTests {
         OperationResponseEnd v1 = new OperationResponseEnd();
         OperationResponseEnd v2 = (OperationResponseEnd)cloneObject(v1);
         assertNotNull(v2);
+        assertEquals(0, v2.getRequestId());
+        v2 = (OperationResponseEnd)cloneObject(new OperationResponseEnd(3));
+        assertEquals(3, v2.getRequestId());
     }
     @Test
     public void testOperationResponsePart() {
@@ -983,6 +1062,25 @@ public class ObjectSerializationTests {
         OperationResponsePart v2 = (OperationResponsePart)cloneObject(v1);
         assertNotNull(v2.getException());
         assertEquals("bar", v2.getResult());
+        assertEquals(0, v2.getRequestId());
+        v2 = (OperationResponsePart)cloneObject(new OperationResponsePart(5, ex, "bar"));
+        assertEquals(5, v2.getRequestId());
+        assertEquals("bar", v2.getResult());
+    }
+
+    @Test
+    public void testOperationResponseBatch() {
+        List<Object> results = new ArrayList<Object>();
+        results.add("foo");
+        results.add(null);
+        results.add(new Uid("bar"));
+        OperationResponseBatch v1 = new OperationResponseBatch(results);
+        OperationResponseBatch v2 = (OperationResponseBatch)cloneObject(v1);
+        assertEquals(0, v2.getRequestId());
+        assertEquals(results, v2.getResults());
+        v2 = (OperationResponseBatch)cloneObject(new OperationResponseBatch(6, results));
+        assertEquals(6, v2.getRequestId());
+        assertEquals(results, v2.getResults());
     }
 
     @Test
@@ -997,6 +1095,12 @@ public class ObjectSerializationTests {
         OperationRequestMoreData v1 = new OperationRequestMoreData();
         OperationRequestMoreData v2 = (OperationRequestMoreData)cloneObject(v1);
         assertNotNull(v2);
+        v2 = (OperationRequestMoreData)cloneObject(new OperationRequestMoreData(4, 100));
+        assertEquals(4, v2.getRequestId());
+        assertEquals(100, v2.getCredits());
+        v2 = (OperationRequestMoreData)cloneObject(new OperationRequestMoreData(0, 50));
+        assertEquals(0, v2.getRequestId());
+        assertEquals(50, v2.getCredits());
     }
 
     @Test
@@ -1004,6 +1108,8 @@ public class ObjectSerializationTests {
         OperationRequestStopData v1 = new OperationRequestStopData();
         OperationRequestStopData v2 = (OperationRequestStopData)cloneObject(v1);
         assertNotNull(v2);
+        v2 = (OperationRequestStopData)cloneObject(new OperationRequestStopData(4));
+        assertEquals(4, v2.getRequestId());
     }
 
     @Test
@@ -1131,6 +1237,27 @@ public class ObjectSerializationTests {
         assertEquals("myuid", v2.getUid().getUidValue());
     }
 
+    @Test
+    public void testMapperByObjectType() {
+        assertEquals(ObjectSerializerRegistry.getMapperByObjectType(String.class)
+                .getHandledSerialType(), "String");
+        assertEquals(ObjectSerializerRegistry.getMapperByObjectType(ArrayList.class)
+                .getHandledSerialType(), "List");
+        assertEquals(ObjectSerializerRegistry.getMapperByObjectType(
+                Collections.unmodifiableSet(new HashSet<Object>()).getClass())
+                .getHandledSerialType(), "Set");
+        // subclasses are matched by the closest handler of their parents
+        Class<?> exception = new UnknownUidException() {
+            private static final long serialVersionUID = 1L;
+        }.getClass();
+        for (int i = 0; i < 2; i++) {
+            assertEquals(ObjectSerializerRegistry.getMapperByObjectType(exception)
+                    .getHandledObjectType(), UnknownUidException.class);
+            assertNull(ObjectSerializerRegistry.getMapperByObjectType(Thread.class));
+            assertNull(ObjectSerializerRegistry.getHandlerByObjectType(Thread.class));
+        }
+    }
+
     /**
      * Highly insecure method! Do not do this in production
      * code. This is only for test purposes
@@ -1164,7 +1291,7 @@ public class ObjectSerializationTests {
     }
 
     protected Object cloneObject(Object o) {
-        return SerializerUtil.cloneObject(o);
+        return SerializerUtil.deserializeBinaryObject(SerializerUtil.serializeBinaryObject(o));
     }
 
 
@@ -28,8 +28,10 @@ import static org.fest.assertions.api.Assertions.atIndex;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
+import org.identityconnectors.framework.common.objects.Uid;
 import org.identityconnectors.framework.common.serializer.ObjectSerializerFactory;
 import org.identityconnectors.framework.common.serializer.SerializerUtil;
 import org.identityconnectors.framework.common.serializer.XmlObjectResultsHandler;
@@ -78,4 +80,19 @@ public class XmlSerializationTests extends ObjectSerializationTests {
 
         assertThat(results).hasSize(2).contains("foo", atIndex(0)).contains("bar", atIndex(1));
     }
+
+    @Test
+    public void testStreamedElements() throws Exception {
+        List<Object> list = new ArrayList<Object>();
+        list.add("");
+        list.add(new Uid("foo", "1"));
+        list.add(Collections.<String, Object> singletonMap("a<b", null));
+        String xml = SerializerUtil.serializeXmlObject(list, false);
+        System.out.println(xml);
+        assertThat(xml).isEqualTo("<List>\n" + "  <String/>\n"
+                + "  <Uid uid='foo' revision='1'/>\n" + "  <Map>\n" + "    <MapEntry>\n"
+                + "      <String>a&lt;b</String>\n" + "      <null/>\n" + "    </MapEntry>\n"
+                + "  </Map>\n" + "</List>\n");
+        assertThat(SerializerUtil.deserializeXmlObject(xml, false)).isEqualTo(list);
+    }
 }
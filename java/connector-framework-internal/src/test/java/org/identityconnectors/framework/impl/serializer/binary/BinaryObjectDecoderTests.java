@@ -0,0 +1,205 @@
+/*
+ * ====================
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2017 ConnId. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of the Common Development
+ * and Distribution License("CDDL") (the "License").  You may not use this file
+ * except in compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.php
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ *
+ * When distributing the Covered Code, include this CDDL Header Notice in each file
+ * and include the License file at http://opensource.org/licenses/cddl1.php.
+ * If applicable, add the following below this CDDL Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ * ====================
+ */
+package org.identityconnectors.framework.impl.serializer.binary;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.identityconnectors.framework.common.objects.AttributeBuilder;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ConnectorObjectBuilder;
+import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.SyncDeltaBuilder;
+import org.identityconnectors.framework.common.objects.SyncDeltaType;
+import org.identityconnectors.framework.common.objects.SyncToken;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.testng.annotations.Test;
+
+public class BinaryObjectDecoderTests {
+
+    @Test
+    public void testStreamOfObjects() {
+        ConnectorObjectBuilder builder = new ConnectorObjectBuilder();
+        builder.setUid("big");
+        builder.setName("big");
+        builder.setObjectClass(ObjectClass.ACCOUNT);
+        char[] chars = new char[100 * 1024];
+        Arrays.fill(chars, 'x');
+        builder.addAttribute("blob", new String(chars), "été");
+        // larger than the buffer the decoder keeps between objects
+        ConnectorObject big = builder.build();
+
+        List<Object> objects =
+                Arrays.<Object> asList(BinarySerializerBenchmark.newConnectorObject(0), big,
+                        null, new Object[] { "a", null, new byte[] { 1, 2 }, 3L, 4.5d, true },
+                        BinarySerializerBenchmark.newConnectorObject(1), "été");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryObjectEncoder encoder = new BinaryObjectEncoder(out);
+        for (Object object : objects) {
+            encoder.writeObject(object);
+        }
+        encoder.flush();
+
+        BinaryObjectDecoder decoder =
+                new BinaryObjectDecoder(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(decoder.readObject(), objects.get(0));
+        assertEquals(decoder.readObject(), big);
+        assertNull(decoder.readObject());
+        Object[] array = (Object[]) decoder.readObject();
+        assertEquals(array.length, 6);
+        assertEquals(array[0], "a");
+        assertNull(array[1]);
+        assertTrue(Arrays.equals((byte[]) array[2], new byte[] { 1, 2 }));
+        assertEquals(array[3], 3L);
+        assertEquals(array[4], 4.5d);
+        assertEquals(array[5], true);
+        assertEquals(decoder.readObject(), objects.get(4));
+        assertEquals(decoder.readObject(), "été");
+        assertEquals(decoder.available(), 0);
+    }
+
+    @Test
+    public void testDictionary() {
+        ConnectorObject[] objects = new ConnectorObject[20];
+        for (int i = 0; i < objects.length; i++) {
+            ConnectorObjectBuilder builder = new ConnectorObjectBuilder();
+            builder.setUid(Integer.toString(i));
+            builder.setName("name" + i);
+            builder.setObjectClass(ObjectClass.GROUP);
+            for (int j = 0; j < 20; j++) {
+                builder.addAttribute("attribute" + j, "value" + (i * j % 7), "été" + j);
+            }
+            char[] chars = new char[65];
+            Arrays.fill(chars, (char) ('a' + i % 2));
+            // never added to the dictionary
+            builder.addAttribute("long", new String(chars));
+            objects[i] = builder.build();
+        }
+        byte[] plain = BinarySerializerBenchmark.encode(objects, false);
+        byte[] stream = BinarySerializerBenchmark.encode(objects, true);
+        assertTrue(stream.length < plain.length * 9 / 10, stream.length + " >= " + plain.length);
+
+        BinaryObjectDecoder decoder = new BinaryObjectDecoder(new ByteArrayInputStream(stream));
+        for (ConnectorObject object : objects) {
+            assertEquals(decoder.readObject(), object);
+        }
+        assertEquals(decoder.available(), 0);
+    }
+
+    @Test
+    public void testCompactEncoding() {
+        char[] chars = new char[300];
+        Arrays.fill(chars, 'y');
+        Object[] objects =
+                { BinarySerializerBenchmark.newConnectorObject(0), null, Boolean.TRUE,
+                    new Object[] { -1, Integer.MIN_VALUE, Integer.MAX_VALUE, Long.MIN_VALUE,
+                        -64L, 63L, -0.5d, Double.NaN, false, null, new String(chars),
+                        new byte[200] }, BinarySerializerBenchmark.newSyncDelta(1),
+                    BinarySerializerBenchmark.newSyncDelta(3), "été" };
+        for (boolean dictionary : new boolean[] { false, true }) {
+            byte[] original =
+                    BinarySerializerBenchmark.encode(objects, dictionary,
+                            BinaryObjectEncoder.ENCODING_VERSION);
+            byte[] compact =
+                    BinarySerializerBenchmark.encode(objects, dictionary,
+                            BinaryObjectEncoder.COMPACT_ENCODING_VERSION);
+            assertTrue(compact.length < original.length, compact.length + " >= "
+                    + original.length);
+
+            BinaryObjectDecoder decoder = new BinaryObjectDecoder(new ByteArrayInputStream(compact));
+            assertEquals(decoder.readObject(), objects[0]);
+            assertNull(decoder.readObject());
+            assertEquals(decoder.readObject(), Boolean.TRUE);
+            Object[] array = (Object[]) decoder.readObject();
+            Object[] expected = (Object[]) objects[3];
+            assertEquals(array.length, expected.length);
+            for (int i = 0; i < array.length - 1; i++) {
+                assertEquals(array[i], expected[i]);
+            }
+            assertTrue(Arrays.equals((byte[]) array[array.length - 1], new byte[200]));
+            assertEquals(decoder.readObject(), objects[4]);
+            assertEquals(decoder.readObject(), objects[5]);
+            assertEquals(decoder.readObject(), "été");
+            assertEquals(decoder.available(), 0);
+        }
+    }
+
+    @Test
+    public void testPositionalObjects() {
+        ConnectorObjectBuilder builder = new ConnectorObjectBuilder();
+        builder.setUid(new Uid("uid", "revision"));
+        builder.setName("name");
+        builder.setObjectClass(new ObjectClass("myclass"));
+        builder.addAttribute(AttributeBuilder.build("empty"));
+        builder.addAttribute("values", 1, null, "été", 2.5d, 5L);
+        builder.addAttribute(AttributeBuilder.buildEnabled(true));
+        ConnectorObject object = builder.build();
+        SyncDeltaBuilder delta = new SyncDeltaBuilder();
+        delta.setToken(new SyncToken(1));
+        delta.setDeltaType(SyncDeltaType.UPDATE);
+        delta.setPreviousUid(new Uid("previous"));
+        delta.setObjectClass(ObjectClass.ACCOUNT);
+        delta.setObject(BinarySerializerBenchmark.newConnectorObject(3));
+        Object[] objects =
+                { object, BinarySerializerBenchmark.newSyncDelta(1), delta.build(),
+                    new Uid("uid"), new Name("name"), AttributeBuilder.build("single", "value"),
+                    AttributeBuilder.build("null", (Object[]) null),
+                    new ArrayList<Object>(Arrays.asList(BinarySerializerBenchmark
+                            .newConnectorObject(2))) };
+        int[] versions =
+                { BinaryObjectEncoder.ENCODING_VERSION,
+                    BinaryObjectEncoder.COMPACT_ENCODING_VERSION };
+        for (int version : versions) {
+            byte[] named = BinarySerializerBenchmark.encode(objects, false, version, false);
+            byte[] positional = BinarySerializerBenchmark.encode(objects, false, version, true);
+            assertTrue(positional.length < named.length, positional.length + " >= "
+                    + named.length);
+
+            BinaryObjectDecoder decoder =
+                    new BinaryObjectDecoder(new ByteArrayInputStream(positional));
+            ConnectorObject first = (ConnectorObject) decoder.readObject();
+            assertEquals(first, object);
+            assertEquals(first.getUid().getRevision(), "revision");
+            for (int i = 1; i < objects.length; i++) {
+                Object actual = decoder.readObject();
+                assertEquals(actual, objects[i]);
+                assertEquals(actual.getClass(), objects[i].getClass());
+            }
+            assertEquals(decoder.available(), 0);
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testUnknownEncodingVersion() {
+        new BinaryObjectEncoder(new ByteArrayOutputStream()).setEncodingVersion(4);
+    }
+}
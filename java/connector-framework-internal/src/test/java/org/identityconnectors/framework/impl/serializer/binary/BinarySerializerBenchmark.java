@@ -0,0 +1,189 @@
+/*
+ * ====================
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2017 ConnId. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of the Common Development
+ * and Distribution License("CDDL") (the "License").  You may not use this file
+ * except in compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.php
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ *
+ * When distributing the Covered Code, include this CDDL Header Notice in each file
+ * and include the License file at http://opensource.org/licenses/cddl1.php.
+ * If applicable, add the following below this CDDL Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ * ====================
+ */
+package org.identityconnectors.framework.impl.serializer.binary;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ConnectorObjectBuilder;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.SyncDelta;
+import org.identityconnectors.framework.common.objects.SyncDeltaBuilder;
+import org.identityconnectors.framework.common.objects.SyncDeltaType;
+import org.identityconnectors.framework.common.objects.SyncToken;
+import org.identityconnectors.framework.common.objects.Uid;
+
+/**
+ * Measures the time and the memory allocated to encode and decode a stream of
+ * {@link ConnectorObject}s shaped like typical search results, and compares
+ * the size and the speed of the original and the compact encoding, with named
+ * fields and with the positional layout, for search results and
+ * {@link SyncDelta}s.
+ * <p/>
+ * Not part of the test suite, run the {@link #main} method by hand. The
+ * allocation is only reported on JVMs which expose
+ * {@code com.sun.management.ThreadMXBean}.
+ */
+public class BinarySerializerBenchmark {
+
+    private static final int NUM_OBJECTS = 10000;
+
+    private static final int NUM_ATTRIBUTES = 50;
+
+    private static final int ROUNDS = 10;
+
+    public static void main(String[] args) throws Exception {
+        ConnectorObject[] objects = new ConnectorObject[NUM_OBJECTS];
+        for (int i = 0; i < NUM_OBJECTS; i++) {
+            objects[i] = newConnectorObject(i);
+        }
+        SyncDelta[] deltas = new SyncDelta[NUM_OBJECTS];
+        for (int i = 0; i < NUM_OBJECTS; i++) {
+            deltas[i] = newSyncDelta(i);
+        }
+        byte[] stream = encode(objects, false);
+        System.out.println("Encoded " + NUM_OBJECTS + " objects in " + stream.length + " bytes, "
+                + encode(objects, true).length + " bytes with a dictionary");
+        for (int round = 0; round < ROUNDS; round++) {
+            long allocated = getAllocatedBytes();
+            long start = System.nanoTime();
+            encode(objects, false);
+            report("encode", start, allocated);
+
+            allocated = getAllocatedBytes();
+            start = System.nanoTime();
+            decode(stream, NUM_OBJECTS);
+            report("decode", start, allocated);
+        }
+        compare("search results", objects);
+        compare("sync deltas", deltas);
+    }
+
+    /**
+     * Reports the size of the objects and the time to encode and decode them
+     * with the original and with the compact encoding.
+     */
+    private static void compare(String name, Object[] objects) {
+        int[] versions =
+                { BinaryObjectEncoder.ENCODING_VERSION,
+                    BinaryObjectEncoder.COMPACT_ENCODING_VERSION };
+        for (int version : versions) {
+            for (boolean positional : new boolean[] { false, true }) {
+                byte[] stream = encode(objects, false, version, positional);
+                long encoding = 0;
+                long decoding = 0;
+                for (int round = 0; round < ROUNDS; round++) {
+                    long start = System.nanoTime();
+                    encode(objects, false, version, positional);
+                    encoding += System.nanoTime() - start;
+                    start = System.nanoTime();
+                    decode(stream, objects.length);
+                    decoding += System.nanoTime() - start;
+                }
+                System.out.println(name + " version " + version
+                        + (positional ? " positional: " : " named fields: ") + stream.length
+                        + " bytes, encode " + (encoding / ROUNDS / objects.length)
+                        + " ns/object, decode " + (decoding / ROUNDS / objects.length)
+                        + " ns/object");
+            }
+        }
+    }
+
+    private static void report(String phase, long start, long allocated) {
+        long elapsed = System.nanoTime() - start;
+        allocated = getAllocatedBytes() - allocated;
+        System.out.println(phase + ": " + (elapsed / NUM_OBJECTS) + " ns/object"
+                + (allocated < 0 ? "" : ", " + (allocated / NUM_OBJECTS) + " bytes/object"));
+    }
+
+    static ConnectorObject newConnectorObject(int i) {
+        ConnectorObjectBuilder builder = new ConnectorObjectBuilder();
+        builder.setUid(Integer.toString(i));
+        builder.setName("name" + i);
+        builder.setObjectClass(ObjectClass.ACCOUNT);
+        for (int j = 0; j < NUM_ATTRIBUTES; j++) {
+            builder.addAttribute("myattribute" + j, "myvaluevaluevalue" + j);
+        }
+        return builder.build();
+    }
+
+    static SyncDelta newSyncDelta(int i) {
+        SyncDeltaBuilder builder = new SyncDeltaBuilder();
+        builder.setToken(new SyncToken(1000000L + i));
+        builder.setDeltaType(i % 3 == 0 ? SyncDeltaType.DELETE : SyncDeltaType.CREATE_OR_UPDATE);
+        builder.setUid(new Uid(Integer.toString(i)));
+        if (i % 3 != 0) {
+            builder.setObject(newConnectorObject(i));
+        }
+        return builder.build();
+    }
+
+    static byte[] encode(Object[] objects, boolean dictionary) {
+        return encode(objects, dictionary, BinaryObjectEncoder.ENCODING_VERSION);
+    }
+
+    static byte[] encode(Object[] objects, boolean dictionary, int version) {
+        return encode(objects, dictionary, version, false);
+    }
+
+    static byte[] encode(Object[] objects, boolean dictionary, int version, boolean positional) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryObjectEncoder encoder = new BinaryObjectEncoder(out);
+        encoder.setEncodingVersion(version);
+        if (dictionary) {
+            encoder.enableDictionary();
+        }
+        if (positional) {
+            encoder.enablePositionalObjects();
+        }
+        for (Object object : objects) {
+            encoder.writeObject(object);
+        }
+        encoder.flush();
+        return out.toByteArray();
+    }
+
+    static void decode(byte[] stream, int count) {
+        BinaryObjectDecoder decoder = new BinaryObjectDecoder(new ByteArrayInputStream(stream));
+        for (int i = 0; i < count; i++) {
+            if (decoder.readObject() == null) {
+                throw new AssertionError("Missing object " + i);
+            }
+        }
+    }
+
+    /**
+     * Returns the bytes allocated so far by the current thread or -1 if the
+     * JVM does not tell.
+     */
+    private static long getAllocatedBytes() {
+        Object bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread
+                    .currentThread().getId());
+        }
+        return -1;
+    }
+}
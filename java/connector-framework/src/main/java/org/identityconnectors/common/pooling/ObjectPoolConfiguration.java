@@ -39,6 +39,10 @@ public final class ObjectPoolConfiguration {
         this.setMaxWait(other.getMaxWait());
         this.setMinEvictableIdleTimeMillis(other.getMinEvictableIdleTimeMillis());
         this.setMinIdle(other.getMinIdle());
+        this.setTimeBetweenEvictionRunsMillis(other.getTimeBetweenEvictionRunsMillis());
+        this.setTestOnBorrow(other.isTestOnBorrow());
+        this.setValidationIntervalMillis(other.getValidationIntervalMillis());
+        this.setTestOnReturn(other.isTestOnReturn());
     }
 
     /**
@@ -68,6 +72,28 @@ public final class ObjectPoolConfiguration {
      */
     private int minIdle = 1;
 
+    /**
+     * Time between two runs of the background evictor. Zero means no evictor,
+     * idle objects are then evicted when objects are borrowed or returned.
+     */
+    private long timeBetweenEvictionRunsMillis = 0;
+
+    /**
+     * Test the objects when they are borrowed.
+     */
+    private boolean testOnBorrow = true;
+
+    /**
+     * Minimum time since the last successful test before a borrowed object is
+     * tested again. Zero means test on every borrow.
+     */
+    private long validationIntervalMillis = 0;
+
+    /**
+     * Test the objects when they are returned.
+     */
+    private boolean testOnReturn = false;
+
     /**
      * Get the set number of maximum objects (idle+active).
      */
@@ -143,6 +169,90 @@ public final class ObjectPoolConfiguration {
         this.minIdle = minIdle;
     }
 
+    /**
+     * Time between two runs of the background evictor. Zero means no evictor.
+     *
+     * @since 1.4.4
+     */
+    public long getTimeBetweenEvictionRunsMillis() {
+        return timeBetweenEvictionRunsMillis;
+    }
+
+    /**
+     * Time between two runs of the background evictor. Zero means no evictor.
+     * <p/>
+     * The evictor disposes the idle objects outside of the borrowing and
+     * returning threads, tests the remaining ones and creates new objects to
+     * keep at least {@link #getMinIdle() minIdle} idle objects.
+     *
+     * @since 1.4.4
+     */
+    public void setTimeBetweenEvictionRunsMillis(long timeBetweenEvictionRunsMillis) {
+        this.timeBetweenEvictionRunsMillis = timeBetweenEvictionRunsMillis;
+    }
+
+    /**
+     * Test the objects when they are borrowed.
+     *
+     * @since 1.4.4
+     */
+    public boolean isTestOnBorrow() {
+        return testOnBorrow;
+    }
+
+    /**
+     * Test the objects when they are borrowed. When false, and no test on
+     * return is requested, the objects are only tested by the background
+     * evictor, see {@link #setTimeBetweenEvictionRunsMillis(long)}.
+     *
+     * @since 1.4.4
+     */
+    public void setTestOnBorrow(boolean testOnBorrow) {
+        this.testOnBorrow = testOnBorrow;
+    }
+
+    /**
+     * Minimum time since the last successful test before a borrowed object is
+     * tested again. Zero means test on every borrow.
+     *
+     * @since 1.4.4
+     */
+    public long getValidationIntervalMillis() {
+        return validationIntervalMillis;
+    }
+
+    /**
+     * Minimum time since the last successful test before a borrowed object is
+     * tested again. Zero means test on every borrow.
+     * <p/>
+     * Objects used back to back are then not tested between two operations.
+     * A newly created object counts as tested.
+     *
+     * @since 1.4.4
+     */
+    public void setValidationIntervalMillis(long validationIntervalMillis) {
+        this.validationIntervalMillis = validationIntervalMillis;
+    }
+
+    /**
+     * Test the objects when they are returned.
+     *
+     * @since 1.4.4
+     */
+    public boolean isTestOnReturn() {
+        return testOnReturn;
+    }
+
+    /**
+     * Test the objects when they are returned, the ones failing the test are
+     * disposed instead of being kept idle.
+     *
+     * @since 1.4.4
+     */
+    public void setTestOnReturn(boolean testOnReturn) {
+        this.testOnReturn = testOnReturn;
+    }
+
     public void validate() {
         if (minIdle < 0) {
             throw new IllegalArgumentException("Min idle is less than zero.");
@@ -159,6 +269,12 @@ public final class ObjectPoolConfiguration {
         if (minEvictableIdleTimeMillis < 0) {
             throw new IllegalArgumentException("Min evictable idle time millis less than zero.");
         }
+        if (timeBetweenEvictionRunsMillis < 0) {
+            throw new IllegalArgumentException("Time between eviction runs millis less than zero.");
+        }
+        if (validationIntervalMillis < 0) {
+            throw new IllegalArgumentException("Validation interval millis less than zero.");
+        }
         if (minIdle > maxIdle) {
             throw new IllegalArgumentException("Min idle is greater than max idle.");
         }
@@ -170,7 +286,9 @@ public final class ObjectPoolConfiguration {
     @Override
     public int hashCode() {
         return (int) (getMaxObjects() + getMaxIdle() + getMaxWait()
-                + getMinEvictableIdleTimeMillis() + getMinIdle());
+                + getMinEvictableIdleTimeMillis() + getMinIdle()
+                + getTimeBetweenEvictionRunsMillis() + getValidationIntervalMillis()
+                + (isTestOnBorrow() ? 1 : 0) + (isTestOnReturn() ? 2 : 0));
     }
 
     @Override
@@ -193,6 +311,18 @@ public final class ObjectPoolConfiguration {
             if (getMinIdle() != other.getMinIdle()) {
                 return false;
             }
+            if (getTimeBetweenEvictionRunsMillis() != other.getTimeBetweenEvictionRunsMillis()) {
+                return false;
+            }
+            if (isTestOnBorrow() != other.isTestOnBorrow()) {
+                return false;
+            }
+            if (getValidationIntervalMillis() != other.getValidationIntervalMillis()) {
+                return false;
+            }
+            if (isTestOnReturn() != other.isTestOnReturn()) {
+                return false;
+            }
             return true;
         }
         return false;
@@ -207,6 +337,10 @@ public final class ObjectPoolConfiguration {
         bld.put("MaxWait", getMaxWait());
         bld.put("MinEvictableIdleTimeMillis", getMinEvictableIdleTimeMillis());
         bld.put("MinIdle", getMinIdle());
+        bld.put("TimeBetweenEvictionRunsMillis", getTimeBetweenEvictionRunsMillis());
+        bld.put("TestOnBorrow", isTestOnBorrow());
+        bld.put("ValidationIntervalMillis", getValidationIntervalMillis());
+        bld.put("TestOnReturn", isTestOnReturn());
         return bld.toString();
     }
 }
@@ -0,0 +1,52 @@
+/*
+ * ====================
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2017 ConnId. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of the Common Development
+ * and Distribution License("CDDL") (the "License").  You may not use this file
+ * except in compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.php
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ *
+ * When distributing the Covered Code, include this CDDL Header Notice in each file
+ * and include the License file at http://opensource.org/licenses/cddl1.php.
+ * If applicable, add the following below this CDDL Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ * ====================
+ */
+package org.identityconnectors.framework.api;
+
+/**
+ * Receives the outcome of an operation started through an
+ * {@link AsyncConnectorFacade}.
+ *
+ * @param <V>
+ *            the type of the result of the operation.
+ * @since 1.4.4
+ */
+public interface AsyncCallback<V> {
+
+    /**
+     * Called once the operation has completed successfully.
+     *
+     * @param result
+     *            the result of the operation, null for operations which do
+     *            not return anything.
+     */
+    void completed(V result);
+
+    /**
+     * Called once the operation has failed or has been cancelled.
+     *
+     * @param failure
+     *            the exception thrown by the operation or a
+     *            {@link java.util.concurrent.CancellationException}.
+     */
+    void failed(Throwable failure);
+}
@@ -0,0 +1,98 @@
+/*
+ * ====================
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2017 ConnId. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of the Common Development
+ * and Distribution License("CDDL") (the "License").  You may not use this file
+ * except in compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.php
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ *
+ * When distributing the Covered Code, include this CDDL Header Notice in each file
+ * and include the License file at http://opensource.org/licenses/cddl1.php.
+ * If applicable, add the following below this CDDL Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ * ====================
+ */
+package org.identityconnectors.framework.api;
+
+import java.util.Set;
+
+import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.OperationOptions;
+import org.identityconnectors.framework.common.objects.ResultsHandler;
+import org.identityconnectors.framework.common.objects.SearchResult;
+import org.identityconnectors.framework.common.objects.SyncResultsHandler;
+import org.identityconnectors.framework.common.objects.SyncToken;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.identityconnectors.framework.common.objects.filter.Filter;
+
+/**
+ * Starts the operations of a {@link ConnectorFacade} without waiting for their
+ * results.
+ * <p/>
+ * Implemented by the facades of connectors hosted on a connector server. The
+ * operations are sent over the multiplexed connections to the server. No
+ * thread waits for the response, so an application can keep many operations
+ * in flight with a few threads. Connector servers which do not support the
+ * multiplexed protocol get the operations on a shared pool of threads instead,
+ * each blocking a thread and a connection while it runs. That pool has at most
+ * as many threads as a server has connections, the {@code maxObjects} of the
+ * remote connection pool configuration. The operations started beyond that
+ * wait in a queue until a thread is free, and their time in the queue does
+ * not count against the pool's {@code maxWait}.
+ * <p/>
+ * The handler of a search or sync subscribes to the results. It is called for
+ * one result at a time, in order, on a pool thread. The server sends no more
+ * results than the flow control window allows ahead of the handler. Returning
+ * false stops the stream.
+ *
+ * @since 1.4.4
+ */
+public interface AsyncConnectorFacade {
+
+    /**
+     * Starts a {@link ConnectorFacade#create create}.
+     */
+    AsyncFuture<Uid> createAsync(ObjectClass objectClass, Set<Attribute> createAttributes,
+            OperationOptions options);
+
+    /**
+     * Starts an {@link ConnectorFacade#update update}.
+     */
+    AsyncFuture<Uid> updateAsync(ObjectClass objectClass, Uid uid,
+            Set<Attribute> replaceAttributes, OperationOptions options);
+
+    /**
+     * Starts a {@link ConnectorFacade#delete delete}.
+     */
+    AsyncFuture<Void> deleteAsync(ObjectClass objectClass, Uid uid, OperationOptions options);
+
+    /**
+     * Starts a {@link ConnectorFacade#getObject getObject}.
+     */
+    AsyncFuture<ConnectorObject> getObjectAsync(ObjectClass objectClass, Uid uid,
+            OperationOptions options);
+
+    /**
+     * Starts a {@link ConnectorFacade#search search}. The future completes
+     * once the handler has seen the last result or has stopped the search.
+     */
+    AsyncFuture<SearchResult> searchAsync(ObjectClass objectClass, Filter filter,
+            ResultsHandler handler, OperationOptions options);
+
+    /**
+     * Starts a {@link ConnectorFacade#sync sync}. The future completes once
+     * the handler has seen the last delta or has stopped the sync.
+     */
+    AsyncFuture<SyncToken> syncAsync(ObjectClass objectClass, SyncToken token,
+            SyncResultsHandler handler, OperationOptions options);
+}
@@ -0,0 +1,51 @@
+/*
+ * ====================
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS HEADER.
+ *
+ * Copyright 2017 ConnId. All rights reserved.
+ *
+ * The contents of this file are subject to the terms of the Common Development
+ * and Distribution License("CDDL") (the "License").  You may not use this file
+ * except in compliance with the License.
+ *
+ * You can obtain a copy of the License at
+ * http://opensource.org/licenses/cddl1.php
+ * See the License for the specific language governing permissions and limitations
+ * under the License.
+ *
+ * When distributing the Covered Code, include this CDDL Header Notice in each file
+ * and include the License file at http://opensource.org/licenses/cddl1.php.
+ * If applicable, add the following below this CDDL Header, with the fields
+ * enclosed by brackets [] replaced by your own identifying information:
+ * "Portions Copyrighted [year] [name of copyright owner]"
+ * ====================
+ */
+package org.identityconnectors.framework.api;
+
+import java.util.concurrent.Future;
+
+/**
+ * The pending result of an operation started through an
+ * {@link AsyncConnectorFacade}.
+ * <p/>
+ * {@link #get()} fails with an
+ * {@link java.util.concurrent.ExecutionException} wrapping the exception
+ * thrown by the operation. Cancelling the future stops a running search or
+ * sync. The operation itself may still complete on the connector.
+ *
+ * @param <V>
+ *            the type of the result of the operation.
+ * @since 1.4.4
+ */
+public interface AsyncFuture<V> extends Future<V> {
+
+    /**
+     * Registers a callback notified once the operation is done. The callback
+     * runs on the thread completing the operation. If the operation is already
+     * done, it runs right away on the calling thread.
+     *
+     * @param callback
+     *            the callback to notify.
+     */
+    void addCallback(AsyncCallback<? super V> callback);
+}
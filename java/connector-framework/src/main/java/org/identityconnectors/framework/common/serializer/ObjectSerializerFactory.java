@@ -22,6 +22,8 @@
  */
 package org.identityconnectors.framework.common.serializer;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Writer;
@@ -132,4 +134,23 @@ public abstract class ObjectSerializerFactory {
     public abstract void deserializeXmlStream(InputSource is,
             XmlObjectResultsHandler handler,
             boolean validate);
+
+    /**
+     * Creates a deep copy of the given object, equivalent to serializing it
+     * to bytes and then deserializing it.
+     *
+     * NOTE: Consider using {@link SerializerUtil#cloneObject(Object)} for
+     * convenience.
+     *
+     * @param object The object. May be null.
+     * @return A clone of the object
+     * @since 1.4.4
+     */
+    public Object cloneObject(Object object) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        BinaryObjectSerializer ser = newBinarySerializer(baos);
+        ser.writeObject(object);
+        ser.close();
+        return newBinaryDeserializer(new ByteArrayInputStream(baos.toByteArray())).readObject();
+    }
 }
@@ -148,16 +148,16 @@ public final class SerializerUtil {
     }
 
     /**
-     * Clones the given object by serializing it to bytes and then deserializing
-     * it.
+     * Clones the given object. The result is the same as serializing it to
+     * bytes and then deserializing it.
      *
      * @param object
      *            The object.
      * @return A clone of the object
+     * @see ObjectSerializerFactory#cloneObject(Object)
      */
     public static Object cloneObject(Object object) {
-        byte[] bytes = serializeBinaryObject(object);
-        return deserializeBinaryObject(bytes);
+        return ObjectSerializerFactory.getInstance().cloneObject(object);
     }
 
 }